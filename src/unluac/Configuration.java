@@ -4,4 +4,16 @@ public class Configuration {
 
   public boolean rawstring = false;
   
+  /**
+   * Time budget for decompiling a single function, in milliseconds (0 for
+   * no limit). A function over budget is printed as a disassembly stub.
+   */
+  public long functionTimeLimit = 0;
+  
+  /**
+   * Budget for the estimated working memory of a single function, in bytes
+   * (0 for no limit).
+   */
+  public long functionMemoryLimit = 0;
+  
 }
@@ -0,0 +1,517 @@
+package unluac;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import unluac.decompile.DecompileContext;
+import unluac.decompile.Decompiler;
+import unluac.decompile.FunctionCache;
+import unluac.decompile.Output;
+import unluac.decompile.OutputProvider;
+import unluac.decompile.Scratch;
+import unluac.decompile.Stats;
+import unluac.parse.BHeader;
+import unluac.parse.LFunction;
+
+/**
+ * Library entry point for decompiling chunks.
+ *
+ * An engine is built once from a configuration and may be shared between
+ * threads; every call uses its own decompilation state, and work arrays are
+ * kept per thread and reused between calls. Errors are returned
+ * as a Result instead of being thrown. The decompiled source is streamed to
+ * the output while it is produced, so a failed call may leave partial output.
+ *
+ * A function that fails to decompile, or exceeds the per-function budgets
+ * of the configuration, is printed as an annotated disassembly stub and
+ * listed in the result's failures; the rest of the chunk is still
+ * decompiled. Interrupting the calling thread cancels the call.
+ *
+ * Byte outputs receive one byte per character, which reproduces the bytes of
+ * the chunk's strings and names exactly (the parser reads them as ISO-8859-1).
+ */
+public class Engine {
+
+  public static enum Status {
+    OK,
+    IO_ERROR,
+    INVALID_CHUNK,
+    DECOMPILE_ERROR,
+    CANCELLED;
+  }
+
+  public static class Result {
+
+    private static final Result OK = new Result(Status.OK, null, null);
+
+    public final Status status;
+    public final String message;
+    public final Throwable cause;
+
+    /**
+     * The functions that were printed as disassembly stubs because they
+     * could not be decompiled within their budget, as "path: reason".
+     */
+    public final List<String> failures;
+
+    /**
+     * How many of the failures are functions that exceeded their time or
+     * memory budget; the others could not be decompiled at all.
+     */
+    public final int budgetFailures;
+
+    /**
+     * The timings and counters of the call, or null if the engine does not
+     * collect stats.
+     */
+    public final Stats stats;
+
+    private Result(Status status, String message, Throwable cause) {
+      this(status, message, cause, null);
+    }
+
+    private Result(Status status, String message, Throwable cause, Stats stats) {
+      this(status, message, cause, stats, Collections.<String>emptyList(), 0);
+    }
+
+    private Result(Status status, String message, Throwable cause, Stats stats, List<String> failures, int budgetFailures) {
+      this.status = status;
+      this.message = message;
+      this.cause = cause;
+      this.stats = stats;
+      this.failures = failures;
+      this.budgetFailures = budgetFailures;
+    }
+
+    private Result with(Stats stats, DecompileContext context) {
+      List<String> failures = context.getFailures();
+      if(stats == null && failures.isEmpty()) {
+        return this;
+      }
+      return new Result(status, message, cause, stats, Collections.unmodifiableList(failures), context.getBudgetFailures());
+    }
+
+    /**
+     * The result of a call that could not read or write its files.
+     */
+    public static Result ioError(IOException e) {
+      return error(Status.IO_ERROR, e);
+    }
+
+    public boolean isOk() {
+      return status == Status.OK;
+    }
+
+    @Override
+    public String toString() {
+      return isOk() ? "ok" : status.name().toLowerCase() + ": " + message;
+    }
+
+  }
+
+  /**
+   * Thrown by parse when the input is not a chunk unluac can read.
+   */
+  public static class InvalidChunkException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public InvalidChunkException(String message, Throwable cause) {
+      super(message, cause);
+    }
+
+  }
+
+  private final Configuration config;
+  private final boolean stats;
+  private volatile FunctionCache cache;
+  
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+    
+  };
+
+  /**
+   * Creates an engine. The configuration must not be modified afterwards.
+   */
+  public Engine(Configuration config) {
+    this(config, false);
+  }
+
+  /**
+   * Creates an engine that returns per-function timings and counters with
+   * each result if stats is set. Stats are also collected (and emitted as
+   * flight recorder events) while a flight recording takes the unluac events.
+   */
+  public Engine(Configuration config, boolean stats) {
+    this.config = config;
+    this.stats = stats;
+  }
+
+  public Configuration getConfiguration() {
+    return config;
+  }
+
+  /**
+   * Reuses the functions rendered in earlier decompilations, and adds to
+   * them, so that a chunk that has changed in only a few functions only
+   * decompiles those (and the functions enclosing them). Must be set before
+   * the engine is used; threads that use the engine afterwards see the cache
+   * without further synchronization.
+   */
+  public void setFunctionCache(FunctionCache cache) {
+    this.cache = cache;
+  }
+
+  public Result decompile(ByteBuffer chunk, Appendable out) {
+    return run(chunk, out(out));
+  }
+
+  public Result decompile(ByteBuffer chunk, WritableByteChannel out) {
+    return run(chunk, out(out));
+  }
+
+  public Result decompile(Path file, Appendable out) {
+    try {
+      return run(read(file), out(out));
+    } catch(IOException e) {
+      return error(Status.IO_ERROR, e);
+    }
+  }
+
+  public Result decompile(Path file, WritableByteChannel out) {
+    try {
+      return run(read(file), out(out));
+    } catch(IOException e) {
+      return error(Status.IO_ERROR, e);
+    }
+  }
+
+  public Result decompile(InputStream in, Appendable out) {
+    try {
+      return run(read(in), out(out));
+    } catch(IOException e) {
+      return error(Status.IO_ERROR, e);
+    }
+  }
+
+  public Result decompile(InputStream in, WritableByteChannel out) {
+    try {
+      return run(read(in), out(out));
+    } catch(IOException e) {
+      return error(Status.IO_ERROR, e);
+    }
+  }
+
+  /**
+   * Decompiles to an Output directly, which is told where the text of each
+   * function begins and ends (see Output.beginFunction).
+   */
+  public Result decompile(ByteBuffer chunk, Output out) {
+    return run(chunk, out, null);
+  }
+
+  public Result decompile(Path file, Output out) {
+    try {
+      return run(read(file), out, null);
+    } catch(IOException e) {
+      return error(Status.IO_ERROR, e);
+    }
+  }
+
+  /**
+   * Parses a chunk into its main function without decompiling it.
+   */
+  public LFunction parse(ByteBuffer chunk) throws InvalidChunkException {
+    return parseNext(chunk.duplicate());
+  }
+
+  /**
+   * Parses the chunk at the buffer's position, and leaves the position just
+   * after the chunk's last byte, where the next chunk of a stream of chunks
+   * begins. If the chunk is cut short, the cause of the exception is a
+   * BufferUnderflowException and the position is undefined.
+   */
+  public LFunction parseNext(ByteBuffer buffer) throws InvalidChunkException {
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      return new BHeader(buffer, config).main;
+    } catch(BufferUnderflowException e) {
+      throw new InvalidChunkException("unexpected end of chunk", e);
+    } catch(RuntimeException e) {
+      throw new InvalidChunkException(describe(e), e);
+    }
+  }
+
+  public LFunction parse(Path file) throws IOException, InvalidChunkException {
+    return parse(read(file));
+  }
+
+  /**
+   * Decompiles an already parsed main function.
+   */
+  public Result decompile(LFunction main, Appendable out) {
+    OutputProvider provider = out(out);
+    return run(main, new Output(provider), provider, stats());
+  }
+
+  public Result decompile(LFunction main, WritableByteChannel out) {
+    OutputProvider provider = out(out);
+    return run(main, new Output(provider), provider, stats());
+  }
+
+  private Stats stats() {
+    return stats || Stats.isRecording() ? new Stats() : null;
+  }
+
+  private Result run(ByteBuffer chunk, OutputProvider provider) {
+    return run(chunk, new Output(provider), provider);
+  }
+
+  private Result run(ByteBuffer chunk, Output out, OutputProvider provider) {
+    Stats stats = stats();
+    long start = stats != null ? System.nanoTime() : 0;
+    long allocated = stats != null ? Stats.allocatedBytes() : 0;
+    LFunction main;
+    try {
+      main = parse(chunk);
+    } catch(InvalidChunkException e) {
+      return new Result(Status.INVALID_CHUNK, e.getMessage(), e.getCause());
+    }
+    if(stats != null) {
+      stats.setParseNanos(System.nanoTime() - start);
+      stats.setParseBytes(Stats.allocatedBytes() - allocated);
+    }
+    return run(main, out, provider, stats);
+  }
+
+  private Result run(LFunction main, Output out, OutputProvider provider, Stats stats) {
+    Result result;
+    Scratch work = scratch.get();
+    DecompileContext context = new DecompileContext(work, stats, cache);
+    try {
+      Decompiler d = new Decompiler(main, context);
+      d.render(out);
+      if(provider instanceof ByteOutput) {
+        ((ByteOutput) provider).flush();
+      }
+      result = Result.OK;
+    } catch(UncheckedIOException e) {
+      result = error(Status.IO_ERROR, e.getCause());
+    } catch(CancellationException e) {
+      result = new Result(Status.CANCELLED, "cancelled", e);
+    } catch(RuntimeException e) {
+      result = new Result(Status.DECOMPILE_ERROR, describe(e), e);
+    } catch(StackOverflowError e) {
+      result = new Result(Status.DECOMPILE_ERROR, "stack overflow while decompiling", e);
+    } finally {
+      work.trim();
+    }
+    if(stats != null) {
+      stats.commit();
+    }
+    return result.with(stats, context);
+  }
+
+  private static Result error(Status status, IOException e) {
+    String message;
+    if(e instanceof NoSuchFileException) {
+      message = "file not found: " + e.getMessage();
+    } else {
+      message = e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+    return new Result(status, message, e);
+  }
+
+  private static String describe(RuntimeException e) {
+    return e.getMessage() != null ? e.getMessage() : e.toString();
+  }
+
+  private static ByteBuffer read(Path file) throws IOException {
+    FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      long size = in.size();
+      if(size > Integer.MAX_VALUE) {
+        throw new IOException("file too large: " + file);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) size);
+      while(buffer.hasRemaining() && in.read(buffer) >= 0);
+      buffer.flip();
+      return buffer;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static ByteBuffer read(InputStream in) throws IOException {
+    byte[] bytes = new byte[8192];
+    int length = 0;
+    int n;
+    while((n = in.read(bytes, length, bytes.length - length)) >= 0) {
+      length += n;
+      if(length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+    }
+    return ByteBuffer.wrap(bytes, 0, length);
+  }
+
+  private static OutputProvider out(final Appendable out) {
+    if(out instanceof Writer) {
+      final Writer writer = (Writer) out;
+      return new OutputProvider() {
+
+        @Override
+        public void print(String s) {
+          try {
+            writer.write(s);
+          } catch(IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+
+        @Override
+        public void print(byte b) {
+          try {
+            writer.write(0xFF & b);
+          } catch(IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+
+        @Override
+        public void print(char[] chars, int offset, int length) {
+          try {
+            writer.write(chars, offset, length);
+          } catch(IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+
+        @Override
+        public void println() {
+          print("\n");
+        }
+
+      };
+    }
+    return new OutputProvider() {
+
+      @Override
+      public void print(String s) {
+        try {
+          out.append(s);
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      @Override
+      public void print(byte b) {
+        try {
+          out.append((char) (0xFF & b));
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      @Override
+      public void print(char[] chars, int offset, int length) {
+        try {
+          for(int i = offset; i < offset + length; i++) {
+            out.append(chars[i]);
+          }
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      @Override
+      public void println() {
+        print("\n");
+      }
+
+    };
+  }
+
+  private static ByteOutput out(WritableByteChannel out) {
+    return new ByteOutput(out);
+  }
+
+  /**
+   * Buffers output for a byte channel, one byte per character.
+   */
+  private static class ByteOutput implements OutputProvider {
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+    ByteOutput(WritableByteChannel out) {
+      this.out = out;
+    }
+
+    @Override
+    public void print(String s) {
+      int length = s.length();
+      for(int i = 0; i < length; i++) {
+        put((byte) s.charAt(i));
+      }
+    }
+
+    @Override
+    public void print(byte b) {
+      put(b);
+    }
+
+    @Override
+    public void print(char[] chars, int offset, int length) {
+      for(int i = offset; i < offset + length; i++) {
+        put((byte) chars[i]);
+      }
+    }
+
+    @Override
+    public void println() {
+      put((byte) '\n');
+    }
+
+    private void put(byte b) {
+      if(!buffer.hasRemaining()) {
+        flush();
+      }
+      buffer.put(b);
+    }
+
+    void flush() {
+      buffer.flip();
+      try {
+        while(buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+      } catch(IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      buffer.clear();
+    }
+
+  }
+
+}
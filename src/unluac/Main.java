@@ -1,16 +1,30 @@
 package unluac;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
-import unluac.decompile.Decompiler;
-import unluac.decompile.Output;
-import unluac.decompile.OutputProvider;
-import unluac.parse.BHeader;
+import unluac.analysis.CallGraphRunner;
+import unluac.batch.BatchRunner;
+import unluac.batch.Journal;
+import unluac.batch.Manifest;
+import unluac.batch.Watcher;
+import unluac.chunk.ChunkReader;
+import unluac.decompile.FunctionCache;
+import unluac.index.IndexFile;
+import unluac.index.Indexer;
+import unluac.index.Posting;
+import unluac.index.Term;
 import unluac.parse.LFunction;
 
 public class Main {
@@ -19,35 +33,290 @@ public class Main {
   
   public static void main(String[] args) {
     String fn = null;
+    String index = null;
+    boolean query = false;
+    boolean callgraph = false;
+    boolean stats = false;
+    boolean stream = false;
+    String batch = null;
+    long memoryBudget = BatchRunner.defaultMemoryBudget();
+    String journal = null;
+    boolean retryFailed = false;
+    String incremental = null;
+    String previous = null;
+    boolean watch = false;
+    String digest = null;
+    String baseline = null;
+    List<String> inputs = new ArrayList<String>();
     Configuration config = new Configuration();
-    for(String arg : args) {
-      if(arg.startsWith("-")) {
+    for(int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if(arg.startsWith("-") && !arg.equals("-")) {
         // option
         if(arg.equals("--rawstring")) {
           config.rawstring = true;
+        } else if((arg.equals("--index") || arg.equals("--query")) && index == null && i + 1 < args.length) {
+          query = arg.equals("--query");
+          index = args[++i];
+        } else if(arg.equals("--callgraph")) {
+          callgraph = true;
+        } else if(arg.equals("--batch") && batch == null && i + 1 < args.length) {
+          batch = args[++i];
+        } else if(arg.equals("--memory-budget") && i + 1 < args.length) {
+          memoryBudget = parseLimit(args[++i]);
+        } else if(arg.equals("--journal") && journal == null && i + 1 < args.length) {
+          journal = args[++i];
+        } else if(arg.equals("--retry-failed")) {
+          retryFailed = true;
+        } else if(arg.equals("--watch")) {
+          watch = true;
+        } else if(arg.equals("--incremental") && incremental == null && i + 1 < args.length) {
+          incremental = args[++i];
+        } else if(arg.equals("--previous") && previous == null && i + 1 < args.length) {
+          previous = args[++i];
+        } else if(arg.equals("--digest") && digest == null && i + 1 < args.length) {
+          digest = args[++i];
+        } else if(arg.equals("--baseline") && baseline == null && i + 1 < args.length) {
+          baseline = args[++i];
+        } else if(arg.equals("--stats")) {
+          stats = true;
+        } else if(arg.equals("--stream")) {
+          stream = true;
+        } else if(arg.equals("--function-timeout") && i + 1 < args.length) {
+          config.functionTimeLimit = parseLimit(args[++i]);
+        } else if(arg.equals("--function-memory") && i + 1 < args.length) {
+          config.functionMemoryLimit = parseLimit(args[++i]);
         } else {
           error("unrecognized option: " + arg, true);
         }
+      } else if(index != null || callgraph || batch != null || digest != null) {
+        inputs.add(arg);
       } else if(fn == null) {
         fn = arg;
       } else {
         error("too many arguments: " + arg, true);
       }
     }
-    if(fn == null) {
-      error("no input file provided", true);
-    } else {
-      LFunction lmain = null;
+    if(digest != null) {
+      if(fn != null) {
+        inputs.add(0, fn);
+      }
+      if(batch != null || journal != null || incremental != null || watch) {
+        error("--digest cannot be used with --batch, --journal, --incremental or --watch", true);
+      }
+      if(inputs.isEmpty() && baseline == null) {
+        error("no input file provided", true);
+      }
+      try {
+        if(!inputs.isEmpty()) {
+          BatchRunner runner = new BatchRunner(config, System.err, Runtime.getRuntime().availableProcessors(), memoryBudget);
+          Manifest manifest = Manifest.create(Paths.get(digest));
+          try {
+            runner.setManifest(manifest);
+            runner.run(BatchRunner.jobs(inputs, Paths.get("")));
+          } finally {
+            runner.close();
+            manifest.close();
+          }
+        }
+        if(baseline != null) {
+          Manifest.compare(Paths.get(baseline), Paths.get(digest), System.out);
+        }
+      } catch(IOException e) {
+        error(e.getMessage(), false);
+      }
+      System.exit(0);
+    } else if(batch != null) {
+      if(fn != null) {
+        inputs.add(0, fn);
+      }
+      if(inputs.isEmpty()) {
+        error("no input file provided", true);
+      }
+      if(retryFailed && journal == null) {
+        error("--retry-failed needs a --journal", true);
+      }
+      if(retryFailed && watch) {
+        error("--retry-failed cannot be used with --watch", true);
+      }
+      int failed = 0;
+      try {
+        BatchRunner runner = new BatchRunner(config, System.err, Runtime.getRuntime().availableProcessors(), memoryBudget);
+        FunctionCache cache = incremental != null ? FunctionCache.load(Paths.get(incremental)) : null;
+        Journal log = journal != null ? Journal.open(Paths.get(journal)) : null;
+        try {
+          runner.setJournal(log, retryFailed);
+          runner.setFunctionCache(cache);
+          if(watch) {
+            new Watcher(runner, inputs, Paths.get(batch), System.err).run();
+          } else {
+            for(BatchRunner.Outcome outcome : runner.run(BatchRunner.jobs(inputs, Paths.get(batch)))) {
+              if(!outcome.result.isOk()) {
+                failed++;
+              }
+            }
+          }
+          if(cache != null) {
+            cache.save(Paths.get(incremental));
+          }
+        } finally {
+          runner.close();
+          if(log != null) {
+            log.close();
+          }
+        }
+      } catch(IOException e) {
+        error(e.getMessage(), false);
+      } catch(InterruptedException e) {
+        System.exit(0);
+      }
+      if(failed > 0) {
+        error(failed + (failed == 1 ? " file" : " files") + " failed to decompile", false);
+      }
+      System.exit(0);
+    } else if(callgraph) {
+      if(fn != null) {
+        inputs.add(0, fn);
+      }
+      if(inputs.isEmpty()) {
+        error("no input file provided", true);
+      }
       try {
-        lmain = file_to_function(fn, config);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 1 << 16);
+        CallGraphRunner.run(Indexer.collect(inputs), config, out, System.err, Runtime.getRuntime().availableProcessors());
+        out.flush();
+      } catch(IOException e) {
+        error(e.getMessage(), false);
+      }
+      System.exit(0);
+    } else if(index != null) {
+      if(fn != null) {
+        inputs.add(0, fn);
+      }
+      if(inputs.isEmpty()) {
+        error(query ? "no query term provided" : "no input file provided", true);
+      }
+      try {
+        if(query) {
+          for(String term : inputs) {
+            for(Posting posting : IndexFile.query(Paths.get(index), Term.parse(term))) {
+              System.out.println(posting);
+            }
+          }
+        } else {
+          Indexer.update(Paths.get(index), inputs, config, System.err);
+        }
       } catch(IOException e) {
         error(e.getMessage(), false);
       }
-      Decompiler d = new Decompiler(lmain);
-      Decompiler.State result = d.decompile();
-      d.print(result);
       System.exit(0);
+    } else if(stream) {
+      if(incremental != null || previous != null) {
+        error("--stream cannot be used with --incremental or --previous", true);
+      }
+      System.exit(stream(new Engine(config, stats), fn, stats) ? 0 : 1);
+    } else if(fn == null) {
+      error("no input file provided", true);
+    } else {
+      Engine engine = new Engine(config, stats);
+      FunctionCache cache = null;
+      if(incremental != null || previous != null) {
+        try {
+          cache = incremental != null ? FunctionCache.load(Paths.get(incremental)) : new FunctionCache();
+        } catch(IOException e) {
+          error(e.getMessage(), false);
+        }
+        engine.setFunctionCache(cache);
+      }
+      if(previous != null) {
+        // Only fills the cache with the functions of the previous version.
+        Engine.Result warm = engine.decompile(Paths.get(previous), new StringBuilder());
+        if(warm.status == Engine.Status.IO_ERROR) {
+          error(warm.message, false);
+        }
+      }
+      int hits = cache != null ? cache.getHits() : 0;
+      int misses = cache != null ? cache.getMisses() : 0;
+      Engine.Result result = engine.decompile(Paths.get(fn), Channels.newChannel(System.out));
+      System.out.flush();
+      if(stats && result.stats != null) {
+        result.stats.print(System.err, 20);
+      }
+      if(stats && cache != null) {
+        System.err.println("cache: " + (cache.getHits() - hits) + " reused, " + (cache.getMisses() - misses) + " decompiled");
+      }
+      if(incremental != null && result.isOk()) {
+        try {
+          cache.save(Paths.get(incremental));
+        } catch(IOException e) {
+          error(e.getMessage(), false);
+        }
+      }
+      for(String failure : result.failures) {
+        System.err.println("unluac: warning: function " + failure);
+      }
+      if(!result.isOk()) {
+        error(result.message, false);
+      }
+      System.exit(0);
+    }
+  }
+  
+  /*
+   * Decompiles every chunk of the file (or of stdin if fn is null or "-"),
+   * printing each one as soon as it has arrived after a comment line with
+   * its number and offset. Returns false if a chunk failed.
+   */
+  private static boolean stream(Engine engine, String fn, boolean stats) {
+    boolean ok = true;
+    ChunkReader reader = null;
+    int chunk = 0;
+    try {
+      InputStream in = fn == null || fn.equals("-") ? System.in : Files.newInputStream(Paths.get(fn));
+      try {
+        reader = new ChunkReader(engine, in);
+        WritableByteChannel out = Channels.newChannel(System.out);
+        LFunction main;
+        while((main = reader.next()) != null) {
+          chunk++;
+          System.out.print("-- chunk " + chunk + " at byte " + reader.getOffset() + "\n");
+          Engine.Result result = engine.decompile(main, out);
+          System.out.flush();
+          if(stats && result.stats != null) {
+            System.err.println("-- chunk " + chunk);
+            result.stats.print(System.err, 20);
+          }
+          for(String failure : result.failures) {
+            System.err.println("unluac: warning: chunk " + chunk + ": function " + failure);
+          }
+          if(!result.isOk()) {
+            System.err.println("unluac: chunk " + chunk + ": " + result.message);
+            ok = false;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch(Engine.InvalidChunkException e) {
+      System.out.flush();
+      error("chunk " + (chunk + 1) + " at byte " + reader.getOffset() + ": " + e.getMessage(), false);
+    } catch(IOException e) {
+      System.out.flush();
+      error(e.getMessage(), false);
+    }
+    return ok;
+  }
+  
+  private static long parseLimit(String arg) {
+    try {
+      long limit = Long.parseLong(arg);
+      if(limit >= 0) {
+        return limit;
+      }
+    } catch(NumberFormatException e) {
     }
+    error("invalid limit: " + arg, true);
+    return 0;
   }
   
   private static void error(String err, boolean usage) {
@@ -56,54 +325,40 @@ public class Main {
     System.err.println(err);
     if(usage) {
       System.err.println("  usage: java -jar unluac.jar [options] <file>");
+      System.err.println("         java -jar unluac.jar --stats [options] <file>");
+      System.err.println("         java -jar unluac.jar --stream [options] [<file> | -]");
+      System.err.println("         java -jar unluac.jar --index <index> <file or directory> ...");
+      System.err.println("         java -jar unluac.jar --callgraph <file or directory> ...");
+      System.err.println("         java -jar unluac.jar [options] --batch <output directory> [--memory-budget <bytes>]");
+      System.err.println("             [--journal <file> [--retry-failed]] [--watch] <file or directory> ...");
+      System.err.println("         java -jar unluac.jar [options] --digest <manifest> [--baseline <manifest>] [<file or directory> ...]");
+      System.err.println("         java -jar unluac.jar --query <index> [global:|string:|number:]<term> ...");
+      System.err.println("  options: --rawstring, --function-timeout <ms>, --function-memory <bytes>,");
+      System.err.println("           --incremental <cache file>, --previous <file>");
     }
     System.exit(1);
   }
   
-  private static LFunction file_to_function(String fn, Configuration config) throws IOException {
-    RandomAccessFile file = null;
+  public static LFunction file_to_function(String fn, Configuration config) throws IOException {
     try {
-      file = new RandomAccessFile(fn, "r");
-      ByteBuffer buffer = ByteBuffer.allocate((int) file.length());
-      buffer.order(ByteOrder.LITTLE_ENDIAN);
-      int len = (int) file.length();
-      FileChannel in = file.getChannel();
-      while(len > 0) len -= in.read(buffer);
-      buffer.rewind();
-      BHeader header = new BHeader(buffer, config);
-      return header.main;
-    } finally {
-      if(file != null) {
-        file.close();
-      }
+      return new Engine(config).parse(Paths.get(fn));
+    } catch(Engine.InvalidChunkException e) {
+      throw new IllegalStateException(e.getMessage(), e.getCause());
     }
   }
   
   public static void decompile(String in, String out) throws IOException {
-    LFunction lmain = file_to_function(in, new Configuration());
-    Decompiler d = new Decompiler(lmain);
-    Decompiler.State result = d.decompile();
-    final PrintStream pout = new PrintStream(out);
-    d.print(result, new Output(new OutputProvider() {
-
-      @Override
-      public void print(String s) {
-        pout.print(s);
-      }
-      
-      @Override
-      public void print(byte b) {
-        pout.print(b);
+    FileChannel channel = FileChannel.open(Paths.get(out), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      Engine.Result result = new Engine(new Configuration()).decompile(Paths.get(in), channel);
+      if(result.status == Engine.Status.IO_ERROR) {
+        throw new IOException(result.message, result.cause);
+      } else if(!result.isOk()) {
+        throw new IllegalStateException(result.message, result.cause);
       }
-
-      @Override
-      public void println() {
-        pout.println();
-      }
-      
-    }));
-    pout.flush();
-    pout.close();
+    } finally {
+      channel.close();
+    }
   }
   
 }
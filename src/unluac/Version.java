@@ -18,15 +18,17 @@ public abstract class Version {
   }
   
   protected final int versionNumber;
+  private final OpcodeMap opmap;
   
   protected Version(int versionNumber) {
     this.versionNumber = versionNumber;
+    opmap = new OpcodeMap(versionNumber);
   }
   
   public abstract LHeaderType getLHeaderType();
   
   public OpcodeMap getOpcodeMap() {
-    return new OpcodeMap(versionNumber);
+    return opmap;
   }
   
   public abstract int getOuterBlockScopeAdjustment();
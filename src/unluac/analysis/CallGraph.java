@@ -0,0 +1,274 @@
+package unluac.analysis;
+
+import java.util.Arrays;
+
+import unluac.Version;
+import unluac.decompile.Code;
+import unluac.decompile.Op;
+import unluac.parse.LFunction;
+import unluac.parse.LObject;
+import unluac.parse.LString;
+import unluac.parse.LUpvalue;
+
+/**
+ * Extracts calls, closures, upvalue captures and global accesses from a
+ * chunk by a single forward pass over each function's instructions.
+ *
+ * Call targets are resolved by tracking, for each register, the name of the
+ * value last loaded into it (a global, a constant field of a known value, a
+ * method, an upvalue or a closure). Tracking is reset at every jump target,
+ * so a name is only reported when it is certain within a basic block;
+ * otherwise the target is reported as "?".
+ */
+public class CallGraph {
+
+  public static final String UNKNOWN = "?";
+
+  public static interface Sink {
+
+    public void function(String path, LFunction function);
+
+    public void closure(String path, int line, String child);
+
+    public void capture(String child, int index, boolean local, int source, String name);
+
+    public void call(String path, int line, String target);
+
+    public void global(String path, int line, String name, boolean write);
+
+  }
+
+  public static void extract(LFunction main, Sink sink) {
+    extract(main, "main", sink);
+  }
+
+  private static void extract(LFunction function, String path, Sink sink) {
+    sink.function(path, function);
+    Code code = new Code(function);
+    int offset = function.header.version == Version.LUA50 ? 250 : 256;
+    boolean inline = function.header.version.usesInlineUpvalueDeclarations();
+    boolean[] leader = leaders(code);
+    String[] names = new String[Math.max(function.maximumStackSize, 1) + 1];
+    for(int line = 1; line <= code.length; line++) {
+      if(leader[line]) {
+        Arrays.fill(names, null);
+      }
+      Op op = code.op(line);
+      int a = code.A(line);
+      switch(op) {
+        case MOVE:
+          set(names, a, get(names, code.B(line)));
+          break;
+        case GETUPVAL:
+          set(names, a, upvalueName(function, code.B(line)));
+          break;
+        case GETGLOBAL: {
+          String name = constantName(function, code.Bx(line));
+          if(name != null) {
+            sink.global(path, line, name, false);
+          }
+          set(names, a, name);
+          break;
+        }
+        case SETGLOBAL: {
+          String name = constantName(function, code.Bx(line));
+          if(name != null) {
+            sink.global(path, line, name, true);
+          }
+          break;
+        }
+        case GETTABUP: {
+          String key = rkName(function, offset, code.C(line));
+          String upvalue = upvalueName(function, code.B(line));
+          if(key != null && upvalue != null && function.header.version.isEnvironmentTable(upvalue)) {
+            sink.global(path, line, key, false);
+            set(names, a, key);
+          } else {
+            set(names, a, field(upvalue, ".", key));
+          }
+          break;
+        }
+        case SETTABUP: {
+          String key = rkName(function, offset, code.B(line));
+          String upvalue = upvalueName(function, a);
+          if(key != null && upvalue != null && function.header.version.isEnvironmentTable(upvalue)) {
+            sink.global(path, line, key, true);
+          }
+          break;
+        }
+        case GETTABLE:
+          set(names, a, field(get(names, code.B(line)), ".", rkName(function, offset, code.C(line))));
+          break;
+        case SELF: {
+          String object = get(names, code.B(line));
+          set(names, a + 1, object);
+          set(names, a, field(object, ":", rkName(function, offset, code.C(line))));
+          break;
+        }
+        case CALL:
+        case TAILCALL: {
+          String target = get(names, a);
+          sink.call(path, line, target != null ? target : UNKNOWN);
+          clearFrom(names, a);
+          break;
+        }
+        case CLOSURE: {
+          int index = code.Bx(line);
+          String child = path + "/" + index;
+          LFunction f = function.functions[index];
+          sink.closure(path, line, child);
+          if(inline) {
+            for(int i = 0; i < f.numUpvalues && line + 1 <= code.length; i++) {
+              line++;
+              boolean local = code.op(line) == Op.MOVE;
+              int source = code.B(line);
+              sink.capture(child, i, local, source, upvalueName(f, i));
+            }
+          } else {
+            for(int i = 0; i < f.upvalues.length; i++) {
+              LUpvalue upvalue = f.upvalues[i];
+              sink.capture(child, i, upvalue.instack, upvalue.idx, upvalueName(f, i));
+            }
+          }
+          set(names, a, "function " + child);
+          break;
+        }
+        case LOADNIL:
+          clearRange(names, a, code.B(line));
+          break;
+        case LOADNIL52:
+          clearRange(names, a, a + code.B(line));
+          break;
+        case VARARG:
+        case TFORCALL:
+        case TFORLOOP:
+        case TFORPREP:
+        case FORLOOP:
+        case FORPREP:
+          clearFrom(names, a);
+          break;
+        case EXTRABYTE:
+        case EXTRAARG:
+          break;
+        default: {
+          int target = op.target(code.codepoint(line), code.getExtractor());
+          if(target >= 0) {
+            set(names, target, null);
+          }
+          break;
+        }
+      }
+    }
+    for(int i = 0; i < function.functions.length; i++) {
+      extract(function.functions[i], path + "/" + i, sink);
+    }
+  }
+
+  /**
+   * Marks the lines that may be reached other than by falling through from
+   * the previous instruction.
+   */
+  private static boolean[] leaders(Code code) {
+    boolean[] leader = new boolean[code.length + 3];
+    for(int line = 1; line <= code.length; line++) {
+      switch(code.op(line)) {
+        case JMP:
+        case JMP52:
+          mark(leader, code.target(line));
+          mark(leader, line + 1);
+          break;
+        case FORLOOP:
+        case FORPREP:
+        case TFORPREP:
+          mark(leader, code.target(line));
+          break;
+        case TFORLOOP:
+          mark(leader, line + 1);
+          break;
+        case EQ:
+        case LT:
+        case LE:
+        case TEST:
+        case TESTSET:
+        case TEST50:
+          mark(leader, line + 2);
+          break;
+        case LOADBOOL:
+          if(code.C(line) != 0) {
+            mark(leader, line + 2);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return leader;
+  }
+
+  private static void mark(boolean[] leader, int line) {
+    if(line >= 1 && line < leader.length) {
+      leader[line] = true;
+    }
+  }
+
+  private static String get(String[] names, int register) {
+    return register >= 0 && register < names.length ? names[register] : null;
+  }
+
+  private static void set(String[] names, int register, String name) {
+    if(register >= 0 && register < names.length) {
+      names[register] = name;
+    }
+  }
+
+  private static void clearFrom(String[] names, int register) {
+    if(register >= 0 && register < names.length) {
+      Arrays.fill(names, register, names.length, null);
+    }
+  }
+
+  private static void clearRange(String[] names, int first, int last) {
+    for(int register = Math.max(first, 0); register <= last && register < names.length; register++) {
+      names[register] = null;
+    }
+  }
+
+  private static String field(String table, String separator, String key) {
+    if(table == null || key == null) {
+      return null;
+    }
+    return table + separator + key;
+  }
+
+  private static String rkName(LFunction function, int offset, int register) {
+    return register >= offset ? constantName(function, register - offset) : null;
+  }
+
+  private static String constantName(LFunction function, int index) {
+    if(index >= 0 && index < function.constants.length) {
+      LObject constant = function.constants[index];
+      if(constant instanceof LString) {
+        return constant.deref();
+      }
+    }
+    return null;
+  }
+
+  private static String upvalueName(LFunction function, int index) {
+    while(function != null && index >= 0 && index < function.upvalues.length) {
+      LUpvalue upvalue = function.upvalues[index];
+      if(upvalue.name != null && !upvalue.name.isEmpty()) {
+        return upvalue.name;
+      }
+      if(upvalue.instack) {
+        return null;
+      }
+      index = upvalue.idx;
+      function = function.parent;
+    }
+    return null;
+  }
+
+  private CallGraph() {}
+
+}
@@ -0,0 +1,151 @@
+package unluac.analysis;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import unluac.Configuration;
+import unluac.Main;
+import unluac.parse.LFunction;
+
+/**
+ * Runs the call graph extraction over many chunk files on all cores.
+ *
+ * Each record is one tab-separated line starting with its kind:
+ *
+ * <pre>
+ * function  file path params vararg upvalues instructions
+ * closure   file path line child
+ * capture   file child upvalue local|upvalue source name
+ * call      file path line target
+ * read      file path line global
+ * write     file path line global
+ * global    file global reads writes
+ * </pre>
+ *
+ * Files are analyzed in parallel but their records are written in input
+ * order, each file as soon as it and all files before it are done, with a
+ * bounded number of files in flight.
+ */
+public class CallGraphRunner {
+
+  public static void run(List<Path> files, final Configuration config, Appendable out, PrintStream log, int threads) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+      int window = threads * 4;
+      int next = 0;
+      int failed = 0;
+      while(next < files.size() || !pending.isEmpty()) {
+        while(next < files.size() && pending.size() < window) {
+          final String name = files.get(next++).toString();
+          pending.add(pool.submit(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+              return analyze(name, config);
+            }
+
+          }));
+        }
+        try {
+          out.append(pending.remove().get());
+        } catch(ExecutionException e) {
+          Throwable cause = e.getCause();
+          if(cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          log.println("-- skipping " + cause.getMessage());
+          failed++;
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("interrupted");
+        }
+      }
+      log.println("-- analyzed " + (files.size() - failed) + ", skipped " + failed);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns the records of a single chunk file.
+   */
+  public static String analyze(String file, Configuration config) throws IOException {
+    Writer writer = new Writer(file);
+    try {
+      CallGraph.extract(Main.file_to_function(file, config), writer);
+    } catch(RuntimeException e) {
+      throw new IllegalStateException(file + ": " + e, e);
+    }
+    writer.finish();
+    return writer.out.toString();
+  }
+
+  private static class Writer implements CallGraph.Sink {
+
+    private final String file;
+    private final StringBuilder out = new StringBuilder();
+    private final Map<String, int[]> globals = new TreeMap<String, int[]>();
+
+    Writer(String file) {
+      this.file = file;
+    }
+
+    @Override
+    public void function(String path, LFunction function) {
+      record("function", path).append('\t').append(function.numParams).append('\t').append(function.vararg)
+        .append('\t').append(function.numUpvalues).append('\t').append(function.code.length).append('\n');
+    }
+
+    @Override
+    public void closure(String path, int line, String child) {
+      record("closure", path).append('\t').append(line).append('\t').append(child).append('\n');
+    }
+
+    @Override
+    public void capture(String child, int index, boolean local, int source, String name) {
+      record("capture", child).append('\t').append(index).append('\t').append(local ? "local" : "upvalue")
+        .append('\t').append(source).append('\t').append(name != null ? name : CallGraph.UNKNOWN).append('\n');
+    }
+
+    @Override
+    public void call(String path, int line, String target) {
+      record("call", path).append('\t').append(line).append('\t').append(target).append('\n');
+    }
+
+    @Override
+    public void global(String path, int line, String name, boolean write) {
+      record(write ? "write" : "read", path).append('\t').append(line).append('\t').append(name).append('\n');
+      int[] counts = globals.get(name);
+      if(counts == null) {
+        counts = new int[2];
+        globals.put(name, counts);
+      }
+      counts[write ? 1 : 0]++;
+    }
+
+    void finish() {
+      for(Map.Entry<String, int[]> global : globals.entrySet()) {
+        record("global", global.getKey()).append('\t').append(global.getValue()[0]).append('\t').append(global.getValue()[1]).append('\n');
+      }
+    }
+
+    private StringBuilder record(String kind, String field) {
+      return out.append(kind).append('\t').append(file).append('\t').append(field);
+    }
+
+  }
+
+  private CallGraphRunner() {}
+
+}
@@ -0,0 +1,590 @@
+package unluac.batch;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import unluac.Configuration;
+import unluac.Engine;
+import unluac.decompile.FunctionCache;
+
+/**
+ * Decompiles many chunk files into an output directory on all cores.
+ *
+ * Every file is skimmed to estimate its cost (see CostModel). The estimates
+ * are made on their own threads, and jobs start as soon as theirs are in:
+ * of the estimated jobs, the largest runs first, so that the longest ones do
+ * not start last, but only while the estimated memory of the running jobs
+ * fits in the memory budget. A job that does not fit yet lets smaller ones
+ * that do go ahead. Giant files, whose estimates exceed a quarter of the
+ * budget, run one at a time on their own lane instead of occupying the
+ * regular workers.
+ *
+ * Each job logs one tab-separated line as soon as it finishes:
+ *
+ * <pre>
+ * status file lane predicted-ms actual-ms predicted-kb instructions branches message
+ * </pre>
+ *
+ * Output files are written next to the output path and moved into place, so
+ * they are replaced atomically. With a manifest, the output is hashed
+ * instead of written (see Manifest).
+ *
+ * With a journal, every job is recorded with the hash of its input as soon
+ * as it finishes.
+ * Jobs whose input is unchanged since a successful record (and whose output
+ * still exists) are skipped; in retry mode only jobs with a failed record
+ * are run.
+ *
+ * The threads are kept between runs until the runner is closed.
+ */
+public class BatchRunner implements AutoCloseable {
+
+  private static final String NO_HASH = "0000000000000000000000000000000000000000000000000000000000000000";
+
+  /* Put in the completion queue when every job has been submitted. */
+  private static final Future<Outcome> END = new FutureTask<Outcome>(new Callable<Outcome>() {
+
+    @Override
+    public Outcome call() {
+      return null;
+    }
+
+  });
+
+  /**
+   * One input file and the output file it is decompiled to.
+   */
+  public static class Job {
+
+    public final Path input;
+    public final Path output;
+
+    /* The input's path relative to its input directory. */
+    public final String name;
+    CostModel.Estimate estimate;
+    /* The input read by the estimate, if it fitted the retained budget. */
+    byte[] bytes;
+    String hash;
+    boolean skip;
+    boolean giant;
+    /* The job's place in the list being run, which orders equal estimates. */
+    int sequence;
+
+    public Job(Path input, Path output) {
+      this(input, output, input.toString());
+    }
+
+    public Job(Path input, Path output, String name) {
+      this.input = input;
+      this.output = output;
+      this.name = name;
+    }
+
+  }
+
+  public static class Outcome {
+
+    public final Job job;
+    public final Engine.Result result;
+    public final long nanos;
+
+    Outcome(Job job, Engine.Result result, long nanos) {
+      this.job = job;
+      this.result = result;
+      this.nanos = nanos;
+    }
+
+  }
+
+  private final Engine engine;
+  private final PrintStream log;
+  private final long memoryBudget;
+  private final int threads;
+  private final ExecutorService pool;
+  private final ExecutorService giants;
+  private final ExecutorService estimators;
+  private final ExecutorService submitter;
+  private Journal journal;
+  private boolean retryFailed;
+  private Manifest manifest;
+
+  public BatchRunner(Configuration config, PrintStream log, int threads, long memoryBudget) {
+    this.engine = new Engine(config);
+    this.log = log;
+    this.memoryBudget = memoryBudget;
+    this.threads = threads;
+    pool = Executors.newFixedThreadPool(threads);
+    giants = Executors.newSingleThreadExecutor();
+    estimators = Executors.newFixedThreadPool(threads);
+    submitter = Executors.newSingleThreadExecutor();
+  }
+
+  /**
+   * Records finished jobs in the journal and skips the ones it has already
+   * done. If retryFailed is set, only jobs that failed before are run.
+   */
+  public void setJournal(Journal journal, boolean retryFailed) {
+    this.journal = journal;
+    this.retryFailed = retryFailed;
+  }
+
+  /**
+   * Adds a digest of each job's output to the manifest instead of writing
+   * output files.
+   */
+  public void setManifest(Manifest manifest) {
+    this.manifest = manifest;
+  }
+
+  /**
+   * Reuses and adds to the rendered functions of the cache (see
+   * Engine.setFunctionCache).
+   */
+  public void setFunctionCache(FunctionCache cache) {
+    engine.setFunctionCache(cache);
+  }
+
+  /**
+   * Returns the memory budget used by default: half of the maximum heap.
+   */
+  public static long defaultMemoryBudget() {
+    return Runtime.getRuntime().maxMemory() / 2;
+  }
+
+  /**
+   * Expands the inputs into jobs. Files inside a directory input keep their
+   * path relative to it; the extension of each file is replaced with .lua.
+   */
+  public static List<Job> jobs(List<String> inputs, Path outputDirectory) throws IOException {
+    List<Job> jobs = new ArrayList<Job>();
+    for(String input : inputs) {
+      Path path = Paths.get(input);
+      if(Files.isDirectory(path)) {
+        Stream<Path> walk = Files.walk(path);
+        try {
+          Iterator<Path> it = walk.sorted().iterator();
+          while(it.hasNext()) {
+            Path file = it.next();
+            if(Files.isRegularFile(file)) {
+              jobs.add(job(path, file, outputDirectory));
+            }
+          }
+        } finally {
+          walk.close();
+        }
+      } else {
+        jobs.add(job(path, path, outputDirectory));
+      }
+    }
+    return jobs;
+  }
+
+  /**
+   * Returns the job for a file of an input, which is either the file itself
+   * or a directory containing it.
+   */
+  public static Job job(Path input, Path file, Path outputDirectory) {
+    String name = input.equals(file) ? file.getFileName().toString() : input.relativize(file).toString();
+    return new Job(file, outputDirectory.resolve(outputName(name)), name);
+  }
+
+  private static String outputName(String name) {
+    int dot = name.lastIndexOf('.');
+    int separator = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+    if(dot > separator + 1) {
+      name = name.substring(0, dot);
+    }
+    return name + ".lua";
+  }
+
+  /**
+   * Runs the jobs and returns their outcomes in completion order.
+   */
+  public List<Outcome> run(List<Job> jobs) throws IOException {
+    final Scheduler scheduler = new Scheduler(jobs.size(), threads, memoryBudget);
+    final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
+    final LinkedBlockingQueue<Future<Outcome>> done = new LinkedBlockingQueue<Future<Outcome>>();
+    Future<Integer> submission = null;
+    try {
+      final AtomicLong retained = new AtomicLong();
+      for(int i = 0; i < jobs.size(); i++) {
+        final Job job = jobs.get(i);
+        job.sequence = i;
+        futures.add(estimators.submit(new Runnable() {
+
+          @Override
+          public void run() {
+            try {
+              estimate(job, retained);
+            } finally {
+              if(job.estimate == null) {
+                job.estimate = CostModel.unknown(0);
+              }
+              scheduler.add(job);
+            }
+          }
+
+        }));
+      }
+      // Submits on another thread, so that finished jobs are logged and
+      // journaled here while the next job waits for memory.
+      submission = submitter.submit(new Callable<Integer>() {
+
+        @Override
+        public Integer call() throws InterruptedException {
+          return submit(scheduler, done, futures);
+        }
+
+      });
+      List<Outcome> outcomes = new ArrayList<Outcome>();
+      int failed = 0;
+      int submitted = -1;
+      while(submitted < 0 || outcomes.size() < submitted) {
+        Future<Outcome> future = done.take();
+        if(future == END) {
+          submitted = submission.get();
+          continue;
+        }
+        Outcome outcome = future.get();
+        outcomes.add(outcome);
+        if(!outcome.result.isOk()) {
+          failed++;
+        }
+        log(outcome);
+        if(journal != null) {
+          journal.append(record(outcome));
+        }
+      }
+      if(journal != null) {
+        journal.sync();
+      }
+      log.println("-- decompiled " + (outcomes.size() - failed) + ", failed " + failed + ", skipped " + scheduler.getSkipped());
+      return outcomes;
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IllegalStateException(cause);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted");
+    } finally {
+      // Stops whatever is left after a failure; finished jobs are unaffected.
+      if(submission != null) {
+        submission.cancel(true);
+      }
+      synchronized(futures) {
+        for(Future<?> future : futures) {
+          future.cancel(true);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    pool.shutdownNow();
+    giants.shutdownNow();
+    estimators.shutdownNow();
+    submitter.shutdownNow();
+  }
+
+  /*
+   * Submits the jobs in the order the scheduler admits them and returns how
+   * many were submitted, putting END in the completion queue after the last.
+   */
+  private int submit(final Scheduler scheduler, LinkedBlockingQueue<Future<Outcome>> done, List<Future<?>> futures) throws InterruptedException {
+    CompletionService<Outcome> regular = new ExecutorCompletionService<Outcome>(pool, done);
+    CompletionService<Outcome> giant = new ExecutorCompletionService<Outcome>(giants, done);
+    int submitted = 0;
+    try {
+      Job next;
+      while((next = scheduler.next()) != null) {
+        final Job job = next;
+        Callable<Outcome> task = new Callable<Outcome>() {
+
+          @Override
+          public Outcome call() throws Exception {
+            try {
+              return decompile(job);
+            } finally {
+              scheduler.release(job);
+            }
+          }
+
+        };
+        if(job.giant) {
+          futures.add(giant.submit(task));
+        } else {
+          futures.add(regular.submit(task));
+        }
+        submitted++;
+      }
+    } finally {
+      done.add(END);
+    }
+    return submitted;
+  }
+
+  /**
+   * Hashes the job's input, decides whether the journal lets it be skipped
+   * and, if not, estimates its cost. Unreadable or invalid files get the
+   * smallest estimate; decompiling them then reports the error. The input
+   * is kept for the decompilation while the retained inputs fit in a
+   * quarter of the memory budget, and read again otherwise.
+   */
+  private void estimate(Job job, AtomicLong retained) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(job.input);
+    } catch(IOException e) {
+      job.hash = NO_HASH;
+      job.estimate = CostModel.unknown(0);
+      return;
+    }
+    if(journal != null) {
+      job.hash = Journal.hash(bytes);
+      job.skip = skip(job, journal.get(key(job)));
+      if(job.skip) {
+        return;
+      }
+    }
+    if(retained.addAndGet(bytes.length) <= memoryBudget / 4) {
+      job.bytes = bytes;
+    } else {
+      retained.addAndGet(-bytes.length);
+    }
+    job.estimate = CostModel.estimate(ByteBuffer.wrap(bytes), engine.getConfiguration());
+  }
+
+  private boolean skip(Job job, Journal.Record record) {
+    if(retryFailed) {
+      return record == null || record.isOk();
+    } else {
+      return record != null && record.isOk() && record.hash.equals(job.hash) && Files.exists(job.output);
+    }
+  }
+
+  private static String key(Job job) {
+    return job.input.toAbsolutePath().normalize().toString();
+  }
+
+  private static Journal.Record record(Outcome outcome) {
+    Job job = outcome.job;
+    String status = outcome.result.isOk() ? Journal.OK : outcome.result.status.name().toLowerCase();
+    String hash = job.hash != null ? job.hash : NO_HASH;
+    return new Journal.Record(hash, status, outcome.nanos / 1000000, key(job), job.output.toAbsolutePath().normalize().toString());
+  }
+
+  /**
+   * Decompiles the job. An I/O error of the job's own files is its outcome;
+   * only an error writing the manifest is thrown.
+   */
+  Outcome decompile(Job job) throws IOException {
+    if(manifest != null) {
+      return digest(job);
+    }
+    long start = System.nanoTime();
+    Engine.Result result;
+    try {
+      Path parent = job.output.toAbsolutePath().getParent();
+      Files.createDirectories(parent);
+      Path temp = Files.createTempFile(parent, job.output.getFileName().toString(), ".tmp");
+      try {
+        FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+          result = job.bytes != null ? engine.decompile(ByteBuffer.wrap(job.bytes), out) : engine.decompile(job.input, out);
+        } finally {
+          job.bytes = null;
+          out.close();
+        }
+        if(result.isOk()) {
+          Files.move(temp, job.output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch(IOException e) {
+      result = Engine.Result.ioError(e);
+    }
+    return new Outcome(job, result, System.nanoTime() - start);
+  }
+
+  private Outcome digest(Job job) throws IOException {
+    long start = System.nanoTime();
+    OutputDigest digest = new OutputDigest();
+    Engine.Result result;
+    if(job.bytes != null) {
+      result = engine.decompile(ByteBuffer.wrap(job.bytes), digest.output());
+      job.bytes = null;
+    } else {
+      result = engine.decompile(job.input, digest.output());
+    }
+    long nanos = System.nanoTime() - start;
+    if(result.isOk()) {
+      manifest.append(digest.digest(), Journal.OK, nanos / 1000, job.name, digest.functions());
+    } else {
+      manifest.append(Manifest.NO_DIGEST, result.status.name().toLowerCase(), nanos / 1000, job.name, "");
+    }
+    return new Outcome(job, result, nanos);
+  }
+
+  private void log(Outcome outcome) {
+    Job job = outcome.job;
+    CostModel.Estimate estimate = job.estimate;
+    StringBuilder line = new StringBuilder();
+    line.append(outcome.result.isOk() ? "ok" : outcome.result.status.name().toLowerCase());
+    line.append('\t').append(job.input);
+    line.append('\t').append(job.giant ? "giant" : "regular");
+    line.append('\t').append(estimate.nanos / 1000000);
+    line.append('\t').append(outcome.nanos / 1000000);
+    line.append('\t').append(estimate.bytes / 1024);
+    line.append('\t').append(estimate.instructions);
+    line.append('\t').append(estimate.branches);
+    line.append('\t');
+    if(!outcome.result.isOk()) {
+      line.append(outcome.result.message);
+    } else if(!outcome.result.failures.isEmpty()) {
+      line.append(outcome.result.failures.size()).append(" stub(s)");
+    }
+    log.println(line);
+  }
+
+  /**
+   * Hands out the estimated jobs, largest first, while a worker is free and
+   * their estimated memory fits in the budget. A regular job that does not
+   * fit lets the smaller ones after it that do go ahead. A giant job waits
+   * for its lane and then for memory, and no regular job is started while it
+   * waits for memory, as it could otherwise wait for ever. A job larger than
+   * the whole budget waits until nothing else is running.
+   */
+  static class Scheduler {
+
+    /* The number of waiting jobs looked at for one that fits. */
+    private static final int LOOKAHEAD = 256;
+
+    private final TreeSet<Job> ready = new TreeSet<Job>(new Comparator<Job>() {
+
+      @Override
+      public int compare(Job job1, Job job2) {
+        int c = Long.compare(job2.estimate.nanos, job1.estimate.nanos);
+        return c != 0 ? c : Integer.compare(job1.sequence, job2.sequence);
+      }
+
+    });
+    private final long capacity;
+    private long available;
+    private int workers;
+    private boolean giantRunning;
+    private int pending;
+    private int skipped;
+
+    Scheduler(int jobs, int workers, long capacity) {
+      this.pending = jobs;
+      this.workers = workers;
+      this.capacity = capacity;
+      this.available = capacity;
+    }
+
+    /**
+     * Adds a job whose estimate is done (or which the journal skips).
+     */
+    synchronized void add(Job job) {
+      pending--;
+      if(job.skip) {
+        skipped++;
+      } else {
+        job.giant = job.estimate.bytes > capacity / 4;
+        ready.add(job);
+      }
+      notifyAll();
+    }
+
+    /**
+     * Waits for the next job that can start and reserves its worker and
+     * memory, or returns null once every job has been handed out.
+     */
+    synchronized Job next() throws InterruptedException {
+      while(pending > 0 || !ready.isEmpty()) {
+        Job job = admissible();
+        if(job != null) {
+          ready.remove(job);
+          available -= bytes(job);
+          if(job.giant) {
+            giantRunning = true;
+          } else {
+            workers--;
+          }
+          return job;
+        }
+        wait();
+      }
+      return null;
+    }
+
+    synchronized void release(Job job) {
+      available += bytes(job);
+      if(job.giant) {
+        giantRunning = false;
+      } else {
+        workers++;
+      }
+      notifyAll();
+    }
+
+    synchronized int getSkipped() {
+      return skipped;
+    }
+
+    private Job admissible() {
+      if(workers == 0 && giantRunning) {
+        return null;
+      }
+      int looked = 0;
+      for(Job job : ready) {
+        if(looked++ == LOOKAHEAD) {
+          break;
+        }
+        if(job.giant) {
+          if(!giantRunning) {
+            return bytes(job) <= available ? job : null;
+          }
+        } else if(workers > 0 && bytes(job) <= available) {
+          return job;
+        }
+      }
+      return null;
+    }
+
+    private long bytes(Job job) {
+      return Math.min(job.estimate.bytes, capacity);
+    }
+
+  }
+
+}
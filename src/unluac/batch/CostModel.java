@@ -0,0 +1,151 @@
+package unluac.batch;
+
+import java.nio.ByteBuffer;
+
+import unluac.Configuration;
+import unluac.chunk.ChunkSkimmer;
+import unluac.decompile.CodeExtract;
+import unluac.decompile.Decompiler;
+import unluac.decompile.Op;
+import unluac.decompile.OpcodeMap;
+import unluac.parse.BHeader;
+
+/**
+ * Predicts the time and peak memory of decompiling a chunk from its
+ * prototypes: instruction counts, register counts (which size the register
+ * matrices), branch density and closure count. These are read with a skim
+ * of the chunk (see ChunkSkimmer), so the chunk is only parsed once, when it
+ * is decompiled.
+ *
+ * The coefficients are rough; the batch log has each prediction next to the
+ * measured time so that they can be tuned.
+ */
+public class CostModel {
+
+  static final long NANOS_PER_FUNCTION = 20000;
+  static final long NANOS_PER_INSTRUCTION = 1500;
+  static final long NANOS_PER_REGISTER_LINE = 4;
+  static final long NANOS_PER_BRANCH_PAIR = 40;
+  static final long BYTES_PER_CHUNK_BYTE = 16;
+
+  public static class Estimate {
+
+    public final int functions;
+    public final int instructions;
+    public final int branches;
+    public final int maxRegisters;
+    public final long nanos;
+    public final long bytes;
+
+    Estimate(int functions, int instructions, int branches, int maxRegisters, long nanos, long bytes) {
+      this.functions = functions;
+      this.instructions = instructions;
+      this.branches = branches;
+      this.maxRegisters = maxRegisters;
+      this.nanos = nanos;
+      this.bytes = bytes;
+    }
+
+  }
+
+  /**
+   * Estimates the cost of the chunk at the buffer's position. A chunk that
+   * is malformed or cut short gets the estimate of an unknown chunk.
+   */
+  public static Estimate estimate(ByteBuffer chunk, Configuration config) {
+    final Totals totals = new Totals();
+    ChunkSkimmer skimmer = new ChunkSkimmer(config, new ChunkSkimmer.Sink() {
+
+      @Override
+      public void function(BHeader header, int registers, int length, ByteBuffer code) {
+        add(header, registers, length, code, totals);
+      }
+
+    });
+    long size = chunk.remaining();
+    try {
+      if(!skimmer.skim(chunk)) {
+        return unknown(size);
+      }
+    } catch(RuntimeException e) {
+      return unknown(size);
+    }
+    long bytes = BYTES_PER_CHUNK_BYTE * size + totals.maxFunctionBytes;
+    return new Estimate(totals.functions, totals.instructions, totals.branches, totals.maxRegisters, totals.nanos, bytes);
+  }
+
+  /**
+   * Returns the estimate for a chunk that could not be read; it is scheduled
+   * as the cheapest kind of job.
+   */
+  public static Estimate unknown(long size) {
+    return new Estimate(0, 0, 0, 0, NANOS_PER_FUNCTION, BYTES_PER_CHUNK_BYTE * size);
+  }
+
+  private static class Totals {
+    int functions;
+    int instructions;
+    int branches;
+    int maxRegisters;
+    long nanos;
+    long maxFunctionBytes;
+  }
+
+  private static void add(BHeader header, int registers, int length, ByteBuffer code, Totals totals) {
+    int branches = countBranches(header, length, code);
+    totals.functions++;
+    totals.instructions += length;
+    totals.branches += branches;
+    totals.maxRegisters = Math.max(totals.maxRegisters, registers);
+    totals.nanos += NANOS_PER_FUNCTION
+      + NANOS_PER_INSTRUCTION * length
+      + NANOS_PER_REGISTER_LINE * (long) registers * length
+      + NANOS_PER_BRANCH_PAIR * (long) branches * branches;
+    totals.maxFunctionBytes = Math.max(totals.maxFunctionBytes, Decompiler.estimateMemory(registers, length));
+  }
+
+  /*
+   * Counts the branch instructions as Code decodes them: the word after an
+   * instruction with an extra byte is not an instruction.
+   */
+  private static int countBranches(BHeader header, int length, ByteBuffer code) {
+    OpcodeMap map = header.version.getOpcodeMap();
+    CodeExtract extractor = header.extractor;
+    int start = code.position();
+    int count = 0;
+    boolean extraByte = false;
+    for(int i = 0; i < length; i++) {
+      if(extraByte) {
+        extraByte = false;
+        continue;
+      }
+      int codepoint = code.getInt(start + 4 * i);
+      Op op = map.get(extractor.extract_op(codepoint));
+      if(op == null) continue;
+      extraByte = op.hasExtraByte(codepoint, extractor);
+      switch(op) {
+        case JMP:
+        case JMP52:
+        case EQ:
+        case LT:
+        case LE:
+        case TEST:
+        case TEST50:
+        case TESTSET:
+        case FORLOOP:
+        case FORPREP:
+        case TFORLOOP:
+        case TFORCALL:
+        case TFORPREP:
+          count++;
+          break;
+        default:
+          break;
+      }
+    }
+    return count;
+  }
+
+  private CostModel() {}
+
+}
@@ -0,0 +1,180 @@
+package unluac.batch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only record of finished batch jobs, so that an interrupted run can
+ * be resumed and failures can be retried. Each line is tab-separated:
+ *
+ * <pre>
+ * hash status millis input output
+ * </pre>
+ *
+ * where hash is the SHA-256 of the input's content. Later lines for the same
+ * input replace earlier ones. Records are forced to disk in batches; a crash
+ * loses at most the last batch and can leave a partial last line, which is
+ * ignored when reading.
+ */
+public class Journal implements AutoCloseable {
+
+  public static final String OK = "ok";
+
+  static final int SYNC_RECORDS = 256;
+  static final long SYNC_NANOS = 1000000000L;
+
+  public static class Record {
+
+    public final String hash;
+    public final String status;
+    public final long millis;
+    public final String input;
+    public final String output;
+
+    public Record(String hash, String status, long millis, String input, String output) {
+      this.hash = hash;
+      this.status = status;
+      this.millis = millis;
+      this.input = input;
+      this.output = output;
+    }
+
+    public boolean isOk() {
+      return status.equals(OK);
+    }
+
+  }
+
+  private final Map<String, Record> records;
+  private final FileChannel out;
+  private int unsynced;
+  private long lastSync;
+
+  private Journal(Map<String, Record> records, FileChannel out) {
+    this.records = records;
+    this.out = out;
+    lastSync = System.nanoTime();
+  }
+
+  /**
+   * Opens a journal for appending, reading its existing records.
+   */
+  public static Journal open(Path file) throws IOException {
+    Map<String, Record> records = new HashMap<String, Record>();
+    boolean partial = false;
+    if(Files.exists(file)) {
+      BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+      try {
+        String line;
+        while((line = in.readLine()) != null) {
+          Record record = parse(line);
+          if(record != null) {
+            records.put(record.input, record);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      FileChannel last = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+        long size = last.size();
+        if(size > 0) {
+          ByteBuffer b = ByteBuffer.allocate(1);
+          last.read(b, size - 1);
+          partial = b.get(0) != '\n';
+        }
+      } finally {
+        last.close();
+      }
+    }
+    FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    if(partial) {
+      // Terminate the partial line left by a crash.
+      write(out, "\n");
+    }
+    return new Journal(records, out);
+  }
+
+  private static Record parse(String line) {
+    String[] fields = line.split("\t", -1);
+    if(fields.length != 5 || fields[0].length() != 64) {
+      return null;
+    }
+    try {
+      return new Record(fields[0], fields[1], Long.parseLong(fields[2]), fields[3], fields[4]);
+    } catch(NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the latest record for the input, or null.
+   */
+  public Record get(String input) {
+    return records.get(input);
+  }
+
+  public void append(Record record) throws IOException {
+    records.put(record.input, record);
+    write(out, record.hash + "\t" + record.status + "\t" + record.millis + "\t" + record.input + "\t" + record.output + "\n");
+    unsynced++;
+    long now = System.nanoTime();
+    if(unsynced >= SYNC_RECORDS || now - lastSync >= SYNC_NANOS) {
+      sync();
+    }
+  }
+
+  public void sync() throws IOException {
+    if(unsynced > 0) {
+      out.force(false);
+      unsynced = 0;
+    }
+    lastSync = System.nanoTime();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void write(FileChannel out, String text) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    while(buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * Returns the hex SHA-256 of the bytes.
+   */
+  public static String hash(byte[] bytes) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] hash = digest.digest(bytes);
+    char[] hex = new char[hash.length * 2];
+    for(int i = 0; i < hash.length; i++) {
+      hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+      hex[2 * i + 1] = Character.forDigit(hash[i] & 0xF, 16);
+    }
+    return new String(hex);
+  }
+
+}
@@ -0,0 +1,277 @@
+package unluac.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import unluac.Main;
+
+/**
+ * Digests of the decompiled output of a corpus, for finding what a new
+ * version of the decompiler changes. The first line names the version of
+ * unluac; every other line is one input, tab-separated:
+ *
+ * <pre>
+ * digest status micros name functions
+ * </pre>
+ *
+ * where digest is that of the whole output (see OutputDigest), or "-" if
+ * the input failed, micros is the time taken, name is the input's path
+ * relative to its input directory, and functions lists "path=digest" for
+ * every function. Lines are written in completion order.
+ *
+ * Comparing two manifests only keeps a short summary of each line in
+ * memory; the functions of the inputs that changed are read again.
+ */
+public class Manifest implements AutoCloseable {
+
+  public static final String NO_DIGEST = "-";
+
+  private static final String HEADER = "# unluac ";
+
+  private static final int SLOWEST = 10;
+
+  private final Writer out;
+
+  private Manifest(Writer out) {
+    this.out = out;
+  }
+
+  /**
+   * Creates (or replaces) a manifest file.
+   */
+  public static Manifest create(Path file) throws IOException {
+    Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    out.write(HEADER + Main.version + "\n");
+    return new Manifest(out);
+  }
+
+  public synchronized void append(String digest, String status, long micros, String name, String functions) throws IOException {
+    out.write(digest + "\t" + status + "\t" + micros + "\t" + name + "\t" + functions + "\n");
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  private static class Summary {
+
+    final String digest;
+    final String status;
+    final long micros;
+    final long offset;
+
+    Summary(String digest, String status, long micros, long offset) {
+      this.digest = digest;
+      this.status = status;
+      this.micros = micros;
+      this.offset = offset;
+    }
+
+  }
+
+  /**
+   * Reads the lines of a file with their byte offsets.
+   */
+  private static class LineReader {
+
+    private final InputStream in;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    long offset = 0;
+
+    LineReader(InputStream in) {
+      this.in = new BufferedInputStream(in, 1 << 16);
+    }
+
+    String readLine() throws IOException {
+      line.reset();
+      int b;
+      while((b = in.read()) >= 0) {
+        offset++;
+        if(b == '\n') {
+          return line.toString("UTF-8");
+        }
+        line.write(b);
+      }
+      return line.size() > 0 ? line.toString("UTF-8") : null;
+    }
+
+  }
+
+  private static class Index {
+
+    String version = "?";
+    final Map<String, Summary> inputs = new HashMap<String, Summary>();
+
+  }
+
+  private static Index index(Path file) throws IOException {
+    Index index = new Index();
+    InputStream in = Files.newInputStream(file);
+    try {
+      LineReader reader = new LineReader(in);
+      long offset = 0;
+      String line;
+      while((line = reader.readLine()) != null) {
+        if(line.startsWith(HEADER)) {
+          index.version = line.substring(HEADER.length());
+        } else {
+          String[] fields = line.split("\t", 5);
+          if(fields.length == 5) {
+            try {
+              index.inputs.put(fields[3], new Summary(fields[0], fields[1], Long.parseLong(fields[2]), offset));
+            } catch(NumberFormatException e) {
+              // a damaged line
+            }
+          }
+        }
+        offset = reader.offset;
+      }
+    } finally {
+      in.close();
+    }
+    return index;
+  }
+
+  /**
+   * Returns the digest of each function of the line at the offset.
+   */
+  private static Map<String, String> functions(FileChannel channel, long offset) throws IOException {
+    channel.position(offset);
+    String line = new LineReader(Channels.newInputStream(channel)).readLine();
+    Map<String, String> functions = new LinkedHashMap<String, String>();
+    String[] fields = line.split("\t", 5);
+    if(!fields[4].isEmpty()) {
+      for(String function : fields[4].split(" ")) {
+        int equals = function.lastIndexOf('=');
+        functions.put(function.substring(0, equals), function.substring(equals + 1));
+      }
+    }
+    return functions;
+  }
+
+  /**
+   * Prints the inputs whose output differs between the baseline and the
+   * current manifest (with the functions that changed and the change in
+   * time), the inputs that are only in one of them, the totals and the
+   * largest slowdowns. Returns the number of inputs that differ.
+   */
+  public static int compare(Path baseline, Path current, PrintStream out) throws IOException {
+    Index before = index(baseline);
+    Index after = index(current);
+    out.println("-- baseline unluac " + before.version + ", current unluac " + after.version);
+    FileChannel beforeChannel = FileChannel.open(baseline, StandardOpenOption.READ);
+    FileChannel afterChannel = FileChannel.open(current, StandardOpenOption.READ);
+    int changed = 0;
+    int statusChanged = 0;
+    int added = 0;
+    int removed = 0;
+    int functionsChanged = 0;
+    long beforeMicros = 0;
+    long afterMicros = 0;
+    List<String> slowdowns = new ArrayList<String>();
+    try {
+      Map<String, Summary> sorted = new TreeMap<String, Summary>(after.inputs);
+      for(Map.Entry<String, Summary> entry : sorted.entrySet()) {
+        String name = entry.getKey();
+        Summary now = entry.getValue();
+        Summary then = before.inputs.get(name);
+        if(then == null) {
+          added++;
+          out.println("added\t" + name + "\t" + now.status);
+          continue;
+        }
+        beforeMicros += then.micros;
+        afterMicros += now.micros;
+        if(now.micros > then.micros) {
+          slowdowns.add(name);
+        }
+        if(!then.status.equals(now.status)) {
+          statusChanged++;
+          out.println("status\t" + name + "\t" + then.status + " -> " + now.status + "\t" + millis(then.micros) + " -> " + millis(now.micros) + " ms");
+        } else if(!then.digest.equals(now.digest)) {
+          changed++;
+          Map<String, String> thenFunctions = functions(beforeChannel, then.offset);
+          Map<String, String> nowFunctions = functions(afterChannel, now.offset);
+          StringBuilder list = new StringBuilder();
+          for(Map.Entry<String, String> function : nowFunctions.entrySet()) {
+            String digest = thenFunctions.get(function.getKey());
+            if(digest == null) {
+              list.append(" +").append(function.getKey());
+            } else if(!digest.equals(function.getValue())) {
+              list.append(' ').append(function.getKey());
+            } else {
+              continue;
+            }
+            functionsChanged++;
+          }
+          for(String path : thenFunctions.keySet()) {
+            if(!nowFunctions.containsKey(path)) {
+              list.append(" -").append(path);
+              functionsChanged++;
+            }
+          }
+          out.println("changed\t" + name + "\t" + millis(then.micros) + " -> " + millis(now.micros) + " ms\t" + list.toString().trim());
+        }
+      }
+      for(String name : new TreeMap<String, Summary>(before.inputs).keySet()) {
+        if(!after.inputs.containsKey(name)) {
+          removed++;
+          out.println("removed\t" + name);
+        }
+      }
+    } finally {
+      beforeChannel.close();
+      afterChannel.close();
+    }
+    final Map<String, Summary> thenInputs = before.inputs;
+    final Map<String, Summary> nowInputs = after.inputs;
+    Collections.sort(slowdowns, new Comparator<String>() {
+
+      @Override
+      public int compare(String name1, String name2) {
+        return Long.compare(slowdown(name2), slowdown(name1));
+      }
+
+      private long slowdown(String name) {
+        return nowInputs.get(name).micros - thenInputs.get(name).micros;
+      }
+
+    });
+    int differ = changed + statusChanged + added + removed;
+    out.println("-- " + after.inputs.size() + " inputs: " + changed + " changed (" + functionsChanged + " functions), " + statusChanged + " changed status, " + added + " added, " + removed + " removed");
+    out.printf("-- time of the common inputs: %.1f s -> %.1f s (%+.1f%%)%n", beforeMicros / 1e6, afterMicros / 1e6, beforeMicros > 0 ? 100.0 * (afterMicros - beforeMicros) / beforeMicros : 0.0);
+    if(!slowdowns.isEmpty()) {
+      out.println("-- largest slowdowns:");
+      for(String name : slowdowns.subList(0, Math.min(SLOWEST, slowdowns.size()))) {
+        out.println("slower\t" + name + "\t" + millis(thenInputs.get(name).micros) + " -> " + millis(nowInputs.get(name).micros) + " ms");
+      }
+    }
+    return differ;
+  }
+
+  private static String millis(long micros) {
+    return String.format("%.1f", micros / 1000.0);
+  }
+
+}
@@ -0,0 +1,147 @@
+package unluac.batch;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import unluac.decompile.Output;
+import unluac.decompile.OutputProvider;
+
+/**
+ * Hashes decompiled text instead of writing it, one byte per character like
+ * a file output. Besides the digest of the whole text, each function gets
+ * the digest of its own text: the text of a closure is left out of the
+ * enclosing function's digest (a marker stands in for it), so a change only
+ * shows in the functions whose text changed.
+ *
+ * Digests are the first 64 bits of SHA-256, in hex.
+ */
+class OutputDigest implements OutputProvider {
+
+  /* Stands in for the text of a closure in the enclosing function. */
+  private static final byte[] CLOSURE = {0, 'f', 0};
+
+  private final MessageDigest whole = sha256();
+  private final List<MessageDigest> digests = new ArrayList<MessageDigest>();
+  private final List<String> paths = new ArrayList<String>();
+  private int depth = 0;
+  private final StringBuilder functions = new StringBuilder();
+  private final byte[] buffer = new byte[8192];
+  private int length = 0;
+
+  /**
+   * The output to decompile to.
+   */
+  Output output() {
+    return new Output(this) {
+
+      @Override
+      public void beginFunction(String path) {
+        begin(path);
+      }
+
+      @Override
+      public void endFunction() {
+        end();
+      }
+
+    };
+  }
+
+  /**
+   * The digest of the whole text.
+   */
+  String digest() {
+    flush();
+    return hex(whole.digest());
+  }
+
+  /**
+   * The digest of each function, as space-separated "path=digest", in the
+   * order the functions ended.
+   */
+  String functions() {
+    return functions.toString();
+  }
+
+  @Override
+  public void print(String s) {
+    int length = s.length();
+    for(int i = 0; i < length; i++) {
+      put((byte) s.charAt(i));
+    }
+  }
+
+  @Override
+  public void print(byte b) {
+    put(b);
+  }
+
+  @Override
+  public void print(char[] chars, int offset, int length) {
+    for(int i = offset; i < offset + length; i++) {
+      put((byte) chars[i]);
+    }
+  }
+
+  @Override
+  public void println() {
+    put((byte) '\n');
+  }
+
+  private void begin(String path) {
+    flush();
+    if(depth > 0) {
+      digests.get(depth - 1).update(CLOSURE);
+    }
+    if(depth == digests.size()) {
+      digests.add(sha256());
+      paths.add(null);
+    }
+    paths.set(depth, path);
+    depth++;
+  }
+
+  private void end() {
+    flush();
+    depth--;
+    if(functions.length() > 0) {
+      functions.append(' ');
+    }
+    functions.append(paths.get(depth)).append('=').append(hex(digests.get(depth).digest()));
+  }
+
+  private void put(byte b) {
+    if(length == buffer.length) {
+      flush();
+    }
+    buffer[length++] = b;
+  }
+
+  private void flush() {
+    whole.update(buffer, 0, length);
+    if(depth > 0) {
+      digests.get(depth - 1).update(buffer, 0, length);
+    }
+    length = 0;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] hash) {
+    char[] hex = new char[16];
+    for(int i = 0; i < 8; i++) {
+      hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+      hex[2 * i + 1] = Character.forDigit(hash[i] & 0xF, 16);
+    }
+    return new String(hex);
+  }
+
+}
@@ -0,0 +1,190 @@
+package unluac.batch;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps an output directory in sync with the chunk files of the inputs.
+ *
+ * All inputs are decompiled once at the start; after that, every file that
+ * is created or modified is decompiled again by the batch runner, whose
+ * workers stay up between runs. File events are collected until none have
+ * arrived for a short while (or for at most a fraction of a second), so that
+ * a burst of writes, or one file written in several steps, becomes a single
+ * run. If the watch service loses events, all inputs are run again.
+ *
+ * With a journal on the runner, files whose content has not changed since
+ * they were last decompiled are skipped.
+ */
+public class Watcher {
+
+  static final long QUIET_MILLIS = 50;
+  static final long MAX_DELAY_MILLIS = 250;
+
+  private final BatchRunner runner;
+  private final List<String> inputs;
+  private final Path outputDirectory;
+  private final PrintStream log;
+  private final WatchService service;
+  private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+  private final Set<Path> roots = new HashSet<Path>();
+
+  public Watcher(BatchRunner runner, List<String> inputs, Path outputDirectory, PrintStream log) throws IOException {
+    this.runner = runner;
+    this.inputs = inputs;
+    this.outputDirectory = outputDirectory.toAbsolutePath().normalize();
+    this.log = log;
+    service = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Decompiles all inputs, then watches them until the thread is
+   * interrupted.
+   */
+  public void run() throws IOException, InterruptedException {
+    try {
+      for(String input : inputs) {
+        Path path = Paths.get(input).toAbsolutePath().normalize();
+        if(Files.isDirectory(path)) {
+          registerTree(path, path);
+        } else {
+          register(path.getParent());
+          roots.add(path);
+        }
+      }
+      runner.run(BatchRunner.jobs(inputs, outputDirectory));
+      while(!Thread.currentThread().isInterrupted()) {
+        WatchKey key = service.take();
+        Map<Path, BatchRunner.Job> changed = new LinkedHashMap<Path, BatchRunner.Job>();
+        boolean overflow = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS);
+        while(key != null) {
+          overflow |= collect(key, changed);
+          long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          key = left > 0 ? service.poll(Math.min(QUIET_MILLIS, left), TimeUnit.MILLISECONDS) : null;
+        }
+        if(overflow) {
+          log.println("-- events lost, checking all inputs");
+          runner.run(BatchRunner.jobs(inputs, outputDirectory));
+        } else if(!changed.isEmpty()) {
+          runner.run(new ArrayList<BatchRunner.Job>(changed.values()));
+        }
+      }
+    } finally {
+      service.close();
+    }
+  }
+
+  /*
+   * Adds the jobs for the files of the key's events and resets the key.
+   * Returns true if events were lost.
+   */
+  private boolean collect(WatchKey key, Map<Path, BatchRunner.Job> changed) throws IOException {
+    Path directory = directories.get(key);
+    boolean overflow = false;
+    for(WatchEvent<?> event : key.pollEvents()) {
+      if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        overflow = true;
+        continue;
+      }
+      Path file = directory.resolve((Path) event.context());
+      if(file.startsWith(outputDirectory)) {
+        continue;
+      }
+      Path root = root(file);
+      if(root == null) {
+        continue;
+      }
+      if(Files.isDirectory(file)) {
+        if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+          // Files may have been added before the directory was registered.
+          try {
+            registerTree(root, file);
+            addTree(root, file, changed);
+          } catch(IOException e) {
+            log.println("-- could not watch " + file + ": " + e.getMessage());
+          }
+        }
+      } else if(Files.isRegularFile(file)) {
+        changed.put(file, BatchRunner.job(root, file, outputDirectory));
+      }
+    }
+    if(!key.reset()) {
+      directories.remove(key);
+    }
+    return overflow;
+  }
+
+  /*
+   * Returns the input that the file belongs to: the file itself or the
+   * closest directory containing it. Other files in the directory of a
+   * single file input are ignored.
+   */
+  private Path root(Path file) {
+    for(Path path = file; path != null; path = path.getParent()) {
+      if(roots.contains(path)) {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  private void register(Path directory) throws IOException {
+    WatchKey key = directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    directories.put(key, directory);
+  }
+
+  private void registerTree(Path root, Path directory) throws IOException {
+    roots.add(root);
+    for(Path path : walk(directory)) {
+      if(Files.isDirectory(path) && !path.startsWith(outputDirectory)) {
+        register(path);
+      }
+    }
+  }
+
+  private void addTree(Path root, Path directory, Map<Path, BatchRunner.Job> changed) throws IOException {
+    for(Path path : walk(directory)) {
+      if(Files.isRegularFile(path)) {
+        changed.put(path, BatchRunner.job(root, path, outputDirectory));
+      }
+    }
+  }
+
+  private static List<Path> walk(Path directory) throws IOException {
+    if(!Files.isDirectory(directory)) {
+      return Collections.<Path>emptyList();
+    }
+    List<Path> paths = new ArrayList<Path>();
+    Stream<Path> walk = Files.walk(directory);
+    try {
+      Iterator<Path> it = walk.sorted().iterator();
+      while(it.hasNext()) {
+        paths.add(it.next());
+      }
+    } finally {
+      walk.close();
+    }
+    return paths;
+  }
+
+}
@@ -0,0 +1,134 @@
+package unluac.chunk;
+
+import java.util.Arrays;
+
+import unluac.Version;
+import unluac.decompile.Op;
+import unluac.decompile.OpcodeMap;
+
+/**
+ * Encodes the instructions of one function for a Lua version, recording
+ * the current line for each of them.
+ */
+class Assembler {
+
+  private static final int SBX_BIAS = 131071;
+
+  private final OpcodeMap map;
+  private final boolean lua50;
+
+  private int[] code = new int[16];
+  private int[] lines = new int[16];
+  private int length = 0;
+
+  int line = 1;
+
+  Assembler(Version version) {
+    this.map = version.getOpcodeMap();
+    this.lua50 = version == Version.LUA50;
+  }
+
+  /**
+   * The operand for a constant in an RK (register or constant) field.
+   */
+  int rk(int constant) {
+    return (lua50 ? 250 : 256) + constant;
+  }
+
+  int pc() {
+    return length;
+  }
+
+  int abc(Op op, int a, int b, int c) {
+    return emit(encodeABC(op, a, b, c));
+  }
+
+  int abx(Op op, int a, int bx) {
+    return emit(encodeABx(op, a, bx));
+  }
+
+  int asbx(Op op, int a, int sbx) {
+    return emit(encodeAsBx(op, a, sbx));
+  }
+
+  int ax(Op op, int ax) {
+    return emit(opcode(op) | (ax << 6));
+  }
+
+  int encodeABC(Op op, int a, int b, int c) {
+    if(lua50) {
+      return opcode(op) | (c << 6) | (b << 15) | (a << 24);
+    } else {
+      return opcode(op) | (a << 6) | (c << 14) | (b << 23);
+    }
+  }
+
+  int encodeABx(Op op, int a, int bx) {
+    if(lua50) {
+      return opcode(op) | (bx << 6) | (a << 24);
+    } else {
+      return opcode(op) | (a << 6) | (bx << 14);
+    }
+  }
+
+  int encodeAsBx(Op op, int a, int sbx) {
+    return encodeABx(op, a, sbx + SBX_BIAS);
+  }
+
+  /**
+   * The instruction with its Bx field replaced.
+   */
+  int withBx(int codepoint, int bx) {
+    if(lua50) {
+      return (codepoint & ~(0x3FFFF << 6)) | (bx << 6);
+    } else {
+      return (codepoint & 0x3FFF) | (bx << 14);
+    }
+  }
+
+  int withSBx(int codepoint, int sbx) {
+    return withBx(codepoint, sbx + SBX_BIAS);
+  }
+
+  /**
+   * Emits a word that is not an instruction (the block number after a
+   * Lua 5.1 SETLIST with C = 0).
+   */
+  int word(int value) {
+    return emit(value);
+  }
+
+  /**
+   * Points the jump (or loop) instruction at pc to the target.
+   */
+  void patch(int pc, int target) {
+    code[pc] = withSBx(code[pc], target - (pc + 1));
+  }
+
+  int[] code() {
+    return Arrays.copyOf(code, length);
+  }
+
+  int[] lines() {
+    return Arrays.copyOf(lines, length);
+  }
+
+  private int opcode(Op op) {
+    int opcode = map.getOpcode(op);
+    if(opcode < 0) {
+      throw new IllegalStateException("The opcode " + op + " is not in this Lua version");
+    }
+    return opcode;
+  }
+
+  private int emit(int codepoint) {
+    if(length == code.length) {
+      code = Arrays.copyOf(code, length * 2);
+      lines = Arrays.copyOf(lines, length * 2);
+    }
+    code[length] = codepoint;
+    lines[length] = line;
+    return length++;
+  }
+
+}
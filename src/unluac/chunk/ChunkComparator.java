@@ -0,0 +1,674 @@
+package unluac.chunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import unluac.Configuration;
+import unluac.Version;
+import unluac.decompile.Op;
+import unluac.decompile.OpcodeMap;
+import unluac.parse.BHeader;
+import unluac.parse.LNil;
+import unluac.parse.LObject;
+
+/**
+ * Compares two chunks structurally (ignoring line numbers and source
+ * names, as Compare.bytecode_equal does) by walking both in lockstep,
+ * without building their function trees.
+ * <p>
+ * Each function is first compared as a whole: its bytes, with those of
+ * its nested functions, are measured by skipping over them and then
+ * compared directly. Only a function whose bytes differ is compared
+ * section by section, and only a section whose bytes differ is decoded.
+ * The first difference is reported with the path of its function ("main",
+ * "main/0", ...), the section and item, and both values, with instructions
+ * decoded. Memory use does not depend on the size of the chunks; files are
+ * mapped rather than read.
+ * <p>
+ * If a Sink is set, the comparison goes on after the first difference
+ * and reports a similarity for every function: 1 for identical code, down
+ * to 0 for code without an instruction pair in common.
+ */
+public class ChunkComparator {
+
+  public static interface Sink {
+
+    public void function(String path, double similarity);
+
+  }
+
+  /**
+   * The first difference between two chunks. The index is the item within
+   * the section (for code, the instruction line, counting from 1), or -1.
+   */
+  public static class Divergence {
+
+    public final String path;
+    public final String section;
+    public final int index;
+    public final String first;
+    public final String second;
+
+    Divergence(String path, String section, int index, String first, String second) {
+      this.path = path;
+      this.section = section;
+      this.index = index;
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public String toString() {
+      return path + ": " + section + (index >= 0 ? " " + index : "") + ": " + first + " / " + second;
+    }
+
+  }
+
+  private static enum Section {
+    HEAD,
+    CODE,
+    CONSTANTS,
+    FUNCTIONS,
+    UPVALUES,
+    DEBUG,
+  }
+
+  private static final Section[] SECTIONS50 = {Section.HEAD, Section.DEBUG, Section.CONSTANTS, Section.FUNCTIONS, Section.CODE};
+  private static final Section[] SECTIONS51 = {Section.HEAD, Section.CODE, Section.CONSTANTS, Section.FUNCTIONS, Section.DEBUG};
+  private static final Section[] SECTIONS52 = {Section.HEAD, Section.CODE, Section.CONSTANTS, Section.FUNCTIONS, Section.UPVALUES, Section.DEBUG};
+  private static final Section[] SECTIONS53 = {Section.HEAD, Section.CODE, Section.CONSTANTS, Section.UPVALUES, Section.FUNCTIONS, Section.DEBUG};
+
+  /* The number of counters of the similarity sketch of a function's code. */
+  private static final int BUCKETS = 4096;
+
+  private static final String NONE = "(none)";
+
+  private Sink sink;
+  private Section[] sections;
+  private Divergence divergence;
+  private String current;
+  private double similarity;
+  private final int[] sketch1 = new int[BUCKETS];
+  private final int[] sketch2 = new int[BUCKETS];
+
+  public void setSink(Sink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * Compares two chunk files. Returns null if they are the same.
+   */
+  public Divergence compare(Path file1, Path file2) throws IOException {
+    FileChannel in1 = FileChannel.open(file1, StandardOpenOption.READ);
+    try {
+      FileChannel in2 = FileChannel.open(file2, StandardOpenOption.READ);
+      try {
+        MappedByteBuffer buffer1 = in1.map(FileChannel.MapMode.READ_ONLY, 0, in1.size());
+        MappedByteBuffer buffer2 = in2.map(FileChannel.MapMode.READ_ONLY, 0, in2.size());
+        return compare(buffer1, buffer2);
+      } finally {
+        in2.close();
+      }
+    } finally {
+      in1.close();
+    }
+  }
+
+  /**
+   * Compares two chunks, from the positions of the buffers. Returns null if
+   * they are the same.
+   */
+  public Divergence compare(ByteBuffer chunk1, ByteBuffer chunk2) {
+    divergence = null;
+    Side s1;
+    Side s2;
+    try {
+      s1 = new Side(chunk1);
+    } catch(RuntimeException e) {
+      return new Divergence("header", "header", -1, String.valueOf(e.getMessage()), NONE);
+    }
+    try {
+      s2 = new Side(chunk2);
+    } catch(RuntimeException e) {
+      return new Divergence("header", "header", -1, NONE, String.valueOf(e.getMessage()));
+    }
+    int length1 = s1.position() - s1.begin;
+    int length2 = s2.position() - s2.begin;
+    int offset = mismatch(s1.buffer, s1.begin, s2.buffer, s2.begin, Math.min(length1, length2));
+    if(offset >= 0) {
+      // the formats differ, so the functions cannot be read in lockstep
+      return new Divergence("header", "byte", offset, hex(s1.buffer.get(s1.begin + offset)), hex(s2.buffer.get(s2.begin + offset)));
+    } else if(length1 != length2) {
+      return new Divergence("header", "length", -1, String.valueOf(length1), String.valueOf(length2));
+    }
+    sections = sectionsOf(s1.header.version);
+    try {
+      function("main", s1, s2);
+    } catch(RuntimeException e) {
+      // a truncated or malformed function
+      if(divergence == null) {
+        divergence = new Divergence(current, "structure", -1, String.valueOf(e.getMessage()), NONE);
+      }
+    }
+    if(divergence == null && (s1.buffer.hasRemaining() || s2.buffer.hasRemaining())) {
+      divergence = new Divergence("main", "trailing bytes", -1, String.valueOf(s1.buffer.remaining()), String.valueOf(s2.buffer.remaining()));
+    }
+    return divergence;
+  }
+
+  private static Section[] sectionsOf(Version version) {
+    if(version == Version.LUA50) {
+      return SECTIONS50;
+    } else if(version == Version.LUA51) {
+      return SECTIONS51;
+    } else if(version == Version.LUA52) {
+      return SECTIONS52;
+    } else {
+      return SECTIONS53;
+    }
+  }
+
+  private boolean done() {
+    return divergence != null && sink == null;
+  }
+
+  private void diverge(String path, String section, int index, String first, String second) {
+    if(divergence == null) {
+      divergence = new Divergence(path, section, index, first, second);
+    }
+  }
+
+  private void function(String path, Side s1, Side s2) {
+    current = path;
+    int start1 = s1.position();
+    int start2 = s2.position();
+    skipFunction(s1, null, 0);
+    skipFunction(s2, null, 0);
+    int length = s1.position() - start1;
+    if(length == s2.position() - start2 && mismatch(s1.buffer, start1, s2.buffer, start2, length) < 0) {
+      if(sink != null) {
+        s1.seek(start1);
+        skipFunction(s1, path, 1.0);
+      }
+      return;
+    }
+    int end1 = s1.position();
+    int end2 = s2.position();
+    s1.seek(start1);
+    s2.seek(start2);
+    double functionSimilarity = 1.0;
+    for(Section section : sections) {
+      if(done()) {
+        break;
+      }
+      if(section == Section.FUNCTIONS) {
+        functions(path, s1, s2);
+      } else if(section == Section.CODE) {
+        similarity = 1.0;
+        section(section, path, s1, s2);
+        functionSimilarity = similarity;
+      } else {
+        section(section, path, s1, s2);
+      }
+    }
+    if(sink != null) {
+      sink.function(path, functionSimilarity);
+    }
+    s1.seek(end1);
+    s2.seek(end2);
+  }
+
+  private void functions(String path, Side s1, Side s2) {
+    int n1 = s1.integer();
+    int n2 = s2.integer();
+    if(n1 != n2) {
+      diverge(path, "function count", -1, String.valueOf(n1), String.valueOf(n2));
+    }
+    for(int i = 0; i < Math.max(n1, n2); i++) {
+      if(done()) {
+        return;
+      }
+      if(i < n1 && i < n2) {
+        function(path + "/" + i, s1, s2);
+      } else if(i < n1) {
+        skipFunction(s1, path + "/" + i, 0.0);
+      } else {
+        skipFunction(s2, path + "/" + i, 0.0);
+      }
+    }
+  }
+
+  private void section(Section section, String path, Side s1, Side s2) {
+    int start1 = s1.position();
+    int start2 = s2.position();
+    skipSection(s1, section);
+    skipSection(s2, section);
+    int end1 = s1.position();
+    int end2 = s2.position();
+    int length = end1 - start1;
+    if(length == end2 - start2 && mismatch(s1.buffer, start1, s2.buffer, start2, length) < 0) {
+      return;
+    }
+    if(section == Section.CODE && sink != null) {
+      similarity = similarity(s1, start1, s2, start2);
+    }
+    if(divergence == null) {
+      s1.seek(start1);
+      s2.seek(start2);
+      switch(section) {
+        case HEAD:
+          head(path, s1, s2);
+          break;
+        case CODE:
+          code(path, s1, s2);
+          break;
+        case CONSTANTS:
+          constants(path, s1, s2);
+          break;
+        case UPVALUES:
+          upvalues(path, s1, s2);
+          break;
+        case DEBUG:
+          debug(path, s1, s2);
+          break;
+        default:
+          throw new IllegalStateException();
+      }
+    }
+    s1.seek(end1);
+    s2.seek(end2);
+  }
+
+  private void head(String path, Side s1, Side s2) {
+    int[] h1 = s1.head();
+    int[] h2 = s2.head();
+    // in the order of Compare.function_equal
+    int[] order = {3, 1, 0, 2};
+    String[] names = {"upvalue count", "parameter count", "vararg flag", "maximum stack size"};
+    for(int field : order) {
+      if(h1[field] != h2[field]) {
+        diverge(path, names[field], -1, String.valueOf(h1[field]), String.valueOf(h2[field]));
+        return;
+      }
+    }
+  }
+
+  private void code(String path, Side s1, Side s2) {
+    int n1 = s1.integer();
+    int n2 = s2.integer();
+    int start1 = s1.position();
+    int start2 = s2.position();
+    int offset = mismatch(s1.buffer, start1, s2.buffer, start2, 4 * Math.min(n1, n2));
+    int pc = offset >= 0 ? offset / 4 : Math.min(n1, n2);
+    String first = pc < n1 ? s1.decode(s1.buffer.getInt(start1 + 4 * pc)) : NONE;
+    String second = pc < n2 ? s2.decode(s2.buffer.getInt(start2 + 4 * pc)) : NONE;
+    diverge(path, "instruction", pc + 1, first, second);
+  }
+
+  private void constants(String path, Side s1, Side s2) {
+    int n1 = s1.integer();
+    int n2 = s2.integer();
+    for(int i = 0; i < Math.min(n1, n2); i++) {
+      LObject c1 = s1.constant();
+      LObject c2 = s2.constant();
+      if(!c1.equals(c2)) {
+        diverge(path, "constant", i, describe(c1), describe(c2));
+        return;
+      }
+    }
+    diverge(path, "constant count", -1, String.valueOf(n1), String.valueOf(n2));
+  }
+
+  private void upvalues(String path, Side s1, Side s2) {
+    int n1 = s1.integer();
+    int n2 = s2.integer();
+    for(int i = 0; i < Math.min(n1, n2); i++) {
+      int instack1 = s1.u8();
+      int index1 = s1.u8();
+      int instack2 = s2.u8();
+      int index2 = s2.u8();
+      if((instack1 != 0) != (instack2 != 0) || index1 != index2) {
+        diverge(path, "upvalue", i, upvalue(instack1, index1), upvalue(instack2, index2));
+        return;
+      }
+    }
+    diverge(path, "upvalue count", -1, String.valueOf(n1), String.valueOf(n2));
+  }
+
+  private void debug(String path, Side s1, Side s2) {
+    for(Side s : new Side[] {s1, s2}) {
+      if(s.header.version == Version.LUA52) {
+        s.skipString();
+      }
+      s.skip((long) s.integer() * s.format.intSize);
+    }
+    int n1 = s1.integer();
+    int n2 = s2.integer();
+    for(int i = 0; i < Math.min(n1, n2); i++) {
+      String local1 = s1.string() + " " + s1.integer() + " " + s1.integer();
+      String local2 = s2.string() + " " + s2.integer() + " " + s2.integer();
+      if(!local1.equals(local2)) {
+        diverge(path, "local", i, local1, local2);
+        return;
+      }
+    }
+    if(n1 != n2) {
+      diverge(path, "local count", -1, String.valueOf(n1), String.valueOf(n2));
+      return;
+    }
+    n1 = s1.integer();
+    n2 = s2.integer();
+    for(int i = 0; i < Math.min(n1, n2); i++) {
+      String name1 = s1.string();
+      String name2 = s2.string();
+      if(!name1.equals(name2)) {
+        diverge(path, "upvalue name", i, name1, name2);
+        return;
+      }
+    }
+    if(n1 != n2) {
+      diverge(path, "upvalue name count", -1, String.valueOf(n1), String.valueOf(n2));
+    }
+  }
+
+  /**
+   * The Dice coefficient of the (hashed) multisets of consecutive
+   * instruction pairs of the two code sections.
+   */
+  private double similarity(Side s1, int start1, Side s2, int start2) {
+    int n1 = s1.integer();
+    int n2 = s2.integer();
+    if(n1 + n2 == 0) {
+      return 1.0;
+    }
+    sketch(s1.buffer, s1.position(), n1, sketch1);
+    sketch(s2.buffer, s2.position(), n2, sketch2);
+    long common = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      common += Math.min(sketch1[i], sketch2[i]);
+    }
+    s1.seek(start1);
+    s2.seek(start2);
+    return 2.0 * common / (n1 + n2);
+  }
+
+  private static void sketch(ByteBuffer buffer, int start, int length, int[] sketch) {
+    Arrays.fill(sketch, 0);
+    int previous = 0;
+    for(int i = 0; i < length; i++) {
+      int word = buffer.getInt(start + 4 * i);
+      int hash = (previous * 31 + word) * 0x9E3779B9;
+      sketch[hash >>> 20]++;
+      previous = word;
+    }
+  }
+
+  private void skipFunction(Side s, String path, double score) {
+    for(Section section : sections) {
+      if(section == Section.FUNCTIONS) {
+        int n = s.integer();
+        for(int i = 0; i < n; i++) {
+          skipFunction(s, path == null ? null : path + "/" + i, score);
+        }
+      } else {
+        skipSection(s, section);
+      }
+    }
+    if(path != null) {
+      sink.function(path, score);
+    }
+  }
+
+  private static void skipSection(Side s, Section section) {
+    switch(section) {
+      case HEAD:
+        s.head();
+        break;
+      case CODE:
+        s.skip(4L * s.integer());
+        break;
+      case CONSTANTS: {
+        int n = s.integer();
+        for(int i = 0; i < n; i++) {
+          s.skipConstant();
+        }
+        break;
+      }
+      case UPVALUES:
+        s.skip(2L * s.integer());
+        break;
+      case DEBUG: {
+        if(s.header.version == Version.LUA52) {
+          s.skipString();
+        }
+        s.skip((long) s.integer() * s.format.intSize);
+        int locals = s.integer();
+        for(int i = 0; i < locals; i++) {
+          s.skipString();
+          s.skip(2L * s.format.intSize);
+        }
+        int names = s.integer();
+        for(int i = 0; i < names; i++) {
+          s.skipString();
+        }
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * The offset of the first differing byte of the two ranges, or -1.
+   */
+  private static int mismatch(ByteBuffer b1, int start1, ByteBuffer b2, int start2, int length) {
+    int i = 0;
+    while(i + 8 <= length) {
+      if(b1.getLong(start1 + i) != b2.getLong(start2 + i)) {
+        break;
+      }
+      i += 8;
+    }
+    while(i < length) {
+      if(b1.get(start1 + i) != b2.get(start2 + i)) {
+        return i;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  private static String describe(LObject o) {
+    return o == LNil.NIL ? "nil" : o.toString();
+  }
+
+  private static String hex(byte b) {
+    return String.format("0x%02X", b & 0xFF);
+  }
+
+  private static String upvalue(int instack, int index) {
+    return (instack != 0 ? "register " : "upvalue ") + index;
+  }
+
+  /**
+   * One of the chunks being compared, read through its header.
+   */
+  private static class Side {
+
+    final ByteBuffer buffer;
+    final int begin;
+    final BHeader header;
+    final ChunkFormat format;
+    final OpcodeMap map;
+
+    Side(ByteBuffer chunk) {
+      buffer = chunk.duplicate();
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      begin = buffer.position();
+      header = new BHeader(buffer, new Configuration(), false);
+      format = ChunkFormat.of(header);
+      map = header.version.getOpcodeMap();
+    }
+
+    int position() {
+      return buffer.position();
+    }
+
+    void seek(int position) {
+      buffer.position(position);
+    }
+
+    void skip(long n) {
+      if(n < 0 || n > buffer.remaining()) {
+        throw new IllegalStateException("The chunk is truncated");
+      }
+      buffer.position(buffer.position() + (int) n);
+    }
+
+    int u8() {
+      return 0xFF & buffer.get();
+    }
+
+    long raw(int size) {
+      switch(size) {
+        case 1:
+          return 0xFF & buffer.get();
+        case 2:
+          return 0xFFFF & buffer.getShort();
+        case 4:
+          return 0xFFFFFFFFL & buffer.getInt();
+        case 8:
+          return buffer.getLong();
+        default: {
+          long value = 0;
+          for(int i = 0; i < size; i++) {
+            long b = 0xFF & buffer.get();
+            value |= buffer.order() == ByteOrder.LITTLE_ENDIAN ? b << (8 * i) : b << (8 * (size - 1 - i));
+          }
+          return value;
+        }
+      }
+    }
+
+    int integer() {
+      long value = raw(format.intSize);
+      if(value < 0 || value > buffer.capacity()) {
+        // only counts are read this way, and none is larger than the chunk
+        throw new IllegalStateException("The chunk has an invalid count: " + value);
+      }
+      return (int) value;
+    }
+
+    /**
+     * The upvalue count (-1 from Lua 5.2), parameter count, vararg flag and
+     * maximum stack size.
+     */
+    int[] head() {
+      int upvalues = -1;
+      Version version = header.version;
+      if(version != Version.LUA52) {
+        skipString();
+      }
+      raw(format.intSize);
+      if(version != Version.LUA50) {
+        raw(format.intSize);
+      }
+      if(version == Version.LUA50 || version == Version.LUA51) {
+        upvalues = u8();
+      }
+      int parameters = u8();
+      int vararg = u8();
+      int stack = u8();
+      return new int[] {upvalues, parameters, vararg, stack};
+    }
+
+    void skipString() {
+      if(header.version == Version.LUA53) {
+        long size = u8();
+        if(size == 0xFF) {
+          size = raw(format.sizeTSize);
+        }
+        skip(size == 0 ? 0 : size - 1);
+      } else {
+        skip(raw(format.sizeTSize));
+      }
+    }
+
+    String string() {
+      return header.string.parse(buffer, header).deref();
+    }
+
+    void skipConstant() {
+      int type = u8();
+      switch(type) {
+        case 0:
+          break;
+        case 1:
+          skip(1);
+          break;
+        case 3:
+          skip(header.version == Version.LUA53 ? format.floatSize : format.numberSize);
+          break;
+        case 0x13:
+          skip(format.integerSize);
+          break;
+        case 4:
+        case 0x14:
+          skipString();
+          break;
+        default:
+          throw new IllegalStateException("The chunk has an invalid constant type: " + type);
+      }
+    }
+
+    LObject constant() {
+      return header.constant.parse(buffer, header);
+    }
+
+    String decode(int codepoint) {
+      Op op = map.get(header.extractor.extract_op(codepoint));
+      String hex = String.format("0x%08X", codepoint);
+      return op == null ? hex : op.codePointToString(codepoint, header.extractor) + " (" + hex + ")";
+    }
+
+  }
+
+  /**
+   * ChunkComparator [--similarity] file1 file2
+   */
+  public static void main(String[] args) throws IOException {
+    boolean similarity = args.length == 3 && args[0].equals("--similarity");
+    if(args.length != (similarity ? 3 : 2)) {
+      System.err.println("usage: ChunkComparator [--similarity] file1 file2");
+      System.exit(2);
+    }
+    ChunkComparator comparator = new ChunkComparator();
+    if(similarity) {
+      comparator.setSink(new Sink() {
+
+        @Override
+        public void function(String path, double similarity) {
+          System.out.printf("%.3f %s%n", similarity, path);
+        }
+
+      });
+    }
+    int i = similarity ? 1 : 0;
+    Divergence divergence = comparator.compare(Paths.get(args[i]), Paths.get(args[i + 1]));
+    if(divergence == null) {
+      System.out.println("The chunks are the same.");
+      System.exit(0);
+    } else {
+      System.out.println(divergence);
+      System.exit(1);
+    }
+  }
+
+}
@@ -0,0 +1,57 @@
+package unluac.chunk;
+
+import java.nio.ByteOrder;
+
+import unluac.Version;
+import unluac.parse.BHeader;
+
+/**
+ * The version and the machine-dependent sizes of a chunk: the fields of
+ * the header that LHeaderType reads.
+ */
+public class ChunkFormat {
+
+  public final Version version;
+  public final ByteOrder order;
+  public final int intSize;
+  public final int sizeTSize;
+
+  /* The lua_Number of Lua 5.0 - 5.2. */
+  public final int numberSize;
+  public final boolean numberIntegral;
+
+  /* The lua_Integer and lua_Number of Lua 5.3. */
+  public final int integerSize;
+  public final int floatSize;
+
+  public ChunkFormat(Version version, ByteOrder order, int intSize, int sizeTSize, int numberSize, boolean numberIntegral, int integerSize, int floatSize) {
+    this.version = version;
+    this.order = order;
+    this.intSize = intSize;
+    this.sizeTSize = sizeTSize;
+    this.numberSize = numberSize;
+    this.numberIntegral = numberIntegral;
+    this.integerSize = integerSize;
+    this.floatSize = floatSize;
+  }
+
+  /**
+   * The format of a stock luac on x86-64: little-endian, 4-byte ints,
+   * 8-byte size_t and 8-byte numbers.
+   */
+  public static ChunkFormat standard(Version version) {
+    return new ChunkFormat(version, ByteOrder.LITTLE_ENDIAN, 4, 8, 8, false, 8, 8);
+  }
+
+  /**
+   * The format of a chunk that has been read.
+   */
+  public static ChunkFormat of(BHeader header) {
+    if(header.version == Version.LUA53) {
+      return new ChunkFormat(header.version, header.order, header.integer.intSize, header.sizeT.sizeTSize, 0, false, header.linteger.size, header.lfloat.size);
+    } else {
+      return new ChunkFormat(header.version, header.order, header.integer.intSize, header.sizeT.sizeTSize, header.number.size, header.number.integral, 0, 0);
+    }
+  }
+
+}
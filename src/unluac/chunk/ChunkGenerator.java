@@ -0,0 +1,441 @@
+package unluac.chunk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import unluac.Version;
+import unluac.decompile.Op;
+import unluac.parse.BInteger;
+import unluac.parse.BSizeT;
+import unluac.parse.LFunction;
+import unluac.parse.LLocal;
+import unluac.parse.LNumber;
+import unluac.parse.LNumberType;
+import unluac.parse.LObject;
+import unluac.parse.LString;
+import unluac.parse.LUpvalue;
+
+/**
+ * Generates chunks of a chosen size made of one kind of construct, laid out
+ * as luac would compile the equivalent source, for benchmarks and scaling
+ * tests. Every chunk starts with "local a = x" and its statements work on a.
+ * The same arguments always give the same bytes.
+ */
+public class ChunkGenerator {
+
+  public static enum Construct {
+
+    /** size ifs, each inside the one before: if a == 1 then a = a + 1 if ... end end */
+    NESTED_IF,
+
+    /** one if with size branches: if a == 1 then ... elseif a == 2 then ... else ... end */
+    IF_CHAIN,
+
+    /** size numeric for loops in a row: for i = 1, n do a = a + i end */
+    LOOP,
+
+    /** size boolean assignments: a = a == 1 or a < 2 and a == 3 */
+    BOOLEAN,
+
+    /** one table constructor with size items: a = {1, 2, 3, ...} */
+    TABLE,
+
+    /** size global functions returning the local: function f1() return a end */
+    CLOSURES;
+
+  }
+
+  /* The values of the numeric constants cycle to keep them in RK range. */
+  private static final int NUMBERS = 100;
+
+  private final ChunkFormat format;
+  private final Version version;
+  private boolean strip = false;
+
+  public ChunkGenerator(Version version) {
+    this(ChunkFormat.standard(version));
+  }
+
+  public ChunkGenerator(ChunkFormat format) {
+    this.format = format;
+    this.version = format.version;
+  }
+
+  /**
+   * Leaves out the debug information of the generated chunks, as luac -s
+   * does.
+   */
+  public void setStrip(boolean strip) {
+    this.strip = strip;
+  }
+
+  /**
+   * Generates a chunk with size constructs of the given kind.
+   */
+  public byte[] generate(Construct construct, int size) {
+    return ChunkWriter.write(build(construct, size), format, strip);
+  }
+
+  /**
+   * Builds the main function of a generated chunk. It has no header, so it
+   * can only be written, not decompiled directly.
+   */
+  public LFunction build(Construct construct, int size) {
+    if(size < 1) {
+      throw new IllegalArgumentException("The size must be at least 1: " + size);
+    }
+    Builder b = new Builder();
+    b.prologue();
+    switch(construct) {
+      case NESTED_IF:
+        b.nestedIf(size);
+        break;
+      case IF_CHAIN:
+        b.ifChain(size);
+        break;
+      case LOOP:
+        for(int j = 0; j < size; j++) {
+          b.loop(j);
+        }
+        break;
+      case BOOLEAN:
+        for(int j = 0; j < size; j++) {
+          b.bool(j);
+        }
+        break;
+      case TABLE:
+        b.table(size);
+        break;
+      case CLOSURES:
+        for(int j = 0; j < size; j++) {
+          b.closure(j);
+        }
+        break;
+    }
+    return b.finish();
+  }
+
+  private static LString string(String s) {
+    return new LString(new BSizeT(s.length() + 1), s + "\0");
+  }
+
+  private static LLocal local(String name, int start, int end) {
+    return new LLocal(string(name), new BInteger(start), new BInteger(end));
+  }
+
+  private static LUpvalue upvalue(String name) {
+    LUpvalue upvalue = new LUpvalue();
+    upvalue.instack = true;
+    upvalue.idx = 0;
+    upvalue.name = name;
+    return upvalue;
+  }
+
+  private static int int2fb50(int x) {
+    int m = 0;
+    while(x >= 8) {
+      x = (x + 1) >> 1;
+      m++;
+    }
+    return (m << 3) | x;
+  }
+
+  private static int int2fb(int x) {
+    int e = 0;
+    while(x >= 16) {
+      x = (x + 1) >> 1;
+      e++;
+    }
+    if(x < 8) {
+      return x;
+    } else {
+      return ((e + 1) << 3) | (x - 8);
+    }
+  }
+
+  private class Builder {
+
+    private final Assembler asm = new Assembler(version);
+    private final List<LObject> constants = new ArrayList<LObject>();
+    private final Map<Object, Integer> constantIndex = new HashMap<Object, Integer>();
+    private final List<LLocal> locals = new ArrayList<LLocal>();
+    private final List<LFunction> functions = new ArrayList<LFunction>();
+    private final boolean lua50 = version == Version.LUA50;
+    private final boolean lua52 = version == Version.LUA52 || version == Version.LUA53;
+    private int maximumStackSize = 2;
+
+    void prologue() {
+      int x = constant("x");
+      if(lua52) {
+        asm.abc(Op.GETTABUP, 0, 0, asm.rk(x));
+      } else {
+        asm.abx(Op.GETGLOBAL, 0, x);
+      }
+    }
+
+    void nestedIf(int depth) {
+      List<Integer> jumps = new ArrayList<Integer>(depth);
+      for(int j = 0; j < depth; j++) {
+        asm.line++;
+        int k = asm.rk(number(j));
+        asm.abc(Op.EQ, 0, 0, k);
+        jumps.add(jump());
+        asm.abc(Op.ADD, 0, 0, k);
+      }
+      for(int jump : jumps) {
+        asm.patch(jump, asm.pc());
+      }
+    }
+
+    void ifChain(int branches) {
+      List<Integer> ends = new ArrayList<Integer>(branches);
+      asm.line++;
+      for(int j = 0; j < branches; j++) {
+        int k = asm.rk(number(j));
+        asm.abc(Op.EQ, 0, 0, k);
+        int next = jump();
+        asm.abc(Op.ADD, 0, 0, k);
+        ends.add(jump());
+        asm.patch(next, asm.pc());
+        asm.line++;
+      }
+      asm.abx(Op.LOADK, 0, number(0));
+      for(int end : ends) {
+        asm.patch(end, asm.pc());
+      }
+    }
+
+    void loop(int j) {
+      asm.line++;
+      int one = number(0);
+      asm.abx(Op.LOADK, 1, one);
+      asm.abx(Op.LOADK, 2, number(j));
+      asm.abx(Op.LOADK, 3, one);
+      if(lua50) {
+        asm.abc(Op.SUB, 1, 1, 3);
+        int prep = jump();
+        asm.abc(Op.ADD, 0, 0, 1);
+        int loop = asm.asbx(Op.FORLOOP, 1, 0);
+        asm.patch(prep, loop);
+        asm.patch(loop, prep + 1);
+        locals.add(local("i", prep + 1, loop + 1));
+        locals.add(local("(for limit)", prep + 1, loop + 1));
+        locals.add(local("(for step)", prep + 1, loop + 1));
+        stack(4);
+      } else {
+        int prep = asm.asbx(Op.FORPREP, 1, 0);
+        asm.abc(Op.ADD, 0, 0, 4);
+        int loop = asm.asbx(Op.FORLOOP, 1, 0);
+        asm.patch(prep, loop);
+        asm.patch(loop, prep + 1);
+        locals.add(local("(for index)", prep, loop + 1));
+        locals.add(local("(for limit)", prep, loop + 1));
+        locals.add(local("(for step)", prep, loop + 1));
+        locals.add(local("i", prep + 1, loop));
+        stack(5);
+      }
+    }
+
+    void bool(int j) {
+      asm.line++;
+      asm.abc(Op.EQ, 1, 0, asm.rk(number(j)));
+      int jumpTrue = jump();
+      asm.abc(Op.LT, 0, 0, asm.rk(number(j + 1)));
+      int jumpFalse = jump();
+      asm.abc(Op.EQ, 1, 0, asm.rk(number(j + 2)));
+      int jumpTrue2 = jump();
+      int loadFalse = asm.abc(Op.LOADBOOL, 0, 0, 1);
+      int loadTrue = asm.abc(Op.LOADBOOL, 0, 1, 0);
+      asm.patch(jumpTrue, loadTrue);
+      asm.patch(jumpFalse, loadFalse);
+      asm.patch(jumpTrue2, loadTrue);
+    }
+
+    void table(int items) {
+      asm.line++;
+      int flush;
+      if(lua50) {
+        flush = 32;
+        asm.abc(Op.NEWTABLE50, 1, int2fb50(items), 0);
+      } else {
+        flush = 50;
+        asm.abc(Op.NEWTABLE, 1, int2fb(items), 0);
+      }
+      int pending = 0;
+      for(int i = 0; i < items; i++) {
+        asm.abx(Op.LOADK, 2 + pending, number(i));
+        pending++;
+        if(pending == flush || i == items - 1) {
+          setlist(i + 1, pending, flush);
+          pending = 0;
+        }
+      }
+      asm.abc(Op.MOVE, 0, 1, 0);
+      stack(2 + Math.min(items, flush));
+    }
+
+    private void setlist(int total, int count, int flush) {
+      if(lua50) {
+        asm.abx(Op.SETLIST50, 1, total - 1);
+        return;
+      }
+      int block = (total - 1) / flush + 1;
+      Op op = lua52 ? Op.SETLIST52 : Op.SETLIST;
+      if(block <= 511) {
+        asm.abc(op, 1, count, block);
+      } else {
+        asm.abc(op, 1, count, 0);
+        if(lua52) {
+          asm.ax(Op.EXTRAARG, block);
+        } else {
+          asm.word(block);
+        }
+      }
+    }
+
+    void closure(int j) {
+      asm.line++;
+      asm.abx(Op.CLOSURE, 1, functions.size());
+      functions.add(child());
+      int name = constant("f" + (j + 1));
+      if(lua52) {
+        if(name < 256) {
+          asm.abc(Op.SETTABUP, 0, asm.rk(name), 1);
+        } else {
+          asm.abx(Op.LOADK, 2, name);
+          asm.abc(Op.SETTABUP, 0, 2, 1);
+          stack(3);
+        }
+      } else {
+        // the upvalue a, as a pseudo-instruction
+        asm.abc(Op.MOVE, 0, 0, 0);
+        asm.abx(Op.SETGLOBAL, 1, name);
+      }
+    }
+
+    /* function() return a end */
+    private LFunction child() {
+      Assembler c = new Assembler(version);
+      c.line = asm.line;
+      c.abc(Op.GETUPVAL, 0, 0, 0);
+      c.abc(Op.RETURN, 0, 2, 0);
+      c.abc(Op.RETURN, 0, 1, 0);
+      LUpvalue[] upvalues = new LUpvalue[] {upvalue("a")};
+      LFunction f = new LFunction(null, c.code(), new LLocal[0], new LObject[0], upvalues, new LFunction[0], 2, upvalues.length, 0, 0);
+      f.lines = c.lines();
+      f.linedefined = asm.line;
+      f.lastlinedefined = lua50 ? 0 : asm.line;
+      return f;
+    }
+
+    LFunction finish() {
+      int end = asm.abc(Op.RETURN, 0, 1, 0);
+      locals.add(0, local("a", 1, end));
+      LUpvalue[] upvalues;
+      int vararg;
+      if(lua52) {
+        upvalues = new LUpvalue[] {upvalue("_ENV")};
+        vararg = 1;
+      } else {
+        upvalues = new LUpvalue[0];
+        vararg = lua50 ? 0 : 2;
+      }
+      LFunction main = new LFunction(null, asm.code(), locals.toArray(new LLocal[locals.size()]), constants.toArray(new LObject[constants.size()]), upvalues, functions.toArray(new LFunction[functions.size()]), maximumStackSize, upvalues.length, 0, vararg);
+      main.name = string("=generated");
+      main.lines = asm.lines();
+      for(LFunction child : main.functions) {
+        child.parent = main;
+      }
+      return main;
+    }
+
+    private int jump() {
+      if(lua52) {
+        return asm.asbx(Op.JMP52, 0, 0);
+      } else {
+        return asm.asbx(Op.JMP, 0, 0);
+      }
+    }
+
+    private void stack(int size) {
+      maximumStackSize = Math.max(maximumStackSize, size);
+    }
+
+    private int number(int j) {
+      long value = 1 + j % NUMBERS;
+      Integer index = constantIndex.get(value);
+      if(index == null) {
+        LNumber n;
+        if(version == Version.LUA53) {
+          n = LNumber.makeLong(value);
+        } else {
+          n = LNumber.makeDouble(value, LNumberType.NumberMode.MODE_NUMBER);
+        }
+        index = add(value, n);
+      }
+      return index;
+    }
+
+    private int constant(String s) {
+      Integer index = constantIndex.get(s);
+      if(index == null) {
+        index = add(s, string(s));
+      }
+      return index;
+    }
+
+    private int add(Object key, LObject constant) {
+      int index = constants.size();
+      constants.add(constant);
+      constantIndex.put(key, index);
+      return index;
+    }
+
+  }
+
+  /**
+   * Writes a generated chunk to a file:
+   * ChunkGenerator [-s] version construct size file
+   */
+  public static void main(String[] args) throws IOException {
+    int i = 0;
+    boolean strip = false;
+    if(i < args.length && args[i].equals("-s")) {
+      strip = true;
+      i++;
+    }
+    if(args.length - i != 4) {
+      System.err.println("usage: ChunkGenerator [-s] <5.0|5.1|5.2|5.3> <construct> <size> <file>");
+      System.exit(1);
+    }
+    Version version = parseVersion(args[i]);
+    Construct construct = Construct.valueOf(args[i + 1].toUpperCase());
+    int size = Integer.parseInt(args[i + 2]);
+    ChunkGenerator generator = new ChunkGenerator(version);
+    generator.setStrip(strip);
+    Files.write(Paths.get(args[i + 3]), generator.generate(construct, size));
+  }
+
+  /**
+   * The version named as "5.0" to "5.3".
+   */
+  public static Version parseVersion(String s) {
+    if(s.equals("5.0")) {
+      return Version.LUA50;
+    } else if(s.equals("5.1")) {
+      return Version.LUA51;
+    } else if(s.equals("5.2")) {
+      return Version.LUA52;
+    } else if(s.equals("5.3")) {
+      return Version.LUA53;
+    } else {
+      throw new IllegalArgumentException("Unknown Lua version: " + s);
+    }
+  }
+
+}
@@ -0,0 +1,769 @@
+package unluac.chunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import unluac.Version;
+import unluac.decompile.CodeExtract;
+import unluac.decompile.Op;
+import unluac.decompile.OpcodeMap;
+import unluac.parse.BInteger;
+import unluac.parse.BSizeT;
+import unluac.parse.LFunction;
+import unluac.parse.LLocal;
+import unluac.parse.LNumber;
+import unluac.parse.LNumberType;
+import unluac.parse.LObject;
+import unluac.parse.LString;
+
+/**
+ * Mutates parsed functions in place while keeping them verifiable: jumps
+ * land on instructions of their function, registers stay under the
+ * maximum stack size, constant and closure indices stay in range, loops
+ * stay paired and the debug information follows the code it describes.
+ * <p>
+ * Ranges that are moved, copied or wrapped are closed: control enters them
+ * only at the start and leaves only at the end, and they do not split an
+ * instruction from a word that belongs to it (the upvalues of a closure,
+ * an extra argument) or from a test that skips over it.
+ */
+public class ChunkMutator {
+
+  public static enum Mutation {
+
+    /** points a jump at another instruction */
+    RETARGET_JUMP,
+
+    /** wraps a range that only uses locals in a numeric for loop */
+    NEST_LOOP,
+
+    /** repeats a range right after itself */
+    DUPLICATE_RANGE,
+
+    /** removes a range */
+    DELETE_RANGE,
+
+    /** raises the maximum stack size */
+    ADD_REGISTERS,
+
+    /** appends constants, and loads one of them in place of another */
+    GROW_CONSTANTS;
+
+  }
+
+  private static final Mutation[] MUTATIONS = Mutation.values();
+
+  /* The largest function the mutations grow. */
+  private static final int MAX_CODE = 1 << 16;
+
+  private static final int MAX_STACK = 250;
+
+  /* The register bound of an instruction that uses the values up to the top of the stack. */
+  private static final int TOP = Integer.MAX_VALUE;
+
+  private final Random random;
+
+  public ChunkMutator(Random random) {
+    this.random = random;
+  }
+
+  /**
+   * Applies a randomly chosen mutation to a random function of the chunk.
+   * Returns the mutation, or null if none of the tries found a place to
+   * apply one.
+   */
+  public Mutation mutate(LFunction main) {
+    for(int i = 0; i < 8; i++) {
+      Mutation mutation = MUTATIONS[random.nextInt(MUTATIONS.length)];
+      if(mutate(main, mutation)) {
+        return mutation;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Applies the mutation to a random function of the chunk, returning false
+   * if it found no place to apply it.
+   */
+  public boolean mutate(LFunction main, Mutation mutation) {
+    List<LFunction> functions = new ArrayList<LFunction>();
+    collect(main, functions);
+    LFunction f = functions.get(random.nextInt(functions.size()));
+    Shape shape = new Shape(f);
+    switch(mutation) {
+      case RETARGET_JUMP:
+        return retargetJump(shape);
+      case NEST_LOOP:
+        return nestLoop(shape);
+      case DUPLICATE_RANGE:
+        return duplicateRange(shape);
+      case DELETE_RANGE:
+        return deleteRange(shape);
+      case ADD_REGISTERS:
+        return addRegisters(f);
+      case GROW_CONSTANTS:
+        return growConstants(shape);
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * Checks the structural rules the mutations keep, for the chunk and its
+   * closures. Returns a description of the first broken rule, or null.
+   */
+  public static String verify(LFunction main) {
+    List<LFunction> functions = new ArrayList<LFunction>();
+    collect(main, functions);
+    for(LFunction f : functions) {
+      String problem = new Shape(f).verify();
+      if(problem != null) {
+        return problem;
+      }
+    }
+    return null;
+  }
+
+  private static void collect(LFunction f, List<LFunction> functions) {
+    functions.add(f);
+    for(LFunction child : f.functions) {
+      collect(child, functions);
+    }
+  }
+
+  private boolean retargetJump(Shape s) {
+    List<Integer> jumps = new ArrayList<Integer>();
+    for(int pc = 0; pc < s.length; pc++) {
+      if(s.isInstruction(pc) && (s.ops[pc] == Op.JMP || s.ops[pc] == Op.JMP52)) {
+        jumps.add(pc);
+      }
+    }
+    if(jumps.isEmpty()) {
+      return false;
+    }
+    int pc = jumps.get(random.nextInt(jumps.size()));
+    for(int i = 0; i < 8; i++) {
+      int target;
+      if(random.nextBoolean()) {
+        target = random.nextInt(s.length);
+      } else {
+        target = s.target(pc) + random.nextInt(33) - 16;
+      }
+      if(target >= 0 && target < s.length && s.isInstruction(target) && target != s.target(pc)) {
+        s.f.code[pc] = s.asm.withSBx(s.f.code[pc], target - (pc + 1));
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean nestLoop(Shape s) {
+    if(s.f.locals.length == 0 || s.f.code.length + 6 > MAX_CODE) {
+      return false;
+    }
+    int[] range = s.closedRange(random);
+    if(range == null) {
+      return false;
+    }
+    int start = range[0];
+    int end = range[1];
+    int base = s.activeLocals(start);
+    if(base + 4 > MAX_STACK) {
+      return false;
+    }
+    for(int pc = start; pc <= end; pc++) {
+      if(s.isInstruction(pc) && s.maxRegister(pc) >= base) {
+        return false;
+      }
+    }
+    int one = oneConstant(s.f);
+    Assembler asm = s.asm;
+    if(s.version == Version.LUA50) {
+      // for i = 1, 1 do ... end, with i in base
+      int[] prep = {
+        asm.encodeABx(Op.LOADK, base, one),
+        asm.encodeABx(Op.LOADK, base + 1, one),
+        asm.encodeABx(Op.LOADK, base + 2, one),
+        asm.encodeABC(Op.SUB, base, base, base + 2),
+        asm.encodeAsBx(Op.JMP, 0, 0),
+      };
+      insert(s.f, start, prep, -1, -1, lineAt(s.f, start));
+      int loop = end + 1 + prep.length;
+      insert(s.f, loop, new int[] {asm.encodeAsBx(Op.FORLOOP, base, 0)}, start + prep.length, loop - 1, lineAt(s.f, loop - 1));
+      int jump = start + prep.length - 1;
+      s.f.code[jump] = asm.withSBx(s.f.code[jump], loop - (jump + 1));
+      s.f.code[loop] = asm.withSBx(s.f.code[loop], jump + 1 - (loop + 1));
+      addLocal(s.f, "i", jump + 1, loop + 1);
+      addLocal(s.f, "(for limit)", jump + 1, loop + 1);
+      addLocal(s.f, "(for step)", jump + 1, loop + 1);
+      s.f.maximumStackSize = Math.max(s.f.maximumStackSize, base + 3);
+    } else {
+      // for i = 1, 1 do ... end, with the loop state in base to base + 3
+      int[] prep = {
+        asm.encodeABx(Op.LOADK, base, one),
+        asm.encodeABx(Op.LOADK, base + 1, one),
+        asm.encodeABx(Op.LOADK, base + 2, one),
+        asm.encodeAsBx(Op.FORPREP, base, 0),
+      };
+      insert(s.f, start, prep, -1, -1, lineAt(s.f, start));
+      int loop = end + 1 + prep.length;
+      insert(s.f, loop, new int[] {asm.encodeAsBx(Op.FORLOOP, base, 0)}, start + prep.length, loop - 1, lineAt(s.f, loop - 1));
+      int forprep = start + prep.length - 1;
+      s.f.code[forprep] = asm.withSBx(s.f.code[forprep], loop - (forprep + 1));
+      s.f.code[loop] = asm.withSBx(s.f.code[loop], forprep + 1 - (loop + 1));
+      addLocal(s.f, "(for index)", forprep, loop + 1);
+      addLocal(s.f, "(for limit)", forprep, loop + 1);
+      addLocal(s.f, "(for step)", forprep, loop + 1);
+      addLocal(s.f, "i", forprep + 1, loop);
+      s.f.maximumStackSize = Math.max(s.f.maximumStackSize, base + 4);
+    }
+    return true;
+  }
+
+  private boolean duplicateRange(Shape s) {
+    int[] range = s.closedRange(random);
+    if(range == null) {
+      return false;
+    }
+    int start = range[0];
+    int end = range[1];
+    int length = end - start + 1;
+    if(s.f.code.length + length > MAX_CODE) {
+      return false;
+    }
+    int[] copy = new int[length];
+    System.arraycopy(s.f.code, start, copy, 0, length);
+    int[] lines = null;
+    if(s.f.lines.length == s.f.code.length) {
+      lines = new int[length];
+      System.arraycopy(s.f.lines, start, lines, 0, length);
+    }
+    List<LLocal> inner = new ArrayList<LLocal>();
+    for(LLocal local : s.f.locals) {
+      if(local.start >= start && local.end <= end + 1) {
+        inner.add(local);
+      }
+    }
+    // jumps in the copy are relative, so they stay inside the copy
+    insert(s.f, end + 1, copy, start, end, 0);
+    if(lines != null) {
+      System.arraycopy(lines, 0, s.f.lines, end + 1, length);
+    }
+    for(LLocal local : inner) {
+      addLocal(s.f, local.name.deref(), local.start + length, local.end + length);
+    }
+    return true;
+  }
+
+  private boolean deleteRange(Shape s) {
+    int[] range = s.closedRange(random);
+    if(range == null) {
+      return false;
+    }
+    int start = range[0];
+    int end = range[1];
+    int length = end - start + 1;
+    for(int pc = 0; pc < s.length; pc++) {
+      if(s.isJump(pc) && (pc < start || pc > end)) {
+        int target = s.target(pc);
+        int moved = pc > end ? pc - length : pc;
+        int newTarget = target > end ? target - length : target;
+        s.f.code[pc] = s.asm.withSBx(s.f.code[pc], newTarget - (moved + 1));
+      }
+    }
+    s.f.code = remove(s.f.code, start, length);
+    if(s.f.lines.length > 0) {
+      s.f.lines = remove(s.f.lines, start, length);
+    }
+    List<LLocal> locals = new ArrayList<LLocal>();
+    for(LLocal local : s.f.locals) {
+      int newStart = shiftDeleted(local.start, start, length);
+      int newEnd = shiftDeleted(local.end, start, length);
+      if(newStart < newEnd) {
+        locals.add(copy(local, newStart, newEnd));
+      }
+    }
+    s.f.locals = locals.toArray(new LLocal[locals.size()]);
+    return true;
+  }
+
+  private boolean addRegisters(LFunction f) {
+    if(f.maximumStackSize >= MAX_STACK) {
+      return false;
+    }
+    f.maximumStackSize = Math.min(MAX_STACK, f.maximumStackSize + 1 + random.nextInt(32));
+    return true;
+  }
+
+  private boolean growConstants(Shape s) {
+    int count = 1 + random.nextInt(256);
+    if(s.f.constants.length + count > (1 << 18) - 1) {
+      return false;
+    }
+    LObject[] constants = new LObject[s.f.constants.length + count];
+    System.arraycopy(s.f.constants, 0, constants, 0, s.f.constants.length);
+    for(int i = s.f.constants.length; i < constants.length; i++) {
+      if(random.nextBoolean()) {
+        constants[i] = number(s.version, random.nextInt(1 << 20));
+      } else {
+        constants[i] = string("k" + random.nextInt(1 << 20));
+      }
+    }
+    int first = s.f.constants.length;
+    s.f.constants = constants;
+    List<Integer> loads = new ArrayList<Integer>();
+    for(int pc = 0; pc < s.length; pc++) {
+      if(s.isInstruction(pc) && s.ops[pc] == Op.LOADK) {
+        loads.add(pc);
+      }
+    }
+    if(!loads.isEmpty()) {
+      int pc = loads.get(random.nextInt(loads.size()));
+      s.f.code[pc] = s.asm.withBx(s.f.code[pc], first + random.nextInt(count));
+    }
+    return true;
+  }
+
+  /**
+   * Inserts words at pc. Jumps from inside from..to that target pc keep
+   * targeting pc (the inserted words continue their range); every other
+   * target at or after pc moves with the code. Locals that start at pc, or
+   * end after it, move too.
+   */
+  private static void insert(LFunction f, int pc, int[] words, int from, int to, int line) {
+    Shape s = new Shape(f);
+    int k = words.length;
+    for(int j = 0; j < s.length; j++) {
+      if(s.isJump(j)) {
+        int target = s.target(j);
+        int moved = j >= pc ? j + k : j;
+        int newTarget;
+        if(target < pc || (target == pc && j >= from && j <= to)) {
+          newTarget = target;
+        } else {
+          newTarget = target + k;
+        }
+        f.code[j] = s.asm.withSBx(f.code[j], newTarget - (moved + 1));
+      }
+    }
+    f.code = insert(f.code, pc, words);
+    if(f.lines.length > 0) {
+      int[] lines = new int[k];
+      Arrays.fill(lines, line);
+      f.lines = insert(f.lines, pc, lines);
+    }
+    LLocal[] locals = f.locals;
+    for(int i = 0; i < locals.length; i++) {
+      LLocal local = locals[i];
+      int start = local.start >= pc ? local.start + k : local.start;
+      int end = local.end > pc ? local.end + k : local.end;
+      if(start != local.start || end != local.end) {
+        locals[i] = copy(local, start, end);
+      }
+    }
+  }
+
+  private static int[] insert(int[] array, int at, int[] words) {
+    int[] result = new int[array.length + words.length];
+    System.arraycopy(array, 0, result, 0, at);
+    System.arraycopy(words, 0, result, at, words.length);
+    System.arraycopy(array, at, result, at + words.length, array.length - at);
+    return result;
+  }
+
+  private static int[] remove(int[] array, int at, int length) {
+    int[] result = new int[array.length - length];
+    System.arraycopy(array, 0, result, 0, at);
+    System.arraycopy(array, at + length, result, at, array.length - at - length);
+    return result;
+  }
+
+  private static int shiftDeleted(int pc, int start, int length) {
+    if(pc <= start) {
+      return pc;
+    } else if(pc <= start + length) {
+      return start;
+    } else {
+      return pc - length;
+    }
+  }
+
+  private static int lineAt(LFunction f, int pc) {
+    if(f.lines.length == 0) {
+      return 0;
+    }
+    return f.lines[Math.max(0, Math.min(pc, f.lines.length - 1))];
+  }
+
+  /**
+   * Adds a local, keeping the locals ordered by their start as luac does.
+   * A stripped function gets no debug information.
+   */
+  private static void addLocal(LFunction f, String name, int start, int end) {
+    if(f.locals.length == 0) {
+      return;
+    }
+    LLocal[] locals = new LLocal[f.locals.length + 1];
+    int at = 0;
+    while(at < f.locals.length && f.locals[at].start <= start) {
+      at++;
+    }
+    System.arraycopy(f.locals, 0, locals, 0, at);
+    locals[at] = new LLocal(string(name), new BInteger(start), new BInteger(end));
+    System.arraycopy(f.locals, at, locals, at + 1, f.locals.length - at);
+    f.locals = locals;
+  }
+
+  private static LLocal copy(LLocal local, int start, int end) {
+    LLocal copy = new LLocal(local.name, new BInteger(start), new BInteger(end));
+    copy.forLoop = local.forLoop;
+    return copy;
+  }
+
+  private static LString string(String s) {
+    return new LString(new BSizeT(s.length() + 1), s + "\0");
+  }
+
+  private static LNumber number(Version version, long value) {
+    if(version == Version.LUA53) {
+      return LNumber.makeLong(value);
+    } else {
+      return LNumber.makeDouble(value, LNumberType.NumberMode.MODE_NUMBER);
+    }
+  }
+
+  private static int oneConstant(LFunction f) {
+    for(int i = 0; i < f.constants.length; i++) {
+      LObject o = f.constants[i];
+      if(o instanceof LNumber && ((LNumber) o).value() == 1.0 && (f.header.version != Version.LUA53 || ((LNumber) o).integral())) {
+        return i;
+      }
+    }
+    LObject[] constants = new LObject[f.constants.length + 1];
+    System.arraycopy(f.constants, 0, constants, 0, f.constants.length);
+    constants[f.constants.length] = number(f.header.version, 1);
+    f.constants = constants;
+    return f.constants.length - 1;
+  }
+
+  /**
+   * The decoded instructions of a function.
+   */
+  private static class Shape {
+
+    final LFunction f;
+    final Version version;
+    final CodeExtract ex;
+    final Assembler asm;
+    final int length;
+
+    /* The operation of each word, or null for a word that is not an instruction. */
+    final Op[] ops;
+
+    /* Whether the word belongs to the instruction before it. */
+    final boolean[] attached;
+
+    Shape(LFunction f) {
+      this.f = f;
+      this.version = f.header.version;
+      this.ex = f.header.extractor;
+      this.asm = new Assembler(version);
+      this.length = f.code.length;
+      ops = new Op[length];
+      attached = new boolean[length];
+      OpcodeMap map = version.getOpcodeMap();
+      for(int pc = 0; pc < length; pc++) {
+        Op op = map.get(ex.extract_op(f.code[pc]));
+        ops[pc] = op;
+        if(op == null) {
+          continue;
+        }
+        int extra = 0;
+        if(op.hasExtraByte(f.code[pc], ex)) {
+          extra = 1;
+        } else if(op == Op.CLOSURE && version.usesInlineUpvalueDeclarations()) {
+          int index = ex.extract_Bx(f.code[pc]);
+          if(index < f.functions.length) {
+            extra = f.functions[index].numUpvalues;
+          }
+        } else if(op == Op.LOADKX || (op == Op.SETLIST52 && ex.extract_C(f.code[pc]) == 0)) {
+          extra = 1;
+        }
+        for(int i = 1; i <= extra && pc + 1 < length; i++) {
+          attached[++pc] = true;
+        }
+      }
+    }
+
+    boolean isInstruction(int pc) {
+      return !attached[pc] && ops[pc] != null;
+    }
+
+    boolean isJump(int pc) {
+      if(!isInstruction(pc)) {
+        return false;
+      }
+      switch(ops[pc]) {
+        case JMP:
+        case JMP52:
+        case FORLOOP:
+        case FORPREP:
+        case TFORPREP:
+          return true;
+        case TFORLOOP:
+          return version != Version.LUA50 && version != Version.LUA51;
+        default:
+          return false;
+      }
+    }
+
+    int target(int pc) {
+      return pc + 1 + ex.extract_sBx(f.code[pc]);
+    }
+
+    /**
+     * Whether the instruction may skip the one after it.
+     */
+    boolean isTest(int pc) {
+      if(!isInstruction(pc)) {
+        return false;
+      }
+      switch(ops[pc]) {
+        case EQ:
+        case LT:
+        case LE:
+        case TEST:
+        case TESTSET:
+        case TEST50:
+          return true;
+        case TFORLOOP:
+          return version == Version.LUA50 || version == Version.LUA51;
+        case LOADBOOL:
+          return ex.extract_C(f.code[pc]) != 0;
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * Whether the instruction leaves a variable number of values on the
+     * stack for the next one.
+     */
+    boolean setsTop(int pc) {
+      Op op = isInstruction(pc) ? ops[pc] : null;
+      if(op == Op.CALL || op == Op.TAILCALL) {
+        return ex.extract_C(f.code[pc]) == 0;
+      } else if(op == Op.VARARG) {
+        return ex.extract_B(f.code[pc]) == 0;
+      }
+      return false;
+    }
+
+    boolean usesTop(int pc) {
+      Op op = isInstruction(pc) ? ops[pc] : null;
+      if(op == Op.CALL || op == Op.TAILCALL || op == Op.RETURN || op == Op.SETLIST || op == Op.SETLIST52) {
+        return ex.extract_B(f.code[pc]) == 0;
+      }
+      return op == Op.SETLISTO;
+    }
+
+    /**
+     * A random closed range [start, end] that leaves out the final return,
+     * or null if the tries found none.
+     */
+    int[] closedRange(Random random) {
+      if(length < 2) {
+        return null;
+      }
+      for(int i = 0; i < 16; i++) {
+        int start = random.nextInt(length - 1);
+        int size = 1 + random.nextInt(Math.min(length - 1 - start, random.nextBoolean() ? 4 : 64));
+        int end = start + size - 1;
+        if(isClosed(start, end)) {
+          return new int[] {start, end};
+        }
+      }
+      return null;
+    }
+
+    boolean isClosed(int start, int end) {
+      if(!isInstruction(start) || (end + 1 < length && !isInstruction(end + 1))) {
+        return false;
+      }
+      if(start > 0 && isTest(start - 1) || isTest(end)) {
+        return false;
+      }
+      if(usesTop(start) || setsTop(end)) {
+        return false;
+      }
+      for(int pc = 0; pc < length; pc++) {
+        if(isJump(pc)) {
+          int target = target(pc);
+          boolean inside = pc >= start && pc <= end;
+          if(inside && (target < start || target > end + 1)) {
+            return false;
+          }
+          if(!inside && target >= start && target <= end) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    /**
+     * The number of locals in scope at pc, which is the first free register
+     * of a function compiled by luac.
+     */
+    int activeLocals(int pc) {
+      int count = 0;
+      for(LLocal local : f.locals) {
+        if(local.start <= pc && pc < local.end) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * The highest register the instruction reads or writes, or TOP if
+     * that depends on a variable number of values.
+     */
+    int maxRegister(int pc) {
+      int codepoint = f.code[pc];
+      int a = ex.extract_A(codepoint);
+      int b = ex.extract_B(codepoint);
+      int c = ex.extract_C(codepoint);
+      int top = TOP;
+      switch(ops[pc]) {
+        case MOVE:
+        case UNM:
+        case NOT:
+        case LEN:
+        case BNOT:
+          return Math.max(a, b);
+        case LOADK:
+        case LOADKX:
+        case GETGLOBAL:
+        case SETGLOBAL:
+        case GETUPVAL:
+        case SETUPVAL:
+        case CLOSURE:
+        case NEWTABLE:
+        case NEWTABLE50:
+        case TEST:
+          return a;
+        case LOADBOOL:
+          return a;
+        case JMP:
+        case JMP52:
+        case EXTRAARG:
+          return -1;
+        case LOADNIL:
+          return Math.max(a, b);
+        case LOADNIL52:
+          return a + b;
+        case GETTABUP:
+          return Math.max(a, rk(c));
+        case SETTABUP:
+          return Math.max(rk(b), rk(c));
+        case GETTABLE:
+          return Math.max(Math.max(a, b), rk(c));
+        case SELF:
+          return Math.max(Math.max(a + 1, b), rk(c));
+        case SETTABLE:
+        case ADD:
+        case SUB:
+        case MUL:
+        case DIV:
+        case MOD:
+        case POW:
+        case IDIV:
+        case BAND:
+        case BOR:
+        case BXOR:
+        case SHL:
+        case SHR:
+          return Math.max(a, Math.max(rk(b), rk(c)));
+        case EQ:
+        case LT:
+        case LE:
+          return Math.max(rk(b), rk(c));
+        case TESTSET:
+        case TEST50:
+          return Math.max(a, b);
+        case CONCAT:
+          return Math.max(a, c);
+        case CALL:
+        case TAILCALL:
+          if(b == 0 || c == 0) return top;
+          return Math.max(a + b - 1, a + c - 2);
+        case RETURN:
+          return b == 0 ? top : a + b - 2;
+        case VARARG:
+          return b == 0 ? top : a + b - 2;
+        case FORLOOP:
+        case FORPREP:
+          return a + 3;
+        case TFORPREP:
+        case TFORLOOP:
+        case TFORCALL:
+          return a + 2 + c;
+        default:
+          return top;
+      }
+    }
+
+    private int rk(int field) {
+      int offset = version == Version.LUA50 ? 250 : 256;
+      return field >= offset ? -1 : field;
+    }
+
+    String verify() {
+      if(f.maximumStackSize > MAX_STACK) {
+        return "maximum stack size " + f.maximumStackSize;
+      }
+      if(length == 0 || ops[length - 1] != Op.RETURN) {
+        return "function does not end with a return";
+      }
+      for(int pc = 0; pc < length; pc++) {
+        if(attached[pc]) {
+          continue;
+        } else if(ops[pc] == null) {
+          return "unknown opcode at " + pc;
+        }
+        if(isJump(pc)) {
+          int target = target(pc);
+          if(target < 0 || target >= length || !isInstruction(target)) {
+            return "jump at " + pc + " to " + target;
+          }
+        }
+        int max = maxRegister(pc);
+        if(max >= f.maximumStackSize && max != TOP) {
+          return "register " + max + " at " + pc;
+        }
+        int codepoint = f.code[pc];
+        if(ops[pc] == Op.LOADK && ex.extract_Bx(codepoint) >= f.constants.length) {
+          return "constant " + ex.extract_Bx(codepoint) + " at " + pc;
+        }
+        if(ops[pc] == Op.CLOSURE && ex.extract_Bx(codepoint) >= f.functions.length) {
+          return "closure " + ex.extract_Bx(codepoint) + " at " + pc;
+        }
+      }
+      if(f.lines.length != 0 && f.lines.length != length) {
+        return "line info for " + f.lines.length + " of " + length + " instructions";
+      }
+      for(LLocal local : f.locals) {
+        if(local.start < 0 || local.end > length || local.start > local.end) {
+          return "local " + local.name.deref() + " from " + local.start + " to " + local.end;
+        }
+      }
+      return null;
+    }
+
+  }
+
+}
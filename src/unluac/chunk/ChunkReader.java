@@ -0,0 +1,108 @@
+package unluac.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import unluac.Engine;
+import unluac.parse.LFunction;
+
+/**
+ * Reads the chunks of a stream that holds one chunk after another, such as
+ * a pipe from a compiler or a dump of many chunks, without knowing where
+ * each ends. The bytes that have arrived are skimmed (see ChunkSkimmer)
+ * until the end of the chunk has arrived, and the chunk is then parsed
+ * once. The next chunk begins at the byte after it.
+ *
+ * A chunk is returned as soon as its bytes have arrived, so that it can be
+ * decompiled while the rest of the stream is still being written. As the
+ * skim continues where it stopped, a chunk that arrives in many small reads
+ * costs no more than one that arrives at once.
+ */
+public class ChunkReader {
+
+  private final Engine engine;
+  private final InputStream in;
+  private byte[] bytes = new byte[1 << 16];
+  private int start = 0;
+  private int end = 0;
+  private long offset = 0;
+  private long chunkOffset = 0;
+  private boolean eof = false;
+
+  public ChunkReader(Engine engine, InputStream in) {
+    this.engine = engine;
+    this.in = in;
+  }
+
+  /**
+   * Returns the main function of the next chunk, or null at the end of the
+   * stream. An invalid chunk ends the stream, as the next chunk cannot be
+   * found without it.
+   */
+  public LFunction next() throws IOException, Engine.InvalidChunkException {
+    while(start == end) {
+      if(eof) {
+        return null;
+      }
+      fill();
+    }
+    chunkOffset = offset + start;
+    ChunkSkimmer skimmer = new ChunkSkimmer(engine.getConfiguration());
+    while(!eof) {
+      try {
+        if(skimmer.skim(ByteBuffer.wrap(bytes, start, end - start))) {
+          break;
+        }
+      } catch(RuntimeException e) {
+        // the parser reports what is wrong with the chunk
+        break;
+      }
+      fill();
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, start, end - start);
+    try {
+      LFunction main = engine.parseNext(buffer);
+      start = buffer.position();
+      return main;
+    } catch(Engine.InvalidChunkException e) {
+      start = end;
+      eof = true;
+      throw e;
+    }
+  }
+
+  /**
+   * The offset in the stream of the chunk last returned by next.
+   */
+  public long getOffset() {
+    return chunkOffset;
+  }
+
+  /*
+   * Reads at least one byte (or the end of the stream), and then the bytes
+   * available without blocking that fit in the buffer. The buffer grows
+   * only when the current chunk fills it.
+   */
+  private void fill() throws IOException {
+    if(start > 0) {
+      System.arraycopy(bytes, start, bytes, 0, end - start);
+      offset += start;
+      end -= start;
+      start = 0;
+    }
+    if(end == bytes.length) {
+      bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+    }
+    do {
+      int n = in.read(bytes, end, bytes.length - end);
+      if(n < 0) {
+        eof = true;
+        return;
+      }
+      end += n;
+    } while(end < bytes.length && in.available() > 0);
+  }
+
+}
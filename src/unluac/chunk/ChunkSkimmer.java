@@ -0,0 +1,352 @@
+package unluac.chunk;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import unluac.Configuration;
+import unluac.Version;
+import unluac.parse.BHeader;
+import unluac.util.Stack;
+
+/**
+ * Steps over the sections of a chunk without building its functions, as
+ * ChunkComparator does to measure them, to find where the chunk ends and
+ * the size of each function.
+ *
+ * The skim can be resumed. When the bytes run out, it stops before the item
+ * it could not read; given the chunk again with more bytes, it continues
+ * from that item. A chunk that arrives in many reads is skimmed once.
+ */
+public class ChunkSkimmer {
+
+  public static interface Sink {
+
+    /**
+     * Called for each function when its code has been reached. The buffer
+     * is at the first instruction, and must be read with absolute gets.
+     */
+    public void function(BHeader header, int registers, int length, ByteBuffer code);
+
+  }
+
+  private static enum Section {
+    HEAD,
+    CODE,
+    CONSTANTS,
+    FUNCTIONS,
+    UPVALUES,
+    DEBUG,
+  }
+
+  private static final Section[] SECTIONS50 = {Section.HEAD, Section.DEBUG, Section.CONSTANTS, Section.FUNCTIONS, Section.CODE};
+  private static final Section[] SECTIONS51 = {Section.HEAD, Section.CODE, Section.CONSTANTS, Section.FUNCTIONS, Section.DEBUG};
+  private static final Section[] SECTIONS52 = {Section.HEAD, Section.CODE, Section.CONSTANTS, Section.FUNCTIONS, Section.UPVALUES, Section.DEBUG};
+  private static final Section[] SECTIONS53 = {Section.HEAD, Section.CODE, Section.CONSTANTS, Section.UPVALUES, Section.FUNCTIONS, Section.DEBUG};
+
+  /*
+   * The progress through one function: the section it is in, the step of
+   * that section and the items left of its current list.
+   */
+  private static class Frame {
+    int section;
+    int step;
+    int count;
+    int registers;
+  }
+
+  private final Configuration config;
+  private final Sink sink;
+  private final Stack<Frame> frames = new Stack<Frame>();
+  private BHeader header;
+  private ChunkFormat format;
+  private Section[] sections;
+  private ByteBuffer buffer;
+  private int length;
+  private boolean complete;
+
+  public ChunkSkimmer(Configuration config) {
+    this(config, null);
+  }
+
+  public ChunkSkimmer(Configuration config, Sink sink) {
+    this.config = config;
+    this.sink = sink;
+  }
+
+  /**
+   * Skims the chunk at the buffer's position, which must hold the same
+   * chunk start on every call, continuing from where the last call stopped.
+   * Returns true once the whole chunk has been skimmed. The buffer's
+   * position is not changed.
+   *
+   * @throws IllegalStateException if the chunk is malformed
+   */
+  public boolean skim(ByteBuffer chunk) {
+    if(complete) {
+      return true;
+    }
+    buffer = chunk.duplicate();
+    buffer.order(header != null ? header.order : ByteOrder.LITTLE_ENDIAN);
+    int begin = buffer.position();
+    buffer.position(begin + length);
+    try {
+      if(header == null) {
+        header = new BHeader(buffer, config, false);
+        format = ChunkFormat.of(header);
+        sections = sectionsOf(header.version);
+        frames.push(new Frame());
+        length = buffer.position() - begin;
+      }
+      while(!frames.isEmpty()) {
+        step(frames.peek());
+        length = buffer.position() - begin;
+      }
+      complete = true;
+    } catch(BufferUnderflowException e) {
+      // stopped before the step that ran out of bytes
+    } finally {
+      buffer = null;
+    }
+    return complete;
+  }
+
+  /**
+   * The length of the chunk, once it has been skimmed.
+   */
+  public int length() {
+    if(!complete) {
+      throw new IllegalStateException("The chunk has not been skimmed");
+    }
+    return length;
+  }
+
+  private static Section[] sectionsOf(Version version) {
+    if(version == Version.LUA50) {
+      return SECTIONS50;
+    } else if(version == Version.LUA51) {
+      return SECTIONS51;
+    } else if(version == Version.LUA52) {
+      return SECTIONS52;
+    } else {
+      return SECTIONS53;
+    }
+  }
+
+  /*
+   * Reads one item of the frame's function: all of a section that is read
+   * in one go, or one entry of a list. An item either completes or throws a
+   * BufferUnderflowException, after which it is read again from its start.
+   */
+  private void step(Frame frame) {
+    if(frame.section == sections.length) {
+      frames.pop();
+      if(!frames.isEmpty()) {
+        frames.peek().count--;
+      }
+      return;
+    }
+    switch(sections[frame.section]) {
+      case HEAD:
+        frame.registers = head();
+        frame.section++;
+        break;
+      case CODE: {
+        int n = integer();
+        skip(4L * n);
+        if(sink != null) {
+          ByteBuffer code = buffer.duplicate();
+          code.order(buffer.order());
+          code.position(buffer.position() - 4 * n);
+          sink.function(header, frame.registers, n, code);
+        }
+        frame.section++;
+        break;
+      }
+      case CONSTANTS:
+        if(frame.step == 0) {
+          frame.count = integer();
+          frame.step = 1;
+        } else if(frame.count > 0) {
+          skipConstant();
+          frame.count--;
+        } else {
+          next(frame);
+        }
+        break;
+      case FUNCTIONS:
+        if(frame.step == 0) {
+          frame.count = integer();
+          frame.step = 1;
+        } else if(frame.count > 0) {
+          // the child decrements the count when it is done
+          frames.push(new Frame());
+        } else {
+          next(frame);
+        }
+        break;
+      case UPVALUES:
+        skip(2L * integer());
+        frame.section++;
+        break;
+      case DEBUG:
+        debug(frame);
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private void next(Frame frame) {
+    frame.section++;
+    frame.step = 0;
+    frame.count = 0;
+  }
+
+  /*
+   * The debug section: the source (Lua 5.2), the line info, the locals and
+   * the upvalue names.
+   */
+  private void debug(Frame frame) {
+    switch(frame.step) {
+      case 0:
+        if(header.version == Version.LUA52) {
+          skipString();
+        }
+        frame.step = 1;
+        break;
+      case 1:
+        skip((long) integer() * format.intSize);
+        frame.step = 2;
+        break;
+      case 2:
+        frame.count = integer();
+        frame.step = 3;
+        break;
+      case 3:
+        if(frame.count > 0) {
+          skipString();
+          skip(2L * format.intSize);
+          frame.count--;
+        } else {
+          frame.count = integer();
+          frame.step = 4;
+        }
+        break;
+      case 4:
+        if(frame.count > 0) {
+          skipString();
+          frame.count--;
+        } else {
+          next(frame);
+        }
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  /*
+   * Skips the head of a function and returns its maximum stack size.
+   */
+  private int head() {
+    Version version = header.version;
+    if(version != Version.LUA52) {
+      skipString();
+    }
+    raw(format.intSize);
+    if(version != Version.LUA50) {
+      raw(format.intSize);
+    }
+    if(version == Version.LUA50 || version == Version.LUA51) {
+      u8();
+    }
+    u8();
+    u8();
+    return u8();
+  }
+
+  private void skip(long n) {
+    if(n > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    buffer.position(buffer.position() + (int) n);
+  }
+
+  private int u8() {
+    return 0xFF & buffer.get();
+  }
+
+  private long raw(int size) {
+    switch(size) {
+      case 1:
+        return 0xFF & buffer.get();
+      case 2:
+        return 0xFFFF & buffer.getShort();
+      case 4:
+        return 0xFFFFFFFFL & buffer.getInt();
+      case 8:
+        return buffer.getLong();
+      default: {
+        if(size > buffer.remaining()) {
+          throw new BufferUnderflowException();
+        }
+        long value = 0;
+        for(int i = 0; i < size; i++) {
+          long b = 0xFF & buffer.get();
+          value |= buffer.order() == ByteOrder.LITTLE_ENDIAN ? b << (8 * i) : b << (8 * (size - 1 - i));
+        }
+        return value;
+      }
+    }
+  }
+
+  private int integer() {
+    long value = raw(format.intSize);
+    if(value < 0 || value > Integer.MAX_VALUE / 4) {
+      throw new IllegalStateException("The chunk has an invalid count: " + value);
+    }
+    return (int) value;
+  }
+
+  private void skipString() {
+    long size;
+    if(header.version == Version.LUA53) {
+      size = u8();
+      if(size == 0xFF) {
+        size = raw(format.sizeTSize);
+      }
+      size = size == 0 ? 0 : size - 1;
+    } else {
+      size = raw(format.sizeTSize);
+    }
+    if(size < 0) {
+      throw new IllegalStateException("The chunk has an invalid string size: " + size);
+    }
+    skip(size);
+  }
+
+  private void skipConstant() {
+    int type = u8();
+    switch(type) {
+      case 0:
+        break;
+      case 1:
+        skip(1);
+        break;
+      case 3:
+        skip(header.version == Version.LUA53 ? format.floatSize : format.numberSize);
+        break;
+      case 0x13:
+        skip(format.integerSize);
+        break;
+      case 4:
+      case 0x14:
+        skipString();
+        break;
+      default:
+        throw new IllegalStateException("The chunk has an invalid constant type: " + type);
+    }
+  }
+
+}
@@ -0,0 +1,451 @@
+package unluac.chunk;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteOrder;
+
+import unluac.Version;
+import unluac.parse.LBoolean;
+import unluac.parse.LFunction;
+import unluac.parse.LLocal;
+import unluac.parse.LNil;
+import unluac.parse.LNumber;
+import unluac.parse.LObject;
+import unluac.parse.LString;
+import unluac.parse.LUpvalue;
+
+/**
+ * Writes a function as a chunk, the reverse of LHeaderType and
+ * LFunctionType. A chunk that was read can be written back in its own
+ * format (ChunkFormat.of) and comes out byte for byte the same.
+ */
+abstract public class ChunkWriter {
+
+  public static final ChunkWriter TYPE50 = new ChunkWriter50();
+  public static final ChunkWriter TYPE51 = new ChunkWriter51();
+  public static final ChunkWriter TYPE52 = new ChunkWriter52();
+  public static final ChunkWriter TYPE53 = new ChunkWriter53();
+
+  protected static final byte[] signature = {
+    0x1B, 0x4C, 0x75, 0x61,
+  };
+
+  protected static final byte[] luacTail = {
+    0x19, (byte) 0x93, 0x0D, 0x0A, 0x1A, 0x0A,
+  };
+
+  public static ChunkWriter get(Version version) {
+    if(version == Version.LUA50) {
+      return TYPE50;
+    } else if(version == Version.LUA51) {
+      return TYPE51;
+    } else if(version == Version.LUA52) {
+      return TYPE52;
+    } else {
+      return TYPE53;
+    }
+  }
+
+  public static byte[] write(LFunction main, ChunkFormat format) {
+    return write(main, format, false);
+  }
+
+  /**
+   * @param strip leave out the debug information, as luac -s does
+   */
+  public static byte[] write(LFunction main, ChunkFormat format, boolean strip) {
+    ChunkOutput out = new ChunkOutput(format, strip);
+    get(format.version).write_main(out, main);
+    return out.toByteArray();
+  }
+
+  protected static class ChunkOutput {
+
+    final ChunkFormat format;
+    final boolean strip;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    ChunkOutput(ChunkFormat format, boolean strip) {
+      this.format = format;
+      this.strip = strip;
+    }
+
+    void write(int b) {
+      bytes.write(b);
+    }
+
+    void write(byte[] b) {
+      bytes.write(b, 0, b.length);
+    }
+
+    void raw(long value, int size) {
+      if(format.order == ByteOrder.LITTLE_ENDIAN) {
+        for(int i = 0; i < size; i++) {
+          bytes.write((int) (value >> (8 * i)));
+        }
+      } else {
+        for(int i = size - 1; i >= 0; i--) {
+          bytes.write((int) (value >> (8 * i)));
+        }
+      }
+    }
+
+    void integer(long value) {
+      raw(value, format.intSize);
+    }
+
+    void sizeT(long value) {
+      raw(value, format.sizeTSize);
+    }
+
+    void number(double value, int size, boolean integral) {
+      if(integral) {
+        raw((long) value, size);
+      } else if(size == 4) {
+        raw(Float.floatToRawIntBits((float) value), 4);
+      } else {
+        raw(Double.doubleToRawLongBits(value), 8);
+      }
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+
+  }
+
+  protected void write_main(ChunkOutput out, LFunction main) {
+    out.write(signature);
+    write_header(out);
+    write_function(out, main, null);
+  }
+
+  abstract protected void write_header(ChunkOutput out);
+
+  abstract protected void write_function(ChunkOutput out, LFunction f, String parentSource);
+
+  protected void write_endianness(ChunkOutput out) {
+    out.write(out.format.order == ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+  }
+
+  protected void write_sizes(ChunkOutput out) {
+    out.write(out.format.intSize);
+    out.write(out.format.sizeTSize);
+    // instruction size
+    out.write(4);
+  }
+
+  protected void write_string(ChunkOutput out, String s) {
+    if(s == null) {
+      out.sizeT(0);
+    } else {
+      out.sizeT(s.length() + 1);
+      write_chars(out, s);
+      out.write(0);
+    }
+  }
+
+  protected static void write_chars(ChunkOutput out, String s) {
+    for(int i = 0; i < s.length(); i++) {
+      out.write(s.charAt(i));
+    }
+  }
+
+  protected void write_number(ChunkOutput out, LNumber n) {
+    if(out.format.numberIntegral) {
+      out.raw(n.longValue(), out.format.numberSize);
+    } else {
+      out.number(n.value(), out.format.numberSize, false);
+    }
+  }
+
+  protected void write_constant(ChunkOutput out, LObject o) {
+    if(o == LNil.NIL) {
+      out.write(0);
+    } else if(o instanceof LBoolean) {
+      out.write(1);
+      out.write(o == LBoolean.LTRUE ? 1 : 0);
+    } else if(o instanceof LNumber) {
+      out.write(3);
+      write_number(out, (LNumber) o);
+    } else {
+      out.write(4);
+      write_string(out, ((LString) o).deref());
+    }
+  }
+
+  protected void write_code(ChunkOutput out, LFunction f) {
+    out.integer(f.code.length);
+    for(int codepoint : f.code) {
+      out.raw(codepoint, 4);
+    }
+  }
+
+  protected void write_constants(ChunkOutput out, LFunction f) {
+    out.integer(f.constants.length);
+    for(LObject o : f.constants) {
+      write_constant(out, o);
+    }
+  }
+
+  protected void write_functions(ChunkOutput out, LFunction f) {
+    String source = source(f);
+    for(LFunction parent = f.parent; source == null && parent != null; parent = parent.parent) {
+      source = source(parent);
+    }
+    out.integer(f.functions.length);
+    for(LFunction child : f.functions) {
+      write_function(out, child, source);
+    }
+  }
+
+  protected void write_upvalues(ChunkOutput out, LFunction f) {
+    out.integer(f.upvalues.length);
+    for(LUpvalue upvalue : f.upvalues) {
+      out.write(upvalue.instack ? 1 : 0);
+      out.write(upvalue.idx);
+    }
+  }
+
+  protected void write_debug(ChunkOutput out, LFunction f) {
+    boolean debug = hasDebug(out, f);
+    int[] lines = debug && f.lines != null ? f.lines : new int[0];
+    out.integer(lines.length);
+    for(int line : lines) {
+      out.integer(line);
+    }
+    LLocal[] locals = debug ? f.locals : new LLocal[0];
+    out.integer(locals.length);
+    for(LLocal local : locals) {
+      write_string(out, local.name.deref());
+      out.integer(local.start);
+      out.integer(local.end);
+    }
+    boolean names = debug;
+    for(LUpvalue upvalue : f.upvalues) {
+      names = names && upvalue.name != null;
+    }
+    int count = names ? f.upvalues.length : 0;
+    out.integer(count);
+    for(int i = 0; i < count; i++) {
+      write_string(out, f.upvalues[i].name);
+    }
+  }
+
+  protected static boolean hasDebug(ChunkOutput out, LFunction f) {
+    return !out.strip && !f.stripped;
+  }
+
+  /**
+   * The name of the source recorded in the function, or null.
+   */
+  protected static String source(LFunction f) {
+    if(f.name == null || f.name.size.asInt() == 0) {
+      return null;
+    } else {
+      return f.name.deref();
+    }
+  }
+
+  /**
+   * The source to write for a function whose parent has the given source;
+   * Lua 5.0, 5.1 and 5.3 leave it out when it is the same as the parent's.
+   */
+  protected static String sharedSource(ChunkOutput out, LFunction f, String parentSource) {
+    String source = source(f);
+    if(out.strip || source == null || source.equals(parentSource)) {
+      return null;
+    } else {
+      return source;
+    }
+  }
+
+}
+
+class ChunkWriter50 extends ChunkWriter {
+
+  private static final double TEST_NUMBER = 3.14159265358979323846E7;
+
+  @Override
+  protected void write_header(ChunkOutput out) {
+    out.write(0x50);
+    write_endianness(out);
+    write_sizes(out);
+    // sizes of the opcode and of the A, B and C fields
+    out.write(6);
+    out.write(8);
+    out.write(9);
+    out.write(9);
+    out.write(out.format.numberSize);
+    out.number(TEST_NUMBER, out.format.numberSize, out.format.numberIntegral);
+  }
+
+  @Override
+  protected void write_function(ChunkOutput out, LFunction f, String parentSource) {
+    String source = sharedSource(out, f, parentSource);
+    if(out.strip && parentSource == null) {
+      // luac 5.0 -s renames the main function's source
+      source = "=(none)";
+    }
+    write_string(out, source);
+    out.integer(f.linedefined);
+    out.write(f.upvalues.length);
+    out.write(f.numParams);
+    out.write(f.vararg);
+    out.write(f.maximumStackSize);
+    write_debug(out, f);
+    write_constants(out, f);
+    write_functions(out, f);
+    write_code(out, f);
+  }
+
+  @Override
+  protected void write_functions(ChunkOutput out, LFunction f) {
+    if(out.strip) {
+      out.integer(f.functions.length);
+      for(LFunction child : f.functions) {
+        write_function(out, child, "=(none)");
+      }
+    } else {
+      super.write_functions(out, f);
+    }
+  }
+
+}
+
+class ChunkWriter51 extends ChunkWriter {
+
+  @Override
+  protected void write_header(ChunkOutput out) {
+    out.write(0x51);
+    // format
+    out.write(0);
+    write_endianness(out);
+    write_sizes(out);
+    out.write(out.format.numberSize);
+    out.write(out.format.numberIntegral ? 1 : 0);
+  }
+
+  @Override
+  protected void write_function(ChunkOutput out, LFunction f, String parentSource) {
+    write_string(out, sharedSource(out, f, parentSource));
+    out.integer(f.linedefined);
+    out.integer(f.lastlinedefined);
+    out.write(f.upvalues.length);
+    out.write(f.numParams);
+    out.write(f.vararg);
+    out.write(f.maximumStackSize);
+    write_code(out, f);
+    write_constants(out, f);
+    write_functions(out, f);
+    write_debug(out, f);
+  }
+
+}
+
+class ChunkWriter52 extends ChunkWriter {
+
+  @Override
+  protected void write_header(ChunkOutput out) {
+    out.write(0x52);
+    // format
+    out.write(0);
+    write_endianness(out);
+    write_sizes(out);
+    out.write(out.format.numberSize);
+    out.write(out.format.numberIntegral ? 1 : 0);
+    out.write(luacTail);
+  }
+
+  @Override
+  protected void write_function(ChunkOutput out, LFunction f, String parentSource) {
+    out.integer(f.linedefined);
+    out.integer(f.lastlinedefined);
+    out.write(f.numParams);
+    out.write(f.vararg);
+    out.write(f.maximumStackSize);
+    write_code(out, f);
+    write_constants(out, f);
+    write_functions(out, f);
+    write_upvalues(out, f);
+    write_string(out, out.strip ? null : source(f));
+    write_debug(out, f);
+  }
+
+}
+
+class ChunkWriter53 extends ChunkWriter {
+
+  private static final int LUAI_MAXSHORTLEN = 40;
+
+  @Override
+  protected void write_main(ChunkOutput out, LFunction main) {
+    out.write(signature);
+    write_header(out);
+    out.write(main.upvalues.length);
+    write_function(out, main, null);
+  }
+
+  @Override
+  protected void write_header(ChunkOutput out) {
+    out.write(0x53);
+    // format
+    out.write(0);
+    out.write(luacTail);
+    write_sizes(out);
+    out.write(out.format.integerSize);
+    out.write(out.format.floatSize);
+    out.raw(0x5678, out.format.integerSize);
+    out.number(370.5, out.format.floatSize, false);
+  }
+
+  @Override
+  protected void write_string(ChunkOutput out, String s) {
+    if(s == null) {
+      out.write(0);
+    } else {
+      int size = s.length() + 1;
+      if(size < 0xFF) {
+        out.write(size);
+      } else {
+        out.write(0xFF);
+        out.sizeT(size);
+      }
+      write_chars(out, s);
+    }
+  }
+
+  @Override
+  protected void write_constant(ChunkOutput out, LObject o) {
+    if(o instanceof LNumber) {
+      LNumber n = (LNumber) o;
+      if(n.integral()) {
+        out.write(0x13);
+        out.raw(n.longValue(), out.format.integerSize);
+      } else {
+        out.write(3);
+        out.number(n.value(), out.format.floatSize, false);
+      }
+    } else if(o instanceof LString && ((LString) o).deref().length() > LUAI_MAXSHORTLEN) {
+      out.write(0x14);
+      write_string(out, ((LString) o).deref());
+    } else {
+      super.write_constant(out, o);
+    }
+  }
+
+  @Override
+  protected void write_function(ChunkOutput out, LFunction f, String parentSource) {
+    write_string(out, sharedSource(out, f, parentSource));
+    out.integer(f.linedefined);
+    out.integer(f.lastlinedefined);
+    out.write(f.numParams);
+    out.write(f.vararg);
+    out.write(f.maximumStackSize);
+    write_code(out, f);
+    write_constants(out, f);
+    write_upvalues(out, f);
+    write_functions(out, f);
+    write_debug(out, f);
+  }
+
+}
@@ -0,0 +1,15 @@
+package unluac.compiler;
+
+/**
+ * Thrown for a lexical or syntax error in the compiled source. The message
+ * has the same form as luac's: chunk:line: message near 'token'.
+ */
+public class CompileException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public CompileException(String message) {
+    super(message);
+  }
+
+}
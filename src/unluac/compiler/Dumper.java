@@ -0,0 +1,114 @@
+package unluac.compiler;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Writes a prototype as a Lua 5.1 chunk (ldump.c) for a little-endian
+ * machine with 4-byte ints, 8-byte size_t and double numbers, the format
+ * of a stock luac on x86-64.
+ */
+class Dumper {
+
+  private static final byte[] HEADER = {
+    0x1B, 'L', 'u', 'a', 0x51, 0, 1, 4, 8, 4, 8, 0,
+  };
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final boolean strip;
+
+  Dumper(boolean strip) {
+    this.strip = strip;
+  }
+
+  byte[] dump(Proto main) {
+    out.write(HEADER, 0, HEADER.length);
+    dumpFunction(main, null);
+    return out.toByteArray();
+  }
+
+  private void dumpChar(int c) {
+    out.write(c);
+  }
+
+  private void dumpInt(int x) {
+    out.write(x);
+    out.write(x >>> 8);
+    out.write(x >>> 16);
+    out.write(x >>> 24);
+  }
+
+  private void dumpSizeT(long x) {
+    for(int i = 0; i < 8; i++) {
+      out.write((int) (x >>> (8 * i)));
+    }
+  }
+
+  private void dumpNumber(double x) {
+    dumpSizeT(Double.doubleToRawLongBits(x));
+  }
+
+  private void dumpString(String s) {
+    if(s == null) {
+      dumpSizeT(0);
+    } else {
+      dumpSizeT(s.length() + 1);
+      for(int i = 0; i < s.length(); i++) {
+        out.write(s.charAt(i));
+      }
+      out.write(0);
+    }
+  }
+
+  private void dumpFunction(Proto f, String p) {
+    dumpString((f.source.equals(p) || strip) ? null : f.source);
+    dumpInt(f.linedefined);
+    dumpInt(f.lastlinedefined);
+    dumpChar(f.nups);
+    dumpChar(f.numparams);
+    dumpChar(f.isVararg);
+    dumpChar(f.maxstacksize);
+    int n = f.code.length;
+    dumpInt(n);
+    for(int i = 0; i < n; i++) {
+      dumpInt(f.code[i]);
+    }
+    dumpInt(f.k.size());
+    for(Object o : f.k) {
+      if(o == Proto.NIL) {
+        dumpChar(0);
+      } else if(o instanceof Boolean) {
+        dumpChar(1);
+        dumpChar((Boolean) o ? 1 : 0);
+      } else if(o instanceof Double) {
+        dumpChar(3);
+        dumpNumber((Double) o);
+      } else {
+        dumpChar(4);
+        dumpString((String) o);
+      }
+    }
+    dumpInt(f.p.size());
+    for(Proto child : f.p) {
+      dumpFunction(child, f.source);
+    }
+    n = strip ? 0 : f.lineinfo.length;
+    dumpInt(n);
+    for(int i = 0; i < n; i++) {
+      dumpInt(f.lineinfo[i]);
+    }
+    n = strip ? 0 : f.locvars.size();
+    dumpInt(n);
+    for(int i = 0; i < n; i++) {
+      Proto.LocVar var = f.locvars.get(i);
+      dumpString(var.name);
+      dumpInt(var.startpc);
+      dumpInt(var.endpc);
+    }
+    n = strip ? 0 : f.upvalues.size();
+    dumpInt(n);
+    for(int i = 0; i < n; i++) {
+      dumpString(f.upvalues.get(i));
+    }
+  }
+
+}
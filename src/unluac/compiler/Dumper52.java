@@ -0,0 +1,211 @@
+package unluac.compiler;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Writes a prototype as a Lua 5.2 or 5.3 chunk (ldump.c) for a
+ * little-endian machine with 4-byte ints, 8-byte size_t, 8-byte integers
+ * and double numbers, the format of a stock luac on x86-64.
+ */
+class Dumper52 {
+
+  private static final byte[] HEADER52 = {
+    0x1B, 'L', 'u', 'a', 0x52, 0, 1, 4, 8, 4, 8, 0,
+  };
+
+  private static final byte[] HEADER53 = {
+    0x1B, 'L', 'u', 'a', 0x53, 0,
+  };
+
+  private static final byte[] TAIL = {
+    0x19, (byte) 0x93, '\r', '\n', 0x1A, '\n',
+  };
+
+  private static final int LUAI_MAXSHORTLEN = 40;
+
+  /*
+   * The Lua 5.2 opcode of each Lua 5.3 opcode, or -1 for those Lua 5.2
+   * does not have.
+   */
+  private static final int[] OPCODES52 = {
+    0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 17, 18, 16,
+    -1, -1, -1, -1, -1, -1, 19, -1, 20, 21, 22, 23, 24, 25, 26, 27, 28,
+    29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39,
+  };
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final boolean lua53;
+  private final boolean strip;
+
+  Dumper52(boolean lua53, boolean strip) {
+    this.lua53 = lua53;
+    this.strip = strip;
+  }
+
+  byte[] dump(Proto52 main) {
+    if(lua53) {
+      out.write(HEADER53, 0, HEADER53.length);
+      out.write(TAIL, 0, TAIL.length);
+      dumpChar(4);
+      dumpChar(8);
+      dumpChar(4);
+      dumpChar(8);
+      dumpChar(8);
+      dumpLong(0x5678);
+      dumpNumber(370.5);
+      dumpChar(main.upvalues.size());
+    } else {
+      out.write(HEADER52, 0, HEADER52.length);
+      out.write(TAIL, 0, TAIL.length);
+    }
+    dumpFunction(main, null);
+    return out.toByteArray();
+  }
+
+  private void dumpChar(int c) {
+    out.write(c);
+  }
+
+  private void dumpInt(int x) {
+    out.write(x);
+    out.write(x >>> 8);
+    out.write(x >>> 16);
+    out.write(x >>> 24);
+  }
+
+  private void dumpLong(long x) {
+    for(int i = 0; i < 8; i++) {
+      out.write((int) (x >>> (8 * i)));
+    }
+  }
+
+  private void dumpNumber(double x) {
+    dumpLong(Double.doubleToRawLongBits(x));
+  }
+
+  private void dumpString(String s) {
+    if(lua53) {
+      if(s == null) {
+        dumpChar(0);
+      } else {
+        int size = s.length() + 1;
+        if(size < 0xFF) {
+          dumpChar(size);
+        } else {
+          dumpChar(0xFF);
+          dumpLong(size);
+        }
+        writeChars(s);
+      }
+    } else {
+      if(s == null) {
+        dumpLong(0);
+      } else {
+        dumpLong(s.length() + 1);
+        writeChars(s);
+        out.write(0);
+      }
+    }
+  }
+
+  private void writeChars(String s) {
+    for(int i = 0; i < s.length(); i++) {
+      out.write(s.charAt(i));
+    }
+  }
+
+  private void dumpCode(Proto52 f) {
+    int n = f.code.length;
+    dumpInt(n);
+    for(int i = 0; i < n; i++) {
+      int code = f.code[i];
+      if(!lua53) {
+        code = (code & ~0x3F) | OPCODES52[code & 0x3F];
+      }
+      dumpInt(code);
+    }
+  }
+
+  private void dumpConstants(Proto52 f) {
+    dumpInt(f.k.size());
+    for(Object o : f.k) {
+      if(o == Proto.NIL) {
+        dumpChar(0);
+      } else if(o instanceof Boolean) {
+        dumpChar(1);
+        dumpChar((Boolean) o ? 1 : 0);
+      } else if(o instanceof Double) {
+        dumpChar(3);
+        dumpNumber((Double) o);
+      } else if(o instanceof Long) {
+        dumpChar(0x13);
+        dumpLong((Long) o);
+      } else {
+        String s = (String) o;
+        dumpChar(lua53 && s.length() > LUAI_MAXSHORTLEN ? 0x14 : 4);
+        dumpString(s);
+      }
+    }
+  }
+
+  private void dumpUpvalues(Proto52 f) {
+    dumpInt(f.upvalues.size());
+    for(Proto52.Upvalue upvalue : f.upvalues) {
+      dumpChar(upvalue.instack ? 1 : 0);
+      dumpChar(upvalue.idx);
+    }
+  }
+
+  private void dumpProtos(Proto52 f) {
+    dumpInt(f.p.size());
+    for(Proto52 child : f.p) {
+      dumpFunction(child, f.source);
+    }
+  }
+
+  private void dumpDebug(Proto52 f) {
+    if(!lua53) {
+      dumpString(strip ? null : f.source);
+    }
+    int n = strip ? 0 : f.lineinfo.length;
+    dumpInt(n);
+    for(int i = 0; i < n; i++) {
+      dumpInt(f.lineinfo[i]);
+    }
+    n = strip ? 0 : f.locvars.size();
+    dumpInt(n);
+    for(int i = 0; i < n; i++) {
+      Proto.LocVar var = f.locvars.get(i);
+      dumpString(var.name);
+      dumpInt(var.startpc);
+      dumpInt(var.endpc);
+    }
+    n = strip ? 0 : f.upvalues.size();
+    dumpInt(n);
+    for(int i = 0; i < n; i++) {
+      dumpString(f.upvalues.get(i).name);
+    }
+  }
+
+  private void dumpFunction(Proto52 f, String psource) {
+    if(lua53) {
+      dumpString((strip || f.source.equals(psource)) ? null : f.source);
+    }
+    dumpInt(f.linedefined);
+    dumpInt(f.lastlinedefined);
+    dumpChar(f.numparams);
+    dumpChar(f.isVararg);
+    dumpChar(f.maxstacksize);
+    dumpCode(f);
+    dumpConstants(f);
+    if(lua53) {
+      dumpUpvalues(f);
+      dumpProtos(f);
+    } else {
+      dumpProtos(f);
+      dumpUpvalues(f);
+    }
+    dumpDebug(f);
+  }
+
+}
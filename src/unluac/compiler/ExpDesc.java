@@ -0,0 +1,58 @@
+package unluac.compiler;
+
+/**
+ * Describes a partially generated expression (expdesc in lparser.h).
+ */
+class ExpDesc {
+
+  static final int VVOID = 0;
+  static final int VNIL = 1;
+  static final int VTRUE = 2;
+  static final int VFALSE = 3;
+  static final int VK = 4;
+  static final int VKNUM = 5;
+  static final int VLOCAL = 6;
+  static final int VUPVAL = 7;
+  static final int VGLOBAL = 8;
+  static final int VINDEXED = 9;
+  static final int VJMP = 10;
+  static final int VRELOCABLE = 11;
+  static final int VNONRELOC = 12;
+  static final int VCALL = 13;
+  static final int VVARARG = 14;
+
+  int k;
+  int info;
+  int aux;
+  double nval;
+  int t;
+  int f;
+
+  void init(int k, int info) {
+    this.f = this.t = FuncState.NO_JUMP;
+    this.k = k;
+    this.info = info;
+  }
+
+  void set(ExpDesc other) {
+    k = other.k;
+    info = other.info;
+    aux = other.aux;
+    nval = other.nval;
+    t = other.t;
+    f = other.f;
+  }
+
+  boolean hasJumps() {
+    return t != f;
+  }
+
+  boolean hasMultRet() {
+    return k == VCALL || k == VVARARG;
+  }
+
+  boolean isNumeral() {
+    return k == VKNUM && t == FuncState.NO_JUMP && f == FuncState.NO_JUMP;
+  }
+
+}
@@ -0,0 +1,72 @@
+package unluac.compiler;
+
+/**
+ * Describes a partially generated expression in Lua 5.2 and 5.3 (expdesc
+ * in lparser.h). Lua 5.2 numbers are all VKNUM; Lua 5.3 splits them into
+ * VKFLT and VKINT.
+ */
+class ExpDesc52 {
+
+  static final int VVOID = 0;
+  static final int VNIL = 1;
+  static final int VTRUE = 2;
+  static final int VFALSE = 3;
+  static final int VK = 4;
+  static final int VKFLT = 5;
+  static final int VKNUM = VKFLT;
+  static final int VKINT = 6;
+  static final int VNONRELOC = 7;
+  static final int VLOCAL = 8;
+  static final int VUPVAL = 9;
+  static final int VINDEXED = 10;
+  static final int VJMP = 11;
+  static final int VRELOCABLE = 12;
+  static final int VCALL = 13;
+  static final int VVARARG = 14;
+
+  int k;
+  int info;
+  // the table (a register or an upvalue), key and table kind of VINDEXED
+  int table;
+  int idx;
+  int vt;
+  double nval;
+  long ival;
+  int t;
+  int f;
+
+  void init(int k, int info) {
+    this.f = this.t = FuncState52.NO_JUMP;
+    this.k = k;
+    this.info = info;
+  }
+
+  void set(ExpDesc52 other) {
+    k = other.k;
+    info = other.info;
+    table = other.table;
+    idx = other.idx;
+    vt = other.vt;
+    nval = other.nval;
+    ival = other.ival;
+    t = other.t;
+    f = other.f;
+  }
+
+  boolean hasJumps() {
+    return t != f;
+  }
+
+  boolean hasMultRet() {
+    return k == VCALL || k == VVARARG;
+  }
+
+  boolean isVar() {
+    return VLOCAL <= k && k <= VINDEXED;
+  }
+
+  boolean isNumeral() {
+    return (k == VKFLT || k == VKINT) && !hasJumps();
+  }
+
+}
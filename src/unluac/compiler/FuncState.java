@@ -0,0 +1,929 @@
+package unluac.compiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state of a function being compiled, with the code generator that
+ * works on it (lcode.c).
+ */
+class FuncState {
+
+  static final int OP_MOVE = 0;
+  static final int OP_LOADK = 1;
+  static final int OP_LOADBOOL = 2;
+  static final int OP_LOADNIL = 3;
+  static final int OP_GETUPVAL = 4;
+  static final int OP_GETGLOBAL = 5;
+  static final int OP_GETTABLE = 6;
+  static final int OP_SETGLOBAL = 7;
+  static final int OP_SETUPVAL = 8;
+  static final int OP_SETTABLE = 9;
+  static final int OP_NEWTABLE = 10;
+  static final int OP_SELF = 11;
+  static final int OP_ADD = 12;
+  static final int OP_SUB = 13;
+  static final int OP_MUL = 14;
+  static final int OP_DIV = 15;
+  static final int OP_MOD = 16;
+  static final int OP_POW = 17;
+  static final int OP_UNM = 18;
+  static final int OP_NOT = 19;
+  static final int OP_LEN = 20;
+  static final int OP_CONCAT = 21;
+  static final int OP_JMP = 22;
+  static final int OP_EQ = 23;
+  static final int OP_LT = 24;
+  static final int OP_LE = 25;
+  static final int OP_TEST = 26;
+  static final int OP_TESTSET = 27;
+  static final int OP_CALL = 28;
+  static final int OP_TAILCALL = 29;
+  static final int OP_RETURN = 30;
+  static final int OP_FORLOOP = 31;
+  static final int OP_FORPREP = 32;
+  static final int OP_TFORLOOP = 33;
+  static final int OP_SETLIST = 34;
+  static final int OP_CLOSE = 35;
+  static final int OP_CLOSURE = 36;
+  static final int OP_VARARG = 37;
+
+  static final int OPR_ADD = 0;
+  static final int OPR_SUB = 1;
+  static final int OPR_MUL = 2;
+  static final int OPR_DIV = 3;
+  static final int OPR_MOD = 4;
+  static final int OPR_POW = 5;
+  static final int OPR_CONCAT = 6;
+  static final int OPR_NE = 7;
+  static final int OPR_EQ = 8;
+  static final int OPR_LT = 9;
+  static final int OPR_LE = 10;
+  static final int OPR_GT = 11;
+  static final int OPR_GE = 12;
+  static final int OPR_AND = 13;
+  static final int OPR_OR = 14;
+  static final int OPR_NOBINOPR = 15;
+
+  static final int OPR_MINUS = 0;
+  static final int OPR_NOT = 1;
+  static final int OPR_LEN = 2;
+  static final int OPR_NOUNOPR = 3;
+
+  static final int MAXARG_A = 255;
+  static final int MAXARG_B = 511;
+  static final int MAXARG_C = 511;
+  static final int MAXARG_Bx = (1 << 18) - 1;
+  static final int MAXARG_sBx = MAXARG_Bx >> 1;
+  static final int BITRK = 1 << 8;
+  static final int MAXINDEXRK = BITRK - 1;
+  static final int NO_REG = MAXARG_A;
+  static final int NO_JUMP = -1;
+  static final int LUA_MULTRET = -1;
+  static final int LFIELDS_PER_FLUSH = 50;
+  static final int MAXSTACK = 250;
+
+  static final int VARARG_HASARG = 1;
+  static final int VARARG_ISVARARG = 2;
+  static final int VARARG_NEEDSARG = 4;
+
+  static class BlockCnt {
+
+    BlockCnt previous;
+    int breaklist;
+    int nactvar;
+    boolean upval;
+    boolean isbreakable;
+
+  }
+
+  final Proto f = new Proto();
+  final Map<Object, Integer> h = new HashMap<Object, Integer>();
+  FuncState prev;
+  Lexer ls;
+  BlockCnt bl;
+  int pc;
+  int lasttarget;
+  int jpc;
+  int freereg;
+  int nactvar;
+  final int[] upvalueKind = new int[Parser.LUAI_MAXUPVALUES];
+  final int[] upvalueInfo = new int[Parser.LUAI_MAXUPVALUES];
+  final int[] actvar = new int[Parser.LUAI_MAXVARS];
+
+  static int getOpcode(int i) {
+    return i & 0x3F;
+  }
+
+  static int getA(int i) {
+    return (i >>> 6) & 0xFF;
+  }
+
+  static int getB(int i) {
+    return (i >>> 23) & 0x1FF;
+  }
+
+  static int getC(int i) {
+    return (i >>> 14) & 0x1FF;
+  }
+
+  static int getSBx(int i) {
+    return ((i >>> 14) & MAXARG_Bx) - MAXARG_sBx;
+  }
+
+  static int createABC(int o, int a, int b, int c) {
+    return o | (a << 6) | (b << 23) | (c << 14);
+  }
+
+  static int createABx(int o, int a, int bc) {
+    return o | (a << 6) | (bc << 14);
+  }
+
+  private void setA(int pc, int a) {
+    f.code[pc] = (f.code[pc] & ~(0xFF << 6)) | (a << 6);
+  }
+
+  void setB(int pc, int b) {
+    f.code[pc] = (f.code[pc] & ~(0x1FF << 23)) | (b << 23);
+  }
+
+  void setC(int pc, int c) {
+    f.code[pc] = (f.code[pc] & ~(0x1FF << 14)) | (c << 14);
+  }
+
+  private void setSBx(int pc, int sbx) {
+    f.code[pc] = (f.code[pc] & 0x3FFF) | ((sbx + MAXARG_sBx) << 14);
+  }
+
+  void setOpcode(int pc, int op) {
+    f.code[pc] = (f.code[pc] & ~0x3F) | op;
+  }
+
+  private static boolean testTMode(int op) {
+    switch(op) {
+      case OP_EQ:
+      case OP_LT:
+      case OP_LE:
+      case OP_TEST:
+      case OP_TESTSET:
+      case OP_TFORLOOP:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isK(int x) {
+    return (x & BITRK) != 0;
+  }
+
+  void nil(int from, int n) {
+    if(pc > lasttarget) {
+      if(pc == 0) {
+        if(from >= nactvar) {
+          return;
+        }
+      } else {
+        int previous = f.code[pc - 1];
+        if(getOpcode(previous) == OP_LOADNIL) {
+          int pfrom = getA(previous);
+          int pto = getB(previous);
+          if(pfrom <= from && from <= pto + 1) {
+            if(from + n - 1 > pto) {
+              setB(pc - 1, from + n - 1);
+            }
+            return;
+          }
+        }
+      }
+    }
+    codeABC(OP_LOADNIL, from, from + n - 1, 0);
+  }
+
+  int jump() {
+    int jpc = this.jpc;
+    this.jpc = NO_JUMP;
+    int j = codeAsBx(OP_JMP, 0, NO_JUMP);
+    return concat(j, jpc);
+  }
+
+  void ret(int first, int nret) {
+    codeABC(OP_RETURN, first, nret + 1, 0);
+  }
+
+  private int condjump(int op, int a, int b, int c) {
+    codeABC(op, a, b, c);
+    return jump();
+  }
+
+  private void fixjump(int pc, int dest) {
+    int offset = dest - (pc + 1);
+    if(Math.abs(offset) > MAXARG_sBx) {
+      ls.syntaxerror("control structure too long");
+    }
+    setSBx(pc, offset);
+  }
+
+  int getlabel() {
+    lasttarget = pc;
+    return pc;
+  }
+
+  private int getjump(int pc) {
+    int offset = getSBx(f.code[pc]);
+    if(offset == NO_JUMP) {
+      return NO_JUMP;
+    } else {
+      return (pc + 1) + offset;
+    }
+  }
+
+  private int getjumpcontrol(int pc) {
+    if(pc >= 1 && testTMode(getOpcode(f.code[pc - 1]))) {
+      return pc - 1;
+    } else {
+      return pc;
+    }
+  }
+
+  private boolean needValue(int list) {
+    for(; list != NO_JUMP; list = getjump(list)) {
+      int i = f.code[getjumpcontrol(list)];
+      if(getOpcode(i) != OP_TESTSET) return true;
+    }
+    return false;
+  }
+
+  private boolean patchtestreg(int node, int reg) {
+    int pc = getjumpcontrol(node);
+    int i = f.code[pc];
+    if(getOpcode(i) != OP_TESTSET) {
+      return false;
+    }
+    if(reg != NO_REG && reg != getB(i)) {
+      setA(pc, reg);
+    } else {
+      f.code[pc] = createABC(OP_TEST, getB(i), 0, getC(i));
+    }
+    return true;
+  }
+
+  private void removevalues(int list) {
+    for(; list != NO_JUMP; list = getjump(list)) {
+      patchtestreg(list, NO_REG);
+    }
+  }
+
+  private void patchlistaux(int list, int vtarget, int reg, int dtarget) {
+    while(list != NO_JUMP) {
+      int next = getjump(list);
+      if(patchtestreg(list, reg)) {
+        fixjump(list, vtarget);
+      } else {
+        fixjump(list, dtarget);
+      }
+      list = next;
+    }
+  }
+
+  private void dischargejpc() {
+    patchlistaux(jpc, pc, NO_REG, pc);
+    jpc = NO_JUMP;
+  }
+
+  void patchlist(int list, int target) {
+    if(target == pc) {
+      patchtohere(list);
+    } else {
+      patchlistaux(list, target, NO_REG, target);
+    }
+  }
+
+  void patchtohere(int list) {
+    getlabel();
+    jpc = concat(jpc, list);
+  }
+
+  /**
+   * Appends the jump list l2 to l1, returning the new head of l1.
+   */
+  int concat(int l1, int l2) {
+    if(l2 == NO_JUMP) {
+      return l1;
+    } else if(l1 == NO_JUMP) {
+      return l2;
+    } else {
+      int list = l1;
+      int next;
+      while((next = getjump(list)) != NO_JUMP) {
+        list = next;
+      }
+      fixjump(list, l2);
+      return l1;
+    }
+  }
+
+  void checkstack(int n) {
+    int newstack = freereg + n;
+    if(newstack > f.maxstacksize) {
+      if(newstack >= MAXSTACK) {
+        ls.syntaxerror("function or expression too complex");
+      }
+      f.maxstacksize = newstack;
+    }
+  }
+
+  void reserveregs(int n) {
+    checkstack(n);
+    freereg += n;
+  }
+
+  private void freereg(int reg) {
+    if(!isK(reg) && reg >= nactvar) {
+      freereg--;
+    }
+  }
+
+  private void freeexp(ExpDesc e) {
+    if(e.k == ExpDesc.VNONRELOC) {
+      freereg(e.info);
+    }
+  }
+
+  private int addk(Object key, Object value) {
+    Integer index = h.get(key);
+    if(index != null) {
+      return index;
+    } else {
+      int n = f.k.size();
+      if(n >= MAXARG_Bx) {
+        throw new CompileException("constant table overflow");
+      }
+      h.put(key, n);
+      f.k.add(value);
+      return n;
+    }
+  }
+
+  int stringK(String s) {
+    return addk(s, s);
+  }
+
+  int numberK(double r) {
+    // Lua tables do not distinguish -0 from 0 as keys
+    Double key = r == 0.0 ? 0.0 : r;
+    return addk(key, r);
+  }
+
+  private int boolK(boolean b) {
+    return addk(b, b);
+  }
+
+  private int nilK() {
+    return addk(Proto.NIL, Proto.NIL);
+  }
+
+  void setreturns(ExpDesc e, int nresults) {
+    if(e.k == ExpDesc.VCALL) {
+      setC(e.info, nresults + 1);
+    } else if(e.k == ExpDesc.VVARARG) {
+      setB(e.info, nresults + 1);
+      setA(e.info, freereg);
+      reserveregs(1);
+    }
+  }
+
+  void setmultret(ExpDesc e) {
+    setreturns(e, LUA_MULTRET);
+  }
+
+  void setoneret(ExpDesc e) {
+    if(e.k == ExpDesc.VCALL) {
+      e.k = ExpDesc.VNONRELOC;
+      e.info = getA(f.code[e.info]);
+    } else if(e.k == ExpDesc.VVARARG) {
+      setB(e.info, 2);
+      e.k = ExpDesc.VRELOCABLE;
+    }
+  }
+
+  void dischargevars(ExpDesc e) {
+    switch(e.k) {
+      case ExpDesc.VLOCAL: {
+        e.k = ExpDesc.VNONRELOC;
+        break;
+      }
+      case ExpDesc.VUPVAL: {
+        e.info = codeABC(OP_GETUPVAL, 0, e.info, 0);
+        e.k = ExpDesc.VRELOCABLE;
+        break;
+      }
+      case ExpDesc.VGLOBAL: {
+        e.info = codeABx(OP_GETGLOBAL, 0, e.info);
+        e.k = ExpDesc.VRELOCABLE;
+        break;
+      }
+      case ExpDesc.VINDEXED: {
+        freereg(e.aux);
+        freereg(e.info);
+        e.info = codeABC(OP_GETTABLE, 0, e.info, e.aux);
+        e.k = ExpDesc.VRELOCABLE;
+        break;
+      }
+      case ExpDesc.VVARARG:
+      case ExpDesc.VCALL: {
+        setoneret(e);
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  private int codeLabel(int a, int b, int jump) {
+    getlabel();
+    return codeABC(OP_LOADBOOL, a, b, jump);
+  }
+
+  private void discharge2reg(ExpDesc e, int reg) {
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc.VNIL: {
+        nil(reg, 1);
+        break;
+      }
+      case ExpDesc.VFALSE:
+      case ExpDesc.VTRUE: {
+        codeABC(OP_LOADBOOL, reg, e.k == ExpDesc.VTRUE ? 1 : 0, 0);
+        break;
+      }
+      case ExpDesc.VK: {
+        codeABx(OP_LOADK, reg, e.info);
+        break;
+      }
+      case ExpDesc.VKNUM: {
+        codeABx(OP_LOADK, reg, numberK(e.nval));
+        break;
+      }
+      case ExpDesc.VRELOCABLE: {
+        setA(e.info, reg);
+        break;
+      }
+      case ExpDesc.VNONRELOC: {
+        if(reg != e.info) {
+          codeABC(OP_MOVE, reg, e.info, 0);
+        }
+        break;
+      }
+      default: {
+        return;
+      }
+    }
+    e.info = reg;
+    e.k = ExpDesc.VNONRELOC;
+  }
+
+  private void discharge2anyreg(ExpDesc e) {
+    if(e.k != ExpDesc.VNONRELOC) {
+      reserveregs(1);
+      discharge2reg(e, freereg - 1);
+    }
+  }
+
+  private void exp2reg(ExpDesc e, int reg) {
+    discharge2reg(e, reg);
+    if(e.k == ExpDesc.VJMP) {
+      e.t = concat(e.t, e.info);
+    }
+    if(e.hasJumps()) {
+      int pF = NO_JUMP;
+      int pT = NO_JUMP;
+      if(needValue(e.t) || needValue(e.f)) {
+        int fj = (e.k == ExpDesc.VJMP) ? NO_JUMP : jump();
+        pF = codeLabel(reg, 0, 1);
+        pT = codeLabel(reg, 1, 0);
+        patchtohere(fj);
+      }
+      int end = getlabel();
+      patchlistaux(e.f, end, reg, pF);
+      patchlistaux(e.t, end, reg, pT);
+    }
+    e.f = e.t = NO_JUMP;
+    e.info = reg;
+    e.k = ExpDesc.VNONRELOC;
+  }
+
+  void exp2nextreg(ExpDesc e) {
+    dischargevars(e);
+    freeexp(e);
+    reserveregs(1);
+    exp2reg(e, freereg - 1);
+  }
+
+  int exp2anyreg(ExpDesc e) {
+    dischargevars(e);
+    if(e.k == ExpDesc.VNONRELOC) {
+      if(!e.hasJumps()) return e.info;
+      if(e.info >= nactvar) {
+        exp2reg(e, e.info);
+        return e.info;
+      }
+    }
+    exp2nextreg(e);
+    return e.info;
+  }
+
+  void exp2val(ExpDesc e) {
+    if(e.hasJumps()) {
+      exp2anyreg(e);
+    } else {
+      dischargevars(e);
+    }
+  }
+
+  int exp2RK(ExpDesc e) {
+    exp2val(e);
+    switch(e.k) {
+      case ExpDesc.VKNUM:
+      case ExpDesc.VTRUE:
+      case ExpDesc.VFALSE:
+      case ExpDesc.VNIL: {
+        if(f.k.size() <= MAXINDEXRK) {
+          if(e.k == ExpDesc.VNIL) {
+            e.info = nilK();
+          } else if(e.k == ExpDesc.VKNUM) {
+            e.info = numberK(e.nval);
+          } else {
+            e.info = boolK(e.k == ExpDesc.VTRUE);
+          }
+          e.k = ExpDesc.VK;
+          return e.info | BITRK;
+        }
+        break;
+      }
+      case ExpDesc.VK: {
+        if(e.info <= MAXINDEXRK) {
+          return e.info | BITRK;
+        }
+        break;
+      }
+      default:
+        break;
+    }
+    return exp2anyreg(e);
+  }
+
+  void storevar(ExpDesc var, ExpDesc ex) {
+    switch(var.k) {
+      case ExpDesc.VLOCAL: {
+        freeexp(ex);
+        exp2reg(ex, var.info);
+        return;
+      }
+      case ExpDesc.VUPVAL: {
+        int e = exp2anyreg(ex);
+        codeABC(OP_SETUPVAL, e, var.info, 0);
+        break;
+      }
+      case ExpDesc.VGLOBAL: {
+        int e = exp2anyreg(ex);
+        codeABx(OP_SETGLOBAL, e, var.info);
+        break;
+      }
+      case ExpDesc.VINDEXED: {
+        int e = exp2RK(ex);
+        codeABC(OP_SETTABLE, var.info, var.aux, e);
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+    freeexp(ex);
+  }
+
+  void self(ExpDesc e, ExpDesc key) {
+    exp2anyreg(e);
+    freeexp(e);
+    int func = freereg;
+    reserveregs(2);
+    codeABC(OP_SELF, func, e.info, exp2RK(key));
+    freeexp(key);
+    e.info = func;
+    e.k = ExpDesc.VNONRELOC;
+  }
+
+  private void invertjump(ExpDesc e) {
+    int pc = getjumpcontrol(e.info);
+    setA(pc, getA(f.code[pc]) == 0 ? 1 : 0);
+  }
+
+  private int jumponcond(ExpDesc e, int cond) {
+    if(e.k == ExpDesc.VRELOCABLE) {
+      int ie = f.code[e.info];
+      if(getOpcode(ie) == OP_NOT) {
+        pc--;
+        return condjump(OP_TEST, getB(ie), 0, cond == 0 ? 1 : 0);
+      }
+    }
+    discharge2anyreg(e);
+    freeexp(e);
+    return condjump(OP_TESTSET, NO_REG, e.info, cond);
+  }
+
+  void goiftrue(ExpDesc e) {
+    int pc;
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc.VK:
+      case ExpDesc.VKNUM:
+      case ExpDesc.VTRUE: {
+        pc = NO_JUMP;
+        break;
+      }
+      case ExpDesc.VFALSE: {
+        pc = jump();
+        break;
+      }
+      case ExpDesc.VJMP: {
+        invertjump(e);
+        pc = e.info;
+        break;
+      }
+      default: {
+        pc = jumponcond(e, 0);
+        break;
+      }
+    }
+    e.f = concat(e.f, pc);
+    patchtohere(e.t);
+    e.t = NO_JUMP;
+  }
+
+  private void goiffalse(ExpDesc e) {
+    int pc;
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc.VNIL:
+      case ExpDesc.VFALSE: {
+        pc = NO_JUMP;
+        break;
+      }
+      case ExpDesc.VTRUE: {
+        pc = jump();
+        break;
+      }
+      case ExpDesc.VJMP: {
+        pc = e.info;
+        break;
+      }
+      default: {
+        pc = jumponcond(e, 1);
+        break;
+      }
+    }
+    e.t = concat(e.t, pc);
+    patchtohere(e.f);
+    e.f = NO_JUMP;
+  }
+
+  private void codenot(ExpDesc e) {
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc.VNIL:
+      case ExpDesc.VFALSE: {
+        e.k = ExpDesc.VTRUE;
+        break;
+      }
+      case ExpDesc.VK:
+      case ExpDesc.VKNUM:
+      case ExpDesc.VTRUE: {
+        e.k = ExpDesc.VFALSE;
+        break;
+      }
+      case ExpDesc.VJMP: {
+        invertjump(e);
+        break;
+      }
+      case ExpDesc.VRELOCABLE:
+      case ExpDesc.VNONRELOC: {
+        discharge2anyreg(e);
+        freeexp(e);
+        e.info = codeABC(OP_NOT, 0, e.info, 0);
+        e.k = ExpDesc.VRELOCABLE;
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+    int temp = e.f;
+    e.f = e.t;
+    e.t = temp;
+    removevalues(e.f);
+    removevalues(e.t);
+  }
+
+  void indexed(ExpDesc t, ExpDesc k) {
+    t.aux = exp2RK(k);
+    t.k = ExpDesc.VINDEXED;
+  }
+
+  private static boolean constfolding(int op, ExpDesc e1, ExpDesc e2) {
+    if(!e1.isNumeral() || !e2.isNumeral()) return false;
+    double v1 = e1.nval;
+    double v2 = e2.nval;
+    double r;
+    switch(op) {
+      case OP_ADD: r = v1 + v2; break;
+      case OP_SUB: r = v1 - v2; break;
+      case OP_MUL: r = v1 * v2; break;
+      case OP_DIV:
+        if(v2 == 0) return false;
+        r = v1 / v2;
+        break;
+      case OP_MOD:
+        if(v2 == 0) return false;
+        r = v1 - Math.floor(v1 / v2) * v2;
+        break;
+      case OP_POW: r = Math.pow(v1, v2); break;
+      case OP_UNM: r = -v1; break;
+      case OP_LEN: return false;
+      default: throw new IllegalStateException();
+    }
+    if(Double.isNaN(r)) return false;
+    e1.nval = r;
+    return true;
+  }
+
+  private void codearith(int op, ExpDesc e1, ExpDesc e2) {
+    if(constfolding(op, e1, e2)) {
+      return;
+    }
+    int o2 = (op != OP_UNM && op != OP_LEN) ? exp2RK(e2) : 0;
+    int o1 = exp2RK(e1);
+    if(o1 > o2) {
+      freeexp(e1);
+      freeexp(e2);
+    } else {
+      freeexp(e2);
+      freeexp(e1);
+    }
+    e1.info = codeABC(op, 0, o1, o2);
+    e1.k = ExpDesc.VRELOCABLE;
+  }
+
+  private void codecomp(int op, int cond, ExpDesc e1, ExpDesc e2) {
+    int o1 = exp2RK(e1);
+    int o2 = exp2RK(e2);
+    freeexp(e2);
+    freeexp(e1);
+    if(cond == 0 && op != OP_EQ) {
+      int temp = o1;
+      o1 = o2;
+      o2 = temp;
+      cond = 1;
+    }
+    e1.info = condjump(op, cond, o1, o2);
+    e1.k = ExpDesc.VJMP;
+  }
+
+  void prefix(int op, ExpDesc e) {
+    ExpDesc e2 = new ExpDesc();
+    e2.init(ExpDesc.VKNUM, 0);
+    e2.nval = 0;
+    switch(op) {
+      case OPR_MINUS: {
+        if(!e.isNumeral()) {
+          exp2anyreg(e);
+        }
+        codearith(OP_UNM, e, e2);
+        break;
+      }
+      case OPR_NOT:
+        codenot(e);
+        break;
+      case OPR_LEN: {
+        exp2anyreg(e);
+        codearith(OP_LEN, e, e2);
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  void infix(int op, ExpDesc v) {
+    switch(op) {
+      case OPR_AND: {
+        goiftrue(v);
+        break;
+      }
+      case OPR_OR: {
+        goiffalse(v);
+        break;
+      }
+      case OPR_CONCAT: {
+        exp2nextreg(v);
+        break;
+      }
+      case OPR_ADD:
+      case OPR_SUB:
+      case OPR_MUL:
+      case OPR_DIV:
+      case OPR_MOD:
+      case OPR_POW: {
+        if(!v.isNumeral()) {
+          exp2RK(v);
+        }
+        break;
+      }
+      default: {
+        exp2RK(v);
+        break;
+      }
+    }
+  }
+
+  void posfix(int op, ExpDesc e1, ExpDesc e2) {
+    switch(op) {
+      case OPR_AND: {
+        dischargevars(e2);
+        e2.f = concat(e2.f, e1.f);
+        e1.set(e2);
+        break;
+      }
+      case OPR_OR: {
+        dischargevars(e2);
+        e2.t = concat(e2.t, e1.t);
+        e1.set(e2);
+        break;
+      }
+      case OPR_CONCAT: {
+        exp2val(e2);
+        if(e2.k == ExpDesc.VRELOCABLE && getOpcode(f.code[e2.info]) == OP_CONCAT) {
+          freeexp(e1);
+          setB(e2.info, e1.info);
+          e1.k = ExpDesc.VRELOCABLE;
+          e1.info = e2.info;
+        } else {
+          exp2nextreg(e2);
+          codearith(OP_CONCAT, e1, e2);
+        }
+        break;
+      }
+      case OPR_ADD: codearith(OP_ADD, e1, e2); break;
+      case OPR_SUB: codearith(OP_SUB, e1, e2); break;
+      case OPR_MUL: codearith(OP_MUL, e1, e2); break;
+      case OPR_DIV: codearith(OP_DIV, e1, e2); break;
+      case OPR_MOD: codearith(OP_MOD, e1, e2); break;
+      case OPR_POW: codearith(OP_POW, e1, e2); break;
+      case OPR_EQ: codecomp(OP_EQ, 1, e1, e2); break;
+      case OPR_NE: codecomp(OP_EQ, 0, e1, e2); break;
+      case OPR_LT: codecomp(OP_LT, 1, e1, e2); break;
+      case OPR_LE: codecomp(OP_LE, 1, e1, e2); break;
+      case OPR_GT: codecomp(OP_LT, 0, e1, e2); break;
+      case OPR_GE: codecomp(OP_LE, 0, e1, e2); break;
+      default: throw new IllegalStateException();
+    }
+  }
+
+  void fixline(int line) {
+    f.lineinfo[pc - 1] = line;
+  }
+
+  private int code(int i, int line) {
+    dischargejpc();
+    if(pc == f.code.length) {
+      f.code = Arrays.copyOf(f.code, 2 * pc);
+      f.lineinfo = Arrays.copyOf(f.lineinfo, 2 * pc);
+    }
+    f.code[pc] = i;
+    f.lineinfo[pc] = line;
+    return pc++;
+  }
+
+  int codeABC(int o, int a, int b, int c) {
+    return code(createABC(o, a, b, c), ls.lastline);
+  }
+
+  int codeABx(int o, int a, int bc) {
+    return code(createABx(o, a, bc), ls.lastline);
+  }
+
+  int codeAsBx(int o, int a, int sbx) {
+    return codeABx(o, a, sbx + MAXARG_sBx);
+  }
+
+  void setlist(int base, int nelems, int tostore) {
+    int c = (nelems - 1) / LFIELDS_PER_FLUSH + 1;
+    int b = (tostore == LUA_MULTRET) ? 0 : tostore;
+    if(c <= MAXARG_C) {
+      codeABC(OP_SETLIST, base, b, c);
+    } else {
+      codeABC(OP_SETLIST, base, b, 0);
+      code(c, ls.lastline);
+    }
+    freereg = base + 1;
+  }
+
+}
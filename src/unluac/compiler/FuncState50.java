@@ -0,0 +1,810 @@
+package unluac.compiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state of a Lua 5.0 function being compiled, with the code generator
+ * that works on it (lcode.c). Lua 5.0 has no constant folding beyond
+ * negated numerals, and its single TEST opcode both tests and copies.
+ */
+class FuncState50 {
+
+  static final int OP_MOVE = 0;
+  static final int OP_LOADK = 1;
+  static final int OP_LOADBOOL = 2;
+  static final int OP_LOADNIL = 3;
+  static final int OP_GETUPVAL = 4;
+  static final int OP_GETGLOBAL = 5;
+  static final int OP_GETTABLE = 6;
+  static final int OP_SETGLOBAL = 7;
+  static final int OP_SETUPVAL = 8;
+  static final int OP_SETTABLE = 9;
+  static final int OP_NEWTABLE = 10;
+  static final int OP_SELF = 11;
+  static final int OP_ADD = 12;
+  static final int OP_SUB = 13;
+  static final int OP_MUL = 14;
+  static final int OP_DIV = 15;
+  static final int OP_POW = 16;
+  static final int OP_UNM = 17;
+  static final int OP_NOT = 18;
+  static final int OP_CONCAT = 19;
+  static final int OP_JMP = 20;
+  static final int OP_EQ = 21;
+  static final int OP_LT = 22;
+  static final int OP_LE = 23;
+  static final int OP_TEST = 24;
+  static final int OP_CALL = 25;
+  static final int OP_TAILCALL = 26;
+  static final int OP_RETURN = 27;
+  static final int OP_FORLOOP = 28;
+  static final int OP_TFORLOOP = 29;
+  static final int OP_TFORPREP = 30;
+  static final int OP_SETLIST = 31;
+  static final int OP_SETLISTO = 32;
+  static final int OP_CLOSE = 33;
+  static final int OP_CLOSURE = 34;
+
+  static final int OPR_ADD = 0;
+  static final int OPR_SUB = 1;
+  static final int OPR_MUL = 2;
+  static final int OPR_DIV = 3;
+  static final int OPR_POW = 4;
+  static final int OPR_CONCAT = 5;
+  static final int OPR_NE = 6;
+  static final int OPR_EQ = 7;
+  static final int OPR_LT = 8;
+  static final int OPR_LE = 9;
+  static final int OPR_GT = 10;
+  static final int OPR_GE = 11;
+  static final int OPR_AND = 12;
+  static final int OPR_OR = 13;
+  static final int OPR_NOBINOPR = 14;
+
+  static final int OPR_MINUS = 0;
+  static final int OPR_NOT = 1;
+  static final int OPR_NOUNOPR = 2;
+
+  static final int MAXARG_A = 255;
+  static final int MAXARG_C = 511;
+  static final int MAXARG_Bx = (1 << 18) - 1;
+  static final int MAXARG_sBx = MAXARG_Bx >> 1;
+  static final int NO_REG = MAXARG_A;
+  static final int NO_JUMP = -1;
+  static final int LUA_MULTRET = -1;
+  static final int LFIELDS_PER_FLUSH = 32;
+  static final int MAXSTACK = 250;
+
+  static class BlockCnt {
+
+    BlockCnt previous;
+    int breaklist;
+    int nactvar;
+    boolean upval;
+    boolean isbreakable;
+
+  }
+
+  final Proto f = new Proto();
+  final Map<Object, Integer> h = new HashMap<Object, Integer>();
+  FuncState50 prev;
+  Lexer50 ls;
+  BlockCnt bl;
+  int pc;
+  int lasttarget;
+  int jpc;
+  int freereg;
+  int nactvar;
+  final int[] upvalueKind = new int[Parser50.MAXUPVALUES];
+  final int[] upvalueInfo = new int[Parser50.MAXUPVALUES];
+  final int[] actvar = new int[Parser50.MAXVARS];
+
+  /*
+   * Lua 5.0 instructions hold the opcode in bits 0-5, C in bits 6-14, B in
+   * bits 15-23 (Bx in bits 6-23) and A in bits 24-31.
+   */
+
+  static int getOpcode(int i) {
+    return i & 0x3F;
+  }
+
+  static int getA(int i) {
+    return i >>> 24;
+  }
+
+  static int getB(int i) {
+    return (i >>> 15) & 0x1FF;
+  }
+
+  static int getC(int i) {
+    return (i >>> 6) & 0x1FF;
+  }
+
+  static int getSBx(int i) {
+    return ((i >>> 6) & MAXARG_Bx) - MAXARG_sBx;
+  }
+
+  static int createABC(int o, int a, int b, int c) {
+    return o | (a << 24) | (b << 15) | (c << 6);
+  }
+
+  static int createABx(int o, int a, int bc) {
+    return o | (a << 24) | (bc << 6);
+  }
+
+  private void setA(int pc, int a) {
+    f.code[pc] = (f.code[pc] & 0x00FFFFFF) | (a << 24);
+  }
+
+  void setB(int pc, int b) {
+    f.code[pc] = (f.code[pc] & ~(0x1FF << 15)) | (b << 15);
+  }
+
+  void setC(int pc, int c) {
+    f.code[pc] = (f.code[pc] & ~(0x1FF << 6)) | (c << 6);
+  }
+
+  private void setSBx(int pc, int sbx) {
+    f.code[pc] = (f.code[pc] & 0xFF00003F) | ((sbx + MAXARG_sBx) << 6);
+  }
+
+  void setOpcode(int pc, int op) {
+    f.code[pc] = (f.code[pc] & ~0x3F) | op;
+  }
+
+  private static boolean testTMode(int op) {
+    switch(op) {
+      case OP_EQ:
+      case OP_LT:
+      case OP_LE:
+      case OP_TEST:
+      case OP_TFORLOOP:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  void nil(int from, int n) {
+    if(pc > lasttarget && getOpcode(f.code[pc - 1]) == OP_LOADNIL) {
+      int previous = f.code[pc - 1];
+      int pfrom = getA(previous);
+      int pto = getB(previous);
+      if(pfrom <= from && from <= pto + 1) {
+        if(from + n - 1 > pto) {
+          setB(pc - 1, from + n - 1);
+        }
+        return;
+      }
+    }
+    codeABC(OP_LOADNIL, from, from + n - 1, 0);
+  }
+
+  int jump() {
+    int jpc = this.jpc;
+    this.jpc = NO_JUMP;
+    int j = codeAsBx(OP_JMP, 0, NO_JUMP);
+    return concat(j, jpc);
+  }
+
+  private int condjump(int op, int a, int b, int c) {
+    codeABC(op, a, b, c);
+    return jump();
+  }
+
+  private void fixjump(int pc, int dest) {
+    int offset = dest - (pc + 1);
+    if(Math.abs(offset) > MAXARG_sBx) {
+      ls.syntaxerror("control structure too long");
+    }
+    setSBx(pc, offset);
+  }
+
+  int getlabel() {
+    lasttarget = pc;
+    return pc;
+  }
+
+  private int getjump(int pc) {
+    int offset = getSBx(f.code[pc]);
+    if(offset == NO_JUMP) {
+      return NO_JUMP;
+    } else {
+      return (pc + 1) + offset;
+    }
+  }
+
+  private int getjumpcontrol(int pc) {
+    if(pc >= 1 && testTMode(getOpcode(f.code[pc - 1]))) {
+      return pc - 1;
+    } else {
+      return pc;
+    }
+  }
+
+  /*
+   * Whether some jump in the list does not produce a value: a comparison,
+   * or a TEST with the other condition.
+   */
+  private boolean needValue(int list, int cond) {
+    for(; list != NO_JUMP; list = getjump(list)) {
+      int i = f.code[getjumpcontrol(list)];
+      if(getOpcode(i) != OP_TEST || getC(i) != cond) return true;
+    }
+    return false;
+  }
+
+  private void patchtestreg(int pc, int reg) {
+    if(reg == NO_REG) {
+      reg = getB(f.code[pc]);
+    }
+    setA(pc, reg);
+  }
+
+  private void patchlistaux(int list, int ttarget, int treg, int ftarget, int freg, int dtarget) {
+    while(list != NO_JUMP) {
+      int next = getjump(list);
+      int pc = getjumpcontrol(list);
+      int i = f.code[pc];
+      if(getOpcode(i) != OP_TEST) {
+        fixjump(list, dtarget);
+      } else if(getC(i) != 0) {
+        patchtestreg(pc, treg);
+        fixjump(list, ttarget);
+      } else {
+        patchtestreg(pc, freg);
+        fixjump(list, ftarget);
+      }
+      list = next;
+    }
+  }
+
+  private void dischargejpc() {
+    patchlistaux(jpc, pc, NO_REG, pc, NO_REG, pc);
+    jpc = NO_JUMP;
+  }
+
+  void patchlist(int list, int target) {
+    if(target == pc) {
+      patchtohere(list);
+    } else {
+      patchlistaux(list, target, NO_REG, target, NO_REG, target);
+    }
+  }
+
+  void patchtohere(int list) {
+    getlabel();
+    jpc = concat(jpc, list);
+  }
+
+  /**
+   * Appends the jump list l2 to l1, returning the new head of l1.
+   */
+  int concat(int l1, int l2) {
+    if(l2 == NO_JUMP) {
+      return l1;
+    } else if(l1 == NO_JUMP) {
+      return l2;
+    } else {
+      int list = l1;
+      int next;
+      while((next = getjump(list)) != NO_JUMP) {
+        list = next;
+      }
+      fixjump(list, l2);
+      return l1;
+    }
+  }
+
+  void checkstack(int n) {
+    int newstack = freereg + n;
+    if(newstack > f.maxstacksize) {
+      if(newstack >= MAXSTACK) {
+        ls.syntaxerror("function or expression too complex");
+      }
+      f.maxstacksize = newstack;
+    }
+  }
+
+  void reserveregs(int n) {
+    checkstack(n);
+    freereg += n;
+  }
+
+  private void freereg(int reg) {
+    if(reg >= nactvar && reg < MAXSTACK) {
+      freereg--;
+    }
+  }
+
+  private void freeexp(ExpDesc e) {
+    if(e.k == ExpDesc.VNONRELOC) {
+      freereg(e.info);
+    }
+  }
+
+  private int addk(Object key, Object value) {
+    Integer index = h.get(key);
+    if(index != null) {
+      return index;
+    } else {
+      int n = f.k.size();
+      if(n >= MAXARG_Bx) {
+        ls.syntaxerror("constant table overflow");
+      }
+      h.put(key, n);
+      f.k.add(value);
+      return n;
+    }
+  }
+
+  int stringK(String s) {
+    return addk(s, s);
+  }
+
+  int numberK(double r) {
+    // Lua tables do not distinguish -0 from 0 as keys
+    Double key = r == 0.0 ? 0.0 : r;
+    return addk(key, r);
+  }
+
+  private int nilK() {
+    return addk(Proto.NIL, Proto.NIL);
+  }
+
+  void setcallreturns(ExpDesc e, int nresults) {
+    if(e.k == ExpDesc.VCALL) {
+      setC(e.info, nresults + 1);
+      if(nresults == 1) {
+        e.k = ExpDesc.VNONRELOC;
+        e.info = getA(f.code[e.info]);
+      }
+    }
+  }
+
+  void dischargevars(ExpDesc e) {
+    switch(e.k) {
+      case ExpDesc.VLOCAL: {
+        e.k = ExpDesc.VNONRELOC;
+        break;
+      }
+      case ExpDesc.VUPVAL: {
+        e.info = codeABC(OP_GETUPVAL, 0, e.info, 0);
+        e.k = ExpDesc.VRELOCABLE;
+        break;
+      }
+      case ExpDesc.VGLOBAL: {
+        e.info = codeABx(OP_GETGLOBAL, 0, e.info);
+        e.k = ExpDesc.VRELOCABLE;
+        break;
+      }
+      case ExpDesc.VINDEXED: {
+        freereg(e.aux);
+        freereg(e.info);
+        e.info = codeABC(OP_GETTABLE, 0, e.info, e.aux);
+        e.k = ExpDesc.VRELOCABLE;
+        break;
+      }
+      case ExpDesc.VCALL: {
+        setcallreturns(e, 1);
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  private int codeLabel(int a, int b, int jump) {
+    getlabel();
+    return codeABC(OP_LOADBOOL, a, b, jump);
+  }
+
+  private void discharge2reg(ExpDesc e, int reg) {
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc.VNIL: {
+        nil(reg, 1);
+        break;
+      }
+      case ExpDesc.VFALSE:
+      case ExpDesc.VTRUE: {
+        codeABC(OP_LOADBOOL, reg, e.k == ExpDesc.VTRUE ? 1 : 0, 0);
+        break;
+      }
+      case ExpDesc.VK: {
+        codeABx(OP_LOADK, reg, e.info);
+        break;
+      }
+      case ExpDesc.VRELOCABLE: {
+        setA(e.info, reg);
+        break;
+      }
+      case ExpDesc.VNONRELOC: {
+        if(reg != e.info) {
+          codeABC(OP_MOVE, reg, e.info, 0);
+        }
+        break;
+      }
+      default: {
+        return;
+      }
+    }
+    e.info = reg;
+    e.k = ExpDesc.VNONRELOC;
+  }
+
+  private void discharge2anyreg(ExpDesc e) {
+    if(e.k != ExpDesc.VNONRELOC) {
+      reserveregs(1);
+      discharge2reg(e, freereg - 1);
+    }
+  }
+
+  private void exp2reg(ExpDesc e, int reg) {
+    discharge2reg(e, reg);
+    if(e.k == ExpDesc.VJMP) {
+      e.t = concat(e.t, e.info);
+    }
+    if(e.hasJumps()) {
+      int pF = NO_JUMP;
+      int pT = NO_JUMP;
+      if(needValue(e.t, 1) || needValue(e.f, 0)) {
+        int fj = (e.k == ExpDesc.VJMP) ? NO_JUMP : jump();
+        pF = codeLabel(reg, 0, 1);
+        pT = codeLabel(reg, 1, 0);
+        patchtohere(fj);
+      }
+      int end = getlabel();
+      patchlistaux(e.f, pF, NO_REG, end, reg, pF);
+      patchlistaux(e.t, end, reg, pT, NO_REG, pT);
+    }
+    e.f = e.t = NO_JUMP;
+    e.info = reg;
+    e.k = ExpDesc.VNONRELOC;
+  }
+
+  void exp2nextreg(ExpDesc e) {
+    dischargevars(e);
+    freeexp(e);
+    reserveregs(1);
+    exp2reg(e, freereg - 1);
+  }
+
+  int exp2anyreg(ExpDesc e) {
+    dischargevars(e);
+    if(e.k == ExpDesc.VNONRELOC) {
+      if(!e.hasJumps()) return e.info;
+      if(e.info >= nactvar) {
+        exp2reg(e, e.info);
+        return e.info;
+      }
+    }
+    exp2nextreg(e);
+    return e.info;
+  }
+
+  void exp2val(ExpDesc e) {
+    if(e.hasJumps()) {
+      exp2anyreg(e);
+    } else {
+      dischargevars(e);
+    }
+  }
+
+  /*
+   * An RK operand at or above MAXSTACK names the constant MAXSTACK below
+   * it; only nil and the constants that fit are used that way.
+   */
+  int exp2RK(ExpDesc e) {
+    exp2val(e);
+    switch(e.k) {
+      case ExpDesc.VNIL: {
+        if(f.k.size() + MAXSTACK <= MAXARG_C) {
+          e.info = nilK();
+          e.k = ExpDesc.VK;
+          return e.info + MAXSTACK;
+        }
+        break;
+      }
+      case ExpDesc.VK: {
+        if(e.info + MAXSTACK <= MAXARG_C) {
+          return e.info + MAXSTACK;
+        }
+        break;
+      }
+      default:
+        break;
+    }
+    return exp2anyreg(e);
+  }
+
+  void storevar(ExpDesc var, ExpDesc ex) {
+    switch(var.k) {
+      case ExpDesc.VLOCAL: {
+        freeexp(ex);
+        exp2reg(ex, var.info);
+        return;
+      }
+      case ExpDesc.VUPVAL: {
+        int e = exp2anyreg(ex);
+        codeABC(OP_SETUPVAL, e, var.info, 0);
+        break;
+      }
+      case ExpDesc.VGLOBAL: {
+        int e = exp2anyreg(ex);
+        codeABx(OP_SETGLOBAL, e, var.info);
+        break;
+      }
+      case ExpDesc.VINDEXED: {
+        int e = exp2RK(ex);
+        codeABC(OP_SETTABLE, var.info, var.aux, e);
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+    freeexp(ex);
+  }
+
+  void self(ExpDesc e, ExpDesc key) {
+    exp2anyreg(e);
+    freeexp(e);
+    int func = freereg;
+    reserveregs(2);
+    codeABC(OP_SELF, func, e.info, exp2RK(key));
+    freeexp(key);
+    e.info = func;
+    e.k = ExpDesc.VNONRELOC;
+  }
+
+  private void invertjump(ExpDesc e) {
+    int pc = getjumpcontrol(e.info);
+    setA(pc, getA(f.code[pc]) == 0 ? 1 : 0);
+  }
+
+  private int jumponcond(ExpDesc e, int cond) {
+    if(e.k == ExpDesc.VRELOCABLE) {
+      int ie = f.code[e.info];
+      if(getOpcode(ie) == OP_NOT) {
+        pc--;
+        return condjump(OP_TEST, NO_REG, getB(ie), cond == 0 ? 1 : 0);
+      }
+    }
+    discharge2anyreg(e);
+    freeexp(e);
+    return condjump(OP_TEST, NO_REG, e.info, cond);
+  }
+
+  void goiftrue(ExpDesc e) {
+    int pc;
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc.VK:
+      case ExpDesc.VTRUE: {
+        pc = NO_JUMP;
+        break;
+      }
+      case ExpDesc.VFALSE: {
+        pc = jump();
+        break;
+      }
+      case ExpDesc.VJMP: {
+        invertjump(e);
+        pc = e.info;
+        break;
+      }
+      default: {
+        pc = jumponcond(e, 0);
+        break;
+      }
+    }
+    e.f = concat(e.f, pc);
+  }
+
+  void goiffalse(ExpDesc e) {
+    int pc;
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc.VNIL:
+      case ExpDesc.VFALSE: {
+        pc = NO_JUMP;
+        break;
+      }
+      case ExpDesc.VTRUE: {
+        pc = jump();
+        break;
+      }
+      case ExpDesc.VJMP: {
+        pc = e.info;
+        break;
+      }
+      default: {
+        pc = jumponcond(e, 1);
+        break;
+      }
+    }
+    e.t = concat(e.t, pc);
+  }
+
+  private void codenot(ExpDesc e) {
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc.VNIL:
+      case ExpDesc.VFALSE: {
+        e.k = ExpDesc.VTRUE;
+        break;
+      }
+      case ExpDesc.VK:
+      case ExpDesc.VTRUE: {
+        e.k = ExpDesc.VFALSE;
+        break;
+      }
+      case ExpDesc.VJMP: {
+        invertjump(e);
+        break;
+      }
+      case ExpDesc.VRELOCABLE:
+      case ExpDesc.VNONRELOC: {
+        discharge2anyreg(e);
+        freeexp(e);
+        e.info = codeABC(OP_NOT, 0, e.info, 0);
+        e.k = ExpDesc.VRELOCABLE;
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+    int temp = e.f;
+    e.f = e.t;
+    e.t = temp;
+  }
+
+  void indexed(ExpDesc t, ExpDesc k) {
+    t.aux = exp2RK(k);
+    t.k = ExpDesc.VINDEXED;
+  }
+
+  void prefix(int op, ExpDesc e) {
+    if(op == OPR_MINUS) {
+      exp2val(e);
+      if(e.k == ExpDesc.VK && f.k.get(e.info) instanceof Double) {
+        e.info = numberK(-(Double) f.k.get(e.info));
+      } else {
+        exp2anyreg(e);
+        freeexp(e);
+        e.info = codeABC(OP_UNM, 0, e.info, 0);
+        e.k = ExpDesc.VRELOCABLE;
+      }
+    } else {
+      codenot(e);
+    }
+  }
+
+  void infix(int op, ExpDesc v) {
+    switch(op) {
+      case OPR_AND: {
+        goiftrue(v);
+        patchtohere(v.t);
+        v.t = NO_JUMP;
+        break;
+      }
+      case OPR_OR: {
+        goiffalse(v);
+        patchtohere(v.f);
+        v.f = NO_JUMP;
+        break;
+      }
+      case OPR_CONCAT: {
+        exp2nextreg(v);
+        break;
+      }
+      default: {
+        exp2RK(v);
+        break;
+      }
+    }
+  }
+
+  private void codebinop(ExpDesc res, int op, int o1, int o2) {
+    if(op <= OPR_POW) {
+      res.info = codeABC(op - OPR_ADD + OP_ADD, 0, o1, o2);
+      res.k = ExpDesc.VRELOCABLE;
+    } else {
+      int cond = 1;
+      int opc;
+      if(op >= OPR_GT) {
+        int temp = o1;
+        o1 = o2;
+        o2 = temp;
+      } else if(op == OPR_NE) {
+        cond = 0;
+      }
+      switch(op) {
+        case OPR_NE:
+        case OPR_EQ:
+          opc = OP_EQ;
+          break;
+        case OPR_LT:
+        case OPR_GT:
+          opc = OP_LT;
+          break;
+        default:
+          opc = OP_LE;
+          break;
+      }
+      res.info = condjump(opc, cond, o1, o2);
+      res.k = ExpDesc.VJMP;
+    }
+  }
+
+  void posfix(int op, ExpDesc e1, ExpDesc e2) {
+    switch(op) {
+      case OPR_AND: {
+        dischargevars(e2);
+        e2.f = concat(e1.f, e2.f);
+        e1.set(e2);
+        break;
+      }
+      case OPR_OR: {
+        dischargevars(e2);
+        e2.t = concat(e1.t, e2.t);
+        e1.set(e2);
+        break;
+      }
+      case OPR_CONCAT: {
+        exp2val(e2);
+        if(e2.k == ExpDesc.VRELOCABLE && getOpcode(f.code[e2.info]) == OP_CONCAT) {
+          freeexp(e1);
+          setB(e2.info, e1.info);
+          e1.k = e2.k;
+          e1.info = e2.info;
+        } else {
+          exp2nextreg(e2);
+          freeexp(e2);
+          freeexp(e1);
+          e1.info = codeABC(OP_CONCAT, 0, e1.info, e2.info);
+          e1.k = ExpDesc.VRELOCABLE;
+        }
+        break;
+      }
+      default: {
+        int o1 = exp2RK(e1);
+        int o2 = exp2RK(e2);
+        freeexp(e2);
+        freeexp(e1);
+        codebinop(e1, op, o1, o2);
+        break;
+      }
+    }
+  }
+
+  void fixline(int line) {
+    f.lineinfo[pc - 1] = line;
+  }
+
+  int code(int i, int line) {
+    dischargejpc();
+    if(pc == f.code.length) {
+      f.code = Arrays.copyOf(f.code, 2 * pc);
+      f.lineinfo = Arrays.copyOf(f.lineinfo, 2 * pc);
+    }
+    f.code[pc] = i;
+    f.lineinfo[pc] = line;
+    return pc++;
+  }
+
+  int codeABC(int o, int a, int b, int c) {
+    return code(createABC(o, a, b, c), ls.lastline);
+  }
+
+  int codeABx(int o, int a, int bc) {
+    return code(createABx(o, a, bc), ls.lastline);
+  }
+
+  int codeAsBx(int o, int a, int sbx) {
+    return codeABx(o, a, sbx + MAXARG_sBx);
+  }
+
+}
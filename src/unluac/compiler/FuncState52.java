@@ -0,0 +1,1235 @@
+package unluac.compiler;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The state of a Lua 5.2 or 5.3 function being compiled, with the code
+ * generator that works on it (lcode.c). Instructions carry the Lua 5.3
+ * opcode numbers in both versions.
+ */
+class FuncState52 {
+
+  static final int OP_MOVE = 0;
+  static final int OP_LOADK = 1;
+  static final int OP_LOADKX = 2;
+  static final int OP_LOADBOOL = 3;
+  static final int OP_LOADNIL = 4;
+  static final int OP_GETUPVAL = 5;
+  static final int OP_GETTABUP = 6;
+  static final int OP_GETTABLE = 7;
+  static final int OP_SETTABUP = 8;
+  static final int OP_SETUPVAL = 9;
+  static final int OP_SETTABLE = 10;
+  static final int OP_NEWTABLE = 11;
+  static final int OP_SELF = 12;
+  static final int OP_ADD = 13;
+  static final int OP_SUB = 14;
+  static final int OP_MUL = 15;
+  static final int OP_MOD = 16;
+  static final int OP_POW = 17;
+  static final int OP_DIV = 18;
+  static final int OP_IDIV = 19;
+  static final int OP_BAND = 20;
+  static final int OP_BOR = 21;
+  static final int OP_BXOR = 22;
+  static final int OP_SHL = 23;
+  static final int OP_SHR = 24;
+  static final int OP_UNM = 25;
+  static final int OP_BNOT = 26;
+  static final int OP_NOT = 27;
+  static final int OP_LEN = 28;
+  static final int OP_CONCAT = 29;
+  static final int OP_JMP = 30;
+  static final int OP_EQ = 31;
+  static final int OP_LT = 32;
+  static final int OP_LE = 33;
+  static final int OP_TEST = 34;
+  static final int OP_TESTSET = 35;
+  static final int OP_CALL = 36;
+  static final int OP_TAILCALL = 37;
+  static final int OP_RETURN = 38;
+  static final int OP_FORLOOP = 39;
+  static final int OP_FORPREP = 40;
+  static final int OP_TFORCALL = 41;
+  static final int OP_TFORLOOP = 42;
+  static final int OP_SETLIST = 43;
+  static final int OP_CLOSURE = 44;
+  static final int OP_VARARG = 45;
+  static final int OP_EXTRAARG = 46;
+
+  static final int OPR_ADD = 0;
+  static final int OPR_SUB = 1;
+  static final int OPR_MUL = 2;
+  static final int OPR_MOD = 3;
+  static final int OPR_POW = 4;
+  static final int OPR_DIV = 5;
+  static final int OPR_IDIV = 6;
+  static final int OPR_BAND = 7;
+  static final int OPR_BOR = 8;
+  static final int OPR_BXOR = 9;
+  static final int OPR_SHL = 10;
+  static final int OPR_SHR = 11;
+  static final int OPR_CONCAT = 12;
+  static final int OPR_EQ = 13;
+  static final int OPR_LT = 14;
+  static final int OPR_LE = 15;
+  static final int OPR_NE = 16;
+  static final int OPR_GT = 17;
+  static final int OPR_GE = 18;
+  static final int OPR_AND = 19;
+  static final int OPR_OR = 20;
+  static final int OPR_NOBINOPR = 21;
+
+  static final int OPR_MINUS = 0;
+  static final int OPR_BNOT = 1;
+  static final int OPR_NOT = 2;
+  static final int OPR_LEN = 3;
+  static final int OPR_NOUNOPR = 4;
+
+  static final int MAXARG_A = 255;
+  static final int MAXARG_B = 511;
+  static final int MAXARG_C = 511;
+  static final int MAXARG_Bx = (1 << 18) - 1;
+  static final int MAXARG_sBx = MAXARG_Bx >> 1;
+  static final int MAXARG_Ax = (1 << 26) - 1;
+  static final int BITRK = 1 << 8;
+  static final int MAXINDEXRK = BITRK - 1;
+  static final int NO_REG = MAXARG_A;
+  static final int NO_JUMP = -1;
+  static final int LUA_MULTRET = -1;
+  static final int LFIELDS_PER_FLUSH = 50;
+
+  static class BlockCnt {
+
+    BlockCnt previous;
+    int firstlabel;
+    int firstgoto;
+    int nactvar;
+    boolean upval;
+    boolean isloop;
+
+  }
+
+  final Proto52 f = new Proto52();
+  // per function in Lua 5.2, shared by the whole chunk in Lua 5.3
+  Map<Object, Integer> h;
+  FuncState52 prev;
+  Lexer52 ls;
+  BlockCnt bl;
+  int pc;
+  int lasttarget;
+  int jpc;
+  int nactvar;
+  int freereg;
+  int firstlocal;
+
+  static int getOpcode(int i) {
+    return i & 0x3F;
+  }
+
+  static int getA(int i) {
+    return (i >>> 6) & 0xFF;
+  }
+
+  static int getB(int i) {
+    return (i >>> 23) & 0x1FF;
+  }
+
+  static int getC(int i) {
+    return (i >>> 14) & 0x1FF;
+  }
+
+  static int getSBx(int i) {
+    return ((i >>> 14) & MAXARG_Bx) - MAXARG_sBx;
+  }
+
+  static int createABC(int o, int a, int b, int c) {
+    return o | (a << 6) | (b << 23) | (c << 14);
+  }
+
+  static int createABx(int o, int a, int bc) {
+    return o | (a << 6) | (bc << 14);
+  }
+
+  static int createAx(int o, int a) {
+    return o | (a << 6);
+  }
+
+  void setA(int pc, int a) {
+    f.code[pc] = (f.code[pc] & ~(0xFF << 6)) | (a << 6);
+  }
+
+  void setB(int pc, int b) {
+    f.code[pc] = (f.code[pc] & ~(0x1FF << 23)) | (b << 23);
+  }
+
+  void setC(int pc, int c) {
+    f.code[pc] = (f.code[pc] & ~(0x1FF << 14)) | (c << 14);
+  }
+
+  private void setSBx(int pc, int sbx) {
+    f.code[pc] = (f.code[pc] & 0x3FFF) | ((sbx + MAXARG_sBx) << 14);
+  }
+
+  void setOpcode(int pc, int op) {
+    f.code[pc] = (f.code[pc] & ~0x3F) | op;
+  }
+
+  private static boolean testTMode(int op) {
+    switch(op) {
+      case OP_EQ:
+      case OP_LT:
+      case OP_LE:
+      case OP_TEST:
+      case OP_TESTSET:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isK(int x) {
+    return (x & BITRK) != 0;
+  }
+
+  void nil(int from, int n) {
+    int l = from + n - 1;
+    if(pc > lasttarget) {
+      int previous = f.code[pc - 1];
+      if(getOpcode(previous) == OP_LOADNIL) {
+        int pfrom = getA(previous);
+        int pl = pfrom + getB(previous);
+        if((pfrom <= from && from <= pl + 1) || (from <= pfrom && pfrom <= l + 1)) {
+          if(pfrom < from) from = pfrom;
+          if(pl > l) l = pl;
+          setA(pc - 1, from);
+          setB(pc - 1, l - from);
+          return;
+        }
+      }
+    }
+    codeABC(OP_LOADNIL, from, n - 1, 0);
+  }
+
+  int jump() {
+    int jpc = this.jpc;
+    this.jpc = NO_JUMP;
+    int j = codeAsBx(OP_JMP, 0, NO_JUMP);
+    return concat(j, jpc);
+  }
+
+  void jumpto(int target) {
+    patchlist(jump(), target);
+  }
+
+  void ret(int first, int nret) {
+    codeABC(OP_RETURN, first, nret + 1, 0);
+  }
+
+  private int condjump(int op, int a, int b, int c) {
+    codeABC(op, a, b, c);
+    return jump();
+  }
+
+  private void fixjump(int pc, int dest) {
+    int offset = dest - (pc + 1);
+    if(Math.abs(offset) > MAXARG_sBx) {
+      ls.syntaxerror("control structure too long");
+    }
+    setSBx(pc, offset);
+  }
+
+  int getlabel() {
+    lasttarget = pc;
+    return pc;
+  }
+
+  private int getjump(int pc) {
+    int offset = getSBx(f.code[pc]);
+    if(offset == NO_JUMP) {
+      return NO_JUMP;
+    } else {
+      return (pc + 1) + offset;
+    }
+  }
+
+  private int getjumpcontrol(int pc) {
+    if(pc >= 1 && testTMode(getOpcode(f.code[pc - 1]))) {
+      return pc - 1;
+    } else {
+      return pc;
+    }
+  }
+
+  private boolean needValue(int list) {
+    for(; list != NO_JUMP; list = getjump(list)) {
+      int i = f.code[getjumpcontrol(list)];
+      if(getOpcode(i) != OP_TESTSET) return true;
+    }
+    return false;
+  }
+
+  private boolean patchtestreg(int node, int reg) {
+    int pc = getjumpcontrol(node);
+    int i = f.code[pc];
+    if(getOpcode(i) != OP_TESTSET) {
+      return false;
+    }
+    if(reg != NO_REG && reg != getB(i)) {
+      setA(pc, reg);
+    } else {
+      f.code[pc] = createABC(OP_TEST, getB(i), 0, getC(i));
+    }
+    return true;
+  }
+
+  private void removevalues(int list) {
+    for(; list != NO_JUMP; list = getjump(list)) {
+      patchtestreg(list, NO_REG);
+    }
+  }
+
+  private void patchlistaux(int list, int vtarget, int reg, int dtarget) {
+    while(list != NO_JUMP) {
+      int next = getjump(list);
+      if(patchtestreg(list, reg)) {
+        fixjump(list, vtarget);
+      } else {
+        fixjump(list, dtarget);
+      }
+      list = next;
+    }
+  }
+
+  private void dischargejpc() {
+    patchlistaux(jpc, pc, NO_REG, pc);
+    jpc = NO_JUMP;
+  }
+
+  void patchlist(int list, int target) {
+    if(target == pc) {
+      patchtohere(list);
+    } else {
+      patchlistaux(list, target, NO_REG, target);
+    }
+  }
+
+  /**
+   * Makes the jumps of a list close the upvalues from the given level up.
+   */
+  void patchclose(int list, int level) {
+    level++;
+    while(list != NO_JUMP) {
+      int next = getjump(list);
+      setA(list, level);
+      list = next;
+    }
+  }
+
+  void patchtohere(int list) {
+    getlabel();
+    jpc = concat(jpc, list);
+  }
+
+  /**
+   * Appends the jump list l2 to l1, returning the new head of l1.
+   */
+  int concat(int l1, int l2) {
+    if(l2 == NO_JUMP) {
+      return l1;
+    } else if(l1 == NO_JUMP) {
+      return l2;
+    } else {
+      int list = l1;
+      int next;
+      while((next = getjump(list)) != NO_JUMP) {
+        list = next;
+      }
+      fixjump(list, l2);
+      return l1;
+    }
+  }
+
+  void checkstack(int n) {
+    int newstack = freereg + n;
+    if(newstack > f.maxstacksize) {
+      if(ls.lua53) {
+        if(newstack >= 255) {
+          ls.syntaxerror("function or expression needs too many registers");
+        }
+      } else if(newstack >= 250) {
+        ls.syntaxerror("function or expression too complex");
+      }
+      f.maxstacksize = newstack;
+    }
+  }
+
+  void reserveregs(int n) {
+    checkstack(n);
+    freereg += n;
+  }
+
+  private void freereg(int reg) {
+    if(!isK(reg) && reg >= nactvar) {
+      freereg--;
+    }
+  }
+
+  private void freeexp(ExpDesc52 e) {
+    if(e.k == ExpDesc52.VNONRELOC) {
+      freereg(e.info);
+    }
+  }
+
+  private void freeexps(ExpDesc52 e1, ExpDesc52 e2) {
+    int r1 = (e1.k == ExpDesc52.VNONRELOC) ? e1.info : -1;
+    int r2 = (e2.k == ExpDesc52.VNONRELOC) ? e2.info : -1;
+    if(r1 > r2) {
+      freereg(r1);
+      freereg(r2);
+    } else {
+      freereg(r2);
+      freereg(r1);
+    }
+  }
+
+  /*
+   * Finds or adds a constant. The key stands for the value as a key of a
+   * Lua table, which is what luac uses to find constants it has added.
+   */
+  private int addk(Object key, Object value) {
+    Integer index = h.get(key);
+    if(index != null) {
+      int k = index;
+      if(k < f.k.size() && rawequal(f.k.get(k), value)) {
+        return k;
+      }
+    }
+    int k = f.k.size();
+    if(k >= MAXARG_Ax) {
+      throw new CompileException("constant table overflow");
+    }
+    h.put(key, k);
+    f.k.add(value);
+    return k;
+  }
+
+  private static boolean rawequal(Object a, Object b) {
+    if(a instanceof Double && b instanceof Double) {
+      return ((Double) a).doubleValue() == ((Double) b).doubleValue();
+    } else {
+      return a.getClass() == b.getClass() && a.equals(b);
+    }
+  }
+
+  int stringK(String s) {
+    return addk(s, s);
+  }
+
+  int intK(long n) {
+    return addk(n, n);
+  }
+
+  int numberK(double r) {
+    Object key;
+    if(ls.lua53) {
+      // a float with an integer value is an integer key
+      Long i = toInteger(r);
+      key = i != null ? (Object) i : (Object) r;
+    } else if(r == 0 || Double.isNaN(r)) {
+      // Lua 5.2 keys 0, -0 and NaN by the bytes of the double
+      long bits = Double.doubleToRawLongBits(r);
+      StringBuilder b = new StringBuilder();
+      for(int i = 0; i < 8; i++) {
+        b.append((char) (0xFF & (bits >>> (8 * i))));
+      }
+      key = b.toString();
+    } else {
+      key = r;
+    }
+    return addk(key, r);
+  }
+
+  private int boolK(boolean b) {
+    return addk(b, b);
+  }
+
+  private int nilK() {
+    return addk(Proto.NIL, Proto.NIL);
+  }
+
+  static Long toInteger(double d) {
+    if(Math.floor(d) == d && d >= -0x1p63 && d < 0x1p63) {
+      return (long) d;
+    } else {
+      return null;
+    }
+  }
+
+  void setreturns(ExpDesc52 e, int nresults) {
+    if(e.k == ExpDesc52.VCALL) {
+      setC(e.info, nresults + 1);
+    } else if(e.k == ExpDesc52.VVARARG) {
+      setB(e.info, nresults + 1);
+      setA(e.info, freereg);
+      reserveregs(1);
+    }
+  }
+
+  void setmultret(ExpDesc52 e) {
+    setreturns(e, LUA_MULTRET);
+  }
+
+  void setoneret(ExpDesc52 e) {
+    if(e.k == ExpDesc52.VCALL) {
+      e.k = ExpDesc52.VNONRELOC;
+      e.info = getA(f.code[e.info]);
+    } else if(e.k == ExpDesc52.VVARARG) {
+      setB(e.info, 2);
+      e.k = ExpDesc52.VRELOCABLE;
+    }
+  }
+
+  void dischargevars(ExpDesc52 e) {
+    switch(e.k) {
+      case ExpDesc52.VLOCAL: {
+        e.k = ExpDesc52.VNONRELOC;
+        break;
+      }
+      case ExpDesc52.VUPVAL: {
+        e.info = codeABC(OP_GETUPVAL, 0, e.info, 0);
+        e.k = ExpDesc52.VRELOCABLE;
+        break;
+      }
+      case ExpDesc52.VINDEXED: {
+        int op = OP_GETTABUP;
+        freereg(e.idx);
+        if(e.vt == ExpDesc52.VLOCAL) {
+          freereg(e.table);
+          op = OP_GETTABLE;
+        }
+        e.info = codeABC(op, 0, e.table, e.idx);
+        e.k = ExpDesc52.VRELOCABLE;
+        break;
+      }
+      case ExpDesc52.VVARARG:
+      case ExpDesc52.VCALL: {
+        setoneret(e);
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  private int codeLabel(int a, int b, int jump) {
+    getlabel();
+    return codeABC(OP_LOADBOOL, a, b, jump);
+  }
+
+  private void discharge2reg(ExpDesc52 e, int reg) {
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc52.VNIL: {
+        nil(reg, 1);
+        break;
+      }
+      case ExpDesc52.VFALSE:
+      case ExpDesc52.VTRUE: {
+        codeABC(OP_LOADBOOL, reg, e.k == ExpDesc52.VTRUE ? 1 : 0, 0);
+        break;
+      }
+      case ExpDesc52.VK: {
+        codek(reg, e.info);
+        break;
+      }
+      case ExpDesc52.VKFLT: {
+        codek(reg, numberK(e.nval));
+        break;
+      }
+      case ExpDesc52.VKINT: {
+        codek(reg, intK(e.ival));
+        break;
+      }
+      case ExpDesc52.VRELOCABLE: {
+        setA(e.info, reg);
+        break;
+      }
+      case ExpDesc52.VNONRELOC: {
+        if(reg != e.info) {
+          codeABC(OP_MOVE, reg, e.info, 0);
+        }
+        break;
+      }
+      default: {
+        return;
+      }
+    }
+    e.info = reg;
+    e.k = ExpDesc52.VNONRELOC;
+  }
+
+  private void discharge2anyreg(ExpDesc52 e) {
+    if(e.k != ExpDesc52.VNONRELOC) {
+      reserveregs(1);
+      discharge2reg(e, freereg - 1);
+    }
+  }
+
+  private void exp2reg(ExpDesc52 e, int reg) {
+    discharge2reg(e, reg);
+    if(e.k == ExpDesc52.VJMP) {
+      e.t = concat(e.t, e.info);
+    }
+    if(e.hasJumps()) {
+      int pF = NO_JUMP;
+      int pT = NO_JUMP;
+      if(needValue(e.t) || needValue(e.f)) {
+        int fj = (e.k == ExpDesc52.VJMP) ? NO_JUMP : jump();
+        pF = codeLabel(reg, 0, 1);
+        pT = codeLabel(reg, 1, 0);
+        patchtohere(fj);
+      }
+      int end = getlabel();
+      patchlistaux(e.f, end, reg, pF);
+      patchlistaux(e.t, end, reg, pT);
+    }
+    e.f = e.t = NO_JUMP;
+    e.info = reg;
+    e.k = ExpDesc52.VNONRELOC;
+  }
+
+  void exp2nextreg(ExpDesc52 e) {
+    dischargevars(e);
+    freeexp(e);
+    reserveregs(1);
+    exp2reg(e, freereg - 1);
+  }
+
+  int exp2anyreg(ExpDesc52 e) {
+    dischargevars(e);
+    if(e.k == ExpDesc52.VNONRELOC) {
+      if(!e.hasJumps()) return e.info;
+      if(e.info >= nactvar) {
+        exp2reg(e, e.info);
+        return e.info;
+      }
+    }
+    exp2nextreg(e);
+    return e.info;
+  }
+
+  void exp2anyregup(ExpDesc52 e) {
+    if(e.k != ExpDesc52.VUPVAL || e.hasJumps()) {
+      exp2anyreg(e);
+    }
+  }
+
+  void exp2val(ExpDesc52 e) {
+    if(e.hasJumps()) {
+      exp2anyreg(e);
+    } else {
+      dischargevars(e);
+    }
+  }
+
+  int exp2RK(ExpDesc52 e) {
+    exp2val(e);
+    if(ls.lua53) {
+      switch(e.k) {
+        case ExpDesc52.VTRUE: e.info = boolK(true); break;
+        case ExpDesc52.VFALSE: e.info = boolK(false); break;
+        case ExpDesc52.VNIL: e.info = nilK(); break;
+        case ExpDesc52.VKINT: e.info = intK(e.ival); break;
+        case ExpDesc52.VKFLT: e.info = numberK(e.nval); break;
+        case ExpDesc52.VK: break;
+        default: return exp2anyreg(e);
+      }
+      e.k = ExpDesc52.VK;
+      if(e.info <= MAXINDEXRK) {
+        return e.info | BITRK;
+      }
+      return exp2anyreg(e);
+    }
+    switch(e.k) {
+      case ExpDesc52.VTRUE:
+      case ExpDesc52.VFALSE:
+      case ExpDesc52.VNIL: {
+        if(f.k.size() <= MAXINDEXRK) {
+          e.info = (e.k == ExpDesc52.VNIL) ? nilK() : boolK(e.k == ExpDesc52.VTRUE);
+          e.k = ExpDesc52.VK;
+          return e.info | BITRK;
+        }
+        break;
+      }
+      case ExpDesc52.VKNUM:
+      case ExpDesc52.VK: {
+        if(e.k == ExpDesc52.VKNUM) {
+          e.info = numberK(e.nval);
+          e.k = ExpDesc52.VK;
+        }
+        if(e.info <= MAXINDEXRK) {
+          return e.info | BITRK;
+        }
+        break;
+      }
+      default:
+        break;
+    }
+    return exp2anyreg(e);
+  }
+
+  void storevar(ExpDesc52 var, ExpDesc52 ex) {
+    switch(var.k) {
+      case ExpDesc52.VLOCAL: {
+        freeexp(ex);
+        exp2reg(ex, var.info);
+        return;
+      }
+      case ExpDesc52.VUPVAL: {
+        int e = exp2anyreg(ex);
+        codeABC(OP_SETUPVAL, e, var.info, 0);
+        break;
+      }
+      case ExpDesc52.VINDEXED: {
+        int op = (var.vt == ExpDesc52.VLOCAL) ? OP_SETTABLE : OP_SETTABUP;
+        int e = exp2RK(ex);
+        codeABC(op, var.table, var.idx, e);
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+    freeexp(ex);
+  }
+
+  void self(ExpDesc52 e, ExpDesc52 key) {
+    exp2anyreg(e);
+    int ereg = e.info;
+    freeexp(e);
+    e.info = freereg;
+    e.k = ExpDesc52.VNONRELOC;
+    reserveregs(2);
+    codeABC(OP_SELF, e.info, ereg, exp2RK(key));
+    freeexp(key);
+  }
+
+  private void invertjump(ExpDesc52 e) {
+    int pc = getjumpcontrol(e.info);
+    setA(pc, getA(f.code[pc]) == 0 ? 1 : 0);
+  }
+
+  private int jumponcond(ExpDesc52 e, int cond) {
+    if(e.k == ExpDesc52.VRELOCABLE) {
+      int ie = f.code[e.info];
+      if(getOpcode(ie) == OP_NOT) {
+        pc--;
+        return condjump(OP_TEST, getB(ie), 0, cond == 0 ? 1 : 0);
+      }
+    }
+    discharge2anyreg(e);
+    freeexp(e);
+    return condjump(OP_TESTSET, NO_REG, e.info, cond);
+  }
+
+  void goiftrue(ExpDesc52 e) {
+    int pc;
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc52.VJMP: {
+        invertjump(e);
+        pc = e.info;
+        break;
+      }
+      case ExpDesc52.VK:
+      case ExpDesc52.VKFLT:
+      case ExpDesc52.VKINT:
+      case ExpDesc52.VTRUE: {
+        pc = NO_JUMP;
+        break;
+      }
+      default: {
+        pc = jumponcond(e, 0);
+        break;
+      }
+    }
+    e.f = concat(e.f, pc);
+    patchtohere(e.t);
+    e.t = NO_JUMP;
+  }
+
+  void goiffalse(ExpDesc52 e) {
+    int pc;
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc52.VJMP: {
+        pc = e.info;
+        break;
+      }
+      case ExpDesc52.VNIL:
+      case ExpDesc52.VFALSE: {
+        pc = NO_JUMP;
+        break;
+      }
+      default: {
+        pc = jumponcond(e, 1);
+        break;
+      }
+    }
+    e.t = concat(e.t, pc);
+    patchtohere(e.f);
+    e.f = NO_JUMP;
+  }
+
+  private void codenot(ExpDesc52 e) {
+    dischargevars(e);
+    switch(e.k) {
+      case ExpDesc52.VNIL:
+      case ExpDesc52.VFALSE: {
+        e.k = ExpDesc52.VTRUE;
+        break;
+      }
+      case ExpDesc52.VK:
+      case ExpDesc52.VKFLT:
+      case ExpDesc52.VKINT:
+      case ExpDesc52.VTRUE: {
+        e.k = ExpDesc52.VFALSE;
+        break;
+      }
+      case ExpDesc52.VJMP: {
+        invertjump(e);
+        break;
+      }
+      case ExpDesc52.VRELOCABLE:
+      case ExpDesc52.VNONRELOC: {
+        discharge2anyreg(e);
+        freeexp(e);
+        e.info = codeABC(OP_NOT, 0, e.info, 0);
+        e.k = ExpDesc52.VRELOCABLE;
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+    int temp = e.f;
+    e.f = e.t;
+    e.t = temp;
+    removevalues(e.f);
+    removevalues(e.t);
+  }
+
+  void indexed(ExpDesc52 t, ExpDesc52 k) {
+    t.table = t.info;
+    t.idx = exp2RK(k);
+    t.vt = (t.k == ExpDesc52.VUPVAL) ? ExpDesc52.VUPVAL : ExpDesc52.VLOCAL;
+    t.k = ExpDesc52.VINDEXED;
+  }
+
+  /*
+   * Lua 5.2 folds any arithmetic on two numerals except a division or
+   * modulo by zero.
+   */
+  private static boolean constfolding52(int op, ExpDesc52 e1, ExpDesc52 e2) {
+    if(!e1.isNumeral() || !e2.isNumeral()) return false;
+    double v1 = e1.nval;
+    double v2 = e2.nval;
+    if((op == OP_DIV || op == OP_MOD) && v2 == 0) return false;
+    double r;
+    switch(op) {
+      case OP_ADD: r = v1 + v2; break;
+      case OP_SUB: r = v1 - v2; break;
+      case OP_MUL: r = v1 * v2; break;
+      case OP_DIV: r = v1 / v2; break;
+      case OP_MOD: r = v1 - Math.floor(v1 / v2) * v2; break;
+      case OP_POW: r = Math.pow(v1, v2); break;
+      case OP_UNM: r = -v1; break;
+      default: return false;
+    }
+    e1.nval = r;
+    return true;
+  }
+
+  /*
+   * Lua 5.3 folds arithmetic on numerals that cannot raise an error, unless
+   * the result is a float NaN or zero.
+   */
+  private static boolean constfolding53(int op, ExpDesc52 e1, ExpDesc52 e2) {
+    if(!e1.isNumeral() || !e2.isNumeral()) return false;
+    boolean ints = e1.k == ExpDesc52.VKINT && e2.k == ExpDesc52.VKINT;
+    double n1 = e1.k == ExpDesc52.VKINT ? (double) e1.ival : e1.nval;
+    double n2 = e2.k == ExpDesc52.VKINT ? (double) e2.ival : e2.nval;
+    switch(op) {
+      case OP_BAND:
+      case OP_BOR:
+      case OP_BXOR:
+      case OP_SHL:
+      case OP_SHR:
+      case OP_BNOT: {
+        Long i1 = e1.k == ExpDesc52.VKINT ? (Long) e1.ival : toInteger(e1.nval);
+        Long i2 = e2.k == ExpDesc52.VKINT ? (Long) e2.ival : toInteger(e2.nval);
+        if(i1 == null || i2 == null) return false;
+        long r;
+        switch(op) {
+          case OP_BAND: r = i1 & i2; break;
+          case OP_BOR: r = i1 | i2; break;
+          case OP_BXOR: r = i1 ^ i2; break;
+          case OP_SHL: r = shiftl(i1, i2); break;
+          case OP_SHR: r = shiftl(i1, -i2); break;
+          default: r = ~i1; break;
+        }
+        e1.k = ExpDesc52.VKINT;
+        e1.ival = r;
+        return true;
+      }
+      case OP_DIV:
+      case OP_IDIV:
+      case OP_MOD:
+        if(n2 == 0) return false;
+        break;
+      default:
+        break;
+    }
+    if(ints && op != OP_DIV && op != OP_POW) {
+      long i1 = e1.ival;
+      long i2 = e2.ival;
+      long r;
+      switch(op) {
+        case OP_ADD: r = i1 + i2; break;
+        case OP_SUB: r = i1 - i2; break;
+        case OP_MUL: r = i1 * i2; break;
+        case OP_MOD: {
+          if(i2 == -1) {
+            r = 0;
+          } else {
+            r = i1 % i2;
+            if(r != 0 && (r ^ i2) < 0) r += i2;
+          }
+          break;
+        }
+        case OP_IDIV: {
+          if(i2 == -1) {
+            r = -i1;
+          } else {
+            r = i1 / i2;
+            if((i1 ^ i2) < 0 && i1 % i2 != 0) r -= 1;
+          }
+          break;
+        }
+        case OP_UNM: r = -i1; break;
+        default: return false;
+      }
+      e1.k = ExpDesc52.VKINT;
+      e1.ival = r;
+      return true;
+    }
+    double r;
+    switch(op) {
+      case OP_ADD: r = n1 + n2; break;
+      case OP_SUB: r = n1 - n2; break;
+      case OP_MUL: r = n1 * n2; break;
+      case OP_DIV: r = n1 / n2; break;
+      case OP_POW: r = Math.pow(n1, n2); break;
+      case OP_IDIV: r = Math.floor(n1 / n2); break;
+      case OP_MOD: {
+        r = n1 % n2;
+        if(r > 0 ? n2 < 0 : (r < 0 && n2 != r)) r += n2;
+        break;
+      }
+      case OP_UNM: r = -n1; break;
+      default: return false;
+    }
+    if(Double.isNaN(r) || r == 0) return false;
+    e1.k = ExpDesc52.VKFLT;
+    e1.nval = r;
+    return true;
+  }
+
+  private static long shiftl(long x, long y) {
+    if(y < 0) {
+      return y <= -64 ? 0 : x >>> -y;
+    } else {
+      return y >= 64 ? 0 : x << y;
+    }
+  }
+
+  private void codearith(int op, ExpDesc52 e1, ExpDesc52 e2, int line) {
+    if(constfolding52(op, e1, e2)) {
+      return;
+    }
+    int o2 = (op != OP_UNM && op != OP_LEN) ? exp2RK(e2) : 0;
+    int o1 = exp2RK(e1);
+    if(o1 > o2) {
+      freeexp(e1);
+      freeexp(e2);
+    } else {
+      freeexp(e2);
+      freeexp(e1);
+    }
+    e1.info = codeABC(op, 0, o1, o2);
+    e1.k = ExpDesc52.VRELOCABLE;
+    fixline(line);
+  }
+
+  private void codeunexpval(int op, ExpDesc52 e, int line) {
+    int r = exp2anyreg(e);
+    freeexp(e);
+    e.info = codeABC(op, 0, r, 0);
+    e.k = ExpDesc52.VRELOCABLE;
+    fixline(line);
+  }
+
+  private void codebinexpval(int op, ExpDesc52 e1, ExpDesc52 e2, int line) {
+    int rk2 = exp2RK(e2);
+    int rk1 = exp2RK(e1);
+    freeexps(e1, e2);
+    e1.info = codeABC(op, 0, rk1, rk2);
+    e1.k = ExpDesc52.VRELOCABLE;
+    fixline(line);
+  }
+
+  private void codecomp52(int op, int cond, ExpDesc52 e1, ExpDesc52 e2) {
+    int o1 = exp2RK(e1);
+    int o2 = exp2RK(e2);
+    freeexp(e2);
+    freeexp(e1);
+    if(cond == 0 && op != OP_EQ) {
+      int temp = o1;
+      o1 = o2;
+      o2 = temp;
+      cond = 1;
+    }
+    e1.info = condjump(op, cond, o1, o2);
+    e1.k = ExpDesc52.VJMP;
+  }
+
+  private void codecomp53(int opr, ExpDesc52 e1, ExpDesc52 e2) {
+    int rk1 = (e1.k == ExpDesc52.VK) ? e1.info | BITRK : e1.info;
+    int rk2 = exp2RK(e2);
+    freeexps(e1, e2);
+    switch(opr) {
+      case OPR_NE:
+        e1.info = condjump(OP_EQ, 0, rk1, rk2);
+        break;
+      case OPR_GT:
+      case OPR_GE:
+        e1.info = condjump(opr - OPR_NE + OP_EQ, 1, rk2, rk1);
+        break;
+      default:
+        e1.info = condjump(opr - OPR_EQ + OP_EQ, 1, rk1, rk2);
+        break;
+    }
+    e1.k = ExpDesc52.VJMP;
+  }
+
+  void prefix(int op, ExpDesc52 e, int line) {
+    if(ls.lua53) {
+      ExpDesc52 ef = new ExpDesc52();
+      ef.init(ExpDesc52.VKINT, 0);
+      switch(op) {
+        case OPR_MINUS:
+        case OPR_BNOT:
+          if(constfolding53(op + OP_UNM, e, ef)) {
+            break;
+          }
+          codeunexpval(op + OP_UNM, e, line);
+          break;
+        case OPR_LEN:
+          codeunexpval(OP_LEN, e, line);
+          break;
+        case OPR_NOT:
+          codenot(e);
+          break;
+        default:
+          throw new IllegalStateException();
+      }
+      return;
+    }
+    ExpDesc52 e2 = new ExpDesc52();
+    e2.init(ExpDesc52.VKNUM, 0);
+    e2.nval = 0;
+    switch(op) {
+      case OPR_MINUS: {
+        if(e.isNumeral()) {
+          e.nval = -e.nval;
+        } else {
+          exp2anyreg(e);
+          codearith(OP_UNM, e, e2, line);
+        }
+        break;
+      }
+      case OPR_NOT:
+        codenot(e);
+        break;
+      case OPR_LEN: {
+        exp2anyreg(e);
+        codearith(OP_LEN, e, e2, line);
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  void infix(int op, ExpDesc52 v) {
+    switch(op) {
+      case OPR_AND: {
+        goiftrue(v);
+        break;
+      }
+      case OPR_OR: {
+        goiffalse(v);
+        break;
+      }
+      case OPR_CONCAT: {
+        exp2nextreg(v);
+        break;
+      }
+      case OPR_ADD:
+      case OPR_SUB:
+      case OPR_MUL:
+      case OPR_DIV:
+      case OPR_IDIV:
+      case OPR_MOD:
+      case OPR_POW:
+      case OPR_BAND:
+      case OPR_BOR:
+      case OPR_BXOR:
+      case OPR_SHL:
+      case OPR_SHR: {
+        if(!v.isNumeral()) {
+          exp2RK(v);
+        }
+        break;
+      }
+      default: {
+        exp2RK(v);
+        break;
+      }
+    }
+  }
+
+  void posfix(int op, ExpDesc52 e1, ExpDesc52 e2, int line) {
+    switch(op) {
+      case OPR_AND: {
+        dischargevars(e2);
+        e2.f = concat(e2.f, e1.f);
+        e1.set(e2);
+        break;
+      }
+      case OPR_OR: {
+        dischargevars(e2);
+        e2.t = concat(e2.t, e1.t);
+        e1.set(e2);
+        break;
+      }
+      case OPR_CONCAT: {
+        exp2val(e2);
+        if(e2.k == ExpDesc52.VRELOCABLE && getOpcode(f.code[e2.info]) == OP_CONCAT) {
+          freeexp(e1);
+          setB(e2.info, e1.info);
+          e1.k = ExpDesc52.VRELOCABLE;
+          e1.info = e2.info;
+        } else {
+          exp2nextreg(e2);
+          if(ls.lua53) {
+            codebinexpval(OP_CONCAT, e1, e2, line);
+          } else {
+            codearith(OP_CONCAT, e1, e2, line);
+          }
+        }
+        break;
+      }
+      case OPR_ADD:
+      case OPR_SUB:
+      case OPR_MUL:
+      case OPR_DIV:
+      case OPR_IDIV:
+      case OPR_MOD:
+      case OPR_POW:
+      case OPR_BAND:
+      case OPR_BOR:
+      case OPR_BXOR:
+      case OPR_SHL:
+      case OPR_SHR: {
+        if(ls.lua53) {
+          if(!constfolding53(op + OP_ADD, e1, e2)) {
+            codebinexpval(op + OP_ADD, e1, e2, line);
+          }
+        } else {
+          codearith(op + OP_ADD, e1, e2, line);
+        }
+        break;
+      }
+      case OPR_EQ:
+      case OPR_LT:
+      case OPR_LE:
+      case OPR_NE:
+      case OPR_GT:
+      case OPR_GE: {
+        if(ls.lua53) {
+          codecomp53(op, e1, e2);
+        } else if(op <= OPR_LE) {
+          codecomp52(op - OPR_EQ + OP_EQ, 1, e1, e2);
+        } else {
+          codecomp52(op - OPR_NE + OP_EQ, 0, e1, e2);
+        }
+        break;
+      }
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  void fixline(int line) {
+    f.lineinfo[pc - 1] = line;
+  }
+
+  private int code(int i) {
+    dischargejpc();
+    if(pc == f.code.length) {
+      f.code = Arrays.copyOf(f.code, 2 * pc);
+      f.lineinfo = Arrays.copyOf(f.lineinfo, 2 * pc);
+    }
+    f.code[pc] = i;
+    f.lineinfo[pc] = ls.lastline;
+    return pc++;
+  }
+
+  int codeABC(int o, int a, int b, int c) {
+    return code(createABC(o, a, b, c));
+  }
+
+  int codeABx(int o, int a, int bc) {
+    return code(createABx(o, a, bc));
+  }
+
+  int codeAsBx(int o, int a, int sbx) {
+    return codeABx(o, a, sbx + MAXARG_sBx);
+  }
+
+  int codek(int reg, int k) {
+    if(k <= MAXARG_Bx) {
+      return codeABx(OP_LOADK, reg, k);
+    } else {
+      int p = codeABx(OP_LOADKX, reg, 0);
+      code(createAx(OP_EXTRAARG, k));
+      return p;
+    }
+  }
+
+  void setlist(int base, int nelems, int tostore) {
+    int c = (nelems - 1) / LFIELDS_PER_FLUSH + 1;
+    int b = (tostore == LUA_MULTRET) ? 0 : tostore;
+    if(c <= MAXARG_C) {
+      codeABC(OP_SETLIST, base, b, c);
+    } else if(c <= MAXARG_Ax) {
+      codeABC(OP_SETLIST, base, b, 0);
+      code(createAx(OP_EXTRAARG, c));
+    } else {
+      ls.syntaxerror("constructor too long");
+    }
+    freereg = base + 1;
+  }
+
+}
@@ -0,0 +1,469 @@
+package unluac.compiler;
+
+/**
+ * The Lua 5.1 lexer (llex.c). Source text is handled as bytes; strings hold
+ * one char per byte.
+ */
+class Lexer {
+
+  static final int FIRST_RESERVED = 257;
+
+  static final int TK_AND = 257;
+  static final int TK_BREAK = 258;
+  static final int TK_DO = 259;
+  static final int TK_ELSE = 260;
+  static final int TK_ELSEIF = 261;
+  static final int TK_END = 262;
+  static final int TK_FALSE = 263;
+  static final int TK_FOR = 264;
+  static final int TK_FUNCTION = 265;
+  static final int TK_IF = 266;
+  static final int TK_IN = 267;
+  static final int TK_LOCAL = 268;
+  static final int TK_NIL = 269;
+  static final int TK_NOT = 270;
+  static final int TK_OR = 271;
+  static final int TK_REPEAT = 272;
+  static final int TK_RETURN = 273;
+  static final int TK_THEN = 274;
+  static final int TK_TRUE = 275;
+  static final int TK_UNTIL = 276;
+  static final int TK_WHILE = 277;
+  static final int TK_CONCAT = 278;
+  static final int TK_DOTS = 279;
+  static final int TK_EQ = 280;
+  static final int TK_GE = 281;
+  static final int TK_LE = 282;
+  static final int TK_NE = 283;
+  static final int TK_NUMBER = 284;
+  static final int TK_NAME = 285;
+  static final int TK_STRING = 286;
+  static final int TK_EOS = 287;
+
+  private static final String[] TOKENS = {
+    "and", "break", "do", "else", "elseif",
+    "end", "false", "for", "function", "if",
+    "in", "local", "nil", "not", "or", "repeat",
+    "return", "then", "true", "until", "while",
+    "..", "...", "==", ">=", "<=", "~=",
+    "<number>", "<name>", "<string>", "<eof>",
+  };
+
+  private static final int NUM_RESERVED = TK_WHILE - FIRST_RESERVED + 1;
+
+  private static final int EOZ = -1;
+
+  static class Token {
+
+    int token;
+    double r;
+    String ts;
+
+    void set(Token other) {
+      token = other.token;
+      r = other.r;
+      ts = other.ts;
+    }
+
+  }
+
+  final Token t = new Token();
+  final Token lookahead = new Token();
+  int linenumber = 1;
+  int lastline = 1;
+  final String source;
+
+  private final byte[] input;
+  private int position;
+  private int current;
+  private final StringBuilder buff = new StringBuilder();
+
+  Lexer(byte[] input, int offset, String source) {
+    this.input = input;
+    this.position = offset;
+    this.source = source;
+    lookahead.token = TK_EOS;
+    next();
+  }
+
+  private void next() {
+    current = position < input.length ? 0xFF & input[position++] : EOZ;
+  }
+
+  private boolean currIsNewline() {
+    return current == '\n' || current == '\r';
+  }
+
+  private void save(int c) {
+    buff.append((char) c);
+  }
+
+  private void saveAndNext() {
+    save(current);
+    next();
+  }
+
+  String token2str(int token) {
+    if(token < FIRST_RESERVED) {
+      if(token < 32 || token == 127) {
+        return "char(" + token + ")";
+      } else {
+        return String.valueOf((char) token);
+      }
+    } else {
+      return TOKENS[token - FIRST_RESERVED];
+    }
+  }
+
+  private String txtToken(int token) {
+    switch(token) {
+      case TK_NAME:
+      case TK_STRING:
+      case TK_NUMBER:
+        return buff.toString();
+      default:
+        return token2str(token);
+    }
+  }
+
+  private String chunkid() {
+    if(source.startsWith("=") || source.startsWith("@")) {
+      return source.substring(1);
+    } else {
+      int newline = source.indexOf('\n');
+      String first = newline >= 0 ? source.substring(0, newline) + "..." : source;
+      return "[string \"" + first + "\"]";
+    }
+  }
+
+  void lexerror(String msg, int token) {
+    msg = chunkid() + ":" + linenumber + ": " + msg;
+    if(token != 0) {
+      msg = msg + " near '" + txtToken(token) + "'";
+    }
+    throw new CompileException(msg);
+  }
+
+  void syntaxerror(String msg) {
+    lexerror(msg, t.token);
+  }
+
+  private void inclinenumber() {
+    int old = current;
+    next();
+    if(currIsNewline() && current != old) {
+      next();
+    }
+    if(++linenumber >= Integer.MAX_VALUE) {
+      syntaxerror("chunk has too many lines");
+    }
+  }
+
+  private boolean checkNext(String set) {
+    if(current == EOZ || set.indexOf(current) < 0) {
+      return false;
+    }
+    saveAndNext();
+    return true;
+  }
+
+  private static boolean isdigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isalpha(int c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+  }
+
+  private static boolean isalnum(int c) {
+    return isalpha(c) || isdigit(c);
+  }
+
+  private static boolean isspace(int c) {
+    return c == ' ' || c >= '\t' && c <= '\r';
+  }
+
+  private void readNumeral(Token seminfo) {
+    do {
+      saveAndNext();
+    } while(isdigit(current) || current == '.');
+    if(checkNext("Ee")) {
+      checkNext("+-");
+    }
+    while(isalnum(current) || current == '_') {
+      saveAndNext();
+    }
+    Double value = str2d(buff.toString());
+    if(value == null) {
+      lexerror("malformed number", TK_NUMBER);
+    }
+    seminfo.r = value;
+  }
+
+  /*
+   * Converts a numeral the way luaO_str2d does with the C library's strtod
+   * (which also reads hexadecimal numerals), or returns null.
+   */
+  static Double str2d(String s) {
+    if(s.matches("0[xX]([0-9a-fA-F]+\\.?[0-9a-fA-F]*|\\.[0-9a-fA-F]+)([pP][+-]?[0-9]+)?")) {
+      if(s.indexOf('p') < 0 && s.indexOf('P') < 0) {
+        s = s + "p0";
+      }
+      return Double.parseDouble(s);
+    } else if(s.matches("([0-9]+\\.?[0-9]*|\\.[0-9]+)([eE][+-]?[0-9]+)?")) {
+      return Double.parseDouble(s);
+    } else {
+      return null;
+    }
+  }
+
+  private int skipSep() {
+    int count = 0;
+    int s = current;
+    saveAndNext();
+    while(current == '=') {
+      saveAndNext();
+      count++;
+    }
+    return current == s ? count : (-count) - 1;
+  }
+
+  private void readLongString(Token seminfo, int sep) {
+    saveAndNext();
+    if(currIsNewline()) {
+      inclinenumber();
+    }
+    loop:
+    for(;;) {
+      switch(current) {
+        case EOZ:
+          lexerror(seminfo != null ? "unfinished long string" : "unfinished long comment", TK_EOS);
+          break;
+        case '[': {
+          if(skipSep() == sep) {
+            saveAndNext();
+            if(sep == 0) {
+              lexerror("nesting of [[...]] is deprecated", '[');
+            }
+          }
+          break;
+        }
+        case ']': {
+          if(skipSep() == sep) {
+            saveAndNext();
+            break loop;
+          }
+          break;
+        }
+        case '\n':
+        case '\r': {
+          save('\n');
+          inclinenumber();
+          if(seminfo == null) {
+            buff.setLength(0);
+          }
+          break;
+        }
+        default: {
+          if(seminfo != null) {
+            saveAndNext();
+          } else {
+            next();
+          }
+        }
+      }
+    }
+    if(seminfo != null) {
+      seminfo.ts = buff.substring(2 + sep, buff.length() - (2 + sep));
+    }
+  }
+
+  private void readString(int del, Token seminfo) {
+    saveAndNext();
+    while(current != del) {
+      switch(current) {
+        case EOZ:
+          lexerror("unfinished string", TK_EOS);
+          continue;
+        case '\n':
+        case '\r':
+          lexerror("unfinished string", TK_STRING);
+          continue;
+        case '\\': {
+          int c;
+          next();
+          switch(current) {
+            case 'a': c = 7; break;
+            case 'b': c = '\b'; break;
+            case 'f': c = '\f'; break;
+            case 'n': c = '\n'; break;
+            case 'r': c = '\r'; break;
+            case 't': c = '\t'; break;
+            case 'v': c = 11; break;
+            case '\n':
+            case '\r':
+              save('\n');
+              inclinenumber();
+              continue;
+            case EOZ:
+              continue;
+            default: {
+              if(!isdigit(current)) {
+                saveAndNext();
+              } else {
+                int i = 0;
+                c = 0;
+                do {
+                  c = 10 * c + (current - '0');
+                  next();
+                } while(++i < 3 && isdigit(current));
+                if(c > 255) {
+                  lexerror("escape sequence too large", TK_STRING);
+                }
+                save(c);
+              }
+              continue;
+            }
+          }
+          save(c);
+          next();
+          continue;
+        }
+        default:
+          saveAndNext();
+      }
+    }
+    saveAndNext();
+    seminfo.ts = buff.substring(1, buff.length() - 1);
+  }
+
+  private int llex(Token seminfo) {
+    buff.setLength(0);
+    for(;;) {
+      switch(current) {
+        case '\n':
+        case '\r': {
+          inclinenumber();
+          continue;
+        }
+        case '-': {
+          next();
+          if(current != '-') return '-';
+          next();
+          if(current == '[') {
+            int sep = skipSep();
+            buff.setLength(0);
+            if(sep >= 0) {
+              readLongString(null, sep);
+              buff.setLength(0);
+              continue;
+            }
+          }
+          while(!currIsNewline() && current != EOZ) {
+            next();
+          }
+          continue;
+        }
+        case '[': {
+          int sep = skipSep();
+          if(sep >= 0) {
+            readLongString(seminfo, sep);
+            return TK_STRING;
+          } else if(sep == -1) {
+            return '[';
+          } else {
+            lexerror("invalid long string delimiter", TK_STRING);
+          }
+          break;
+        }
+        case '=': {
+          next();
+          if(current != '=') return '=';
+          next();
+          return TK_EQ;
+        }
+        case '<': {
+          next();
+          if(current != '=') return '<';
+          next();
+          return TK_LE;
+        }
+        case '>': {
+          next();
+          if(current != '=') return '>';
+          next();
+          return TK_GE;
+        }
+        case '~': {
+          next();
+          if(current != '=') return '~';
+          next();
+          return TK_NE;
+        }
+        case '"':
+        case '\'': {
+          readString(current, seminfo);
+          return TK_STRING;
+        }
+        case '.': {
+          saveAndNext();
+          if(checkNext(".")) {
+            if(checkNext(".")) {
+              return TK_DOTS;
+            } else {
+              return TK_CONCAT;
+            }
+          } else if(!isdigit(current)) {
+            return '.';
+          } else {
+            readNumeral(seminfo);
+            return TK_NUMBER;
+          }
+        }
+        case EOZ: {
+          return TK_EOS;
+        }
+        default: {
+          if(isspace(current)) {
+            next();
+            continue;
+          } else if(isdigit(current)) {
+            readNumeral(seminfo);
+            return TK_NUMBER;
+          } else if(isalpha(current) || current == '_') {
+            do {
+              saveAndNext();
+            } while(isalnum(current) || current == '_');
+            String ts = buff.toString();
+            for(int i = 0; i < NUM_RESERVED; i++) {
+              if(TOKENS[i].equals(ts)) {
+                return FIRST_RESERVED + i;
+              }
+            }
+            seminfo.ts = ts;
+            return TK_NAME;
+          } else {
+            int c = current;
+            next();
+            return c;
+          }
+        }
+      }
+    }
+  }
+
+  void nextToken() {
+    lastline = linenumber;
+    if(lookahead.token != TK_EOS) {
+      t.set(lookahead);
+      lookahead.token = TK_EOS;
+    } else {
+      t.token = llex(t);
+    }
+  }
+
+  void lookahead() {
+    lookahead.token = llex(lookahead);
+  }
+
+}
@@ -0,0 +1,429 @@
+package unluac.compiler;
+
+/**
+ * The Lua 5.0 lexer (llex.c). Long brackets have no level and may nest,
+ * numerals are decimal, and only '\n' ends a line.
+ */
+class Lexer50 {
+
+  static final int FIRST_RESERVED = 257;
+
+  static final int TK_AND = 257;
+  static final int TK_BREAK = 258;
+  static final int TK_DO = 259;
+  static final int TK_ELSE = 260;
+  static final int TK_ELSEIF = 261;
+  static final int TK_END = 262;
+  static final int TK_FALSE = 263;
+  static final int TK_FOR = 264;
+  static final int TK_FUNCTION = 265;
+  static final int TK_IF = 266;
+  static final int TK_IN = 267;
+  static final int TK_LOCAL = 268;
+  static final int TK_NIL = 269;
+  static final int TK_NOT = 270;
+  static final int TK_OR = 271;
+  static final int TK_REPEAT = 272;
+  static final int TK_RETURN = 273;
+  static final int TK_THEN = 274;
+  static final int TK_TRUE = 275;
+  static final int TK_UNTIL = 276;
+  static final int TK_WHILE = 277;
+  static final int TK_NAME = 278;
+  static final int TK_CONCAT = 279;
+  static final int TK_DOTS = 280;
+  static final int TK_EQ = 281;
+  static final int TK_GE = 282;
+  static final int TK_LE = 283;
+  static final int TK_NE = 284;
+  static final int TK_NUMBER = 285;
+  static final int TK_STRING = 286;
+  static final int TK_EOS = 287;
+
+  private static final String[] TOKENS = {
+    "and", "break", "do", "else", "elseif",
+    "end", "false", "for", "function", "if",
+    "in", "local", "nil", "not", "or", "repeat",
+    "return", "then", "true", "until", "while", "*name",
+    "..", "...", "==", ">=", "<=", "~=",
+    "*number", "*string", "<eof>",
+  };
+
+  private static final int NUM_RESERVED = TK_WHILE - FIRST_RESERVED + 1;
+
+  private static final int EOZ = -1;
+
+  static class Token {
+
+    int token;
+    double r;
+    String ts;
+
+    void set(Token other) {
+      token = other.token;
+      r = other.r;
+      ts = other.ts;
+    }
+
+  }
+
+  final Token t = new Token();
+  final Token lookahead = new Token();
+  int linenumber = 1;
+  int lastline = 1;
+  final String source;
+
+  private final byte[] input;
+  private int position;
+  private int current;
+  private final StringBuilder buff = new StringBuilder();
+
+  Lexer50(byte[] input, int offset, String source) {
+    this.input = input;
+    this.position = offset;
+    this.source = source;
+    lookahead.token = TK_EOS;
+    next();
+  }
+
+  private void next() {
+    current = position < input.length ? 0xFF & input[position++] : EOZ;
+  }
+
+  private void save(int c) {
+    buff.append((char) c);
+  }
+
+  private void saveAndNext() {
+    save(current);
+    next();
+  }
+
+  String token2str(int token) {
+    if(token < FIRST_RESERVED) {
+      return String.valueOf((char) token);
+    } else {
+      return TOKENS[token - FIRST_RESERVED];
+    }
+  }
+
+  private String chunkid() {
+    if(source.startsWith("=") || source.startsWith("@")) {
+      return source.substring(1);
+    } else {
+      int newline = source.indexOf('\n');
+      String first = newline >= 0 ? source.substring(0, newline) + "..." : source;
+      return "[string \"" + first + "\"]";
+    }
+  }
+
+  private void error(String msg, String token) {
+    throw new CompileException(chunkid() + ":" + linenumber + ": " + msg + " near `" + token + "'");
+  }
+
+  void lexerror(String msg, int token) {
+    error(msg, token == TK_EOS ? token2str(token) : buff.toString());
+  }
+
+  void syntaxerror(String msg) {
+    switch(t.token) {
+      case TK_NAME:
+        error(msg, t.ts);
+        break;
+      case TK_STRING:
+      case TK_NUMBER:
+        error(msg, buff.toString());
+        break;
+      default:
+        error(msg, token2str(t.token));
+        break;
+    }
+  }
+
+  void checklimit(int v, int l, String m) {
+    if(v > l) {
+      syntaxerror("too many " + m + " (limit=" + l + ")");
+    }
+  }
+
+  private void inclinenumber() {
+    next();
+    ++linenumber;
+    checklimit(linenumber, Integer.MAX_VALUE, "lines in a chunk");
+  }
+
+  private static boolean isdigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isalpha(int c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+  }
+
+  private static boolean isalnum(int c) {
+    return isalpha(c) || isdigit(c);
+  }
+
+  private static boolean isspace(int c) {
+    return c == ' ' || c >= '\t' && c <= '\r';
+  }
+
+  private static boolean iscntrl(int c) {
+    return c >= 0 && c < 32 || c == 127;
+  }
+
+  private void readNumeral(boolean comma, Token seminfo) {
+    if(comma) save('.');
+    while(isdigit(current)) {
+      saveAndNext();
+    }
+    if(current == '.') {
+      saveAndNext();
+      if(current == '.') {
+        saveAndNext();
+        lexerror("ambiguous syntax (decimal point x string concatenation)", TK_NUMBER);
+      }
+    }
+    while(isdigit(current)) {
+      saveAndNext();
+    }
+    if(current == 'e' || current == 'E') {
+      saveAndNext();
+      if(current == '+' || current == '-') {
+        saveAndNext();
+      }
+      while(isdigit(current)) {
+        saveAndNext();
+      }
+    }
+    Double value = Lexer.str2d(buff.toString());
+    if(value == null) {
+      lexerror("malformed number", TK_NUMBER);
+    }
+    seminfo.r = value;
+  }
+
+  private void readLongString(Token seminfo) {
+    int cont = 0;
+    save('[');
+    saveAndNext();
+    if(current == '\n') {
+      inclinenumber();
+    }
+    loop:
+    for(;;) {
+      switch(current) {
+        case EOZ:
+          lexerror(seminfo != null ? "unfinished long string" : "unfinished long comment", TK_EOS);
+          break;
+        case '[':
+          saveAndNext();
+          if(current == '[') {
+            cont++;
+            saveAndNext();
+          }
+          break;
+        case ']':
+          saveAndNext();
+          if(current == ']') {
+            if(cont == 0) break loop;
+            cont--;
+            saveAndNext();
+          }
+          break;
+        case '\n':
+          save('\n');
+          inclinenumber();
+          if(seminfo == null) {
+            buff.setLength(0);
+          }
+          break;
+        default:
+          saveAndNext();
+      }
+    }
+    saveAndNext();
+    if(seminfo != null) {
+      seminfo.ts = buff.substring(2, buff.length() - 2);
+    }
+  }
+
+  private void readString(int del, Token seminfo) {
+    saveAndNext();
+    while(current != del) {
+      switch(current) {
+        case EOZ:
+          lexerror("unfinished string", TK_EOS);
+          break;
+        case '\n':
+          lexerror("unfinished string", TK_STRING);
+          break;
+        case '\\': {
+          next();
+          switch(current) {
+            case 'a': save(7); next(); break;
+            case 'b': save('\b'); next(); break;
+            case 'f': save('\f'); next(); break;
+            case 'n': save('\n'); next(); break;
+            case 'r': save('\r'); next(); break;
+            case 't': save('\t'); next(); break;
+            case 'v': save(11); next(); break;
+            case '\n': save('\n'); inclinenumber(); break;
+            case EOZ: break;
+            default: {
+              if(!isdigit(current)) {
+                saveAndNext();
+              } else {
+                int c = 0;
+                int i = 0;
+                do {
+                  c = 10 * c + (current - '0');
+                  next();
+                } while(++i < 3 && isdigit(current));
+                if(c > 255) {
+                  lexerror("escape sequence too large", TK_STRING);
+                }
+                save(c);
+              }
+            }
+          }
+          break;
+        }
+        default:
+          saveAndNext();
+      }
+    }
+    saveAndNext();
+    seminfo.ts = buff.substring(1, buff.length() - 1);
+  }
+
+  private int llex(Token seminfo) {
+    buff.setLength(0);
+    for(;;) {
+      switch(current) {
+        case '\n': {
+          inclinenumber();
+          continue;
+        }
+        case '-': {
+          next();
+          if(current != '-') return '-';
+          next();
+          if(current == '[') {
+            next();
+            if(current == '[') {
+              readLongString(null);
+              buff.setLength(0);
+              continue;
+            }
+          }
+          while(current != '\n' && current != EOZ) {
+            next();
+          }
+          continue;
+        }
+        case '[': {
+          next();
+          if(current != '[') {
+            return '[';
+          } else {
+            readLongString(seminfo);
+            return TK_STRING;
+          }
+        }
+        case '=': {
+          next();
+          if(current != '=') return '=';
+          next();
+          return TK_EQ;
+        }
+        case '<': {
+          next();
+          if(current != '=') return '<';
+          next();
+          return TK_LE;
+        }
+        case '>': {
+          next();
+          if(current != '=') return '>';
+          next();
+          return TK_GE;
+        }
+        case '~': {
+          next();
+          if(current != '=') return '~';
+          next();
+          return TK_NE;
+        }
+        case '"':
+        case '\'': {
+          readString(current, seminfo);
+          return TK_STRING;
+        }
+        case '.': {
+          next();
+          if(current == '.') {
+            next();
+            if(current == '.') {
+              next();
+              return TK_DOTS;
+            } else {
+              return TK_CONCAT;
+            }
+          } else if(!isdigit(current)) {
+            return '.';
+          } else {
+            readNumeral(true, seminfo);
+            return TK_NUMBER;
+          }
+        }
+        case EOZ: {
+          return TK_EOS;
+        }
+        default: {
+          if(isspace(current)) {
+            next();
+            continue;
+          } else if(isdigit(current)) {
+            readNumeral(false, seminfo);
+            return TK_NUMBER;
+          } else if(isalpha(current) || current == '_') {
+            do {
+              saveAndNext();
+            } while(isalnum(current) || current == '_');
+            String ts = buff.toString();
+            for(int i = 0; i < NUM_RESERVED; i++) {
+              if(TOKENS[i].equals(ts)) {
+                return FIRST_RESERVED + i;
+              }
+            }
+            seminfo.ts = ts;
+            return TK_NAME;
+          } else {
+            int c = current;
+            if(iscntrl(c)) {
+              error("invalid control char", "char(" + c + ")");
+            }
+            next();
+            return c;
+          }
+        }
+      }
+    }
+  }
+
+  void nextToken() {
+    lastline = linenumber;
+    if(lookahead.token != TK_EOS) {
+      t.set(lookahead);
+      lookahead.token = TK_EOS;
+    } else {
+      t.token = llex(t);
+    }
+  }
+
+  void lookahead() {
+    lookahead.token = llex(lookahead);
+  }
+
+}
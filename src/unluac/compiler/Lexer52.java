@@ -0,0 +1,672 @@
+package unluac.compiler;
+
+/**
+ * The Lua 5.2 and 5.3 lexer (llex.c). Lua 5.3 adds integer numerals, the
+ * bitwise and floor division operators and the UTF-8 escape. Source text is
+ * handled as bytes; strings hold one char per byte.
+ */
+class Lexer52 {
+
+  static final int FIRST_RESERVED = 257;
+
+  static final int TK_AND = 257;
+  static final int TK_BREAK = 258;
+  static final int TK_DO = 259;
+  static final int TK_ELSE = 260;
+  static final int TK_ELSEIF = 261;
+  static final int TK_END = 262;
+  static final int TK_FALSE = 263;
+  static final int TK_FOR = 264;
+  static final int TK_FUNCTION = 265;
+  static final int TK_GOTO = 266;
+  static final int TK_IF = 267;
+  static final int TK_IN = 268;
+  static final int TK_LOCAL = 269;
+  static final int TK_NIL = 270;
+  static final int TK_NOT = 271;
+  static final int TK_OR = 272;
+  static final int TK_REPEAT = 273;
+  static final int TK_RETURN = 274;
+  static final int TK_THEN = 275;
+  static final int TK_TRUE = 276;
+  static final int TK_UNTIL = 277;
+  static final int TK_WHILE = 278;
+  static final int TK_IDIV = 279;
+  static final int TK_CONCAT = 280;
+  static final int TK_DOTS = 281;
+  static final int TK_EQ = 282;
+  static final int TK_GE = 283;
+  static final int TK_LE = 284;
+  static final int TK_NE = 285;
+  static final int TK_SHL = 286;
+  static final int TK_SHR = 287;
+  static final int TK_DBCOLON = 288;
+  static final int TK_EOS = 289;
+  static final int TK_FLT = 290;
+  static final int TK_INT = 291;
+  static final int TK_NAME = 292;
+  static final int TK_STRING = 293;
+
+  private static final String[] TOKENS = {
+    "and", "break", "do", "else", "elseif",
+    "end", "false", "for", "function", "goto", "if",
+    "in", "local", "nil", "not", "or", "repeat",
+    "return", "then", "true", "until", "while",
+    "//", "..", "...", "==", ">=", "<=", "~=",
+    "<<", ">>", "::", "<eof>",
+    "<number>", "<integer>", "<name>", "<string>",
+  };
+
+  private static final int NUM_RESERVED = TK_WHILE - FIRST_RESERVED + 1;
+
+  private static final int EOZ = -1;
+
+  static class Token {
+
+    int token;
+    double r;
+    long i;
+    String ts;
+
+    void set(Token other) {
+      token = other.token;
+      r = other.r;
+      i = other.i;
+      ts = other.ts;
+    }
+
+  }
+
+  final boolean lua53;
+  final Token t = new Token();
+  final Token lookahead = new Token();
+  int linenumber = 1;
+  int lastline = 1;
+  final String source;
+
+  private final byte[] input;
+  private int position;
+  private int current;
+  private final StringBuilder buff = new StringBuilder();
+  // where the escape sequence being read starts in the buffer
+  private int escape;
+
+  Lexer52(byte[] input, int offset, String source, boolean lua53) {
+    this.input = input;
+    this.position = offset;
+    this.source = source;
+    this.lua53 = lua53;
+    lookahead.token = TK_EOS;
+    next();
+  }
+
+  private void next() {
+    current = position < input.length ? 0xFF & input[position++] : EOZ;
+  }
+
+  private boolean currIsNewline() {
+    return current == '\n' || current == '\r';
+  }
+
+  private void save(int c) {
+    buff.append((char) c);
+  }
+
+  private void saveAndNext() {
+    save(current);
+    next();
+  }
+
+  String token2str(int token) {
+    if(token < FIRST_RESERVED) {
+      if(token >= 32 && token < 127) {
+        return "'" + (char) token + "'";
+      } else if(lua53) {
+        return "'<\\" + token + ">'";
+      } else {
+        return "char(" + token + ")";
+      }
+    } else {
+      String s = TOKENS[token - FIRST_RESERVED];
+      if(token < TK_EOS) {
+        return "'" + s + "'";
+      } else {
+        return s;
+      }
+    }
+  }
+
+  private String txtToken(int token) {
+    switch(token) {
+      case TK_NAME:
+      case TK_STRING:
+      case TK_FLT:
+      case TK_INT:
+        return "'" + buff.toString() + "'";
+      default:
+        return token2str(token);
+    }
+  }
+
+  private String chunkid() {
+    if(source.startsWith("=") || source.startsWith("@")) {
+      return source.substring(1);
+    } else {
+      int newline = source.indexOf('\n');
+      String first = newline >= 0 ? source.substring(0, newline) + "..." : source;
+      return "[string \"" + first + "\"]";
+    }
+  }
+
+  void lexerror(String msg, int token) {
+    msg = chunkid() + ":" + linenumber + ": " + msg;
+    if(token != 0) {
+      msg = msg + " near " + txtToken(token);
+    }
+    throw new CompileException(msg);
+  }
+
+  void syntaxerror(String msg) {
+    lexerror(msg, t.token);
+  }
+
+  /*
+   * An error that is not about the current token (luaK_semerror).
+   */
+  void semerror(String msg) {
+    t.token = 0;
+    syntaxerror(msg);
+  }
+
+  private void inclinenumber() {
+    int old = current;
+    next();
+    if(currIsNewline() && current != old) {
+      next();
+    }
+    if(++linenumber >= Integer.MAX_VALUE) {
+      lexerror("chunk has too many lines", 0);
+    }
+  }
+
+  private boolean checkNext(String set) {
+    if(current == EOZ || set.indexOf(current) < 0) {
+      return false;
+    }
+    saveAndNext();
+    return true;
+  }
+
+  private static boolean isdigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isxdigit(int c) {
+    return isdigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+  }
+
+  private static boolean isalpha(int c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+  }
+
+  private static boolean isalnum(int c) {
+    return isalpha(c) || isdigit(c);
+  }
+
+  private static boolean isspace(int c) {
+    return c == ' ' || c >= '\t' && c <= '\r';
+  }
+
+  private static int hexavalue(int c) {
+    if(isdigit(c)) {
+      return c - '0';
+    } else {
+      return (c | 0x20) - 'a' + 10;
+    }
+  }
+
+  private int readNumeral(Token seminfo) {
+    String expo = "Ee";
+    int first = current;
+    saveAndNext();
+    if(first == '0' && checkNext("xX")) {
+      expo = "Pp";
+    }
+    for(;;) {
+      if(checkNext(expo)) {
+        checkNext("+-");
+      }
+      if(isxdigit(current) || current == '.') {
+        saveAndNext();
+      } else {
+        break;
+      }
+    }
+    String s = buff.toString();
+    if(lua53) {
+      Long i = str2int(s);
+      if(i != null) {
+        seminfo.i = i;
+        return TK_INT;
+      }
+    }
+    Double value = Lexer.str2d(s);
+    if(value == null) {
+      lexerror("malformed number", TK_FLT);
+    }
+    seminfo.r = value;
+    return TK_FLT;
+  }
+
+  /*
+   * Converts an integer numeral as l_str2int does, or returns null if it
+   * is not one or (for a decimal numeral) it overflows. Hexadecimal
+   * numerals wrap around.
+   */
+  static Long str2int(String s) {
+    long a = 0;
+    boolean empty = true;
+    int i = 0;
+    if(s.length() >= 2 && s.charAt(0) == '0' && (s.charAt(1) == 'x' || s.charAt(1) == 'X')) {
+      for(i = 2; i < s.length() && isxdigit(s.charAt(i)); i++) {
+        a = a * 16 + hexavalue(s.charAt(i));
+        empty = false;
+      }
+    } else {
+      long maxby10 = Long.MAX_VALUE / 10;
+      int maxlastd = (int) (Long.MAX_VALUE % 10);
+      for(; i < s.length() && isdigit(s.charAt(i)); i++) {
+        int d = s.charAt(i) - '0';
+        if(a >= maxby10 && (a > maxby10 || d > maxlastd)) {
+          return null;
+        }
+        a = a * 10 + d;
+        empty = false;
+      }
+    }
+    if(empty || i != s.length()) {
+      return null;
+    }
+    return a;
+  }
+
+  private int skipSep() {
+    int count = 0;
+    int s = current;
+    saveAndNext();
+    while(current == '=') {
+      saveAndNext();
+      count++;
+    }
+    return current == s ? count : (-count) - 1;
+  }
+
+  private void readLongString(Token seminfo, int sep) {
+    saveAndNext();
+    if(currIsNewline()) {
+      inclinenumber();
+    }
+    loop:
+    for(;;) {
+      switch(current) {
+        case EOZ: {
+          lexerror(seminfo != null ? "unfinished long string" : "unfinished long comment", TK_EOS);
+          break;
+        }
+        case ']': {
+          if(skipSep() == sep) {
+            saveAndNext();
+            break loop;
+          }
+          break;
+        }
+        case '\n':
+        case '\r': {
+          save('\n');
+          inclinenumber();
+          if(seminfo == null) {
+            buff.setLength(0);
+          }
+          break;
+        }
+        default: {
+          if(seminfo != null) {
+            saveAndNext();
+          } else {
+            next();
+          }
+        }
+      }
+    }
+    if(seminfo != null) {
+      seminfo.ts = buff.substring(2 + sep, buff.length() - (2 + sep));
+    }
+  }
+
+  /*
+   * Reports a bad escape sequence near the string read so far and the
+   * character at fault (Lua 5.3), or near the escape alone (Lua 5.2).
+   */
+  private void escerror(String msg) {
+    if(!lua53) {
+      buff.delete(0, escape);
+    }
+    if(current != EOZ) {
+      saveAndNext();
+    }
+    lexerror(msg, TK_STRING);
+  }
+
+  private int gethexa() {
+    saveAndNext();
+    if(!isxdigit(current)) {
+      escerror("hexadecimal digit expected");
+    }
+    return hexavalue(current);
+  }
+
+  private int readhexaesc() {
+    int r = gethexa();
+    r = (r << 4) + gethexa();
+    buff.setLength(buff.length() - 2);
+    return r;
+  }
+
+  private void utf8esc() {
+    int start = buff.length();
+    saveAndNext();
+    if(current != '{') {
+      escerror("missing '{'");
+    }
+    long r = gethexa();
+    saveAndNext();
+    while(isxdigit(current)) {
+      r = (r << 4) + hexavalue(current);
+      if(r > 0x7FFFFFFFL) {
+        escerror("UTF-8 value too large");
+      }
+      saveAndNext();
+    }
+    if(current != '}') {
+      escerror("missing '}'");
+    }
+    next();
+    buff.setLength(start - 1);
+    // luaO_utf8esc
+    int x = (int) r;
+    if(x < 0x80) {
+      save(x);
+    } else {
+      int[] bytes = new int[8];
+      int n = 0;
+      int mfb = 0x3F;
+      do {
+        bytes[n++] = 0x80 | (x & 0x3F);
+        x >>>= 6;
+        mfb >>>= 1;
+      } while(x > mfb);
+      bytes[n++] = ((~mfb << 1) | x) & 0xFF;
+      while(n > 0) {
+        save(bytes[--n]);
+      }
+    }
+  }
+
+  private int readdecesc() {
+    int r = 0;
+    int i;
+    for(i = 0; i < 3 && isdigit(current); i++) {
+      r = 10 * r + current - '0';
+      saveAndNext();
+    }
+    if(r > 255) {
+      if(!lua53) {
+        // Lua 5.2 shows the digits without the character after them
+        buff.delete(0, escape);
+        lexerror("decimal escape too large", TK_STRING);
+      }
+      escerror("decimal escape too large");
+    }
+    buff.setLength(buff.length() - i);
+    return r;
+  }
+
+  private void readString(int del, Token seminfo) {
+    saveAndNext();
+    while(current != del) {
+      switch(current) {
+        case EOZ:
+          lexerror("unfinished string", TK_EOS);
+          continue;
+        case '\n':
+        case '\r':
+          lexerror("unfinished string", TK_STRING);
+          continue;
+        case '\\': {
+          int c;
+          escape = buff.length();
+          saveAndNext();
+          switch(current) {
+            case 'a': c = 7; break;
+            case 'b': c = '\b'; break;
+            case 'f': c = '\f'; break;
+            case 'n': c = '\n'; break;
+            case 'r': c = '\r'; break;
+            case 't': c = '\t'; break;
+            case 'v': c = 11; break;
+            case 'x': c = readhexaesc(); break;
+            case 'u': {
+              if(!lua53) {
+                escerror("invalid escape sequence");
+              }
+              utf8esc();
+              continue;
+            }
+            case '\n':
+            case '\r': {
+              inclinenumber();
+              buff.setLength(buff.length() - 1);
+              save('\n');
+              continue;
+            }
+            case '\\':
+            case '"':
+            case '\'':
+              c = current;
+              break;
+            case EOZ:
+              continue;
+            case 'z': {
+              buff.setLength(buff.length() - 1);
+              next();
+              while(isspace(current)) {
+                if(currIsNewline()) {
+                  inclinenumber();
+                } else {
+                  next();
+                }
+              }
+              continue;
+            }
+            default: {
+              if(!isdigit(current)) {
+                escerror("invalid escape sequence");
+              }
+              c = readdecesc();
+              buff.setLength(buff.length() - 1);
+              save(c);
+              continue;
+            }
+          }
+          next();
+          buff.setLength(buff.length() - 1);
+          save(c);
+          continue;
+        }
+        default:
+          saveAndNext();
+      }
+    }
+    saveAndNext();
+    seminfo.ts = buff.substring(1, buff.length() - 1);
+  }
+
+  private int llex(Token seminfo) {
+    buff.setLength(0);
+    for(;;) {
+      switch(current) {
+        case '\n':
+        case '\r': {
+          inclinenumber();
+          continue;
+        }
+        case ' ':
+        case '\f':
+        case '\t':
+        case 11: {
+          next();
+          continue;
+        }
+        case '-': {
+          next();
+          if(current != '-') return '-';
+          next();
+          if(current == '[') {
+            int sep = skipSep();
+            buff.setLength(0);
+            if(sep >= 0) {
+              readLongString(null, sep);
+              buff.setLength(0);
+              continue;
+            }
+          }
+          while(!currIsNewline() && current != EOZ) {
+            next();
+          }
+          continue;
+        }
+        case '[': {
+          int sep = skipSep();
+          if(sep >= 0) {
+            readLongString(seminfo, sep);
+            return TK_STRING;
+          } else if(sep == -1) {
+            return '[';
+          } else {
+            lexerror("invalid long string delimiter", TK_STRING);
+          }
+          break;
+        }
+        case '=': {
+          next();
+          if(current != '=') return '=';
+          next();
+          return TK_EQ;
+        }
+        case '<': {
+          next();
+          if(current == '=') {
+            next();
+            return TK_LE;
+          } else if(lua53 && current == '<') {
+            next();
+            return TK_SHL;
+          }
+          return '<';
+        }
+        case '>': {
+          next();
+          if(current == '=') {
+            next();
+            return TK_GE;
+          } else if(lua53 && current == '>') {
+            next();
+            return TK_SHR;
+          }
+          return '>';
+        }
+        case '/': {
+          next();
+          if(lua53 && current == '/') {
+            next();
+            return TK_IDIV;
+          }
+          return '/';
+        }
+        case '~': {
+          next();
+          if(current != '=') return '~';
+          next();
+          return TK_NE;
+        }
+        case ':': {
+          next();
+          if(current != ':') return ':';
+          next();
+          return TK_DBCOLON;
+        }
+        case '"':
+        case '\'': {
+          readString(current, seminfo);
+          return TK_STRING;
+        }
+        case '.': {
+          saveAndNext();
+          if(checkNext(".")) {
+            if(checkNext(".")) {
+              return TK_DOTS;
+            } else {
+              return TK_CONCAT;
+            }
+          } else if(!isdigit(current)) {
+            return '.';
+          } else {
+            return readNumeral(seminfo);
+          }
+        }
+        case '0': case '1': case '2': case '3': case '4':
+        case '5': case '6': case '7': case '8': case '9': {
+          return readNumeral(seminfo);
+        }
+        case EOZ: {
+          return TK_EOS;
+        }
+        default: {
+          if(isalpha(current)) {
+            do {
+              saveAndNext();
+            } while(isalnum(current));
+            String ts = buff.toString();
+            for(int i = 0; i < NUM_RESERVED; i++) {
+              if(TOKENS[i].equals(ts)) {
+                return FIRST_RESERVED + i;
+              }
+            }
+            seminfo.ts = ts;
+            return TK_NAME;
+          } else {
+            int c = current;
+            next();
+            return c;
+          }
+        }
+      }
+    }
+  }
+
+  void nextToken() {
+    lastline = linenumber;
+    if(lookahead.token != TK_EOS) {
+      t.set(lookahead);
+      lookahead.token = TK_EOS;
+    } else {
+      t.token = llex(t);
+    }
+  }
+
+  int lookahead() {
+    lookahead.token = llex(lookahead);
+    return lookahead.token;
+  }
+
+}
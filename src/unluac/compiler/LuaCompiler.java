@@ -0,0 +1,81 @@
+package unluac.compiler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compiles Lua 5.0 to 5.3 source to a chunk in-process, aiming for the same
+ * bytes as the stock luac of that version built for x86-64 (for Lua 5.1,
+ * with LUA_COMPAT_VARARG and LUA_COMPAT_LSTR on, as in its luaconf.h).
+ * <p>
+ * Instances are stateless and may be shared between threads.
+ */
+public class LuaCompiler {
+
+  private final int version;
+  private final boolean strip;
+
+  public LuaCompiler() {
+    this(false);
+  }
+
+  /**
+   * @param strip leave out debug information, as luac -s does
+   */
+  public LuaCompiler(boolean strip) {
+    this(0x51, strip);
+  }
+
+  /**
+   * @param version the Lua version, from 0x50 for Lua 5.0 to 0x53 for Lua 5.3
+   * @param strip leave out debug information, as luac -s does
+   */
+  public LuaCompiler(int version, boolean strip) {
+    if(version < 0x50 || version > 0x53) {
+      throw new IllegalArgumentException("Unsupported Lua version: " + Integer.toHexString(version));
+    }
+    this.version = version;
+    this.strip = strip;
+  }
+
+  /**
+   * Compiles source with the given chunk name ("=stdin" for luac reading
+   * its standard input, "@" and the file name for a file).
+   *
+   * @throws CompileException for a syntax error in the source
+   */
+  public byte[] compile(byte[] source, String chunkname) {
+    int offset = 0;
+    if(source.length > 0 && source[0] == '#') {
+      // skip a Unix exec line, leaving its newline to keep line numbers
+      while(offset < source.length && source[offset] != '\n') {
+        offset++;
+      }
+    }
+    String name = new String(chunkname.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+    if(version == 0x50) {
+      Lexer50 lexer = new Lexer50(source, offset, name);
+      Proto main = new Parser50(lexer).parse();
+      return new Dumper50(strip).dump(main);
+    } else if(version == 0x51) {
+      Lexer lexer = new Lexer(source, offset, name);
+      Proto main = new Parser(lexer).parse();
+      return new Dumper(strip).dump(main);
+    } else {
+      boolean lua53 = version == 0x53;
+      Lexer52 lexer = new Lexer52(source, offset, name, lua53);
+      Proto52 main = new Parser52(lexer).parse();
+      return new Dumper52(lua53, strip).dump(main);
+    }
+  }
+
+  /**
+   * Compiles a source file, naming the chunk after the path as luac does.
+   */
+  public byte[] compile(Path file) throws IOException {
+    return compile(Files.readAllBytes(file), "@" + file.toString());
+  }
+
+}
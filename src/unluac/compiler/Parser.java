@@ -0,0 +1,1080 @@
+package unluac.compiler;
+
+import static unluac.compiler.Lexer.*;
+
+import java.util.Arrays;
+
+/**
+ * The Lua 5.1 parser (lparser.c), driving a FuncState for each function.
+ */
+class Parser {
+
+  static final int LUAI_MAXVARS = 200;
+  static final int LUAI_MAXUPVALUES = 60;
+  static final int LUAI_MAXCCALLS = 200;
+
+  private static final int[][] PRIORITY = {
+    {6, 6}, {6, 6}, {7, 7}, {7, 7}, {7, 7},
+    {10, 9}, {5, 4},
+    {3, 3}, {3, 3},
+    {3, 3}, {3, 3}, {3, 3}, {3, 3},
+    {2, 2}, {1, 1},
+  };
+
+  private static final int UNARY_PRIORITY = 8;
+
+  private static class LHSAssign {
+
+    LHSAssign prev;
+    final ExpDesc v = new ExpDesc();
+
+  }
+
+  private static class ConsControl {
+
+    final ExpDesc v = new ExpDesc();
+    ExpDesc t;
+    int nh;
+    int na;
+    int tostore;
+
+  }
+
+  private final Lexer ls;
+  private FuncState fs;
+  // luac's own call to its main function is already on the C stack
+  private int nCcalls = 1;
+
+  Parser(Lexer ls) {
+    this.ls = ls;
+  }
+
+  Proto parse() {
+    FuncState funcstate = new FuncState();
+    openFunc(funcstate);
+    funcstate.f.isVararg = FuncState.VARARG_ISVARARG;
+    ls.nextToken();
+    chunk();
+    check(TK_EOS);
+    closeFunc();
+    return funcstate.f;
+  }
+
+  private void errorExpected(int token) {
+    ls.syntaxerror("'" + ls.token2str(token) + "' expected");
+  }
+
+  private void errorlimit(FuncState fs, int limit, String what) {
+    String msg = (fs.f.linedefined == 0)
+      ? "main function has more than " + limit + " " + what
+      : "function at line " + fs.f.linedefined + " has more than " + limit + " " + what;
+    ls.lexerror(msg, 0);
+  }
+
+  private void checklimit(FuncState fs, int v, int l, String m) {
+    if(v > l) errorlimit(fs, l, m);
+  }
+
+  private boolean testnext(int c) {
+    if(ls.t.token == c) {
+      ls.nextToken();
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  private void check(int c) {
+    if(ls.t.token != c) {
+      errorExpected(c);
+    }
+  }
+
+  private void checknext(int c) {
+    check(c);
+    ls.nextToken();
+  }
+
+  private void checkCondition(boolean c, String msg) {
+    if(!c) ls.syntaxerror(msg);
+  }
+
+  private void checkMatch(int what, int who, int where) {
+    if(!testnext(what)) {
+      if(where == ls.linenumber) {
+        errorExpected(what);
+      } else {
+        ls.syntaxerror("'" + ls.token2str(what) + "' expected (to close '" + ls.token2str(who) + "' at line " + where + ")");
+      }
+    }
+  }
+
+  private String strCheckname() {
+    check(TK_NAME);
+    String ts = ls.t.ts;
+    ls.nextToken();
+    return ts;
+  }
+
+  private void codestring(ExpDesc e, String s) {
+    e.init(ExpDesc.VK, fs.stringK(s));
+  }
+
+  private void checkname(ExpDesc e) {
+    codestring(e, strCheckname());
+  }
+
+  private int registerlocalvar(String varname) {
+    fs.f.locvars.add(new Proto.LocVar(varname));
+    return fs.f.locvars.size() - 1;
+  }
+
+  private void newLocalvar(String name, int n) {
+    checklimit(fs, fs.nactvar + n + 1, LUAI_MAXVARS, "local variables");
+    fs.actvar[fs.nactvar + n] = registerlocalvar(name);
+  }
+
+  private Proto.LocVar getlocvar(FuncState fs, int i) {
+    return fs.f.locvars.get(fs.actvar[i]);
+  }
+
+  private void adjustlocalvars(int nvars) {
+    fs.nactvar = fs.nactvar + nvars;
+    for(; nvars != 0; nvars--) {
+      getlocvar(fs, fs.nactvar - nvars).startpc = fs.pc;
+    }
+  }
+
+  private void removevars(int tolevel) {
+    while(fs.nactvar > tolevel) {
+      getlocvar(fs, --fs.nactvar).endpc = fs.pc;
+    }
+  }
+
+  private int indexupvalue(FuncState fs, String name, ExpDesc v) {
+    Proto f = fs.f;
+    for(int i = 0; i < f.nups; i++) {
+      if(fs.upvalueKind[i] == v.k && fs.upvalueInfo[i] == v.info) {
+        return i;
+      }
+    }
+    checklimit(fs, f.nups + 1, LUAI_MAXUPVALUES, "upvalues");
+    f.upvalues.add(name);
+    fs.upvalueKind[f.nups] = v.k;
+    fs.upvalueInfo[f.nups] = v.info;
+    return f.nups++;
+  }
+
+  private int searchvar(FuncState fs, String n) {
+    for(int i = fs.nactvar - 1; i >= 0; i--) {
+      if(n.equals(getlocvar(fs, i).name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void markupval(FuncState fs, int level) {
+    FuncState.BlockCnt bl = fs.bl;
+    while(bl != null && bl.nactvar > level) bl = bl.previous;
+    if(bl != null) bl.upval = true;
+  }
+
+  private int singlevaraux(FuncState fs, String n, ExpDesc var, boolean base) {
+    if(fs == null) {
+      var.init(ExpDesc.VGLOBAL, FuncState.NO_REG);
+      return ExpDesc.VGLOBAL;
+    } else {
+      int v = searchvar(fs, n);
+      if(v >= 0) {
+        var.init(ExpDesc.VLOCAL, v);
+        if(!base) {
+          markupval(fs, v);
+        }
+        return ExpDesc.VLOCAL;
+      } else {
+        if(singlevaraux(fs.prev, n, var, false) == ExpDesc.VGLOBAL) {
+          return ExpDesc.VGLOBAL;
+        }
+        var.info = indexupvalue(fs, n, var);
+        var.k = ExpDesc.VUPVAL;
+        return ExpDesc.VUPVAL;
+      }
+    }
+  }
+
+  private void singlevar(ExpDesc var) {
+    String varname = strCheckname();
+    if(singlevaraux(fs, varname, var, true) == ExpDesc.VGLOBAL) {
+      var.info = fs.stringK(varname);
+    }
+  }
+
+  private void adjustAssign(int nvars, int nexps, ExpDesc e) {
+    int extra = nvars - nexps;
+    if(e.hasMultRet()) {
+      extra++;
+      if(extra < 0) extra = 0;
+      fs.setreturns(e, extra);
+      if(extra > 1) fs.reserveregs(extra - 1);
+    } else {
+      if(e.k != ExpDesc.VVOID) fs.exp2nextreg(e);
+      if(extra > 0) {
+        int reg = fs.freereg;
+        fs.reserveregs(extra);
+        fs.nil(reg, extra);
+      }
+    }
+  }
+
+  private void enterlevel() {
+    if(++nCcalls > LUAI_MAXCCALLS) {
+      ls.lexerror("chunk has too many syntax levels", 0);
+    }
+  }
+
+  private void leavelevel() {
+    nCcalls--;
+  }
+
+  private void enterblock(FuncState fs, FuncState.BlockCnt bl, boolean isbreakable) {
+    bl.breaklist = FuncState.NO_JUMP;
+    bl.isbreakable = isbreakable;
+    bl.nactvar = fs.nactvar;
+    bl.upval = false;
+    bl.previous = fs.bl;
+    fs.bl = bl;
+  }
+
+  private void leaveblock(FuncState fs) {
+    FuncState.BlockCnt bl = fs.bl;
+    fs.bl = bl.previous;
+    removevars(bl.nactvar);
+    if(bl.upval) {
+      fs.codeABC(FuncState.OP_CLOSE, bl.nactvar, 0, 0);
+    }
+    fs.freereg = fs.nactvar;
+    fs.patchtohere(bl.breaklist);
+  }
+
+  private void pushclosure(FuncState func, ExpDesc v) {
+    Proto f = fs.f;
+    f.p.add(func.f);
+    v.init(ExpDesc.VRELOCABLE, fs.codeABx(FuncState.OP_CLOSURE, 0, f.p.size() - 1));
+    for(int i = 0; i < func.f.nups; i++) {
+      int o = (func.upvalueKind[i] == ExpDesc.VLOCAL) ? FuncState.OP_MOVE : FuncState.OP_GETUPVAL;
+      fs.codeABC(o, 0, func.upvalueInfo[i], 0);
+    }
+  }
+
+  private void openFunc(FuncState fs) {
+    fs.prev = this.fs;
+    fs.ls = ls;
+    this.fs = fs;
+    fs.pc = 0;
+    fs.lasttarget = -1;
+    fs.jpc = FuncState.NO_JUMP;
+    fs.freereg = 0;
+    fs.nactvar = 0;
+    fs.bl = null;
+    fs.f.source = ls.source;
+    fs.f.maxstacksize = 2;
+  }
+
+  private void closeFunc() {
+    removevars(0);
+    fs.ret(0, 0);
+    fs.f.code = Arrays.copyOf(fs.f.code, fs.pc);
+    fs.f.lineinfo = Arrays.copyOf(fs.f.lineinfo, fs.pc);
+    fs = fs.prev;
+  }
+
+  private void field(ExpDesc v) {
+    ExpDesc key = new ExpDesc();
+    fs.exp2anyreg(v);
+    ls.nextToken();
+    checkname(key);
+    fs.indexed(v, key);
+  }
+
+  private void yindex(ExpDesc v) {
+    ls.nextToken();
+    expr(v);
+    fs.exp2val(v);
+    checknext(']');
+  }
+
+  private void recfield(ConsControl cc) {
+    int reg = fs.freereg;
+    ExpDesc key = new ExpDesc();
+    ExpDesc val = new ExpDesc();
+    if(ls.t.token == TK_NAME) {
+      checklimit(fs, cc.nh, Integer.MAX_VALUE - 2, "items in a constructor");
+      checkname(key);
+    } else {
+      yindex(key);
+    }
+    cc.nh++;
+    checknext('=');
+    int rkkey = fs.exp2RK(key);
+    expr(val);
+    fs.codeABC(FuncState.OP_SETTABLE, cc.t.info, rkkey, fs.exp2RK(val));
+    fs.freereg = reg;
+  }
+
+  private void closelistfield(ConsControl cc) {
+    if(cc.v.k == ExpDesc.VVOID) return;
+    fs.exp2nextreg(cc.v);
+    cc.v.k = ExpDesc.VVOID;
+    if(cc.tostore == FuncState.LFIELDS_PER_FLUSH) {
+      fs.setlist(cc.t.info, cc.na, cc.tostore);
+      cc.tostore = 0;
+    }
+  }
+
+  private void lastlistfield(ConsControl cc) {
+    if(cc.tostore == 0) return;
+    if(cc.v.hasMultRet()) {
+      fs.setmultret(cc.v);
+      fs.setlist(cc.t.info, cc.na, FuncState.LUA_MULTRET);
+      cc.na--;
+    } else {
+      if(cc.v.k != ExpDesc.VVOID) {
+        fs.exp2nextreg(cc.v);
+      }
+      fs.setlist(cc.t.info, cc.na, cc.tostore);
+    }
+  }
+
+  private void listfield(ConsControl cc) {
+    expr(cc.v);
+    checklimit(fs, cc.na, Integer.MAX_VALUE - 2, "items in a constructor");
+    cc.na++;
+    cc.tostore++;
+  }
+
+  private static int int2fb(int x) {
+    int e = 0;
+    while(x >= 16) {
+      x = (x + 1) >>> 1;
+      e++;
+    }
+    if(x < 8) {
+      return x;
+    } else {
+      return ((e + 1) << 3) | (x - 8);
+    }
+  }
+
+  private void constructor(ExpDesc t) {
+    FuncState fs = this.fs;
+    int line = ls.linenumber;
+    int pc = fs.codeABC(FuncState.OP_NEWTABLE, 0, 0, 0);
+    ConsControl cc = new ConsControl();
+    cc.t = t;
+    t.init(ExpDesc.VRELOCABLE, pc);
+    cc.v.init(ExpDesc.VVOID, 0);
+    fs.exp2nextreg(t);
+    checknext('{');
+    do {
+      if(ls.t.token == '}') break;
+      closelistfield(cc);
+      switch(ls.t.token) {
+        case TK_NAME: {
+          ls.lookahead();
+          if(ls.lookahead.token != '=') {
+            listfield(cc);
+          } else {
+            recfield(cc);
+          }
+          break;
+        }
+        case '[': {
+          recfield(cc);
+          break;
+        }
+        default: {
+          listfield(cc);
+          break;
+        }
+      }
+    } while(testnext(',') || testnext(';'));
+    checkMatch('}', '{', line);
+    lastlistfield(cc);
+    fs.setB(pc, int2fb(cc.na));
+    fs.setC(pc, int2fb(cc.nh));
+  }
+
+  private void parlist() {
+    Proto f = fs.f;
+    int nparams = 0;
+    f.isVararg = 0;
+    if(ls.t.token != ')') {
+      do {
+        switch(ls.t.token) {
+          case TK_NAME: {
+            newLocalvar(strCheckname(), nparams++);
+            break;
+          }
+          case TK_DOTS: {
+            ls.nextToken();
+            // LUA_COMPAT_VARARG: the implicit 'arg' parameter
+            newLocalvar("arg", nparams++);
+            f.isVararg = FuncState.VARARG_HASARG | FuncState.VARARG_NEEDSARG;
+            f.isVararg |= FuncState.VARARG_ISVARARG;
+            break;
+          }
+          default:
+            ls.syntaxerror("<name> or '...' expected");
+        }
+      } while(f.isVararg == 0 && testnext(','));
+    }
+    adjustlocalvars(nparams);
+    f.numparams = fs.nactvar - (f.isVararg & FuncState.VARARG_HASARG);
+    fs.reserveregs(fs.nactvar);
+  }
+
+  private void body(ExpDesc e, boolean needself, int line) {
+    FuncState newFs = new FuncState();
+    openFunc(newFs);
+    newFs.f.linedefined = line;
+    checknext('(');
+    if(needself) {
+      newLocalvar("self", 0);
+      adjustlocalvars(1);
+    }
+    parlist();
+    checknext(')');
+    chunk();
+    newFs.f.lastlinedefined = ls.linenumber;
+    checkMatch(TK_END, TK_FUNCTION, line);
+    closeFunc();
+    pushclosure(newFs, e);
+  }
+
+  private int explist1(ExpDesc v) {
+    int n = 1;
+    expr(v);
+    while(testnext(',')) {
+      fs.exp2nextreg(v);
+      expr(v);
+      n++;
+    }
+    return n;
+  }
+
+  private void funcargs(ExpDesc f) {
+    ExpDesc args = new ExpDesc();
+    int line = ls.linenumber;
+    switch(ls.t.token) {
+      case '(': {
+        if(line != ls.lastline) {
+          ls.syntaxerror("ambiguous syntax (function call x new statement)");
+        }
+        ls.nextToken();
+        if(ls.t.token == ')') {
+          args.k = ExpDesc.VVOID;
+        } else {
+          explist1(args);
+          fs.setmultret(args);
+        }
+        checkMatch(')', '(', line);
+        break;
+      }
+      case '{': {
+        constructor(args);
+        break;
+      }
+      case TK_STRING: {
+        codestring(args, ls.t.ts);
+        ls.nextToken();
+        break;
+      }
+      default: {
+        ls.syntaxerror("function arguments expected");
+        return;
+      }
+    }
+    int base = f.info;
+    int nparams;
+    if(args.hasMultRet()) {
+      nparams = FuncState.LUA_MULTRET;
+    } else {
+      if(args.k != ExpDesc.VVOID) {
+        fs.exp2nextreg(args);
+      }
+      nparams = fs.freereg - (base + 1);
+    }
+    f.init(ExpDesc.VCALL, fs.codeABC(FuncState.OP_CALL, base, nparams + 1, 2));
+    fs.fixline(line);
+    fs.freereg = base + 1;
+  }
+
+  private void prefixexp(ExpDesc v) {
+    switch(ls.t.token) {
+      case '(': {
+        int line = ls.linenumber;
+        ls.nextToken();
+        expr(v);
+        checkMatch(')', '(', line);
+        fs.dischargevars(v);
+        return;
+      }
+      case TK_NAME: {
+        singlevar(v);
+        return;
+      }
+      default: {
+        ls.syntaxerror("unexpected symbol");
+        return;
+      }
+    }
+  }
+
+  private void primaryexp(ExpDesc v) {
+    prefixexp(v);
+    for(;;) {
+      switch(ls.t.token) {
+        case '.': {
+          field(v);
+          break;
+        }
+        case '[': {
+          ExpDesc key = new ExpDesc();
+          fs.exp2anyreg(v);
+          yindex(key);
+          fs.indexed(v, key);
+          break;
+        }
+        case ':': {
+          ExpDesc key = new ExpDesc();
+          ls.nextToken();
+          checkname(key);
+          fs.self(v, key);
+          funcargs(v);
+          break;
+        }
+        case '(':
+        case TK_STRING:
+        case '{': {
+          fs.exp2nextreg(v);
+          funcargs(v);
+          break;
+        }
+        default:
+          return;
+      }
+    }
+  }
+
+  private void simpleexp(ExpDesc v) {
+    switch(ls.t.token) {
+      case TK_NUMBER: {
+        v.init(ExpDesc.VKNUM, 0);
+        v.nval = ls.t.r;
+        break;
+      }
+      case TK_STRING: {
+        codestring(v, ls.t.ts);
+        break;
+      }
+      case TK_NIL: {
+        v.init(ExpDesc.VNIL, 0);
+        break;
+      }
+      case TK_TRUE: {
+        v.init(ExpDesc.VTRUE, 0);
+        break;
+      }
+      case TK_FALSE: {
+        v.init(ExpDesc.VFALSE, 0);
+        break;
+      }
+      case TK_DOTS: {
+        checkCondition(fs.f.isVararg != 0, "cannot use '...' outside a vararg function");
+        fs.f.isVararg &= ~FuncState.VARARG_NEEDSARG;
+        v.init(ExpDesc.VVARARG, fs.codeABC(FuncState.OP_VARARG, 0, 1, 0));
+        break;
+      }
+      case '{': {
+        constructor(v);
+        return;
+      }
+      case TK_FUNCTION: {
+        ls.nextToken();
+        body(v, false, ls.linenumber);
+        return;
+      }
+      default: {
+        primaryexp(v);
+        return;
+      }
+    }
+    ls.nextToken();
+  }
+
+  private static int getunopr(int op) {
+    switch(op) {
+      case TK_NOT: return FuncState.OPR_NOT;
+      case '-': return FuncState.OPR_MINUS;
+      case '#': return FuncState.OPR_LEN;
+      default: return FuncState.OPR_NOUNOPR;
+    }
+  }
+
+  private static int getbinopr(int op) {
+    switch(op) {
+      case '+': return FuncState.OPR_ADD;
+      case '-': return FuncState.OPR_SUB;
+      case '*': return FuncState.OPR_MUL;
+      case '/': return FuncState.OPR_DIV;
+      case '%': return FuncState.OPR_MOD;
+      case '^': return FuncState.OPR_POW;
+      case TK_CONCAT: return FuncState.OPR_CONCAT;
+      case TK_NE: return FuncState.OPR_NE;
+      case TK_EQ: return FuncState.OPR_EQ;
+      case '<': return FuncState.OPR_LT;
+      case TK_LE: return FuncState.OPR_LE;
+      case '>': return FuncState.OPR_GT;
+      case TK_GE: return FuncState.OPR_GE;
+      case TK_AND: return FuncState.OPR_AND;
+      case TK_OR: return FuncState.OPR_OR;
+      default: return FuncState.OPR_NOBINOPR;
+    }
+  }
+
+  private int subexpr(ExpDesc v, int limit) {
+    enterlevel();
+    int uop = getunopr(ls.t.token);
+    if(uop != FuncState.OPR_NOUNOPR) {
+      ls.nextToken();
+      subexpr(v, UNARY_PRIORITY);
+      fs.prefix(uop, v);
+    } else {
+      simpleexp(v);
+    }
+    int op = getbinopr(ls.t.token);
+    while(op != FuncState.OPR_NOBINOPR && PRIORITY[op][0] > limit) {
+      ExpDesc v2 = new ExpDesc();
+      ls.nextToken();
+      fs.infix(op, v);
+      int nextop = subexpr(v2, PRIORITY[op][1]);
+      fs.posfix(op, v, v2);
+      op = nextop;
+    }
+    leavelevel();
+    return op;
+  }
+
+  private void expr(ExpDesc v) {
+    subexpr(v, 0);
+  }
+
+  private static boolean blockFollow(int token) {
+    switch(token) {
+      case TK_ELSE:
+      case TK_ELSEIF:
+      case TK_END:
+      case TK_UNTIL:
+      case TK_EOS:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void block() {
+    FuncState fs = this.fs;
+    FuncState.BlockCnt bl = new FuncState.BlockCnt();
+    enterblock(fs, bl, false);
+    chunk();
+    leaveblock(fs);
+  }
+
+  private void checkConflict(LHSAssign lh, ExpDesc v) {
+    int extra = fs.freereg;
+    boolean conflict = false;
+    for(; lh != null; lh = lh.prev) {
+      if(lh.v.k == ExpDesc.VINDEXED) {
+        if(lh.v.info == v.info) {
+          conflict = true;
+          lh.v.info = extra;
+        }
+        if(lh.v.aux == v.info) {
+          conflict = true;
+          lh.v.aux = extra;
+        }
+      }
+    }
+    if(conflict) {
+      fs.codeABC(FuncState.OP_MOVE, fs.freereg, v.info, 0);
+      fs.reserveregs(1);
+    }
+  }
+
+  private void assignment(LHSAssign lh, int nvars) {
+    ExpDesc e = new ExpDesc();
+    checkCondition(ExpDesc.VLOCAL <= lh.v.k && lh.v.k <= ExpDesc.VINDEXED, "syntax error");
+    if(testnext(',')) {
+      LHSAssign nv = new LHSAssign();
+      nv.prev = lh;
+      primaryexp(nv.v);
+      if(nv.v.k == ExpDesc.VLOCAL) {
+        checkConflict(lh, nv.v);
+      }
+      checklimit(fs, nvars, LUAI_MAXCCALLS - nCcalls, "variables in assignment");
+      assignment(nv, nvars + 1);
+    } else {
+      checknext('=');
+      int nexps = explist1(e);
+      if(nexps != nvars) {
+        adjustAssign(nvars, nexps, e);
+        if(nexps > nvars) {
+          fs.freereg -= nexps - nvars;
+        }
+      } else {
+        fs.setoneret(e);
+        fs.storevar(lh.v, e);
+        return;
+      }
+    }
+    e.init(ExpDesc.VNONRELOC, fs.freereg - 1);
+    fs.storevar(lh.v, e);
+  }
+
+  private int cond() {
+    ExpDesc v = new ExpDesc();
+    expr(v);
+    if(v.k == ExpDesc.VNIL) v.k = ExpDesc.VFALSE;
+    fs.goiftrue(v);
+    return v.f;
+  }
+
+  private void breakstat() {
+    FuncState.BlockCnt bl = fs.bl;
+    boolean upval = false;
+    while(bl != null && !bl.isbreakable) {
+      upval |= bl.upval;
+      bl = bl.previous;
+    }
+    if(bl == null) {
+      ls.syntaxerror("no loop to break");
+    }
+    if(upval) {
+      fs.codeABC(FuncState.OP_CLOSE, bl.nactvar, 0, 0);
+    }
+    bl.breaklist = fs.concat(bl.breaklist, fs.jump());
+  }
+
+  private void whilestat(int line) {
+    FuncState fs = this.fs;
+    FuncState.BlockCnt bl = new FuncState.BlockCnt();
+    ls.nextToken();
+    int whileinit = fs.getlabel();
+    int condexit = cond();
+    enterblock(fs, bl, true);
+    checknext(TK_DO);
+    block();
+    fs.patchlist(fs.jump(), whileinit);
+    checkMatch(TK_END, TK_WHILE, line);
+    leaveblock(fs);
+    fs.patchtohere(condexit);
+  }
+
+  private void repeatstat(int line) {
+    FuncState fs = this.fs;
+    int repeatInit = fs.getlabel();
+    FuncState.BlockCnt bl1 = new FuncState.BlockCnt();
+    FuncState.BlockCnt bl2 = new FuncState.BlockCnt();
+    enterblock(fs, bl1, true);
+    enterblock(fs, bl2, false);
+    ls.nextToken();
+    chunk();
+    checkMatch(TK_UNTIL, TK_REPEAT, line);
+    int condexit = cond();
+    if(!bl2.upval) {
+      leaveblock(fs);
+      fs.patchlist(condexit, repeatInit);
+    } else {
+      breakstat();
+      fs.patchtohere(condexit);
+      leaveblock(fs);
+      fs.patchlist(fs.jump(), repeatInit);
+    }
+    leaveblock(fs);
+  }
+
+  private int exp1() {
+    ExpDesc e = new ExpDesc();
+    expr(e);
+    int k = e.k;
+    fs.exp2nextreg(e);
+    return k;
+  }
+
+  private void forbody(int base, int line, int nvars, boolean isnum) {
+    FuncState.BlockCnt bl = new FuncState.BlockCnt();
+    FuncState fs = this.fs;
+    adjustlocalvars(3);
+    checknext(TK_DO);
+    int prep = isnum ? fs.codeAsBx(FuncState.OP_FORPREP, base, FuncState.NO_JUMP) : fs.jump();
+    enterblock(fs, bl, false);
+    adjustlocalvars(nvars);
+    fs.reserveregs(nvars);
+    block();
+    leaveblock(fs);
+    fs.patchtohere(prep);
+    int endfor = isnum
+      ? fs.codeAsBx(FuncState.OP_FORLOOP, base, FuncState.NO_JUMP)
+      : fs.codeABC(FuncState.OP_TFORLOOP, base, 0, nvars);
+    fs.fixline(line);
+    fs.patchlist(isnum ? endfor : fs.jump(), prep + 1);
+  }
+
+  private void fornum(String varname, int line) {
+    FuncState fs = this.fs;
+    int base = fs.freereg;
+    newLocalvar("(for index)", 0);
+    newLocalvar("(for limit)", 1);
+    newLocalvar("(for step)", 2);
+    newLocalvar(varname, 3);
+    checknext('=');
+    exp1();
+    checknext(',');
+    exp1();
+    if(testnext(',')) {
+      exp1();
+    } else {
+      fs.codeABx(FuncState.OP_LOADK, fs.freereg, fs.numberK(1));
+      fs.reserveregs(1);
+    }
+    forbody(base, line, 1, true);
+  }
+
+  private void forlist(String indexname) {
+    FuncState fs = this.fs;
+    ExpDesc e = new ExpDesc();
+    int nvars = 0;
+    int base = fs.freereg;
+    newLocalvar("(for generator)", nvars++);
+    newLocalvar("(for state)", nvars++);
+    newLocalvar("(for control)", nvars++);
+    newLocalvar(indexname, nvars++);
+    while(testnext(',')) {
+      newLocalvar(strCheckname(), nvars++);
+    }
+    checknext(TK_IN);
+    int line = ls.linenumber;
+    adjustAssign(3, explist1(e), e);
+    fs.checkstack(3);
+    forbody(base, line, nvars - 3, false);
+  }
+
+  private void forstat(int line) {
+    FuncState fs = this.fs;
+    FuncState.BlockCnt bl = new FuncState.BlockCnt();
+    enterblock(fs, bl, true);
+    ls.nextToken();
+    String varname = strCheckname();
+    switch(ls.t.token) {
+      case '=':
+        fornum(varname, line);
+        break;
+      case ',':
+      case TK_IN:
+        forlist(varname);
+        break;
+      default:
+        ls.syntaxerror("'=' or 'in' expected");
+    }
+    checkMatch(TK_END, TK_FOR, line);
+    leaveblock(fs);
+  }
+
+  private int testThenBlock() {
+    ls.nextToken();
+    int condexit = cond();
+    checknext(TK_THEN);
+    block();
+    return condexit;
+  }
+
+  private void ifstat(int line) {
+    FuncState fs = this.fs;
+    int escapelist = FuncState.NO_JUMP;
+    int flist = testThenBlock();
+    while(ls.t.token == TK_ELSEIF) {
+      escapelist = fs.concat(escapelist, fs.jump());
+      fs.patchtohere(flist);
+      flist = testThenBlock();
+    }
+    if(ls.t.token == TK_ELSE) {
+      escapelist = fs.concat(escapelist, fs.jump());
+      fs.patchtohere(flist);
+      ls.nextToken();
+      block();
+    } else {
+      escapelist = fs.concat(escapelist, flist);
+    }
+    fs.patchtohere(escapelist);
+    checkMatch(TK_END, TK_IF, line);
+  }
+
+  private void localfunc() {
+    ExpDesc v = new ExpDesc();
+    ExpDesc b = new ExpDesc();
+    FuncState fs = this.fs;
+    newLocalvar(strCheckname(), 0);
+    v.init(ExpDesc.VLOCAL, fs.freereg);
+    fs.reserveregs(1);
+    adjustlocalvars(1);
+    body(b, false, ls.linenumber);
+    fs.storevar(v, b);
+    getlocvar(fs, fs.nactvar - 1).startpc = fs.pc;
+  }
+
+  private void localstat() {
+    int nvars = 0;
+    int nexps;
+    ExpDesc e = new ExpDesc();
+    do {
+      newLocalvar(strCheckname(), nvars++);
+    } while(testnext(','));
+    if(testnext('=')) {
+      nexps = explist1(e);
+    } else {
+      e.k = ExpDesc.VVOID;
+      nexps = 0;
+    }
+    adjustAssign(nvars, nexps, e);
+    adjustlocalvars(nvars);
+  }
+
+  private boolean funcname(ExpDesc v) {
+    boolean needself = false;
+    singlevar(v);
+    while(ls.t.token == '.') {
+      field(v);
+    }
+    if(ls.t.token == ':') {
+      needself = true;
+      field(v);
+    }
+    return needself;
+  }
+
+  private void funcstat(int line) {
+    ExpDesc v = new ExpDesc();
+    ExpDesc b = new ExpDesc();
+    ls.nextToken();
+    boolean needself = funcname(v);
+    body(b, needself, line);
+    fs.storevar(v, b);
+    fs.fixline(line);
+  }
+
+  private void exprstat() {
+    LHSAssign v = new LHSAssign();
+    primaryexp(v.v);
+    if(v.v.k == ExpDesc.VCALL) {
+      fs.setC(v.v.info, 1);
+    } else {
+      v.prev = null;
+      assignment(v, 1);
+    }
+  }
+
+  private void retstat() {
+    ExpDesc e = new ExpDesc();
+    int first;
+    int nret;
+    ls.nextToken();
+    if(blockFollow(ls.t.token) || ls.t.token == ';') {
+      first = nret = 0;
+    } else {
+      nret = explist1(e);
+      if(e.hasMultRet()) {
+        fs.setmultret(e);
+        if(e.k == ExpDesc.VCALL && nret == 1) {
+          fs.setOpcode(e.info, FuncState.OP_TAILCALL);
+        }
+        first = fs.nactvar;
+        nret = FuncState.LUA_MULTRET;
+      } else {
+        if(nret == 1) {
+          first = fs.exp2anyreg(e);
+        } else {
+          fs.exp2nextreg(e);
+          first = fs.nactvar;
+        }
+      }
+    }
+    fs.ret(first, nret);
+  }
+
+  private boolean statement() {
+    int line = ls.linenumber;
+    switch(ls.t.token) {
+      case TK_IF: {
+        ifstat(line);
+        return false;
+      }
+      case TK_WHILE: {
+        whilestat(line);
+        return false;
+      }
+      case TK_DO: {
+        ls.nextToken();
+        block();
+        checkMatch(TK_END, TK_DO, line);
+        return false;
+      }
+      case TK_FOR: {
+        forstat(line);
+        return false;
+      }
+      case TK_REPEAT: {
+        repeatstat(line);
+        return false;
+      }
+      case TK_FUNCTION: {
+        funcstat(line);
+        return false;
+      }
+      case TK_LOCAL: {
+        ls.nextToken();
+        if(testnext(TK_FUNCTION)) {
+          localfunc();
+        } else {
+          localstat();
+        }
+        return false;
+      }
+      case TK_RETURN: {
+        retstat();
+        return true;
+      }
+      case TK_BREAK: {
+        ls.nextToken();
+        breakstat();
+        return true;
+      }
+      default: {
+        exprstat();
+        return false;
+      }
+    }
+  }
+
+  private void chunk() {
+    boolean islast = false;
+    enterlevel();
+    while(!islast && !blockFollow(ls.t.token)) {
+      islast = statement();
+      testnext(';');
+      fs.freereg = fs.nactvar;
+    }
+    leavelevel();
+  }
+
+}
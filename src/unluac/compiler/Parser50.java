@@ -0,0 +1,1074 @@
+package unluac.compiler;
+
+import static unluac.compiler.Lexer50.*;
+
+import java.util.Arrays;
+
+/**
+ * The Lua 5.0 parser (lparser.c), driving a FuncState50 for each function.
+ * Varargs reach a function as its 'arg' table, and a while loop's condition
+ * is moved after its body.
+ */
+class Parser50 {
+
+  static final int MAXVARS = 200;
+  static final int MAXUPVALUES = 32;
+  static final int MAXPARAMS = 100;
+  static final int LUA_MAXPARSERLEVEL = 200;
+  static final int MAXEXPWHILE = 100;
+
+  private static final int[][] PRIORITY = {
+    {6, 6}, {6, 6}, {7, 7}, {7, 7},
+    {10, 9}, {5, 4},
+    {3, 3}, {3, 3},
+    {3, 3}, {3, 3}, {3, 3}, {3, 3},
+    {2, 2}, {1, 1},
+  };
+
+  private static final int UNARY_PRIORITY = 8;
+
+  private static class LHSAssign {
+
+    LHSAssign prev;
+    final ExpDesc v = new ExpDesc();
+
+  }
+
+  private static class ConsControl {
+
+    final ExpDesc v = new ExpDesc();
+    ExpDesc t;
+    int nh;
+    int na;
+    int tostore;
+
+  }
+
+  private final Lexer50 ls;
+  private FuncState50 fs;
+  private int nestlevel = 0;
+
+  Parser50(Lexer50 ls) {
+    this.ls = ls;
+  }
+
+  Proto parse() {
+    FuncState50 funcstate = new FuncState50();
+    openFunc(funcstate);
+    ls.nextToken();
+    chunk();
+    checkCondition(ls.t.token == TK_EOS, "`<eof>' expected");
+    closeFunc();
+    return funcstate.f;
+  }
+
+  private void errorExpected(int token) {
+    ls.syntaxerror("`" + ls.token2str(token) + "' expected");
+  }
+
+  private boolean testnext(int c) {
+    if(ls.t.token == c) {
+      ls.nextToken();
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  private void check(int c) {
+    if(!testnext(c)) {
+      errorExpected(c);
+    }
+  }
+
+  private void checkCondition(boolean c, String msg) {
+    if(!c) ls.syntaxerror(msg);
+  }
+
+  private void checkMatch(int what, int who, int where) {
+    if(!testnext(what)) {
+      if(where == ls.linenumber) {
+        errorExpected(what);
+      } else {
+        ls.syntaxerror("`" + ls.token2str(what) + "' expected (to close `" + ls.token2str(who) + "' at line " + where + ")");
+      }
+    }
+  }
+
+  private String strCheckname() {
+    checkCondition(ls.t.token == TK_NAME, "<name> expected");
+    String ts = ls.t.ts;
+    ls.nextToken();
+    return ts;
+  }
+
+  private void codestring(ExpDesc e, String s) {
+    e.init(ExpDesc.VK, fs.stringK(s));
+  }
+
+  private void checkname(ExpDesc e) {
+    codestring(e, strCheckname());
+  }
+
+  private int registerlocalvar(String varname) {
+    fs.f.locvars.add(new Proto.LocVar(varname));
+    return fs.f.locvars.size() - 1;
+  }
+
+  private void newLocalvar(String name, int n) {
+    ls.checklimit(fs.nactvar + n + 1, MAXVARS, "local variables");
+    fs.actvar[fs.nactvar + n] = registerlocalvar(name);
+  }
+
+  private Proto.LocVar getlocvar(FuncState50 fs, int i) {
+    return fs.f.locvars.get(fs.actvar[i]);
+  }
+
+  private void adjustlocalvars(int nvars) {
+    fs.nactvar = fs.nactvar + nvars;
+    for(; nvars != 0; nvars--) {
+      getlocvar(fs, fs.nactvar - nvars).startpc = fs.pc;
+    }
+  }
+
+  private void removevars(int tolevel) {
+    while(fs.nactvar > tolevel) {
+      getlocvar(fs, --fs.nactvar).endpc = fs.pc;
+    }
+  }
+
+  private void createLocal(String name) {
+    newLocalvar(name, 0);
+    adjustlocalvars(1);
+  }
+
+  private int indexupvalue(FuncState50 fs, String name, ExpDesc v) {
+    Proto f = fs.f;
+    for(int i = 0; i < f.nups; i++) {
+      if(fs.upvalueKind[i] == v.k && fs.upvalueInfo[i] == v.info) {
+        return i;
+      }
+    }
+    fs.ls.checklimit(f.nups + 1, MAXUPVALUES, "upvalues");
+    f.upvalues.add(name);
+    fs.upvalueKind[f.nups] = v.k;
+    fs.upvalueInfo[f.nups] = v.info;
+    return f.nups++;
+  }
+
+  private int searchvar(FuncState50 fs, String n) {
+    for(int i = fs.nactvar - 1; i >= 0; i--) {
+      if(n.equals(getlocvar(fs, i).name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void markupval(FuncState50 fs, int level) {
+    FuncState50.BlockCnt bl = fs.bl;
+    while(bl != null && bl.nactvar > level) bl = bl.previous;
+    if(bl != null) bl.upval = true;
+  }
+
+  private void singlevaraux(FuncState50 fs, String n, ExpDesc var, boolean base) {
+    if(fs == null) {
+      var.init(ExpDesc.VGLOBAL, FuncState50.NO_REG);
+    } else {
+      int v = searchvar(fs, n);
+      if(v >= 0) {
+        var.init(ExpDesc.VLOCAL, v);
+        if(!base) {
+          markupval(fs, v);
+        }
+      } else {
+        singlevaraux(fs.prev, n, var, false);
+        if(var.k == ExpDesc.VGLOBAL) {
+          if(base) {
+            var.info = fs.stringK(n);
+          }
+        } else {
+          var.info = indexupvalue(fs, n, var);
+          var.k = ExpDesc.VUPVAL;
+        }
+      }
+    }
+  }
+
+  private void singlevar(ExpDesc var, boolean base) {
+    String varname = strCheckname();
+    singlevaraux(fs, varname, var, base);
+  }
+
+  private void adjustAssign(int nvars, int nexps, ExpDesc e) {
+    int extra = nvars - nexps;
+    if(e.k == ExpDesc.VCALL) {
+      extra++;
+      if(extra <= 0) {
+        extra = 0;
+      } else {
+        fs.reserveregs(extra - 1);
+      }
+      fs.setcallreturns(e, extra);
+    } else {
+      if(e.k != ExpDesc.VVOID) fs.exp2nextreg(e);
+      if(extra > 0) {
+        int reg = fs.freereg;
+        fs.reserveregs(extra);
+        fs.nil(reg, extra);
+      }
+    }
+  }
+
+  private void enterlevel() {
+    if(++nestlevel > LUA_MAXPARSERLEVEL) {
+      ls.syntaxerror("too many syntax levels");
+    }
+  }
+
+  private void leavelevel() {
+    nestlevel--;
+  }
+
+  private void enterblock(FuncState50 fs, FuncState50.BlockCnt bl, boolean isbreakable) {
+    bl.breaklist = FuncState50.NO_JUMP;
+    bl.isbreakable = isbreakable;
+    bl.nactvar = fs.nactvar;
+    bl.upval = false;
+    bl.previous = fs.bl;
+    fs.bl = bl;
+  }
+
+  private void leaveblock(FuncState50 fs) {
+    FuncState50.BlockCnt bl = fs.bl;
+    fs.bl = bl.previous;
+    removevars(bl.nactvar);
+    if(bl.upval) {
+      fs.codeABC(FuncState50.OP_CLOSE, bl.nactvar, 0, 0);
+    }
+    fs.freereg = fs.nactvar;
+    fs.patchtohere(bl.breaklist);
+  }
+
+  private void pushclosure(FuncState50 func, ExpDesc v) {
+    Proto f = fs.f;
+    f.p.add(func.f);
+    v.init(ExpDesc.VRELOCABLE, fs.codeABx(FuncState50.OP_CLOSURE, 0, f.p.size() - 1));
+    for(int i = 0; i < func.f.nups; i++) {
+      int o = (func.upvalueKind[i] == ExpDesc.VLOCAL) ? FuncState50.OP_MOVE : FuncState50.OP_GETUPVAL;
+      fs.codeABC(o, 0, func.upvalueInfo[i], 0);
+    }
+  }
+
+  private void openFunc(FuncState50 fs) {
+    fs.prev = this.fs;
+    fs.ls = ls;
+    this.fs = fs;
+    fs.pc = 0;
+    fs.lasttarget = 0;
+    fs.jpc = FuncState50.NO_JUMP;
+    fs.freereg = 0;
+    fs.nactvar = 0;
+    fs.bl = null;
+    fs.f.source = ls.source;
+    fs.f.maxstacksize = 2;
+  }
+
+  private void closeFunc() {
+    removevars(0);
+    fs.codeABC(FuncState50.OP_RETURN, 0, 1, 0);
+    fs.f.code = Arrays.copyOf(fs.f.code, fs.pc);
+    fs.f.lineinfo = Arrays.copyOf(fs.f.lineinfo, fs.pc);
+    fs = fs.prev;
+  }
+
+  private void field(ExpDesc v) {
+    ExpDesc key = new ExpDesc();
+    fs.exp2anyreg(v);
+    ls.nextToken();
+    checkname(key);
+    fs.indexed(v, key);
+  }
+
+  private void index(ExpDesc v) {
+    ls.nextToken();
+    expr(v);
+    fs.exp2val(v);
+    check(']');
+  }
+
+  private void recfield(ConsControl cc) {
+    int reg = fs.freereg;
+    ExpDesc key = new ExpDesc();
+    ExpDesc val = new ExpDesc();
+    if(ls.t.token == TK_NAME) {
+      ls.checklimit(cc.nh, Integer.MAX_VALUE, "items in a constructor");
+      cc.nh++;
+      checkname(key);
+    } else {
+      index(key);
+    }
+    check('=');
+    fs.exp2RK(key);
+    expr(val);
+    fs.codeABC(FuncState50.OP_SETTABLE, cc.t.info, fs.exp2RK(key), fs.exp2RK(val));
+    fs.freereg = reg;
+  }
+
+  private void closelistfield(ConsControl cc) {
+    if(cc.v.k == ExpDesc.VVOID) return;
+    fs.exp2nextreg(cc.v);
+    cc.v.k = ExpDesc.VVOID;
+    if(cc.tostore == FuncState50.LFIELDS_PER_FLUSH) {
+      fs.codeABx(FuncState50.OP_SETLIST, cc.t.info, cc.na - 1);
+      cc.tostore = 0;
+      fs.freereg = cc.t.info + 1;
+    }
+  }
+
+  private void lastlistfield(ConsControl cc) {
+    if(cc.tostore == 0) return;
+    if(cc.v.k == ExpDesc.VCALL) {
+      fs.setcallreturns(cc.v, FuncState50.LUA_MULTRET);
+      fs.codeABx(FuncState50.OP_SETLISTO, cc.t.info, cc.na - 1);
+    } else {
+      if(cc.v.k != ExpDesc.VVOID) {
+        fs.exp2nextreg(cc.v);
+      }
+      fs.codeABx(FuncState50.OP_SETLIST, cc.t.info, cc.na - 1);
+    }
+    fs.freereg = cc.t.info + 1;
+  }
+
+  private void listfield(ConsControl cc) {
+    expr(cc.v);
+    ls.checklimit(cc.na, FuncState50.MAXARG_Bx, "items in a constructor");
+    cc.na++;
+    cc.tostore++;
+  }
+
+  private static int int2fb(int x) {
+    int m = 0;
+    while(x >= 8) {
+      x = (x + 1) >>> 1;
+      m++;
+    }
+    return (m << 3) | x;
+  }
+
+  private static int log2(int x) {
+    return 31 - Integer.numberOfLeadingZeros(x);
+  }
+
+  private void constructor(ExpDesc t) {
+    FuncState50 fs = this.fs;
+    int line = ls.linenumber;
+    int pc = fs.codeABC(FuncState50.OP_NEWTABLE, 0, 0, 0);
+    ConsControl cc = new ConsControl();
+    cc.t = t;
+    t.init(ExpDesc.VRELOCABLE, pc);
+    cc.v.init(ExpDesc.VVOID, 0);
+    fs.exp2nextreg(t);
+    check('{');
+    do {
+      testnext(';');
+      if(ls.t.token == '}') break;
+      closelistfield(cc);
+      switch(ls.t.token) {
+        case TK_NAME: {
+          ls.lookahead();
+          if(ls.lookahead.token != '=') {
+            listfield(cc);
+          } else {
+            recfield(cc);
+          }
+          break;
+        }
+        case '[': {
+          recfield(cc);
+          break;
+        }
+        default: {
+          listfield(cc);
+          break;
+        }
+      }
+    } while(testnext(',') || testnext(';'));
+    checkMatch('}', '{', line);
+    lastlistfield(cc);
+    fs.setB(pc, int2fb(cc.na));
+    fs.setC(pc, log2(cc.nh) + 1);
+  }
+
+  private void parlist() {
+    int nparams = 0;
+    boolean dots = false;
+    if(ls.t.token != ')') {
+      do {
+        switch(ls.t.token) {
+          case TK_DOTS: {
+            dots = true;
+            ls.nextToken();
+            break;
+          }
+          case TK_NAME: {
+            newLocalvar(strCheckname(), nparams++);
+            break;
+          }
+          default:
+            ls.syntaxerror("<name> or `...' expected");
+        }
+      } while(!dots && testnext(','));
+    }
+    adjustlocalvars(nparams);
+    ls.checklimit(fs.nactvar, MAXPARAMS, "parameters");
+    fs.f.numparams = fs.nactvar;
+    fs.f.isVararg = dots ? 1 : 0;
+    if(dots) {
+      createLocal("arg");
+    }
+    fs.reserveregs(fs.nactvar);
+  }
+
+  private void body(ExpDesc e, boolean needself, int line) {
+    FuncState50 newFs = new FuncState50();
+    openFunc(newFs);
+    newFs.f.linedefined = line;
+    check('(');
+    if(needself) {
+      createLocal("self");
+    }
+    parlist();
+    check(')');
+    chunk();
+    checkMatch(TK_END, TK_FUNCTION, line);
+    closeFunc();
+    pushclosure(newFs, e);
+  }
+
+  private int explist1(ExpDesc v) {
+    int n = 1;
+    expr(v);
+    while(testnext(',')) {
+      fs.exp2nextreg(v);
+      expr(v);
+      n++;
+    }
+    return n;
+  }
+
+  private void funcargs(ExpDesc f) {
+    ExpDesc args = new ExpDesc();
+    int line = ls.linenumber;
+    switch(ls.t.token) {
+      case '(': {
+        if(line != ls.lastline) {
+          ls.syntaxerror("ambiguous syntax (function call x new statement)");
+        }
+        ls.nextToken();
+        if(ls.t.token == ')') {
+          args.k = ExpDesc.VVOID;
+        } else {
+          explist1(args);
+          fs.setcallreturns(args, FuncState50.LUA_MULTRET);
+        }
+        checkMatch(')', '(', line);
+        break;
+      }
+      case '{': {
+        constructor(args);
+        break;
+      }
+      case TK_STRING: {
+        codestring(args, ls.t.ts);
+        ls.nextToken();
+        break;
+      }
+      default: {
+        ls.syntaxerror("function arguments expected");
+        return;
+      }
+    }
+    int base = f.info;
+    int nparams;
+    if(args.k == ExpDesc.VCALL) {
+      nparams = FuncState50.LUA_MULTRET;
+    } else {
+      if(args.k != ExpDesc.VVOID) {
+        fs.exp2nextreg(args);
+      }
+      nparams = fs.freereg - (base + 1);
+    }
+    f.init(ExpDesc.VCALL, fs.codeABC(FuncState50.OP_CALL, base, nparams + 1, 2));
+    fs.fixline(line);
+    fs.freereg = base + 1;
+  }
+
+  private void prefixexp(ExpDesc v) {
+    switch(ls.t.token) {
+      case '(': {
+        int line = ls.linenumber;
+        ls.nextToken();
+        expr(v);
+        checkMatch(')', '(', line);
+        fs.dischargevars(v);
+        return;
+      }
+      case TK_NAME: {
+        singlevar(v, true);
+        return;
+      }
+      default: {
+        ls.syntaxerror("unexpected symbol");
+        return;
+      }
+    }
+  }
+
+  private void primaryexp(ExpDesc v) {
+    prefixexp(v);
+    for(;;) {
+      switch(ls.t.token) {
+        case '.': {
+          field(v);
+          break;
+        }
+        case '[': {
+          ExpDesc key = new ExpDesc();
+          fs.exp2anyreg(v);
+          index(key);
+          fs.indexed(v, key);
+          break;
+        }
+        case ':': {
+          ExpDesc key = new ExpDesc();
+          ls.nextToken();
+          checkname(key);
+          fs.self(v, key);
+          funcargs(v);
+          break;
+        }
+        case '(':
+        case TK_STRING:
+        case '{': {
+          fs.exp2nextreg(v);
+          funcargs(v);
+          break;
+        }
+        default:
+          return;
+      }
+    }
+  }
+
+  private void simpleexp(ExpDesc v) {
+    switch(ls.t.token) {
+      case TK_NUMBER: {
+        v.init(ExpDesc.VK, fs.numberK(ls.t.r));
+        break;
+      }
+      case TK_STRING: {
+        codestring(v, ls.t.ts);
+        break;
+      }
+      case TK_NIL: {
+        v.init(ExpDesc.VNIL, 0);
+        break;
+      }
+      case TK_TRUE: {
+        v.init(ExpDesc.VTRUE, 0);
+        break;
+      }
+      case TK_FALSE: {
+        v.init(ExpDesc.VFALSE, 0);
+        break;
+      }
+      case '{': {
+        constructor(v);
+        return;
+      }
+      case TK_FUNCTION: {
+        ls.nextToken();
+        body(v, false, ls.linenumber);
+        return;
+      }
+      default: {
+        primaryexp(v);
+        return;
+      }
+    }
+    ls.nextToken();
+  }
+
+  private static int getunopr(int op) {
+    switch(op) {
+      case TK_NOT: return FuncState50.OPR_NOT;
+      case '-': return FuncState50.OPR_MINUS;
+      default: return FuncState50.OPR_NOUNOPR;
+    }
+  }
+
+  private static int getbinopr(int op) {
+    switch(op) {
+      case '+': return FuncState50.OPR_ADD;
+      case '-': return FuncState50.OPR_SUB;
+      case '*': return FuncState50.OPR_MUL;
+      case '/': return FuncState50.OPR_DIV;
+      case '^': return FuncState50.OPR_POW;
+      case TK_CONCAT: return FuncState50.OPR_CONCAT;
+      case TK_NE: return FuncState50.OPR_NE;
+      case TK_EQ: return FuncState50.OPR_EQ;
+      case '<': return FuncState50.OPR_LT;
+      case TK_LE: return FuncState50.OPR_LE;
+      case '>': return FuncState50.OPR_GT;
+      case TK_GE: return FuncState50.OPR_GE;
+      case TK_AND: return FuncState50.OPR_AND;
+      case TK_OR: return FuncState50.OPR_OR;
+      default: return FuncState50.OPR_NOBINOPR;
+    }
+  }
+
+  private int subexpr(ExpDesc v, int limit) {
+    enterlevel();
+    int uop = getunopr(ls.t.token);
+    if(uop != FuncState50.OPR_NOUNOPR) {
+      ls.nextToken();
+      subexpr(v, UNARY_PRIORITY);
+      fs.prefix(uop, v);
+    } else {
+      simpleexp(v);
+    }
+    int op = getbinopr(ls.t.token);
+    while(op != FuncState50.OPR_NOBINOPR && PRIORITY[op][0] > limit) {
+      ExpDesc v2 = new ExpDesc();
+      ls.nextToken();
+      fs.infix(op, v);
+      int nextop = subexpr(v2, PRIORITY[op][1]);
+      fs.posfix(op, v, v2);
+      op = nextop;
+    }
+    leavelevel();
+    return op;
+  }
+
+  private void expr(ExpDesc v) {
+    subexpr(v, -1);
+  }
+
+  private static boolean blockFollow(int token) {
+    switch(token) {
+      case TK_ELSE:
+      case TK_ELSEIF:
+      case TK_END:
+      case TK_UNTIL:
+      case TK_EOS:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void block() {
+    FuncState50 fs = this.fs;
+    FuncState50.BlockCnt bl = new FuncState50.BlockCnt();
+    enterblock(fs, bl, false);
+    chunk();
+    leaveblock(fs);
+  }
+
+  private void checkConflict(LHSAssign lh, ExpDesc v) {
+    int extra = fs.freereg;
+    boolean conflict = false;
+    for(; lh != null; lh = lh.prev) {
+      if(lh.v.k == ExpDesc.VINDEXED) {
+        if(lh.v.info == v.info) {
+          conflict = true;
+          lh.v.info = extra;
+        }
+        if(lh.v.aux == v.info) {
+          conflict = true;
+          lh.v.aux = extra;
+        }
+      }
+    }
+    if(conflict) {
+      fs.codeABC(FuncState50.OP_MOVE, fs.freereg, v.info, 0);
+      fs.reserveregs(1);
+    }
+  }
+
+  private void assignment(LHSAssign lh, int nvars) {
+    ExpDesc e = new ExpDesc();
+    checkCondition(ExpDesc.VLOCAL <= lh.v.k && lh.v.k <= ExpDesc.VINDEXED, "syntax error");
+    if(testnext(',')) {
+      LHSAssign nv = new LHSAssign();
+      nv.prev = lh;
+      primaryexp(nv.v);
+      if(nv.v.k == ExpDesc.VLOCAL) {
+        checkConflict(lh, nv.v);
+      }
+      assignment(nv, nvars + 1);
+    } else {
+      check('=');
+      int nexps = explist1(e);
+      if(nexps != nvars) {
+        adjustAssign(nvars, nexps, e);
+        if(nexps > nvars) {
+          fs.freereg -= nexps - nvars;
+        }
+      } else {
+        fs.setcallreturns(e, 1);
+        fs.storevar(lh.v, e);
+        return;
+      }
+    }
+    e.init(ExpDesc.VNONRELOC, fs.freereg - 1);
+    fs.storevar(lh.v, e);
+  }
+
+  private void cond(ExpDesc v) {
+    expr(v);
+    if(v.k == ExpDesc.VNIL) v.k = ExpDesc.VFALSE;
+    fs.goiftrue(v);
+    fs.patchtohere(v.t);
+  }
+
+  private void breakstat() {
+    FuncState50.BlockCnt bl = fs.bl;
+    boolean upval = false;
+    ls.nextToken();
+    while(bl != null && !bl.isbreakable) {
+      upval |= bl.upval;
+      bl = bl.previous;
+    }
+    if(bl == null) {
+      ls.syntaxerror("no loop to break");
+    }
+    if(upval) {
+      fs.codeABC(FuncState50.OP_CLOSE, bl.nactvar, 0, 0);
+    }
+    bl.breaklist = fs.concat(bl.breaklist, fs.jump());
+  }
+
+  /*
+   * The condition is compiled in place, then cut out and put back after
+   * the body, so that each iteration runs a single test and jump.
+   */
+  private void whilestat(int line) {
+    FuncState50 fs = this.fs;
+    ExpDesc v = new ExpDesc();
+    FuncState50.BlockCnt bl = new FuncState50.BlockCnt();
+    ls.nextToken();
+    int whileinit = fs.jump();
+    int expinit = fs.getlabel();
+    expr(v);
+    if(v.k == ExpDesc.VK) v.k = ExpDesc.VTRUE;
+    int lineexp = ls.linenumber;
+    fs.goiffalse(v);
+    v.f = fs.concat(v.f, fs.jpc);
+    fs.jpc = FuncState50.NO_JUMP;
+    int sizeexp = fs.pc - expinit;
+    if(sizeexp > MAXEXPWHILE) {
+      ls.syntaxerror("`while' condition too complex");
+    }
+    int[] codeexp = Arrays.copyOfRange(fs.f.code, expinit, fs.pc);
+    fs.pc = expinit;
+    enterblock(fs, bl, true);
+    check(TK_DO);
+    int blockinit = fs.getlabel();
+    block();
+    fs.patchtohere(whileinit);
+    if(v.t != FuncState50.NO_JUMP) v.t += fs.pc - expinit;
+    if(v.f != FuncState50.NO_JUMP) v.f += fs.pc - expinit;
+    for(int i = 0; i < sizeexp; i++) {
+      fs.code(codeexp[i], lineexp);
+    }
+    checkMatch(TK_END, TK_WHILE, line);
+    leaveblock(fs);
+    fs.patchlist(v.t, blockinit);
+    fs.patchtohere(v.f);
+  }
+
+  private void repeatstat(int line) {
+    FuncState50 fs = this.fs;
+    int repeatInit = fs.getlabel();
+    ExpDesc v = new ExpDesc();
+    FuncState50.BlockCnt bl = new FuncState50.BlockCnt();
+    enterblock(fs, bl, true);
+    ls.nextToken();
+    block();
+    checkMatch(TK_UNTIL, TK_REPEAT, line);
+    cond(v);
+    fs.patchlist(v.f, repeatInit);
+    leaveblock(fs);
+  }
+
+  private void exp1() {
+    ExpDesc e = new ExpDesc();
+    expr(e);
+    fs.exp2nextreg(e);
+  }
+
+  private void forbody(int base, int line, int nvars, boolean isnum) {
+    FuncState50.BlockCnt bl = new FuncState50.BlockCnt();
+    FuncState50 fs = this.fs;
+    adjustlocalvars(nvars);
+    check(TK_DO);
+    enterblock(fs, bl, true);
+    int prep = fs.getlabel();
+    block();
+    fs.patchtohere(prep - 1);
+    int endfor = isnum
+      ? fs.codeAsBx(FuncState50.OP_FORLOOP, base, FuncState50.NO_JUMP)
+      : fs.codeABC(FuncState50.OP_TFORLOOP, base, 0, nvars - 3);
+    fs.fixline(line);
+    fs.patchlist(isnum ? endfor : fs.jump(), prep);
+    leaveblock(fs);
+  }
+
+  private void fornum(String varname, int line) {
+    FuncState50 fs = this.fs;
+    int base = fs.freereg;
+    newLocalvar(varname, 0);
+    newLocalvar("(for limit)", 1);
+    newLocalvar("(for step)", 2);
+    check('=');
+    exp1();
+    check(',');
+    exp1();
+    if(testnext(',')) {
+      exp1();
+    } else {
+      fs.codeABx(FuncState50.OP_LOADK, fs.freereg, fs.numberK(1));
+      fs.reserveregs(1);
+    }
+    fs.codeABC(FuncState50.OP_SUB, fs.freereg - 3, fs.freereg - 3, fs.freereg - 1);
+    fs.jump();
+    forbody(base, line, 3, true);
+  }
+
+  private void forlist(String indexname) {
+    FuncState50 fs = this.fs;
+    ExpDesc e = new ExpDesc();
+    int nvars = 0;
+    int base = fs.freereg;
+    newLocalvar("(for generator)", nvars++);
+    newLocalvar("(for state)", nvars++);
+    newLocalvar(indexname, nvars++);
+    while(testnext(',')) {
+      newLocalvar(strCheckname(), nvars++);
+    }
+    check(TK_IN);
+    int line = ls.linenumber;
+    adjustAssign(nvars, explist1(e), e);
+    fs.checkstack(3);
+    fs.codeAsBx(FuncState50.OP_TFORPREP, base, FuncState50.NO_JUMP);
+    forbody(base, line, nvars, false);
+  }
+
+  private void forstat(int line) {
+    FuncState50 fs = this.fs;
+    FuncState50.BlockCnt bl = new FuncState50.BlockCnt();
+    enterblock(fs, bl, false);
+    ls.nextToken();
+    String varname = strCheckname();
+    switch(ls.t.token) {
+      case '=':
+        fornum(varname, line);
+        break;
+      case ',':
+      case TK_IN:
+        forlist(varname);
+        break;
+      default:
+        ls.syntaxerror("`=' or `in' expected");
+    }
+    checkMatch(TK_END, TK_FOR, line);
+    leaveblock(fs);
+  }
+
+  private void testThenBlock(ExpDesc v) {
+    ls.nextToken();
+    cond(v);
+    check(TK_THEN);
+    block();
+  }
+
+  private void ifstat(int line) {
+    FuncState50 fs = this.fs;
+    ExpDesc v = new ExpDesc();
+    int escapelist = FuncState50.NO_JUMP;
+    testThenBlock(v);
+    while(ls.t.token == TK_ELSEIF) {
+      escapelist = fs.concat(escapelist, fs.jump());
+      fs.patchtohere(v.f);
+      testThenBlock(v);
+    }
+    if(ls.t.token == TK_ELSE) {
+      escapelist = fs.concat(escapelist, fs.jump());
+      fs.patchtohere(v.f);
+      ls.nextToken();
+      block();
+    } else {
+      escapelist = fs.concat(escapelist, v.f);
+    }
+    fs.patchtohere(escapelist);
+    checkMatch(TK_END, TK_IF, line);
+  }
+
+  private void localfunc() {
+    ExpDesc v = new ExpDesc();
+    ExpDesc b = new ExpDesc();
+    FuncState50 fs = this.fs;
+    newLocalvar(strCheckname(), 0);
+    v.init(ExpDesc.VLOCAL, fs.freereg);
+    fs.reserveregs(1);
+    adjustlocalvars(1);
+    body(b, false, ls.linenumber);
+    fs.storevar(v, b);
+  }
+
+  private void localstat() {
+    int nvars = 0;
+    int nexps;
+    ExpDesc e = new ExpDesc();
+    do {
+      newLocalvar(strCheckname(), nvars++);
+    } while(testnext(','));
+    if(testnext('=')) {
+      nexps = explist1(e);
+    } else {
+      e.k = ExpDesc.VVOID;
+      nexps = 0;
+    }
+    adjustAssign(nvars, nexps, e);
+    adjustlocalvars(nvars);
+  }
+
+  private boolean funcname(ExpDesc v) {
+    boolean needself = false;
+    singlevar(v, true);
+    while(ls.t.token == '.') {
+      field(v);
+    }
+    if(ls.t.token == ':') {
+      needself = true;
+      field(v);
+    }
+    return needself;
+  }
+
+  private void funcstat(int line) {
+    ExpDesc v = new ExpDesc();
+    ExpDesc b = new ExpDesc();
+    ls.nextToken();
+    boolean needself = funcname(v);
+    body(b, needself, line);
+    fs.storevar(v, b);
+    fs.fixline(line);
+  }
+
+  private void exprstat() {
+    LHSAssign v = new LHSAssign();
+    primaryexp(v.v);
+    if(v.v.k == ExpDesc.VCALL) {
+      fs.setcallreturns(v.v, 0);
+    } else {
+      v.prev = null;
+      assignment(v, 1);
+    }
+  }
+
+  private void retstat() {
+    ExpDesc e = new ExpDesc();
+    int first;
+    int nret;
+    ls.nextToken();
+    if(blockFollow(ls.t.token) || ls.t.token == ';') {
+      first = nret = 0;
+    } else {
+      nret = explist1(e);
+      if(e.k == ExpDesc.VCALL) {
+        fs.setcallreturns(e, FuncState50.LUA_MULTRET);
+        if(nret == 1) {
+          fs.setOpcode(e.info, FuncState50.OP_TAILCALL);
+        }
+        first = fs.nactvar;
+        nret = FuncState50.LUA_MULTRET;
+      } else {
+        if(nret == 1) {
+          first = fs.exp2anyreg(e);
+        } else {
+          fs.exp2nextreg(e);
+          first = fs.nactvar;
+        }
+      }
+    }
+    fs.codeABC(FuncState50.OP_RETURN, first, nret + 1, 0);
+  }
+
+  private boolean statement() {
+    int line = ls.linenumber;
+    switch(ls.t.token) {
+      case TK_IF: {
+        ifstat(line);
+        return false;
+      }
+      case TK_WHILE: {
+        whilestat(line);
+        return false;
+      }
+      case TK_DO: {
+        ls.nextToken();
+        block();
+        checkMatch(TK_END, TK_DO, line);
+        return false;
+      }
+      case TK_FOR: {
+        forstat(line);
+        return false;
+      }
+      case TK_REPEAT: {
+        repeatstat(line);
+        return false;
+      }
+      case TK_FUNCTION: {
+        funcstat(line);
+        return false;
+      }
+      case TK_LOCAL: {
+        ls.nextToken();
+        if(testnext(TK_FUNCTION)) {
+          localfunc();
+        } else {
+          localstat();
+        }
+        return false;
+      }
+      case TK_RETURN: {
+        retstat();
+        return true;
+      }
+      case TK_BREAK: {
+        breakstat();
+        return true;
+      }
+      default: {
+        exprstat();
+        return false;
+      }
+    }
+  }
+
+  private void chunk() {
+    boolean islast = false;
+    enterlevel();
+    while(!islast && !blockFollow(ls.t.token)) {
+      islast = statement();
+      testnext(';');
+      fs.freereg = fs.nactvar;
+    }
+    leavelevel();
+  }
+
+}
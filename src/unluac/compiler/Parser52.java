@@ -0,0 +1,1294 @@
+package unluac.compiler;
+
+import static unluac.compiler.Lexer52.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Lua 5.2 and 5.3 parser (lparser.c), driving a FuncState52 for each
+ * function.
+ */
+class Parser52 {
+
+  static final int MAXVARS = 200;
+  static final int MAXUPVAL = 255;
+  static final int LUAI_MAXCCALLS = 200;
+
+  private static final int[][] PRIORITY52 = {
+    {6, 6}, {6, 6}, {7, 7}, {7, 7}, {10, 9}, {7, 7},
+    {0, 0}, {0, 0}, {0, 0}, {0, 0}, {0, 0}, {0, 0},
+    {5, 4},
+    {3, 3}, {3, 3}, {3, 3}, {3, 3}, {3, 3}, {3, 3},
+    {2, 2}, {1, 1},
+  };
+
+  private static final int[][] PRIORITY53 = {
+    {10, 10}, {10, 10}, {11, 11}, {11, 11}, {14, 13}, {11, 11},
+    {11, 11}, {6, 6}, {4, 4}, {5, 5}, {7, 7}, {7, 7},
+    {9, 8},
+    {3, 3}, {3, 3}, {3, 3}, {3, 3}, {3, 3}, {3, 3},
+    {2, 2}, {1, 1},
+  };
+
+  private static final String ENV = "_ENV";
+
+  private static class LHSAssign {
+
+    LHSAssign prev;
+    final ExpDesc52 v = new ExpDesc52();
+
+  }
+
+  private static class ConsControl {
+
+    final ExpDesc52 v = new ExpDesc52();
+    ExpDesc52 t;
+    int nh;
+    int na;
+    int tostore;
+
+  }
+
+  /*
+   * A label or a pending goto (Labeldesc).
+   */
+  private static class Label {
+
+    final String name;
+    int pc;
+    final int line;
+    int nactvar;
+
+    Label(String name, int line, int pc, int nactvar) {
+      this.name = name;
+      this.line = line;
+      this.pc = pc;
+      this.nactvar = nactvar;
+    }
+
+  }
+
+  private final Lexer52 ls;
+  private final int[][] priority;
+  private final int unaryPriority;
+  private FuncState52 fs;
+  // the Dyndata of lparser.c: active locals, pending gotos and labels
+  private final List<Integer> actvar = new ArrayList<Integer>();
+  private final List<Label> gt = new ArrayList<Label>();
+  private final List<Label> label = new ArrayList<Label>();
+  // the constants of the whole chunk in Lua 5.3
+  private final Map<Object, Integer> h = new HashMap<Object, Integer>();
+  // luac's own call to its main function is already on the C stack
+  private int nCcalls = 1;
+
+  Parser52(Lexer52 ls) {
+    this.ls = ls;
+    priority = ls.lua53 ? PRIORITY53 : PRIORITY52;
+    unaryPriority = ls.lua53 ? 12 : 8;
+  }
+
+  Proto52 parse() {
+    FuncState52 funcstate = new FuncState52();
+    FuncState52.BlockCnt bl = new FuncState52.BlockCnt();
+    openFunc(funcstate, bl);
+    funcstate.f.isVararg = 1;
+    ExpDesc52 v = new ExpDesc52();
+    v.init(ExpDesc52.VLOCAL, 0);
+    newupvalue(funcstate, ENV, v);
+    ls.nextToken();
+    statlist();
+    check(TK_EOS);
+    closeFunc();
+    return funcstate.f;
+  }
+
+  private void errorExpected(int token) {
+    ls.syntaxerror(ls.token2str(token) + " expected");
+  }
+
+  private void errorlimit(FuncState52 fs, int limit, String what) {
+    int line = fs.f.linedefined;
+    String where = (line == 0) ? "main function" : "function at line " + line;
+    ls.syntaxerror("too many " + what + " (limit is " + limit + ") in " + where);
+  }
+
+  private void checklimit(FuncState52 fs, int v, int l, String what) {
+    if(v > l) errorlimit(fs, l, what);
+  }
+
+  private boolean testnext(int c) {
+    if(ls.t.token == c) {
+      ls.nextToken();
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  private void check(int c) {
+    if(ls.t.token != c) {
+      errorExpected(c);
+    }
+  }
+
+  private void checknext(int c) {
+    check(c);
+    ls.nextToken();
+  }
+
+  private void checkCondition(boolean c, String msg) {
+    if(!c) ls.syntaxerror(msg);
+  }
+
+  private void checkMatch(int what, int who, int where) {
+    if(!testnext(what)) {
+      if(where == ls.linenumber) {
+        errorExpected(what);
+      } else {
+        ls.syntaxerror(ls.token2str(what) + " expected (to close " + ls.token2str(who) + " at line " + where + ")");
+      }
+    }
+  }
+
+  private String strCheckname() {
+    check(TK_NAME);
+    String ts = ls.t.ts;
+    ls.nextToken();
+    return ts;
+  }
+
+  private void codestring(ExpDesc52 e, String s) {
+    e.init(ExpDesc52.VK, fs.stringK(s));
+  }
+
+  private void checkname(ExpDesc52 e) {
+    codestring(e, strCheckname());
+  }
+
+  private int registerlocalvar(String varname) {
+    fs.f.locvars.add(new Proto.LocVar(varname));
+    return fs.f.locvars.size() - 1;
+  }
+
+  private void newLocalvar(String name) {
+    int reg = registerlocalvar(name);
+    checklimit(fs, actvar.size() + 1 - fs.firstlocal, MAXVARS, "local variables");
+    actvar.add(reg);
+  }
+
+  private Proto.LocVar getlocvar(FuncState52 fs, int i) {
+    return fs.f.locvars.get(actvar.get(fs.firstlocal + i));
+  }
+
+  private void adjustlocalvars(int nvars) {
+    fs.nactvar = fs.nactvar + nvars;
+    for(; nvars != 0; nvars--) {
+      getlocvar(fs, fs.nactvar - nvars).startpc = fs.pc;
+    }
+  }
+
+  private void removevars(FuncState52 fs, int tolevel) {
+    int n = actvar.size() - (fs.nactvar - tolevel);
+    while(fs.nactvar > tolevel) {
+      getlocvar(fs, --fs.nactvar).endpc = fs.pc;
+    }
+    actvar.subList(n, actvar.size()).clear();
+  }
+
+  private int searchupvalue(FuncState52 fs, String name) {
+    List<Proto52.Upvalue> up = fs.f.upvalues;
+    for(int i = 0; i < up.size(); i++) {
+      if(up.get(i).name.equals(name)) return i;
+    }
+    return -1;
+  }
+
+  private int newupvalue(FuncState52 fs, String name, ExpDesc52 v) {
+    List<Proto52.Upvalue> up = fs.f.upvalues;
+    checklimit(fs, up.size() + 1, MAXUPVAL, "upvalues");
+    up.add(new Proto52.Upvalue(name, v.k == ExpDesc52.VLOCAL, v.info));
+    return up.size() - 1;
+  }
+
+  private int searchvar(FuncState52 fs, String n) {
+    for(int i = fs.nactvar - 1; i >= 0; i--) {
+      if(n.equals(getlocvar(fs, i).name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void markupval(FuncState52 fs, int level) {
+    FuncState52.BlockCnt bl = fs.bl;
+    while(bl.nactvar > level) bl = bl.previous;
+    bl.upval = true;
+  }
+
+  private int singlevaraux(FuncState52 fs, String n, ExpDesc52 var, boolean base) {
+    if(fs == null) {
+      return ExpDesc52.VVOID;
+    } else {
+      int v = searchvar(fs, n);
+      if(v >= 0) {
+        var.init(ExpDesc52.VLOCAL, v);
+        if(!base) {
+          markupval(fs, v);
+        }
+        return ExpDesc52.VLOCAL;
+      } else {
+        int idx = searchupvalue(fs, n);
+        if(idx < 0) {
+          if(singlevaraux(fs.prev, n, var, false) == ExpDesc52.VVOID) {
+            return ExpDesc52.VVOID;
+          }
+          idx = newupvalue(fs, n, var);
+        }
+        var.init(ExpDesc52.VUPVAL, idx);
+        return ExpDesc52.VUPVAL;
+      }
+    }
+  }
+
+  private void singlevar(ExpDesc52 var) {
+    String varname = strCheckname();
+    if(singlevaraux(fs, varname, var, true) == ExpDesc52.VVOID) {
+      ExpDesc52 key = new ExpDesc52();
+      singlevaraux(fs, ENV, var, true);
+      codestring(key, varname);
+      fs.indexed(var, key);
+    }
+  }
+
+  private void adjustAssign(int nvars, int nexps, ExpDesc52 e) {
+    int extra = nvars - nexps;
+    if(e.hasMultRet()) {
+      extra++;
+      if(extra < 0) extra = 0;
+      fs.setreturns(e, extra);
+      if(extra > 1) fs.reserveregs(extra - 1);
+    } else {
+      if(e.k != ExpDesc52.VVOID) fs.exp2nextreg(e);
+      if(extra > 0) {
+        int reg = fs.freereg;
+        fs.reserveregs(extra);
+        fs.nil(reg, extra);
+      }
+    }
+  }
+
+  private void enterlevel() {
+    ++nCcalls;
+    checklimit(fs, nCcalls, LUAI_MAXCCALLS, "C levels");
+  }
+
+  private void leavelevel() {
+    nCcalls--;
+  }
+
+  private void closegoto(int g, Label lb) {
+    Label gl = gt.get(g);
+    if(gl.nactvar < lb.nactvar) {
+      String vname = getlocvar(fs, gl.nactvar).name;
+      ls.semerror("<goto " + gl.name + "> at line " + gl.line + " jumps into the scope of local '" + vname + "'");
+    }
+    fs.patchlist(gl.pc, lb.pc);
+    gt.remove(g);
+  }
+
+  /*
+   * Tries to close a goto with the labels of the current block, solving a
+   * backward jump.
+   */
+  private boolean findlabel(int g) {
+    FuncState52.BlockCnt bl = fs.bl;
+    Label gl = gt.get(g);
+    for(int i = bl.firstlabel; i < label.size(); i++) {
+      Label lb = label.get(i);
+      if(lb.name.equals(gl.name)) {
+        if(gl.nactvar > lb.nactvar && (bl.upval || label.size() > bl.firstlabel)) {
+          fs.patchclose(gl.pc, lb.nactvar);
+        }
+        closegoto(g, lb);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int newlabelentry(List<Label> l, String name, int line, int pc) {
+    l.add(new Label(name, line, pc, fs.nactvar));
+    return l.size() - 1;
+  }
+
+  /*
+   * Closes the pending gotos of the current block that the new label
+   * matches, solving forward jumps.
+   */
+  private void findgotos(Label lb) {
+    int i = fs.bl.firstgoto;
+    while(i < gt.size()) {
+      if(gt.get(i).name.equals(lb.name)) {
+        closegoto(i, lb);
+      } else {
+        i++;
+      }
+    }
+  }
+
+  /*
+   * Moves the pending gotos of a block being left out to the enclosing
+   * block, closing the upvalues they leave the scope of.
+   */
+  private void movegotosout(FuncState52 fs, FuncState52.BlockCnt bl) {
+    int i = bl.firstgoto;
+    while(i < gt.size()) {
+      Label gl = gt.get(i);
+      if(gl.nactvar > bl.nactvar) {
+        if(bl.upval) {
+          fs.patchclose(gl.pc, bl.nactvar);
+        }
+        gl.nactvar = bl.nactvar;
+      }
+      if(!findlabel(i)) {
+        i++;
+      }
+    }
+  }
+
+  private void enterblock(FuncState52 fs, FuncState52.BlockCnt bl, boolean isloop) {
+    bl.isloop = isloop;
+    bl.nactvar = fs.nactvar;
+    bl.firstlabel = label.size();
+    bl.firstgoto = gt.size();
+    bl.upval = false;
+    bl.previous = fs.bl;
+    fs.bl = bl;
+  }
+
+  private void breaklabel() {
+    int l = newlabelentry(label, "break", 0, fs.pc);
+    findgotos(label.get(l));
+  }
+
+  private void undefgoto(Label gl) {
+    if(gl.name.equals("break")) {
+      ls.semerror("<" + gl.name + "> at line " + gl.line + " not inside a loop");
+    } else {
+      ls.semerror("no visible label '" + gl.name + "' for <goto> at line " + gl.line);
+    }
+  }
+
+  private void leaveblock(FuncState52 fs) {
+    FuncState52.BlockCnt bl = fs.bl;
+    if(bl.previous != null && bl.upval) {
+      // a jump to here that closes the upvalues
+      int j = fs.jump();
+      fs.patchclose(j, bl.nactvar);
+      fs.patchtohere(j);
+    }
+    if(bl.isloop) {
+      breaklabel();
+    }
+    fs.bl = bl.previous;
+    removevars(fs, bl.nactvar);
+    fs.freereg = fs.nactvar;
+    label.subList(bl.firstlabel, label.size()).clear();
+    if(bl.previous != null) {
+      movegotosout(fs, bl);
+    } else if(bl.firstgoto < gt.size()) {
+      undefgoto(gt.get(bl.firstgoto));
+    }
+  }
+
+  private void codeclosure(ExpDesc52 v) {
+    FuncState52 fs = this.fs.prev;
+    v.init(ExpDesc52.VRELOCABLE, fs.codeABx(FuncState52.OP_CLOSURE, 0, fs.f.p.size() - 1));
+    fs.exp2nextreg(v);
+  }
+
+  private void openFunc(FuncState52 fs, FuncState52.BlockCnt bl) {
+    fs.prev = this.fs;
+    fs.ls = ls;
+    this.fs = fs;
+    fs.pc = 0;
+    fs.lasttarget = 0;
+    fs.jpc = FuncState52.NO_JUMP;
+    fs.freereg = 0;
+    fs.nactvar = 0;
+    fs.firstlocal = actvar.size();
+    fs.bl = null;
+    fs.h = ls.lua53 ? h : new HashMap<Object, Integer>();
+    fs.f.source = ls.source;
+    fs.f.maxstacksize = 2;
+    enterblock(fs, bl, false);
+  }
+
+  private void closeFunc() {
+    FuncState52 fs = this.fs;
+    fs.ret(0, 0);
+    leaveblock(fs);
+    fs.f.code = Arrays.copyOf(fs.f.code, fs.pc);
+    fs.f.lineinfo = Arrays.copyOf(fs.f.lineinfo, fs.pc);
+    this.fs = fs.prev;
+  }
+
+  private static boolean blockFollow(int token, boolean withuntil) {
+    switch(token) {
+      case TK_ELSE:
+      case TK_ELSEIF:
+      case TK_END:
+      case TK_EOS:
+        return true;
+      case TK_UNTIL:
+        return withuntil;
+      default:
+        return false;
+    }
+  }
+
+  private void statlist() {
+    while(!blockFollow(ls.t.token, true)) {
+      if(ls.t.token == TK_RETURN) {
+        statement();
+        return;
+      }
+      statement();
+    }
+  }
+
+  private void fieldsel(ExpDesc52 v) {
+    ExpDesc52 key = new ExpDesc52();
+    fs.exp2anyregup(v);
+    ls.nextToken();
+    checkname(key);
+    fs.indexed(v, key);
+  }
+
+  private void yindex(ExpDesc52 v) {
+    ls.nextToken();
+    expr(v);
+    fs.exp2val(v);
+    checknext(']');
+  }
+
+  private void recfield(ConsControl cc) {
+    int reg = fs.freereg;
+    ExpDesc52 key = new ExpDesc52();
+    ExpDesc52 val = new ExpDesc52();
+    if(ls.t.token == TK_NAME) {
+      checklimit(fs, cc.nh, Integer.MAX_VALUE, "items in a constructor");
+      checkname(key);
+    } else {
+      yindex(key);
+    }
+    cc.nh++;
+    checknext('=');
+    int rkkey = fs.exp2RK(key);
+    expr(val);
+    fs.codeABC(FuncState52.OP_SETTABLE, cc.t.info, rkkey, fs.exp2RK(val));
+    fs.freereg = reg;
+  }
+
+  private void closelistfield(ConsControl cc) {
+    if(cc.v.k == ExpDesc52.VVOID) return;
+    fs.exp2nextreg(cc.v);
+    cc.v.k = ExpDesc52.VVOID;
+    if(cc.tostore == FuncState52.LFIELDS_PER_FLUSH) {
+      fs.setlist(cc.t.info, cc.na, cc.tostore);
+      cc.tostore = 0;
+    }
+  }
+
+  private void lastlistfield(ConsControl cc) {
+    if(cc.tostore == 0) return;
+    if(cc.v.hasMultRet()) {
+      fs.setmultret(cc.v);
+      fs.setlist(cc.t.info, cc.na, FuncState52.LUA_MULTRET);
+      cc.na--;
+    } else {
+      if(cc.v.k != ExpDesc52.VVOID) {
+        fs.exp2nextreg(cc.v);
+      }
+      fs.setlist(cc.t.info, cc.na, cc.tostore);
+    }
+  }
+
+  private void listfield(ConsControl cc) {
+    expr(cc.v);
+    checklimit(fs, cc.na, Integer.MAX_VALUE, "items in a constructor");
+    cc.na++;
+    cc.tostore++;
+  }
+
+  private static int int2fb(int x) {
+    int e = 0;
+    if(x < 8) return x;
+    while(x >= 16) {
+      x = (x + 1) >>> 1;
+      e++;
+    }
+    return ((e + 1) << 3) | (x - 8);
+  }
+
+  private void constructor(ExpDesc52 t) {
+    FuncState52 fs = this.fs;
+    int line = ls.linenumber;
+    int pc = fs.codeABC(FuncState52.OP_NEWTABLE, 0, 0, 0);
+    ConsControl cc = new ConsControl();
+    cc.t = t;
+    t.init(ExpDesc52.VRELOCABLE, pc);
+    cc.v.init(ExpDesc52.VVOID, 0);
+    fs.exp2nextreg(t);
+    checknext('{');
+    do {
+      if(ls.t.token == '}') break;
+      closelistfield(cc);
+      switch(ls.t.token) {
+        case TK_NAME: {
+          if(ls.lookahead() != '=') {
+            listfield(cc);
+          } else {
+            recfield(cc);
+          }
+          break;
+        }
+        case '[': {
+          recfield(cc);
+          break;
+        }
+        default: {
+          listfield(cc);
+          break;
+        }
+      }
+    } while(testnext(',') || testnext(';'));
+    checkMatch('}', '{', line);
+    lastlistfield(cc);
+    fs.setB(pc, int2fb(cc.na));
+    fs.setC(pc, int2fb(cc.nh));
+  }
+
+  private void parlist() {
+    Proto52 f = fs.f;
+    int nparams = 0;
+    f.isVararg = 0;
+    if(ls.t.token != ')') {
+      do {
+        switch(ls.t.token) {
+          case TK_NAME: {
+            newLocalvar(strCheckname());
+            nparams++;
+            break;
+          }
+          case TK_DOTS: {
+            ls.nextToken();
+            f.isVararg = 1;
+            break;
+          }
+          default:
+            ls.syntaxerror("<name> or '...' expected");
+        }
+      } while(f.isVararg == 0 && testnext(','));
+    }
+    adjustlocalvars(nparams);
+    f.numparams = fs.nactvar;
+    fs.reserveregs(fs.nactvar);
+  }
+
+  private void body(ExpDesc52 e, boolean ismethod, int line) {
+    FuncState52 newFs = new FuncState52();
+    FuncState52.BlockCnt bl = new FuncState52.BlockCnt();
+    fs.f.p.add(newFs.f);
+    newFs.f.linedefined = line;
+    openFunc(newFs, bl);
+    checknext('(');
+    if(ismethod) {
+      newLocalvar("self");
+      adjustlocalvars(1);
+    }
+    parlist();
+    checknext(')');
+    statlist();
+    newFs.f.lastlinedefined = ls.linenumber;
+    checkMatch(TK_END, TK_FUNCTION, line);
+    codeclosure(e);
+    closeFunc();
+  }
+
+  private int explist(ExpDesc52 v) {
+    int n = 1;
+    expr(v);
+    while(testnext(',')) {
+      fs.exp2nextreg(v);
+      expr(v);
+      n++;
+    }
+    return n;
+  }
+
+  private void funcargs(ExpDesc52 f, int line) {
+    ExpDesc52 args = new ExpDesc52();
+    switch(ls.t.token) {
+      case '(': {
+        ls.nextToken();
+        if(ls.t.token == ')') {
+          args.k = ExpDesc52.VVOID;
+        } else {
+          explist(args);
+          fs.setmultret(args);
+        }
+        checkMatch(')', '(', line);
+        break;
+      }
+      case '{': {
+        constructor(args);
+        break;
+      }
+      case TK_STRING: {
+        codestring(args, ls.t.ts);
+        ls.nextToken();
+        break;
+      }
+      default: {
+        ls.syntaxerror("function arguments expected");
+        return;
+      }
+    }
+    int base = f.info;
+    int nparams;
+    if(args.hasMultRet()) {
+      nparams = FuncState52.LUA_MULTRET;
+    } else {
+      if(args.k != ExpDesc52.VVOID) {
+        fs.exp2nextreg(args);
+      }
+      nparams = fs.freereg - (base + 1);
+    }
+    f.init(ExpDesc52.VCALL, fs.codeABC(FuncState52.OP_CALL, base, nparams + 1, 2));
+    fs.fixline(line);
+    fs.freereg = base + 1;
+  }
+
+  private void primaryexp(ExpDesc52 v) {
+    switch(ls.t.token) {
+      case '(': {
+        int line = ls.linenumber;
+        ls.nextToken();
+        expr(v);
+        checkMatch(')', '(', line);
+        fs.dischargevars(v);
+        return;
+      }
+      case TK_NAME: {
+        singlevar(v);
+        return;
+      }
+      default: {
+        ls.syntaxerror("unexpected symbol");
+        return;
+      }
+    }
+  }
+
+  private void suffixedexp(ExpDesc52 v) {
+    int line = ls.linenumber;
+    primaryexp(v);
+    for(;;) {
+      switch(ls.t.token) {
+        case '.': {
+          fieldsel(v);
+          break;
+        }
+        case '[': {
+          ExpDesc52 key = new ExpDesc52();
+          fs.exp2anyregup(v);
+          yindex(key);
+          fs.indexed(v, key);
+          break;
+        }
+        case ':': {
+          ExpDesc52 key = new ExpDesc52();
+          ls.nextToken();
+          checkname(key);
+          fs.self(v, key);
+          funcargs(v, line);
+          break;
+        }
+        case '(':
+        case TK_STRING:
+        case '{': {
+          fs.exp2nextreg(v);
+          funcargs(v, line);
+          break;
+        }
+        default:
+          return;
+      }
+    }
+  }
+
+  private void simpleexp(ExpDesc52 v) {
+    switch(ls.t.token) {
+      case TK_FLT: {
+        v.init(ExpDesc52.VKFLT, 0);
+        v.nval = ls.t.r;
+        break;
+      }
+      case TK_INT: {
+        v.init(ExpDesc52.VKINT, 0);
+        v.ival = ls.t.i;
+        break;
+      }
+      case TK_STRING: {
+        codestring(v, ls.t.ts);
+        break;
+      }
+      case TK_NIL: {
+        v.init(ExpDesc52.VNIL, 0);
+        break;
+      }
+      case TK_TRUE: {
+        v.init(ExpDesc52.VTRUE, 0);
+        break;
+      }
+      case TK_FALSE: {
+        v.init(ExpDesc52.VFALSE, 0);
+        break;
+      }
+      case TK_DOTS: {
+        checkCondition(fs.f.isVararg != 0, "cannot use '...' outside a vararg function");
+        v.init(ExpDesc52.VVARARG, fs.codeABC(FuncState52.OP_VARARG, 0, 1, 0));
+        break;
+      }
+      case '{': {
+        constructor(v);
+        return;
+      }
+      case TK_FUNCTION: {
+        ls.nextToken();
+        body(v, false, ls.linenumber);
+        return;
+      }
+      default: {
+        suffixedexp(v);
+        return;
+      }
+    }
+    ls.nextToken();
+  }
+
+  private int getunopr(int op) {
+    switch(op) {
+      case TK_NOT: return FuncState52.OPR_NOT;
+      case '-': return FuncState52.OPR_MINUS;
+      case '~': return ls.lua53 ? FuncState52.OPR_BNOT : FuncState52.OPR_NOUNOPR;
+      case '#': return FuncState52.OPR_LEN;
+      default: return FuncState52.OPR_NOUNOPR;
+    }
+  }
+
+  private int getbinopr(int op) {
+    switch(op) {
+      case '+': return FuncState52.OPR_ADD;
+      case '-': return FuncState52.OPR_SUB;
+      case '*': return FuncState52.OPR_MUL;
+      case '%': return FuncState52.OPR_MOD;
+      case '^': return FuncState52.OPR_POW;
+      case '/': return FuncState52.OPR_DIV;
+      case TK_IDIV: return FuncState52.OPR_IDIV;
+      case '&': return ls.lua53 ? FuncState52.OPR_BAND : FuncState52.OPR_NOBINOPR;
+      case '|': return ls.lua53 ? FuncState52.OPR_BOR : FuncState52.OPR_NOBINOPR;
+      case '~': return ls.lua53 ? FuncState52.OPR_BXOR : FuncState52.OPR_NOBINOPR;
+      case TK_SHL: return FuncState52.OPR_SHL;
+      case TK_SHR: return FuncState52.OPR_SHR;
+      case TK_CONCAT: return FuncState52.OPR_CONCAT;
+      case TK_NE: return FuncState52.OPR_NE;
+      case TK_EQ: return FuncState52.OPR_EQ;
+      case '<': return FuncState52.OPR_LT;
+      case TK_LE: return FuncState52.OPR_LE;
+      case '>': return FuncState52.OPR_GT;
+      case TK_GE: return FuncState52.OPR_GE;
+      case TK_AND: return FuncState52.OPR_AND;
+      case TK_OR: return FuncState52.OPR_OR;
+      default: return FuncState52.OPR_NOBINOPR;
+    }
+  }
+
+  private int subexpr(ExpDesc52 v, int limit) {
+    enterlevel();
+    int uop = getunopr(ls.t.token);
+    if(uop != FuncState52.OPR_NOUNOPR) {
+      int line = ls.linenumber;
+      ls.nextToken();
+      subexpr(v, unaryPriority);
+      fs.prefix(uop, v, line);
+    } else {
+      simpleexp(v);
+    }
+    int op = getbinopr(ls.t.token);
+    while(op != FuncState52.OPR_NOBINOPR && priority[op][0] > limit) {
+      ExpDesc52 v2 = new ExpDesc52();
+      int line = ls.linenumber;
+      ls.nextToken();
+      fs.infix(op, v);
+      int nextop = subexpr(v2, priority[op][1]);
+      fs.posfix(op, v, v2, line);
+      op = nextop;
+    }
+    leavelevel();
+    return op;
+  }
+
+  private void expr(ExpDesc52 v) {
+    subexpr(v, 0);
+  }
+
+  private void block() {
+    FuncState52 fs = this.fs;
+    FuncState52.BlockCnt bl = new FuncState52.BlockCnt();
+    enterblock(fs, bl, false);
+    statlist();
+    leaveblock(fs);
+  }
+
+  private void checkConflict(LHSAssign lh, ExpDesc52 v) {
+    int extra = fs.freereg;
+    boolean conflict = false;
+    for(; lh != null; lh = lh.prev) {
+      if(lh.v.k == ExpDesc52.VINDEXED) {
+        if(lh.v.vt == v.k && lh.v.table == v.info) {
+          conflict = true;
+          lh.v.vt = ExpDesc52.VLOCAL;
+          lh.v.table = extra;
+        }
+        if(v.k == ExpDesc52.VLOCAL && lh.v.idx == v.info) {
+          conflict = true;
+          lh.v.idx = extra;
+        }
+      }
+    }
+    if(conflict) {
+      int op = (v.k == ExpDesc52.VLOCAL) ? FuncState52.OP_MOVE : FuncState52.OP_GETUPVAL;
+      fs.codeABC(op, extra, v.info, 0);
+      fs.reserveregs(1);
+    }
+  }
+
+  private void assignment(LHSAssign lh, int nvars) {
+    ExpDesc52 e = new ExpDesc52();
+    checkCondition(lh.v.isVar(), "syntax error");
+    if(testnext(',')) {
+      LHSAssign nv = new LHSAssign();
+      nv.prev = lh;
+      suffixedexp(nv.v);
+      if(nv.v.k != ExpDesc52.VINDEXED) {
+        checkConflict(lh, nv.v);
+      }
+      checklimit(fs, nvars + nCcalls, LUAI_MAXCCALLS, "C levels");
+      assignment(nv, nvars + 1);
+    } else {
+      checknext('=');
+      int nexps = explist(e);
+      if(nexps != nvars) {
+        adjustAssign(nvars, nexps, e);
+        if(nexps > nvars) {
+          fs.freereg -= nexps - nvars;
+        }
+      } else {
+        fs.setoneret(e);
+        fs.storevar(lh.v, e);
+        return;
+      }
+    }
+    e.init(ExpDesc52.VNONRELOC, fs.freereg - 1);
+    fs.storevar(lh.v, e);
+  }
+
+  private int cond() {
+    ExpDesc52 v = new ExpDesc52();
+    expr(v);
+    if(v.k == ExpDesc52.VNIL) v.k = ExpDesc52.VFALSE;
+    fs.goiftrue(v);
+    return v.f;
+  }
+
+  private void gotostat(int pc) {
+    int line = ls.linenumber;
+    String name;
+    if(testnext(TK_GOTO)) {
+      name = strCheckname();
+    } else {
+      ls.nextToken();
+      name = "break";
+    }
+    int g = newlabelentry(gt, name, line, pc);
+    findlabel(g);
+  }
+
+  private void checkrepeated(FuncState52 fs, String name) {
+    for(int i = fs.bl.firstlabel; i < label.size(); i++) {
+      if(name.equals(label.get(i).name)) {
+        ls.semerror("label '" + name + "' already defined on line " + label.get(i).line);
+      }
+    }
+  }
+
+  private void skipnoopstat() {
+    while(ls.t.token == ';' || ls.t.token == TK_DBCOLON) {
+      statement();
+    }
+  }
+
+  private void labelstat(String name, int line) {
+    FuncState52 fs = this.fs;
+    checkrepeated(fs, name);
+    checknext(TK_DBCOLON);
+    // Lua 5.2 does not mark the label as a jump target
+    int l = newlabelentry(label, name, line, ls.lua53 ? fs.getlabel() : fs.pc);
+    skipnoopstat();
+    if(blockFollow(ls.t.token, false)) {
+      // the locals are already out of scope at the end of the block
+      label.get(l).nactvar = fs.bl.nactvar;
+    }
+    findgotos(label.get(l));
+  }
+
+  private void whilestat(int line) {
+    FuncState52 fs = this.fs;
+    FuncState52.BlockCnt bl = new FuncState52.BlockCnt();
+    ls.nextToken();
+    int whileinit = fs.getlabel();
+    int condexit = cond();
+    enterblock(fs, bl, true);
+    checknext(TK_DO);
+    block();
+    fs.jumpto(whileinit);
+    checkMatch(TK_END, TK_WHILE, line);
+    leaveblock(fs);
+    fs.patchtohere(condexit);
+  }
+
+  private void repeatstat(int line) {
+    FuncState52 fs = this.fs;
+    int repeatInit = fs.getlabel();
+    FuncState52.BlockCnt bl1 = new FuncState52.BlockCnt();
+    FuncState52.BlockCnt bl2 = new FuncState52.BlockCnt();
+    enterblock(fs, bl1, true);
+    enterblock(fs, bl2, false);
+    ls.nextToken();
+    statlist();
+    checkMatch(TK_UNTIL, TK_REPEAT, line);
+    int condexit = cond();
+    if(bl2.upval) {
+      fs.patchclose(condexit, bl2.nactvar);
+    }
+    leaveblock(fs);
+    fs.patchlist(condexit, repeatInit);
+    leaveblock(fs);
+  }
+
+  private void exp1() {
+    ExpDesc52 e = new ExpDesc52();
+    expr(e);
+    fs.exp2nextreg(e);
+  }
+
+  private void forbody(int base, int line, int nvars, boolean isnum) {
+    FuncState52.BlockCnt bl = new FuncState52.BlockCnt();
+    FuncState52 fs = this.fs;
+    adjustlocalvars(3);
+    checknext(TK_DO);
+    int prep = isnum ? fs.codeAsBx(FuncState52.OP_FORPREP, base, FuncState52.NO_JUMP) : fs.jump();
+    enterblock(fs, bl, false);
+    adjustlocalvars(nvars);
+    fs.reserveregs(nvars);
+    block();
+    leaveblock(fs);
+    fs.patchtohere(prep);
+    int endfor;
+    if(isnum) {
+      endfor = fs.codeAsBx(FuncState52.OP_FORLOOP, base, FuncState52.NO_JUMP);
+    } else {
+      fs.codeABC(FuncState52.OP_TFORCALL, base, 0, nvars);
+      fs.fixline(line);
+      endfor = fs.codeAsBx(FuncState52.OP_TFORLOOP, base + 2, FuncState52.NO_JUMP);
+    }
+    fs.patchlist(endfor, prep + 1);
+    fs.fixline(line);
+  }
+
+  private void fornum(String varname, int line) {
+    FuncState52 fs = this.fs;
+    int base = fs.freereg;
+    newLocalvar("(for index)");
+    newLocalvar("(for limit)");
+    newLocalvar("(for step)");
+    newLocalvar(varname);
+    checknext('=');
+    exp1();
+    checknext(',');
+    exp1();
+    if(testnext(',')) {
+      exp1();
+    } else {
+      fs.codek(fs.freereg, ls.lua53 ? fs.intK(1) : fs.numberK(1));
+      fs.reserveregs(1);
+    }
+    forbody(base, line, 1, true);
+  }
+
+  private void forlist(String indexname) {
+    FuncState52 fs = this.fs;
+    ExpDesc52 e = new ExpDesc52();
+    int nvars = 4;
+    int base = fs.freereg;
+    newLocalvar("(for generator)");
+    newLocalvar("(for state)");
+    newLocalvar("(for control)");
+    newLocalvar(indexname);
+    while(testnext(',')) {
+      newLocalvar(strCheckname());
+      nvars++;
+    }
+    checknext(TK_IN);
+    int line = ls.linenumber;
+    adjustAssign(3, explist(e), e);
+    fs.checkstack(3);
+    forbody(base, line, nvars - 3, false);
+  }
+
+  private void forstat(int line) {
+    FuncState52 fs = this.fs;
+    FuncState52.BlockCnt bl = new FuncState52.BlockCnt();
+    enterblock(fs, bl, true);
+    ls.nextToken();
+    String varname = strCheckname();
+    switch(ls.t.token) {
+      case '=':
+        fornum(varname, line);
+        break;
+      case ',':
+      case TK_IN:
+        forlist(varname);
+        break;
+      default:
+        ls.syntaxerror("'=' or 'in' expected");
+    }
+    checkMatch(TK_END, TK_FOR, line);
+    leaveblock(fs);
+  }
+
+  private int testThenBlock(int escapelist) {
+    FuncState52.BlockCnt bl = new FuncState52.BlockCnt();
+    FuncState52 fs = this.fs;
+    ExpDesc52 v = new ExpDesc52();
+    int jf;
+    ls.nextToken();
+    expr(v);
+    checknext(TK_THEN);
+    if(ls.t.token == TK_GOTO || ls.t.token == TK_BREAK) {
+      // jump straight to the label when the condition is true
+      fs.goiffalse(v);
+      enterblock(fs, bl, false);
+      gotostat(v.t);
+      if(ls.lua53) {
+        while(testnext(';')) {
+        }
+      } else {
+        skipnoopstat();
+      }
+      if(blockFollow(ls.t.token, false)) {
+        leaveblock(fs);
+        return escapelist;
+      } else {
+        jf = fs.jump();
+      }
+    } else {
+      fs.goiftrue(v);
+      enterblock(fs, bl, false);
+      jf = v.f;
+    }
+    statlist();
+    leaveblock(fs);
+    if(ls.t.token == TK_ELSE || ls.t.token == TK_ELSEIF) {
+      escapelist = fs.concat(escapelist, fs.jump());
+    }
+    fs.patchtohere(jf);
+    return escapelist;
+  }
+
+  private void ifstat(int line) {
+    int escapelist = testThenBlock(FuncState52.NO_JUMP);
+    while(ls.t.token == TK_ELSEIF) {
+      escapelist = testThenBlock(escapelist);
+    }
+    if(testnext(TK_ELSE)) {
+      block();
+    }
+    checkMatch(TK_END, TK_IF, line);
+    fs.patchtohere(escapelist);
+  }
+
+  private void localfunc() {
+    ExpDesc52 b = new ExpDesc52();
+    FuncState52 fs = this.fs;
+    newLocalvar(strCheckname());
+    adjustlocalvars(1);
+    body(b, false, ls.linenumber);
+    getlocvar(fs, b.info).startpc = fs.pc;
+  }
+
+  private void localstat() {
+    int nvars = 0;
+    int nexps;
+    ExpDesc52 e = new ExpDesc52();
+    do {
+      newLocalvar(strCheckname());
+      nvars++;
+    } while(testnext(','));
+    if(testnext('=')) {
+      nexps = explist(e);
+    } else {
+      e.k = ExpDesc52.VVOID;
+      nexps = 0;
+    }
+    adjustAssign(nvars, nexps, e);
+    adjustlocalvars(nvars);
+  }
+
+  private boolean funcname(ExpDesc52 v) {
+    boolean ismethod = false;
+    singlevar(v);
+    while(ls.t.token == '.') {
+      fieldsel(v);
+    }
+    if(ls.t.token == ':') {
+      ismethod = true;
+      fieldsel(v);
+    }
+    return ismethod;
+  }
+
+  private void funcstat(int line) {
+    ExpDesc52 v = new ExpDesc52();
+    ExpDesc52 b = new ExpDesc52();
+    ls.nextToken();
+    boolean ismethod = funcname(v);
+    body(b, ismethod, line);
+    fs.storevar(v, b);
+    fs.fixline(line);
+  }
+
+  private void exprstat() {
+    LHSAssign v = new LHSAssign();
+    suffixedexp(v.v);
+    if(ls.t.token == '=' || ls.t.token == ',') {
+      v.prev = null;
+      assignment(v, 1);
+    } else {
+      checkCondition(v.v.k == ExpDesc52.VCALL, "syntax error");
+      fs.setC(v.v.info, 1);
+    }
+  }
+
+  private void retstat() {
+    ExpDesc52 e = new ExpDesc52();
+    int first;
+    int nret;
+    if(blockFollow(ls.t.token, true) || ls.t.token == ';') {
+      first = nret = 0;
+    } else {
+      nret = explist(e);
+      if(e.hasMultRet()) {
+        fs.setmultret(e);
+        if(e.k == ExpDesc52.VCALL && nret == 1) {
+          fs.setOpcode(e.info, FuncState52.OP_TAILCALL);
+        }
+        first = fs.nactvar;
+        nret = FuncState52.LUA_MULTRET;
+      } else {
+        if(nret == 1) {
+          first = fs.exp2anyreg(e);
+        } else {
+          fs.exp2nextreg(e);
+          first = fs.nactvar;
+        }
+      }
+    }
+    fs.ret(first, nret);
+    testnext(';');
+  }
+
+  private void statement() {
+    int line = ls.linenumber;
+    enterlevel();
+    switch(ls.t.token) {
+      case ';': {
+        ls.nextToken();
+        break;
+      }
+      case TK_IF: {
+        ifstat(line);
+        break;
+      }
+      case TK_WHILE: {
+        whilestat(line);
+        break;
+      }
+      case TK_DO: {
+        ls.nextToken();
+        block();
+        checkMatch(TK_END, TK_DO, line);
+        break;
+      }
+      case TK_FOR: {
+        forstat(line);
+        break;
+      }
+      case TK_REPEAT: {
+        repeatstat(line);
+        break;
+      }
+      case TK_FUNCTION: {
+        funcstat(line);
+        break;
+      }
+      case TK_LOCAL: {
+        ls.nextToken();
+        if(testnext(TK_FUNCTION)) {
+          localfunc();
+        } else {
+          localstat();
+        }
+        break;
+      }
+      case TK_DBCOLON: {
+        ls.nextToken();
+        labelstat(strCheckname(), line);
+        break;
+      }
+      case TK_RETURN: {
+        ls.nextToken();
+        retstat();
+        break;
+      }
+      case TK_BREAK:
+      case TK_GOTO: {
+        gotostat(fs.jump());
+        break;
+      }
+      default: {
+        exprstat();
+        break;
+      }
+    }
+    fs.freereg = fs.nactvar;
+    leavelevel();
+  }
+
+}
@@ -0,0 +1,40 @@
+package unluac.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled function prototype, holding what ldump.c writes out.
+ */
+class Proto {
+
+  static final Object NIL = new Object();
+
+  static class LocVar {
+
+    final String name;
+    int startpc;
+    int endpc;
+
+    LocVar(String name) {
+      this.name = name;
+    }
+
+  }
+
+  String source;
+  int linedefined;
+  int lastlinedefined;
+  int nups;
+  int numparams;
+  int isVararg;
+  int maxstacksize;
+
+  int[] code = new int[16];
+  int[] lineinfo = new int[16];
+  final List<Object> k = new ArrayList<Object>();
+  final List<Proto> p = new ArrayList<Proto>();
+  final List<LocVar> locvars = new ArrayList<LocVar>();
+  final List<String> upvalues = new ArrayList<String>();
+
+}
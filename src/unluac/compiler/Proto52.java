@@ -0,0 +1,40 @@
+package unluac.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled Lua 5.2 or 5.3 function prototype. The code uses the Lua 5.3
+ * opcode numbers; Dumper52 renumbers them for Lua 5.2.
+ */
+class Proto52 {
+
+  static class Upvalue {
+
+    final String name;
+    final boolean instack;
+    final int idx;
+
+    Upvalue(String name, boolean instack, int idx) {
+      this.name = name;
+      this.instack = instack;
+      this.idx = idx;
+    }
+
+  }
+
+  String source;
+  int linedefined;
+  int lastlinedefined;
+  int numparams;
+  int isVararg;
+  int maxstacksize;
+
+  int[] code = new int[16];
+  int[] lineinfo = new int[16];
+  final List<Object> k = new ArrayList<Object>();
+  final List<Proto52> p = new ArrayList<Proto52>();
+  final List<Proto.LocVar> locvars = new ArrayList<Proto.LocVar>();
+  final List<Upvalue> upvalues = new ArrayList<Upvalue>();
+
+}
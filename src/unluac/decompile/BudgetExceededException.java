@@ -0,0 +1,15 @@
+package unluac.decompile;
+
+/**
+ * Thrown when a function exceeds the time or memory budget set in the
+ * configuration. The function is then printed as a disassembly stub.
+ */
+public class BudgetExceededException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public BudgetExceededException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,31 @@
+package unluac.decompile;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event with the totals of one decompiled chunk, spanning
+ * its parsing and decompilation.
+ */
+@Name("unluac.Chunk")
+@Label("Decompile Chunk")
+@Category("unluac")
+@StackTrace(false)
+class ChunkEvent extends Event {
+
+  @Label("Functions")
+  int functions;
+
+  @Label("Parse Time")
+  @Timespan
+  long parseTime;
+
+  @Label("Total Time")
+  @Timespan
+  long totalTime;
+
+}
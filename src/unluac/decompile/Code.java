@@ -69,20 +69,28 @@ public class Code {
   public final int length;
   
   public Code(LFunction function) {
+    this(function, new boolean[function.code.length], new boolean[function.code.length]);
+  }
+  
+  /**
+   * Uses the given (cleared, possibly longer) arrays for the per-line flags.
+   */
+  Code(LFunction function, boolean[] extraByte, boolean[] upvalue) {
     this.code = function.code;
     this.length = code.length;
     map = function.header.version.getOpcodeMap();
     extractor = function.header.extractor;
-    extraByte = new boolean[length];
+    this.extraByte = extraByte;
     for(int i = 0; i < length; i++) {
       int line = i + 1;
-      extraByte[i] = op(line).hasExtraByte(codepoint(line), extractor);
+      Op op = op(line);
+      extraByte[i] = op != null && op.hasExtraByte(codepoint(line), extractor);
     }
-    upvalue = new boolean[length];
+    this.upvalue = upvalue;
     if(function.header.version.usesInlineUpvalueDeclarations()) {
       for(int i = 0; i < length; i++) {
         int line = i + 1;
-        if(op(line) == Op.CLOSURE) {
+        if(op(line) == Op.CLOSURE && Bx(line) < function.functions.length) {
           int nups = function.functions[Bx(line)].numUpvalues;
           for(int j = 1; j <= nups; j++) {
             upvalue[i + j] = true;
@@ -86,7 +86,7 @@ public class Constant {
         out.print(bool ? "true" : "false");
         break;
       case 2:
-        out.print(number.toString());
+        out.print(number);
         break;
       case 3:
         int newlines = 0;
@@ -34,12 +34,13 @@ import unluac.decompile.condition.RegisterSetCondition;
 import unluac.decompile.condition.SetCondition;
 import unluac.decompile.condition.TestCondition;
 import unluac.parse.LFunction;
+import unluac.util.Stack;
 
 public class ControlFlowHandler {
   
   public static boolean verbose = false;
   
-  private static class Branch implements Comparable<Branch> {
+  static class Branch implements Comparable<Branch> {
     
     private static enum Type {
       comparison,
@@ -96,20 +97,49 @@ public class ControlFlowHandler {
     state.function = d.function;
     state.r = r;
     state.code = d.code;
+    Stats.Function stats = d.stats;
+    long time = Stats.start(stats);
+    if(is_branch_free(state)) {
+      // No branches or loops for the passes below to find, so only the outer
+      // block and the do..end blocks of the declarations are needed.
+      state.blocks = new LinkedList<Block>();
+      state.blocks.add(new OuterBlock(state.function, state.code.length));
+      find_do_blocks(state, d.declList);
+      time = Stats.lap(stats, Stats.Phase.DO_BLOCKS, time);
+      Collections.sort(state.blocks);
+      Stats.lap(stats, Stats.Phase.SORT_BLOCKS, time);
+      if(stats != null) stats.blocks = state.blocks.size();
+      return state.blocks;
+    }
     find_reverse_targets(state);
+    time = Stats.lap(stats, Stats.Phase.REVERSE_TARGETS, time);
     find_branches(state);
+    time = Stats.lap(stats, Stats.Phase.BRANCHES, time);
+    if(stats != null) stats.branches = count_branches(state);
     combine_branches(state);
+    time = Stats.lap(stats, Stats.Phase.COMBINE_BRANCHES, time);
     resolve_lines(state);
+    time = Stats.lap(stats, Stats.Phase.RESOLVE_LINES, time);
     initialize_blocks(state);
     find_fixed_blocks(state);
+    time = Stats.lap(stats, Stats.Phase.FIXED_BLOCKS, time);
     find_while_loops(state);
+    time = Stats.lap(stats, Stats.Phase.WHILE_LOOPS, time);
     find_repeat_loops(state);
+    time = Stats.lap(stats, Stats.Phase.REPEAT_LOOPS, time);
     find_break_statements(state);
+    time = Stats.lap(stats, Stats.Phase.BREAKS, time);
     find_if_blocks(state);
+    time = Stats.lap(stats, Stats.Phase.IF_BLOCKS, time);
     find_set_blocks(state);
+    time = Stats.lap(stats, Stats.Phase.SET_BLOCKS, time);
     find_pseudo_goto_statements(state, d.declList);
+    time = Stats.lap(stats, Stats.Phase.GOTOS, time);
     find_do_blocks(state, d.declList);
+    time = Stats.lap(stats, Stats.Phase.DO_BLOCKS, time);
     Collections.sort(state.blocks);
+    Stats.lap(stats, Stats.Phase.SORT_BLOCKS, time);
+    if(stats != null) stats.blocks = state.blocks.size();
     // DEBUG: print branches stuff
     /*
     Branch b = state.begin_branch;
@@ -122,9 +152,37 @@ public class ControlFlowHandler {
     return state.blocks;
   }
   
+  private static boolean is_branch_free(State state) {
+    Code code = state.code;
+    for(int line = 1; line <= code.length; line++) {
+      switch(code.op(line)) {
+        case JMP:
+        case JMP52:
+        case EQ:
+        case LT:
+        case LE:
+        case TEST:
+        case TEST50:
+        case TESTSET:
+        case FORLOOP:
+        case FORPREP:
+        case TFORLOOP:
+        case TFORCALL:
+        case TFORPREP:
+          return false;
+        case LOADBOOL:
+          if(code.C(line) != 0) return false;
+          break;
+        default:
+          break;
+      }
+    }
+    return true;
+  }
+  
   private static void find_reverse_targets(State state) {
     Code code = state.code;
-    boolean[] reverse_targets = state.reverse_targets = new boolean[state.code.length + 1];
+    boolean[] reverse_targets = state.reverse_targets = state.d.frame.reverseTargets(state.code.length + 1);
     for(int line = 1; line <= code.length; line++) {
       if(is_jmp(state, line)) {
         int target = code.target(line);
@@ -136,8 +194,8 @@ public class ControlFlowHandler {
   }
   
   private static void resolve_lines(State state) {
-    int[] resolved = new int[state.code.length + 1];
-    Arrays.fill(resolved, -1);
+    int[] resolved = state.d.frame.resolved(state.code.length + 1);
+    Arrays.fill(resolved, 0, state.code.length + 1, -1);
     for(int line = 1; line <= state.code.length; line++) {
       int r = line;
       Branch b = state.branches[line];
@@ -231,10 +289,12 @@ public class ControlFlowHandler {
   
   private static void find_branches(State state) {
     Code code = state.code;
-    state.branches = new Branch[state.code.length + 1];
-    state.setbranches = new Branch[state.code.length + 1];
-    state.finalsetbranches = new Branch[state.code.length + 1];
-    boolean[] skip = new boolean[code.length + 1];
+    Scratch.Frame frame = state.d.frame;
+    frame.clearBranches(state.code.length + 1);
+    state.branches = frame.branches;
+    state.setbranches = frame.setbranches;
+    state.finalsetbranches = frame.finalsetbranches;
+    boolean[] skip = frame.branchSkip(code.length + 1);
     for(int line = 1; line <= code.length; line++) {
       if(!skip[line]) {
         switch(code.op(line)) {
@@ -387,6 +447,7 @@ public class ControlFlowHandler {
     
     b = state.end_branch;
     while(b != null) {
+      state.d.checkpoint();
       b = combine_left(state, b).previous;
     }
   }
@@ -403,7 +464,7 @@ public class ControlFlowHandler {
     Op forTarget = state.function.header.version.getForTarget();
     blocks.add(new OuterBlock(state.function, state.code.length));
     
-    boolean[] loop = new boolean[state.code.length + 1];
+    boolean[] loop = state.d.frame.loop(state.code.length + 1);
     
     Branch b = state.begin_branch;
     while(b != null) {
@@ -517,6 +578,7 @@ public class ControlFlowHandler {
     List<Block> blocks = state.blocks;
     Branch j = state.end_branch;
     while(j != null) {
+      state.d.checkpoint();
       if(j.type == Branch.Type.jump && j.targetFirst <= j.line) {
         int line = j.targetFirst;
         int loopback = line;
@@ -572,6 +634,7 @@ public class ControlFlowHandler {
     List<Block> blocks = state.blocks;
     Branch b = state.begin_branch;
     while(b != null) {
+      state.d.checkpoint();
       if(is_conditional(b)) {
         if(b.targetSecond < b.targetFirst) {
           Block block = null;
@@ -605,6 +668,7 @@ public class ControlFlowHandler {
   private static void find_if_blocks(State state) {
     Branch b = state.begin_branch;
     while(b != null) {
+      state.d.checkpoint();
       if(is_conditional(b)) {
         Block enclosing;
         enclosing = enclosing_unprotected_block(state, b.line);
@@ -653,6 +717,7 @@ public class ControlFlowHandler {
     List<Block> blocks = state.blocks;
     Branch b = state.begin_branch;
     while(b != null) {
+      state.d.checkpoint();
       if(is_assignment(b) || b.type == Branch.Type.finalset) {
         Block block = new SetBlock(state.function, b.cond, b.target, b.line, b.targetFirst, b.targetSecond, state.r);
         blocks.add(block);
@@ -715,6 +780,7 @@ public class ControlFlowHandler {
     Branch b = state.end_branch;
     LinkedList<Branch> breaks = new LinkedList<Branch>();
     while(b != null) {
+      state.d.checkpoint();
       if(b.type == Branch.Type.jump) {
         int line = b.line;
         Block enclosing = enclosing_breakable_block(state, line);
@@ -802,6 +868,7 @@ public class ControlFlowHandler {
   private static void find_pseudo_goto_statements(State state, Declaration[] declList) {
     Branch b = state.begin_branch;
     while(b != null) {
+      state.d.checkpoint();
       if(b.type == Branch.Type.jump && b.targetFirst > b.line) {
         int end = b.targetFirst;
         Block smallestEnclosing = null;
@@ -909,18 +976,90 @@ public class ControlFlowHandler {
     }
   }
   
+  /*
+   * The combinations of a branch with the one before it. The branch before
+   * is combined with its own predecessors first, so a chain of and/or terms
+   * nests as deep as it is long; the combining is done with an explicit
+   * stack of Combine entries rather than recursion.
+   */
+  private static enum Combination {
+    none,
+    conditional_or,
+    conditional_and,
+    bridge,
+    assign,
+    final_assign;
+  }
+  
+  /*
+   * A branch being combined with the branches before it, as far back as
+   * branch0. If pending is set, branch0 is being combined first (by the
+   * entry above this one), and then with branch1.
+   */
+  private static class Combine {
+    final boolean assignment;
+    Branch branch1;
+    Branch branch0;
+    Combination pending = Combination.none;
+    boolean inverse;
+    boolean conditional;
+    
+    Combine(boolean assignment, Branch branch1) {
+      this.assignment = assignment;
+      start(branch1);
+    }
+    
+    void start(Branch branch1) {
+      this.branch1 = branch1;
+      this.branch0 = branch1.previous;
+      this.pending = Combination.none;
+    }
+  }
+  
   private static Branch combine_conditional(State state, Branch branch1) {
-    Branch branch0 = branch1.previous;
-    Branch branchn = branch1;
-    while(branch0 != null && branchn == branch1) {
-      branchn = combine_conditional_helper(state, branch0, branch1);
-      if(branch0.targetSecond > branch1.targetFirst) break;
-      branch0 = branch0.previous;
+    return combine(state, new Combine(false, branch1));
+  }
+  
+  private static Branch combine_assignment(State state, Branch branch1) {
+    return combine(state, new Combine(true, branch1));
+  }
+  
+  private static Branch combine(State state, Combine first) {
+    Stack<Combine> work = new Stack<Combine>();
+    work.push(first);
+    Branch result = null;
+    while(true) {
+      Combine c = work.peek();
+      if(result != null) {
+        // branch0 has been combined with its predecessors; result replaces it
+        c.start(combine_finish(state, c, result));
+        result = null;
+      }
+      Combination combination = Combination.none;
+      while(c.branch0 != null && combination == Combination.none) {
+        combination = c.assignment ? combine_assignment_helper(state, c.branch0, c.branch1) : combine_conditional_helper(state, c.branch0, c.branch1);
+        if(combination == Combination.none) {
+          if(c.branch0.targetSecond > c.branch1.targetFirst) break;
+          c.branch0 = c.branch0.previous;
+        }
+      }
+      if(combination == Combination.none) {
+        work.pop();
+        if(work.isEmpty()) {
+          return c.branch1;
+        }
+        result = c.branch1;
+      } else {
+        c.pending = combination;
+        c.inverse = c.branch0.inverseValue;
+        c.conditional = is_conditional(c.branch0);
+        boolean assignment = (combination == Combination.assign || combination == Combination.final_assign) && !c.conditional;
+        work.push(new Combine(assignment, c.branch0));
+      }
     }
-    return branchn;
   }
   
-  private static Branch combine_conditional_helper(State state, Branch branch0, Branch branch1) {
+  private static Combination combine_conditional_helper(State state, Branch branch0, Branch branch1) {
     if(adjacent(state, branch0, branch1) && is_conditional(branch0) && is_conditional(branch1)) {
       int branch0TargetSecond = branch0.targetSecond;
       if(is_jmp(state, branch1.targetFirst) && state.code.target(branch1.targetFirst) == branch0TargetSecond) {
@@ -929,39 +1068,16 @@ public class ControlFlowHandler {
       }
       if(branch0TargetSecond == branch1.targetFirst) {
         // Combination if not branch0 or branch1 then
-        branch0 = combine_conditional(state, branch0);
-        Condition c = new OrCondition(branch0.cond.inverse(), branch1.cond);
-        Branch branchn = new Branch(branch0.line, Branch.Type.comparison, c, branch1.targetFirst, branch1.targetSecond);
-        branchn.inverseValue = branch1.inverseValue;
-        if(verbose) System.err.println("conditional or " + branchn.line);
-        replace_branch(state, branch0, branch1, branchn);
-        return combine_conditional(state, branchn);
+        return Combination.conditional_or;
       } else if(branch0TargetSecond == branch1.targetSecond) {
         // Combination if branch0 and branch1 then
-        branch0 = combine_conditional(state, branch0);
-        Condition c = new AndCondition(branch0.cond, branch1.cond);
-        Branch branchn = new Branch(branch0.line, Branch.Type.comparison, c, branch1.targetFirst, branch1.targetSecond);
-        branchn.inverseValue = branch1.inverseValue;
-        if(verbose) System.err.println("conditional and " + branchn.line);
-        replace_branch(state, branch0, branch1, branchn);
-        return combine_conditional(state, branchn);
+        return Combination.conditional_and;
       }
     }
-    return branch1;
+    return Combination.none;
   }
   
-  private static Branch combine_assignment(State state, Branch branch1) {
-    Branch branch0 = branch1.previous;
-    Branch branchn = branch1;
-    while(branch0 != null && branchn == branch1) {
-      branchn = combine_assignment_helper(state, branch0, branch1);
-      if(branch0.targetSecond > branch1.targetFirst) break;
-      branch0 = branch0.previous;
-    }
-    return branchn;
-  }
-  
-  private static Branch combine_assignment_helper(State state, Branch branch0, Branch branch1) {
+  private static Combination combine_assignment_helper(State state, Branch branch0, Branch branch1) {
     if(adjacent(state, branch0, branch1)) {
       int register = branch1.target;
       if(branch1.target == -1) {
@@ -971,23 +1087,8 @@ public class ControlFlowHandler {
       if(is_conditional(branch0) && is_assignment(branch1)) {
         //System.err.println("bridge cand " + branch1.line + " " + branch0.line);
         if(branch0.targetSecond == branch1.targetFirst) {
-          boolean inverse = branch0.inverseValue;
-          if(verbose) System.err.println("bridge " + (inverse ? "or" : "and") + " " + branch1.line + " " + branch0.line);
-          branch0 = combine_conditional(state, branch0);
-          if(inverse != branch0.inverseValue) throw new IllegalStateException();
-          Condition c;
-          if(!branch1.inverseValue) {
-            //System.err.println("bridge or " + branch0.line + " " + branch0.inverseValue);
-            c = new OrCondition(branch0.cond.inverse(), branch1.cond); 
-          } else {
-            //System.err.println("bridge and " + branch0.line + " " + branch0.inverseValue);
-            c = new AndCondition(branch0.cond, branch1.cond);
-          }
-          Branch branchn = new Branch(branch0.line, branch1.type, c, branch1.targetFirst, branch1.targetSecond);
-          branchn.inverseValue = branch1.inverseValue;
-          branchn.target = register;
-          replace_branch(state, branch0, branch1, branchn);
-          return combine_assignment(state, branchn);
+          if(verbose) System.err.println("bridge " + (branch0.inverseValue ? "or" : "and") + " " + branch1.line + " " + branch0.line);
+          return Combination.bridge;
         } else if(branch0.targetSecond == branch1.targetSecond) {
           /*
           Condition c = new AndCondition(branch0.cond, branch1.cond);
@@ -1000,64 +1101,86 @@ public class ControlFlowHandler {
       
       if(is_assignment(branch0, register) && is_assignment(branch1) && branch0.inverseValue == branch1.inverseValue) {
         if(branch0.targetSecond == branch1.targetSecond) {
-          Condition c;
           //System.err.println("preassign " + branch1.line + " " + branch0.line + " " + branch0.targetSecond);
           if(verbose) System.err.println("assign " + (branch0.inverseValue ? "or" : "and") + " " + branch1.line + " " + branch0.line);
-          if(is_conditional(branch0)) {
-            branch0 = combine_conditional(state, branch0);
-            if(branch0.inverseValue) {
-              branch0.cond = branch0.cond.inverse(); // inverse has been double handled; undo it
-            }
-          } else {
-            boolean inverse = branch0.inverseValue;
-            branch0 = combine_assignment(state, branch0);
-            if(inverse != branch0.inverseValue) throw new IllegalStateException();
-          }
-          if(branch0.inverseValue) {
-            //System.err.println("assign and " + branch1.line + " " + branch0.line);
-            c = new OrCondition(branch0.cond, branch1.cond);
-          } else {
-            //System.err.println("assign or " + branch1.line + " " + branch0.line);
-            c = new AndCondition(branch0.cond, branch1.cond);
-          }
-          Branch branchn = new Branch(branch0.line, branch1.type, c, branch1.targetFirst, branch1.targetSecond);
-          branchn.inverseValue = branch1.inverseValue;
-          branchn.target = register;
-          replace_branch(state, branch0, branch1, branchn);
-          return combine_assignment(state, branchn);
+          return Combination.assign;
         }
       }
       if(is_assignment(branch0, register) && branch1.type == Branch.Type.finalset) {
         if(branch0.targetSecond == branch1.targetSecond) {
-          Condition c;
           //System.err.println("final preassign " + branch1.line + " " + branch0.line);
-          if(is_conditional(branch0)) {
-            branch0 = combine_conditional(state, branch0);
-            if(branch0.inverseValue) {
-              branch0.cond = branch0.cond.inverse(); // inverse has been double handled; undo it
-            }
-          } else {
-            boolean inverse = branch0.inverseValue;
-            branch0 = combine_assignment(state, branch0);
-            if(inverse != branch0.inverseValue) throw new IllegalStateException();
-          }
-          if(verbose) System.err.println("final assign " + (branch0.inverseValue ? "or" : "and") + " " + branch1.line + " " + branch0.line);
-          
+          return Combination.final_assign;
+        }
+      }
+    }
+    return Combination.none;
+  }
+  
+  /*
+   * Combines branch1 of the entry with branch0, which has been combined with
+   * its predecessors, and returns the branch that replaces them.
+   */
+  private static Branch combine_finish(State state, Combine combine, Branch branch0) {
+    Branch branch1 = combine.branch1;
+    int register = branch1.target;
+    Condition c;
+    Branch branchn;
+    switch(combine.pending) {
+      case conditional_or:
+        c = new OrCondition(branch0.cond.inverse(), branch1.cond);
+        branchn = new Branch(branch0.line, Branch.Type.comparison, c, branch1.targetFirst, branch1.targetSecond);
+        branchn.inverseValue = branch1.inverseValue;
+        if(verbose) System.err.println("conditional or " + branchn.line);
+        break;
+      case conditional_and:
+        c = new AndCondition(branch0.cond, branch1.cond);
+        branchn = new Branch(branch0.line, Branch.Type.comparison, c, branch1.targetFirst, branch1.targetSecond);
+        branchn.inverseValue = branch1.inverseValue;
+        if(verbose) System.err.println("conditional and " + branchn.line);
+        break;
+      case bridge:
+        if(combine.inverse != branch0.inverseValue) throw new IllegalStateException();
+        if(!branch1.inverseValue) {
+          //System.err.println("bridge or " + branch0.line + " " + branch0.inverseValue);
+          c = new OrCondition(branch0.cond.inverse(), branch1.cond); 
+        } else {
+          //System.err.println("bridge and " + branch0.line + " " + branch0.inverseValue);
+          c = new AndCondition(branch0.cond, branch1.cond);
+        }
+        branchn = new Branch(branch0.line, branch1.type, c, branch1.targetFirst, branch1.targetSecond);
+        branchn.inverseValue = branch1.inverseValue;
+        branchn.target = register;
+        break;
+      case assign:
+      case final_assign:
+        if(combine.conditional) {
           if(branch0.inverseValue) {
-            //System.err.println("final assign or " + branch1.line + " " + branch0.line);
-            c = new OrCondition(branch0.cond, branch1.cond);
-          } else {
-            //System.err.println("final assign and " + branch1.line + " " + branch0.line);
-            c = new AndCondition(branch0.cond, branch1.cond);
+            branch0.cond = branch0.cond.inverse(); // inverse has been double handled; undo it
           }
-          Branch branchn = new Branch(branch0.line, Branch.Type.finalset, c, branch1.targetFirst, branch1.targetSecond);
-          branchn.target = register;
-          replace_branch(state, branch0, branch1, branchn);
-          return combine_assignment(state, branchn);
+        } else {
+          if(combine.inverse != branch0.inverseValue) throw new IllegalStateException();
         }
-      }
+        if(combine.pending == Combination.final_assign) {
+          if(verbose) System.err.println("final assign " + (branch0.inverseValue ? "or" : "and") + " " + branch1.line + " " + branch0.line);
+        }
+        if(branch0.inverseValue) {
+          c = new OrCondition(branch0.cond, branch1.cond);
+        } else {
+          c = new AndCondition(branch0.cond, branch1.cond);
+        }
+        if(combine.pending == Combination.final_assign) {
+          branchn = new Branch(branch0.line, Branch.Type.finalset, c, branch1.targetFirst, branch1.targetSecond);
+        } else {
+          branchn = new Branch(branch0.line, branch1.type, c, branch1.targetFirst, branch1.targetSecond);
+          branchn.inverseValue = branch1.inverseValue;
+        }
+        branchn.target = register;
+        break;
+      default:
+        throw new IllegalStateException();
     }
-    return branch1;
+    replace_branch(state, branch0, branch1, branchn);
+    return branchn;
   }
   
   private static Branch[] branches(State state, Branch b) {
@@ -1108,9 +1231,19 @@ public class ControlFlowHandler {
     branches(state, b)[b.line] = b;
   }
   
+  private static int count_branches(State state) {
+    int count = 0;
+    Branch b = state.begin_branch;
+    while(b != null) {
+      count++;
+      b = b.next;
+    }
+    return count;
+  }
+  
   private static void link_branches(State state) {
     Branch previous = null;
-    for(int index = 0; index < state.branches.length; index++) {
+    for(int index = 0; index <= state.code.length; index++) {
       for(int array = 0; array < 3; array ++) {
         Branch[] branches;
         if(array == 0) {
@@ -1,5 +1,6 @@
 package unluac.decompile;
 
+import unluac.decompile.expression.LocalVariable;
 import unluac.parse.LLocal;
 
 public class Declaration {
@@ -19,6 +20,13 @@ public class Declaration {
    */
   public boolean forLoopExplicit = false;
   
+  /**
+   * Whether this is a Lua 5.0 local function, declared at its closure.
+   */
+  public boolean localFunction = false;
+  
+  private LocalVariable expression;
+  
   public Declaration(LLocal local) {
     this.name = local.toString();
     this.begin = local.start;
@@ -31,4 +39,14 @@ public class Declaration {
     this.end = end;
   }
   
+  /**
+   * Returns the (shared) expression referring to this local.
+   */
+  public LocalVariable getExpression() {
+    if(expression == null) {
+      expression = new LocalVariable(this);
+    }
+    return expression;
+  }
+  
 }
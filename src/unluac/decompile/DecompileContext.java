@@ -0,0 +1,85 @@
+package unluac.decompile;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import unluac.parse.LFunction;
+
+/**
+ * State shared by the decompilers of all functions in one chunk. A context
+ * belongs to a single decompilation and must not be shared between threads.
+ */
+public class DecompileContext {
+
+  final Scratch scratch;
+  
+  final Stats stats;
+  
+  final FunctionCache cache;
+  
+  public DecompileContext() {
+    this(new Scratch());
+  }
+  
+  /**
+   * Creates a context that reuses the work arrays of the given scratch area.
+   */
+  public DecompileContext(Scratch scratch) {
+    this(scratch, null);
+  }
+  
+  /**
+   * Creates a context that also records per-function stats (if not null).
+   */
+  public DecompileContext(Scratch scratch, Stats stats) {
+    this(scratch, stats, null);
+  }
+  
+  /**
+   * Creates a context that also reuses and adds to the rendered functions
+   * of the given cache (if not null).
+   */
+  public DecompileContext(Scratch scratch, Stats stats, FunctionCache cache) {
+    this.scratch = scratch;
+    this.stats = stats;
+    this.cache = cache;
+  }
+
+  /* Functions printed as stubs, as "path: reason". */
+  final List<String> failures = new ArrayList<String>();
+  
+  /**
+   * Returns a description of each function that could not be decompiled
+   * and was printed as a disassembly stub.
+   */
+  public List<String> getFailures() {
+    return failures;
+  }
+  
+  /* How many of the failures exceeded a budget. */
+  int budgetFailures = 0;
+  
+  public int getBudgetFailures() {
+    return budgetFailures;
+  }
+  
+  /* Counter for the names of locals found in stripped functions. */
+  int localCount = 0;
+  
+  /* Structural fingerprints of the functions, for the function cache. */
+  private Map<LFunction, String> fingerprints;
+  
+  String fingerprint(LFunction function) {
+    if(fingerprints == null) {
+      fingerprints = new IdentityHashMap<LFunction, String>();
+    }
+    String fingerprint = fingerprints.get(function);
+    if(fingerprint == null) {
+      fingerprint = FunctionCache.fingerprint(function, fingerprints);
+    }
+    return fingerprint;
+  }
+  
+}
@@ -1,5 +1,6 @@
 package unluac.decompile;
 
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -7,6 +8,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import unluac.Configuration;
 import unluac.Version;
@@ -21,6 +23,7 @@ import unluac.decompile.expression.TableReference;
 import unluac.decompile.expression.Vararg;
 import unluac.decompile.operation.CallOperation;
 import unluac.decompile.operation.GlobalSet;
+import unluac.decompile.operation.ListSet;
 import unluac.decompile.operation.LoadNil;
 import unluac.decompile.operation.MultipleRegisterSet;
 import unluac.decompile.operation.Operation;
@@ -42,8 +45,24 @@ import unluac.util.Stack;
 public class Decompiler {
   
   public final LFunction function;
-  public final Code code;
-  public final Declaration[] declList;
+  public final DecompileContext context;
+  
+  /*
+   * The decoded code and the declarations, which are set by analyze before
+   * the function is decompiled (code is null if it could not be decoded).
+   */
+  Code code;
+  Declaration[] declList;
+  private boolean analyzed;
+  private Throwable analysisFailure;
+  
+  final Scratch.Frame frame;
+  final Stats.Function stats;
+  private final Stats.Function outerStats;
+  private final Decompiler outer;
+  private final String path;
+  private final int depth;
+  private long deadline;
   
   private final int registers;
   private final int length;
@@ -55,40 +74,160 @@ public class Decompiler {
   private final int vararg;
   
   public static class State {
+    private Throwable failure;
     private Registers r;
+    private Scratch.Slot slot;
     private boolean[] skip;
     private Block outer;
   }
   
   public Decompiler(LFunction function) {
-    this(function, null, -1);
+    this(function, new DecompileContext());
   }
   
-  public Decompiler(LFunction function, Declaration[] parentDecls, int line) {
-    this.f = new Function(function);
+  public Decompiler(LFunction function, DecompileContext context) {
+    this(function, null, -1, -1, context);
+  }
+  
+  /**
+   * Creates the decompiler for a closure of the given (outer) decompiler,
+   * where index is the closure's index in the outer function's prototypes.
+   */
+  public Decompiler(LFunction function, Decompiler outer, int index, int line) {
+    this(function, outer, index, line, outer.context);
+  }
+  
+  private Decompiler(LFunction function, Decompiler outer, int index, int line, DecompileContext context) {
     this.function = function;
-    registers = function.maximumStackSize;
-    length = function.code.length;
-    code = new Code(function);
-    if(function.stripped) {
-      declList = VariableFinder.process(this, function.numParams, function.maximumStackSize);
-    } else if(function.locals.length >= function.numParams) {
-      declList = new Declaration[function.locals.length];
-      for(int i = 0; i < declList.length; i++) {
-        declList[i] = new Declaration(function.locals[i]);
-      }
+    this.outer = outer;
+    this.path = outer == null ? "main" : outer.path + "/" + index;
+    if(context.stats != null) {
+      stats = context.stats.function(getPath());
+      outerStats = outer == null ? null : outer.stats;
     } else {
-      declList = new Declaration[function.numParams];
-      for(int i = 0; i < declList.length; i++) {
-        declList[i] = new Declaration("_ARG_" + i + "_", 0, length - 1);
-      }
+      stats = null;
+      outerStats = null;
     }
+    Declaration[] parentDecls = outer == null ? null : outer.declList;
+    this.f = new Function(function);
+    this.context = context;
+    this.depth = outer == null ? 0 : outer.depth + 1;
+    frame = context.scratch.frame(depth);
+    registers = function.maximumStackSize;
+    length = function.code.length;
     upvalues = new Upvalues(function, parentDecls, line);
     functions = function.functions;
     params = function.numParams;
     vararg = function.vararg;
   }
   
+  /**
+   * Returns the name of a parameter without analyzing the function, so that
+   * the header of a closure can be printed before its body is looked up in
+   * the function cache. For a stripped function, this is the name that
+   * VariableFinder gives the parameter when the body is decompiled next.
+   */
+  public String getParameterName(int index) {
+    if(analyzed) {
+      return declList[index].name;
+    } else if(function.stripped) {
+      return "A" + index + "_" + (context.localCount + index);
+    } else if(function.locals.length >= function.numParams) {
+      return function.locals[index].toString();
+    } else {
+      return "_ARG_" + index + "_";
+    }
+  }
+  
+  /*
+   * Decodes the code and finds the declarations (with VariableFinder if the
+   * function is stripped), once. This starts the time budget of the
+   * function. A failure is kept for decompile to report.
+   */
+  private void analyze() {
+    if(analyzed) {
+      return;
+    }
+    analyzed = true;
+    long timeLimit = getConfiguration().functionTimeLimit;
+    if(timeLimit > 0) {
+      deadline = (System.nanoTime() + timeLimit * 1000000L) | 1;
+    }
+    long time = Stats.start(stats);
+    try {
+      code = new Code(function, frame.extraByte(length), frame.upvalue(length));
+      if(function.stripped) {
+        declList = VariableFinder.process(this, function.numParams, function.maximumStackSize);
+      } else if(function.locals.length >= function.numParams) {
+        declList = new Declaration[function.locals.length];
+        for(int i = 0; i < declList.length; i++) {
+          declList[i] = new Declaration(function.locals[i]);
+        }
+        if(function.header.version == Version.LUA50) {
+          adjustLocalFunctions();
+        }
+      } else {
+        declList = parameters();
+      }
+    } catch(CancellationException e) {
+      throw e;
+    } catch(RuntimeException e) {
+      analysisFailure = e;
+    } catch(StackOverflowError e) {
+      analysisFailure = e;
+    } catch(OutOfMemoryError e) {
+      analysisFailure = e;
+    }
+    if(analysisFailure != null) {
+      declList = parameters();
+    }
+    if(stats != null) {
+      stats.instructions = length;
+      stats.declarations = declList.length;
+      stats.functions = functions.length;
+    }
+    Stats.lap(stats, Stats.Phase.DECLARATIONS, time);
+  }
+  
+  /*
+   * Lua 5.0 starts the scope of a local function at its CLOSURE, where
+   * "local f = function" starts after it. Moving the start past the upvalue
+   * declarations, as Lua 5.1 does, keeps the usual handling of the closure.
+   */
+  private void adjustLocalFunctions() {
+    for(int i = 0; i < declList.length; i++) {
+      Declaration decl = declList[i];
+      int line = decl.begin + 1;
+      if(line > length || code.op(line) != Op.CLOSURE) continue;
+      int register = 0;
+      for(int j = 0; j < i; j++) {
+        if(declList[j].begin <= decl.begin && declList[j].end > decl.begin) {
+          register++;
+        }
+      }
+      if(code.A(line) == register) {
+        int nups = functions[code.Bx(line)].numUpvalues;
+        declList[i] = new Declaration(decl.name, line + nups, decl.end);
+        declList[i].localFunction = true;
+      }
+    }
+  }
+  
+  private Declaration[] parameters() {
+    Declaration[] parameters = new Declaration[function.numParams];
+    for(int i = 0; i < parameters.length; i++) {
+      parameters[i] = new Declaration("_ARG_" + i + "_", 0, length - 1);
+    }
+    return parameters;
+  }
+  
+  /**
+   * Returns the path of the function in the closure tree, e.g. main/0/2.
+   */
+  public String getPath() {
+    return path;
+  }
+  
   public Configuration getConfiguration() {
     return function.header.config;
   }
@@ -97,19 +236,159 @@ public class Decompiler {
     return function.header.version;
   }
   
+  /**
+   * Decompiles the function. If that fails or the function exceeds its
+   * budget, the returned state prints as a disassembly stub instead (the
+   * closures are still decompiled). Interruption of the thread cancels the
+   * decompilation with a CancellationException.
+   */
   public State decompile() {
+    analyze();
+    if(analysisFailure != null) {
+      return failed(analysisFailure);
+    }
+    try {
+      return decompileBody();
+    } catch(CancellationException e) {
+      throw e;
+    } catch(RuntimeException e) {
+      return failed(e);
+    } catch(StackOverflowError e) {
+      return failed(e);
+    } catch(OutOfMemoryError e) {
+      return failed(e);
+    }
+  }
+  
+  /**
+   * Returns a rough estimate of the working memory needed to decompile a
+   * function, which is dominated by the register matrices (one set for the
+   * function and one for the statement probes).
+   */
+  public static long estimateMemory(int registers, int length) {
+    return 2L * 3 * 4 * registers * (length + 1) + 64L * length;
+  }
+  
+  /**
+   * Checks the time budget of the function and whether the thread has been
+   * interrupted. Called between and within the longer passes, and between
+   * the statements printed.
+   */
+  public void checkpoint() {
+    if(deadline != 0 && System.nanoTime() - deadline > 0) {
+      throw new BudgetExceededException("time budget of " + getConfiguration().functionTimeLimit + " ms exceeded");
+    }
+    if(Thread.currentThread().isInterrupted()) {
+      throw new CancellationException();
+    }
+  }
+  
+  private State failed(Throwable failure) {
     State state = new State();
-    state.r = new Registers(registers, length, declList, f);
+    fail(state, failure);
+    return state;
+  }
+  
+  private void fail(State state, Throwable failure) {
+    state.failure = failure;
+    context.failures.add(getPath() + ": " + describe(failure));
+    if(failure instanceof BudgetExceededException) {
+      context.budgetFailures++;
+    }
+  }
+  
+  private static String describe(Throwable failure) {
+    if(failure instanceof BudgetExceededException) {
+      return failure.getMessage();
+    } else if(failure instanceof StackOverflowError) {
+      return "stack overflow";
+    } else if(failure instanceof OutOfMemoryError) {
+      return "out of memory";
+    } else {
+      return failure.getMessage() != null ? failure.toString() : failure.getClass().getName();
+    }
+  }
+  
+  private State decompileBody() {
+    long memoryLimit = getConfiguration().functionMemoryLimit;
+    if(memoryLimit > 0 && estimateMemory(registers, length) > memoryLimit) {
+      throw new BudgetExceededException("estimated memory of " + estimateMemory(registers, length) + " bytes exceeds budget");
+    }
+    State state = new State();
+    state.r = new Registers(registers, length, declList, f, frame.registers);
+    state.slot = frame.registers;
     List<Block> blocks = ControlFlowHandler.process(this, state.r);
+    long time = Stats.start(stats);
     state.outer = blocks.get(0);
     processSequence(state, blocks, 1, code.length);
     for(Block block : blocks) {
       block.resolve(state.r);
     }
     handleUnusedConstants(state.outer);
+    Stats.lap(stats, Stats.Phase.SEQUENCE, time);
     return state;
   }
   
+  /**
+   * Decompiles the function and prints it. With a function cache in the
+   * context, the text printed for an identical function in the same
+   * context is reused instead, and new text is added to the cache unless
+   * part of it had to be printed as a stub.
+   */
+  public void render(Output out) {
+    long start = outer != null && outer.deadline != 0 ? System.nanoTime() : 0;
+    Stats.begin(stats);
+    try {
+      renderBody(out);
+    } finally {
+      Stats.end(stats);
+    }
+    if(start != 0) {
+      // The time of a closure does not count against the enclosing function.
+      outer.deadline = (outer.deadline + System.nanoTime() - start) | 1;
+    }
+  }
+  
+  private void renderBody(Output out) {
+    FunctionCache cache = context.cache;
+    if(cache == null) {
+      out.beginFunction(getPath());
+      print(decompile(), out);
+      out.endFunction();
+      return;
+    }
+    String key = cacheKey();
+    FunctionCache.Entry entry = cache.get(key);
+    if(entry == null) {
+      int locals = context.localCount;
+      int failures = context.failures.size();
+      FunctionCache.Recorder recorder = new FunctionCache.Recorder();
+      print(decompile(), recorder);
+      entry = recorder.entry(context.localCount - locals);
+      if(context.failures.size() == failures) {
+        cache.put(key, entry);
+      }
+    } else {
+      context.localCount += entry.locals;
+    }
+    FunctionCache.replay(entry, out);
+  }
+  
+  /*
+   * The printed text depends on the function's subtree, on the names of its
+   * upvalues (which come from the outer function) and on the counter for
+   * generated local names, which the closures continue.
+   */
+  private String cacheKey() {
+    StringBuilder key = new StringBuilder(context.fingerprint(function));
+    key.append(getConfiguration().rawstring ? " r " : " - ");
+    key.append(context.localCount);
+    for(int i = 0; i < function.upvalues.length; i++) {
+      key.append('\n').append(upvalues.getName(i));
+    }
+    return key.toString();
+  }
+  
   public void print(State state) {
     print(state, new Output());
   }
@@ -118,9 +397,37 @@ public class Decompiler {
     print(state, new Output(out));
   }
   
+  /**
+   * Prints the function, or its stub if it could not be decompiled. If
+   * printing fails, or exceeds the time budget, the rest of the function is
+   * printed as a stub after what has been printed already.
+   */
   public void print(State state, Output out) {
-    handleInitialDeclares(out);
-    state.outer.print(this, out);
+    long time = Stats.start(stats);
+    if(state.failure == null) {
+      int indentation = out.getIndentationLevel();
+      try {
+        handleInitialDeclares(out);
+        state.outer.print(this, out);
+      } catch(CancellationException e) {
+        throw e;
+      } catch(UncheckedIOException e) {
+        throw e;
+      } catch(RuntimeException e) {
+        printFailed(state, e, out, indentation);
+      } catch(StackOverflowError e) {
+        printFailed(state, e, out, indentation);
+      } catch(OutOfMemoryError e) {
+        printFailed(state, e, out, indentation);
+      }
+    } else {
+      handleInitialDeclares(out);
+      printStub(state.failure, out);
+    }
+    Stats.lap(stats, Stats.Phase.PRINT, time);
+    if(outerStats != null) {
+      Stats.closure(outerStats, stats);
+    }
   }
   
   private void handleUnusedConstants(Block outer) {
@@ -171,6 +478,33 @@ public class Decompiler {
     });
   }
   
+  private void printFailed(State state, Throwable failure, Output out, int indentation) {
+    fail(state, failure);
+    deadline = 0;
+    out.setIndentationLevel(indentation);
+    if(!out.isLineStart()) {
+      out.println();
+    }
+    printStub(failure, out);
+  }
+  
+  private void printStub(Throwable failure, Output out) {
+    out.println("-- unluac: could not decompile this function (" + describe(failure) + ")");
+    new Disassembler(function).comment(out);
+    for(int i = 0; i < functions.length; i++) {
+      int line = 0;
+      for(int l = 1; code != null && l <= length; l++) {
+        if(code.op(l) == Op.CLOSURE && code.Bx(l) == i) {
+          line = l;
+          break;
+        }
+      }
+      out.print("local _CLOSURE" + i + "_ = ");
+      new ClosureExpression(functions[i], i, line + 1).print(this, out);
+      out.println();
+    }
+  }
+  
   private void handleInitialDeclares(Output out) {
     List<Declaration> initdecls = new ArrayList<Declaration>(declList.length);
     int initdeclcount = params;
@@ -271,9 +605,10 @@ public class Decompiler {
         break;
       case SELF: {
         // We can later determine if : syntax was used by comparing subexpressions with ==
+        // (leaf expressions are shared, so the reference is also marked)
         Expression common = r.getExpression(B, line);
         operations.add(new RegisterSet(line, A + 1, common));
-        operations.add(new RegisterSet(line, A, new TableReference(common, r.getKExpression(C, line))));
+        operations.add(new RegisterSet(line, A, new TableReference(common, r.getKExpression(C, line), true)));
         break;
       }
       case ADD:
@@ -396,8 +731,12 @@ public class Decompiler {
       case SETLISTO: {
         Expression table = r.getValue(A, line);
         int n = Bx % 32;
-        for(int i = 1; i <= n + 1; i++) {
-          operations.add(new TableSet(line, table, new ConstantExpression(new Constant(Bx - n + i), -1), r.getExpression(A + i, line), false, r.getUpdated(A + i, line)));
+        if(table.isTableLiteral()) {
+          operations.add(listSet(r, line, table, A, Bx - n + 1, n + 1));
+        } else {
+          for(int i = 1; i <= n + 1; i++) {
+            operations.add(new TableSet(line, table, new ConstantExpression(new Constant(Bx - n + i), -1), r.getExpression(A + i, line), false, r.getUpdated(A + i, line)));
+          }
         }
         break;
       }
@@ -416,8 +755,12 @@ public class Decompiler {
           B = registers - A - 1;
         }
         Expression table = r.getValue(A, line);
-        for(int i = 1; i <= B; i++) {
-          operations.add(new TableSet(line, table, new ConstantExpression(new Constant((C - 1) * 50 + i), -1), r.getExpression(A + i, line), false, r.getUpdated(A + i, line)));
+        if(table.isTableLiteral()) {
+          operations.add(listSet(r, line, table, A, (C - 1) * 50 + 1, B));
+        } else {
+          for(int i = 1; i <= B; i++) {
+            operations.add(new TableSet(line, table, new ConstantExpression(new Constant((C - 1) * 50 + i), -1), r.getExpression(A + i, line), false, r.getUpdated(A + i, line)));
+          }
         }
         break;
       }
@@ -425,7 +768,7 @@ public class Decompiler {
         break;
       case CLOSURE: {
         LFunction f = functions[Bx];
-        operations.add(new RegisterSet(line, A, new ClosureExpression(f, line + 1)));
+        operations.add(new RegisterSet(line, A, new ClosureExpression(f, Bx, line + 1)));
         if(function.header.version.usesInlineUpvalueDeclarations()) {
           // Skip upvalue declarations
           for(int i = 0; i < f.numUpvalues; i++) {
@@ -487,8 +830,10 @@ public class Decompiler {
   
   public boolean hasStatement(int begin, int end) {
     if(begin <= end) {
+      if(stats != null) stats.probes++;
       State state = new State();
-      state.r = new Registers(registers, length, declList, f);
+      state.r = new Registers(registers, length, declList, f, frame.probe);
+      state.slot = frame.probe;
       state.outer = new DoEndBlock(function, begin, end + 1);
       List<Block> blocks = Arrays.asList(state.outer);
       processSequence(state, blocks, begin, end);
@@ -514,11 +859,12 @@ public class Decompiler {
     Stack<Block> blockStack = new Stack<Block>();
     blockStack.push(blockContainers.get(blockContainerIndex++));
     
-    state.skip = new boolean[code.length + 1];
+    state.skip = state.slot.skip(code.length + 1);
     boolean[] skip = state.skip;
     
     int line = 1;
     while(true) {
+      checkpoint();
       int nextline = line;
       List<Operation> operations = null;
       List<Declaration> prevLocals = null;
@@ -618,6 +964,16 @@ public class Decompiler {
     }
   }
   
+  private ListSet listSet(Registers r, int line, Expression table, int A, int first, int count) {
+    Expression[] values = new Expression[count];
+    int[] timestamps = new int[count];
+    for(int i = 0; i < count; i++) {
+      values[i] = r.getExpression(A + 1 + i, line);
+      timestamps[i] = r.getUpdated(A + 1 + i, line);
+    }
+    return new ListSet(line, table, first, values, timestamps);
+  }
+  
   private boolean isMoveIntoTarget(Registers r, int line) {
     switch(code.op(line)) {
       case MOVE:
@@ -16,6 +16,20 @@ public class Disassembler {
     disassemble(out, 0, 0);
   }
   
+  /**
+   * Prints the instructions and constants of this function (but not its
+   * closures) as Lua comments.
+   */
+  public void comment(Output out) {
+    for(int line = 1; line <= function.code.length; line++) {
+      Op op = code.op(line);
+      out.println("-- " + line + ": " + (op != null ? code.toString(line) : "opcode " + code.opcode(line)));
+    }
+    for(int constant = 1; constant <= function.constants.length; constant++) {
+      out.println("-- K" + (constant - 1) + " = " + function.constants[constant - 1]);
+    }
+  }
+  
   private void disassemble(Output out, int level, int index) {
     out.println("function " + level + " " + index);
     for(int line = 1; line <= function.code.length; line++) {
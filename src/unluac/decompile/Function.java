@@ -8,6 +8,8 @@ import unluac.parse.LFunction;
 public class Function {
 
   private Constant[] constants;
+  private final ConstantExpression[] constantExpressions;
+  private final GlobalExpression[] globalExpressions;
   private final int constantsOffset;
   
   public Function(LFunction function) {
@@ -15,6 +17,8 @@ public class Function {
     for(int i = 0; i < constants.length; i++) {
       constants[i] = new Constant(function.constants[i]);
     }
+    constantExpressions = new ConstantExpression[constants.length];
+    globalExpressions = new GlobalExpression[constants.length];
     if(function.header.version == Version.LUA50) {
       constantsOffset = 250;
     } else {
@@ -36,11 +40,21 @@ public class Function {
   }
   
   public ConstantExpression getConstantExpression(int constantIndex) {
-    return new ConstantExpression(constants[constantIndex], constantIndex);
+    ConstantExpression expression = constantExpressions[constantIndex];
+    if(expression == null) {
+      expression = new ConstantExpression(constants[constantIndex], constantIndex);
+      constantExpressions[constantIndex] = expression;
+    }
+    return expression;
   }
   
   public GlobalExpression getGlobalExpression(int constantIndex) {
-    return new GlobalExpression(getGlobalName(constantIndex), constantIndex);
+    GlobalExpression expression = globalExpressions[constantIndex];
+    if(expression == null) {
+      expression = new GlobalExpression(getGlobalName(constantIndex), constantIndex);
+      globalExpressions[constantIndex] = expression;
+    }
+    return expression;
   }
   
 }
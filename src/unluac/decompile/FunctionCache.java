@@ -0,0 +1,383 @@
+package unluac.decompile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import unluac.Main;
+import unluac.parse.LFunction;
+import unluac.parse.LLocal;
+import unluac.parse.LNil;
+import unluac.parse.LObject;
+import unluac.parse.LUpvalue;
+
+/**
+ * Rendered function bodies from earlier decompilations, for incremental
+ * re-decompilation of a chunk that has only changed in a few functions.
+ *
+ * A body is reused when the function's subtree of the closure tree is
+ * structurally identical (same code, constants, debug information and
+ * closures) and it is printed in the same context: the same resolved
+ * upvalue names and the same counter for generated local names. A changed
+ * function therefore re-decompiles itself and its ancestors, while its
+ * unchanged siblings and their subtrees are reused.
+ *
+ * To reuse the results of a previous chunk without a saved cache, decompile
+ * the previous chunk with the cache first. A cache may be shared between
+ * threads.
+ */
+public class FunctionCache {
+
+  private static final int MAGIC = 0x554C4643;
+
+  static class Entry {
+
+    final String text;
+    final BitSet bytes;
+    final BitSet breaks;
+    final int[] levels;
+    final int locals;
+
+    Entry(String text, BitSet bytes, BitSet breaks, int[] levels, int locals) {
+      this.text = text;
+      this.bytes = bytes;
+      this.breaks = breaks;
+      this.levels = levels;
+      this.locals = locals;
+    }
+
+  }
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final Set<String> used = ConcurrentHashMap.<String>newKeySet();
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  public int getHits() {
+    return hits.get();
+  }
+
+  public int getMisses() {
+    return misses.get();
+  }
+
+  Entry get(String key) {
+    Entry entry = entries.get(key);
+    if(entry != null) {
+      used.add(key);
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    return entry;
+  }
+
+  void put(String key, Entry entry) {
+    entries.put(key, entry);
+    used.add(key);
+  }
+
+  /**
+   * Loads a saved cache. A missing file, or one saved by another version of
+   * unluac, gives an empty cache.
+   */
+  public static FunctionCache load(Path file) throws IOException {
+    FunctionCache cache = new FunctionCache();
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+    } catch(NoSuchFileException e) {
+      return cache;
+    }
+    try {
+      if(in.readInt() != MAGIC || !in.readUTF().equals(Main.version)) {
+        return cache;
+      }
+      int count = in.readInt();
+      for(int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        int locals = in.readInt();
+        char[] text = new char[in.readInt()];
+        for(int j = 0; j < text.length; j++) {
+          text[j] = in.readChar();
+        }
+        BitSet bytes = readBits(in);
+        BitSet breaks = readBits(in);
+        int[] levels = new int[in.readInt()];
+        for(int j = 0; j < levels.length; j++) {
+          levels[j] = in.readInt();
+        }
+        cache.entries.put(key, new Entry(new String(text), bytes, breaks, levels, locals));
+      }
+    } catch(EOFException e) {
+      // A truncated cache keeps the entries read so far.
+    } finally {
+      in.close();
+    }
+    return cache;
+  }
+
+  /**
+   * Saves the entries that were used or added since the cache was created
+   * or loaded, replacing the file atomically.
+   */
+  public void save(Path file) throws IOException {
+    Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeUTF(Main.version);
+        int count = 0;
+        for(String key : used) {
+          if(entries.containsKey(key)) count++;
+        }
+        out.writeInt(count);
+        for(String key : used) {
+          Entry entry = entries.get(key);
+          if(entry == null) continue;
+          out.writeUTF(key);
+          out.writeInt(entry.locals);
+          out.writeInt(entry.text.length());
+          out.writeChars(entry.text);
+          writeBits(out, entry.bytes);
+          writeBits(out, entry.breaks);
+          out.writeInt(entry.levels.length);
+          for(int level : entry.levels) {
+            out.writeInt(level);
+          }
+        }
+      } finally {
+        out.close();
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static BitSet readBits(DataInputStream in) throws IOException {
+    long[] words = new long[in.readInt()];
+    for(int i = 0; i < words.length; i++) {
+      words[i] = in.readLong();
+    }
+    return BitSet.valueOf(words);
+  }
+
+  private static void writeBits(DataOutputStream out, BitSet bits) throws IOException {
+    long[] words = bits.toLongArray();
+    out.writeInt(words.length);
+    for(long word : words) {
+      out.writeLong(word);
+    }
+  }
+
+  /**
+   * Computes the structural fingerprints of the function and all functions
+   * below it.
+   */
+  static String fingerprint(LFunction function, Map<LFunction, String> fingerprints) {
+    String[] children = new String[function.functions.length];
+    for(int i = 0; i < children.length; i++) {
+      children[i] = fingerprint(function.functions[i], fingerprints);
+    }
+    Digest digest = new Digest();
+    digest.add(function.header.version.getClass().getName());
+    digest.add(function.numParams);
+    digest.add(function.vararg);
+    digest.add(function.maximumStackSize);
+    digest.add(function.stripped ? 1 : 0);
+    digest.add(function.code.length);
+    for(int codepoint : function.code) {
+      digest.add(codepoint);
+    }
+    digest.add(function.constants.length);
+    for(LObject constant : function.constants) {
+      digest.add(constant.getClass().getSimpleName());
+      digest.add(constant == LNil.NIL ? "nil" : constant.toString());
+    }
+    digest.add(function.locals.length);
+    for(LLocal local : function.locals) {
+      digest.add(local.toString());
+      digest.add(local.start);
+      digest.add(local.end);
+    }
+    digest.add(function.upvalues.length);
+    for(LUpvalue upvalue : function.upvalues) {
+      digest.add(upvalue.instack ? 1 : 0);
+      digest.add(upvalue.idx);
+      digest.add(upvalue.name != null ? upvalue.name : "");
+    }
+    digest.add(children.length);
+    for(String child : children) {
+      digest.add(child);
+    }
+    String fingerprint = digest.finish();
+    fingerprints.put(function, fingerprint);
+    return fingerprint;
+  }
+
+  private static class Digest {
+
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[4];
+
+    Digest() {
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch(NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void add(int value) {
+      buffer[0] = (byte) (value >>> 24);
+      buffer[1] = (byte) (value >>> 16);
+      buffer[2] = (byte) (value >>> 8);
+      buffer[3] = (byte) value;
+      digest.update(buffer);
+    }
+
+    void add(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      add(bytes.length);
+      digest.update(bytes);
+    }
+
+    String finish() {
+      byte[] hash = digest.digest();
+      char[] hex = new char[hash.length * 2];
+      for(int i = 0; i < hash.length; i++) {
+        hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+        hex[2 * i + 1] = Character.forDigit(hash[i] & 0xF, 16);
+      }
+      return new String(hex);
+    }
+
+  }
+
+  /**
+   * Records printed text for replay. Each line keeps its indentation level
+   * relative to the start of the recording, or its absolute level for lines
+   * printed without indentation (the inside of long strings), which
+   * characters were printed as raw bytes and which newlines were line breaks
+   * of the output (rather than part of a long string).
+   */
+  static class Recorder extends Output {
+
+    private static final int BASE = 1 << 16;
+
+    private final StringBuilder text = new StringBuilder();
+    private final BitSet bytes = new BitSet();
+    private final BitSet breaks = new BitSet();
+    private int[] levels = new int[16];
+    private int lines;
+    private boolean lineStart = true;
+
+    Recorder() {
+      super(null);
+      setIndentationLevel(BASE);
+    }
+
+    private void start() {
+      if(lineStart) {
+        if(lines == levels.length) {
+          levels = Arrays.copyOf(levels, 2 * lines);
+        }
+        levels[lines++] = getIndentationLevel() - BASE;
+        lineStart = false;
+      }
+    }
+
+    @Override
+    public void print(String s) {
+      start();
+      text.append(s);
+    }
+
+    @Override
+    public void print(byte b) {
+      start();
+      bytes.set(text.length());
+      text.append((char) (0xFF & b));
+    }
+
+    @Override
+    public void print(char[] chars, int offset, int length) {
+      start();
+      text.append(chars, offset, length);
+    }
+
+    @Override
+    public void println() {
+      start();
+      breaks.set(text.length());
+      text.append('\n');
+      lineStart = true;
+    }
+
+    @Override
+    public boolean isLineStart() {
+      return lineStart;
+    }
+
+    Entry entry(int locals) {
+      return new Entry(text.toString(), bytes, breaks, Arrays.copyOf(levels, lines), locals);
+    }
+
+  }
+
+  /**
+   * Prints a recorded text through the output, indenting it from the
+   * output's current level.
+   */
+  static void replay(Entry entry, Output out) {
+    int indentation = out.getIndentationLevel();
+    char[] chars = entry.text.toCharArray();
+    int index = 0;
+    for(int level : entry.levels) {
+      out.setIndentationLevel(level >= 0 ? indentation + level : level + Recorder.BASE);
+      int end = entry.breaks.nextSetBit(index);
+      if(end < 0) {
+        end = chars.length;
+      }
+      int start = index;
+      boolean printed = false;
+      for(; index < end; index++) {
+        if(entry.bytes.get(index)) {
+          if(index > start) {
+            out.print(chars, start, index - start);
+          }
+          out.print((byte) chars[index]);
+          printed = true;
+          start = index + 1;
+        }
+      }
+      if(index > start || !printed && end == chars.length) {
+        out.print(chars, start, index - start);
+      }
+      if(end < chars.length) {
+        out.println();
+        index++;
+      }
+    }
+    out.setIndentationLevel(indentation);
+  }
+
+}
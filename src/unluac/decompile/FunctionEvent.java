@@ -0,0 +1,117 @@
+package unluac.decompile;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event with the stats of one decompiled function, spanning
+ * its rendering (which includes its closures).
+ */
+@Name("unluac.Function")
+@Label("Decompile Function")
+@Category("unluac")
+@StackTrace(false)
+class FunctionEvent extends Event {
+
+  @Label("Path")
+  @Description("Path of the function in the closure tree")
+  String path;
+
+  @Label("Instructions")
+  int instructions;
+
+  @Label("Branches")
+  int branches;
+
+  @Label("Blocks")
+  int blocks;
+
+  @Label("Declarations")
+  int declarations;
+
+  @Label("Closures")
+  int functions;
+
+  @Label("Statement Probes")
+  int probes;
+
+  @Label("Declarations Time")
+  @Timespan
+  long declarationsTime;
+
+  @Label("Control Flow Time")
+  @Description("Time of the control flow passes, which are also given one by one")
+  @Timespan
+  long controlFlowTime;
+
+  @Label("Reverse Targets Time")
+  @Timespan
+  long reverseTargetsTime;
+
+  @Label("Branches Time")
+  @Timespan
+  long branchesTime;
+
+  @Label("Combine Branches Time")
+  @Timespan
+  long combineBranchesTime;
+
+  @Label("Resolve Lines Time")
+  @Timespan
+  long resolveLinesTime;
+
+  @Label("Fixed Blocks Time")
+  @Timespan
+  long fixedBlocksTime;
+
+  @Label("While Loops Time")
+  @Timespan
+  long whileLoopsTime;
+
+  @Label("Repeat Loops Time")
+  @Timespan
+  long repeatLoopsTime;
+
+  @Label("Breaks Time")
+  @Timespan
+  long breaksTime;
+
+  @Label("If Blocks Time")
+  @Timespan
+  long ifBlocksTime;
+
+  @Label("Set Blocks Time")
+  @Timespan
+  long setBlocksTime;
+
+  @Label("Pseudo Gotos Time")
+  @Timespan
+  long gotosTime;
+
+  @Label("Do Blocks Time")
+  @Timespan
+  long doBlocksTime;
+
+  @Label("Sort Blocks Time")
+  @Timespan
+  long sortBlocksTime;
+
+  @Label("Sequence Time")
+  @Timespan
+  long sequenceTime;
+
+  @Label("Print Time")
+  @Timespan
+  long printTime;
+
+  @Label("Self Time")
+  @Description("Time spent on the function, excluding its closures")
+  @Timespan
+  long selfTime;
+
+}
@@ -176,6 +176,19 @@ public class OpcodeMap {
     }
   }
   
+  /**
+   * Returns the number of the opcode in this version, or -1 if the version
+   * does not have it.
+   */
+  public int getOpcode(Op op) {
+    for(int i = 0; i < map.length; i++) {
+      if(map[i] == op) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
   public Op get(int opNumber) {
     if(opNumber >= 0 && opNumber < map.length) {
       return map[opNumber];
@@ -1,8 +1,12 @@
 package unluac.decompile;
 
+import unluac.parse.LNumber;
+import unluac.util.NumberFormatter;
+
 public class Output {
 
   private OutputProvider out;
+  private final char[] number = new char[NumberFormatter.MAX_LENGTH];
   private int indentationLevel = 0;
   private int position = 0;
   
@@ -19,6 +23,11 @@ public class Output {
         System.out.write(b);
       }
       
+      @Override
+      public void print(char[] chars, int offset, int length) {
+        System.out.print(new String(chars, offset, length));
+      }
+      
       @Override
       public void println() {
         System.out.println();
@@ -47,6 +56,13 @@ public class Output {
     return position;
   }
   
+  /**
+   * Returns true if nothing has been printed on the current line.
+   */
+  public boolean isLineStart() {
+    return position == 0;
+  }
+  
   public void setIndentationLevel(int indentationLevel) {
     this.indentationLevel = indentationLevel;
   }
@@ -72,6 +88,16 @@ public class Output {
     position += 1;
   }
   
+  public void print(char[] chars, int offset, int length) {
+    start();
+    out.print(chars, offset, length);
+    position += length;
+  }
+  
+  public void print(LNumber n) {
+    print(number, 0, n.format(number, 0));
+  }
+  
   public void println() {
     start();
     out.println();
@@ -83,4 +109,19 @@ public class Output {
     println();
   }
   
+  /**
+   * Called before the text of each function (the main chunk, or the body of
+   * a closure) is printed, with the function's path. The text of a closure
+   * is nested in that of the enclosing function. With a function cache,
+   * functions are printed without these calls.
+   */
+  public void beginFunction(String path) {
+  }
+  
+  /**
+   * Called after the text of the function last begun.
+   */
+  public void endFunction() {
+  }
+  
 }
@@ -6,6 +6,8 @@ public interface OutputProvider {
   
   public void print(byte b);
   
+  public void print(char[] chars, int offset, int length);
+  
   public void println();
   
 }
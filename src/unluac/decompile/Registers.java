@@ -1,12 +1,10 @@
 package unluac.decompile;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import unluac.decompile.expression.ConstantExpression;
 import unluac.decompile.expression.Expression;
-import unluac.decompile.expression.LocalVariable;
 import unluac.decompile.target.Target;
 import unluac.decompile.target.VariableTarget;
 
@@ -15,48 +13,54 @@ public class Registers {
   public final int registers;
   public final int length;
   
-  private final Declaration[][] decls;
+  private final Declaration[] decls;
   private final Function f;
-  private final Expression[][] values;
-  private final int[][] updated;
+  private final Expression[] values;
+  private final int[] updated;
+  private final int stride;
   
   public Registers(int registers, int length, Declaration[] declList, Function f) {
+    this(registers, length, declList, f, new Scratch.Slot());
+  }
+  
+  Registers(int registers, int length, Declaration[] declList, Function f, Scratch.Slot slot) {
     this.registers = registers;
     this.length = length;
-    decls = new Declaration[registers][length + 1];
+    stride = length + 1;
+    slot.acquire(registers, stride);
+    decls = slot.decls;
     for(int i = 0; i < declList.length; i++) {
       Declaration decl = declList[i];
       int register = 0;
-      while(decls[register][decl.begin] != null) {
+      while(decls[register * stride + decl.begin] != null) {
         register++;
       }
       decl.register = register;
       for(int line = decl.begin; line <= decl.end; line++) {
-        decls[register][line] = decl; 
+        decls[register * stride + line] = decl;
       }
     }
-    values = new Expression[registers][length + 1];
+    values = slot.values;
     Expression nil = ConstantExpression.createNil(0);
     for(int register = 0; register < registers; register++) {
-      values[register][0] = nil;
+      values[register * stride] = nil;
     }
-    updated = new int[registers][length + 1];
-    startedLines = new boolean[length + 1];
-    Arrays.fill(startedLines, false);
+    updated = slot.updated;
+    startedLines = slot.startedLines;
     this.f = f;
   }
   
   public boolean isAssignable(int register, int line) {
-    return isLocal(register, line) && !decls[register][line].forLoop;
+    return isLocal(register, line) && !decls[register * stride + line].forLoop;
   }
   
   public boolean isLocal(int register, int line) {
     if(register < 0) return false;
-    return decls[register][line] != null;
+    return decls[register * stride + line] != null;
   }
   
   public boolean isNewLocal(int register, int line) {
-    Declaration decl = decls[register][line];
+    Declaration decl = decls[register * stride + line];
     return decl != null && decl.begin == line && !decl.forLoop && !decl.forLoopExplicit;
   }
     
@@ -71,7 +75,7 @@ public class Registers {
   }
   
   public Declaration getDeclaration(int register, int line) {
-    return decls[register][line];
+    return decls[register * stride + line];
   }
   
   private boolean[] startedLines;
@@ -80,8 +84,9 @@ public class Registers {
     //if(startedLines[line]) return;
     startedLines[line] = true;
     for(int register = 0; register < registers; register++) {
-      values[register][line] = values[register][line - 1];
-      updated[register][line] = updated[register][line - 1];
+      int index = register * stride + line;
+      values[index] = values[index - 1];
+      updated[index] = updated[index - 1];
     }
   }
   
@@ -91,9 +96,9 @@ public class Registers {
   
   public Expression getExpression(int register, int line) {
     if(isLocal(register, line - 1)) {
-      return new LocalVariable(getDeclaration(register, line - 1));
+      return getDeclaration(register, line - 1).getExpression();
     } else {
-      return values[register][line - 1];
+      return values[register * stride + line - 1];
     }
   }
   
@@ -106,23 +111,23 @@ public class Registers {
   }
   
   public Expression getValue(int register, int line) {
-    return values[register][line - 1];
+    return values[register * stride + line - 1];
   }
 
   public int getUpdated(int register, int line) {
-    return updated[register][line];
+    return updated[register * stride + line];
   }
   
   public void setValue(int register, int line, Expression expression) {
-    values[register][line] = expression;
-    updated[register][line] = line;
+    values[register * stride + line] = expression;
+    updated[register * stride + line] = line;
   }
   
   public Target getTarget(int register, int line) {
     if(!isLocal(register, line)) {
       throw new IllegalStateException("No declaration exists in register " + register + " at line " + line);
     }
-    return new VariableTarget(decls[register][line]);
+    return new VariableTarget(decls[register * stride + line]);
   }
   
   public void setInternalLoopVariable(int register, int begin, int end) {
@@ -163,7 +168,7 @@ public class Registers {
   
   private void newDeclaration(Declaration decl, int register, int begin, int end) {
     for(int line = begin; line <= end; line++) {
-      decls[register][line] = decl;
+      decls[register * stride + line] = decl;
     }
   }
   
@@ -0,0 +1,215 @@
+package unluac.decompile;
+
+import java.util.Arrays;
+
+import unluac.decompile.expression.Expression;
+
+/**
+ * Work arrays that are reused from one decompilation to the next instead of
+ * being allocated per function. Arrays grow to the largest size requested and
+ * are cleared when handed out again; the largest are dropped by trim after
+ * each decompilation.
+ *
+ * Nested closures are decompiled while their parent is being printed, and the
+ * parent's registers are still in use at that point, so there is one frame
+ * per closure nesting depth. Within a frame, the registers used by the
+ * statement probes of the control flow analysis have their own slot.
+ *
+ * A scratch area must only be used by one thread at a time.
+ */
+public class Scratch {
+
+  /*
+   * The largest array (in elements) kept from one decompilation to the next;
+   * larger ones are left to the garbage collector, so that one large chunk
+   * does not hold memory for the life of the thread.
+   */
+  private static final int KEEP = 1 << 18;
+
+  private Frame[] frames = new Frame[0];
+
+  Frame frame(int depth) {
+    if(depth >= frames.length) {
+      frames = Arrays.copyOf(frames, Math.max(depth + 1, frames.length * 2));
+    }
+    if(frames[depth] == null) {
+      frames[depth] = new Frame();
+    }
+    return frames[depth];
+  }
+
+  /**
+   * Drops the arrays larger than what is kept between decompilations.
+   */
+  public void trim() {
+    for(Frame frame : frames) {
+      if(frame != null) {
+        frame.trim();
+      }
+    }
+  }
+
+  static class Frame {
+
+    final Slot registers = new Slot();
+    final Slot probe = new Slot();
+
+    private boolean[] extraByte;
+    private boolean[] upvalue;
+
+    private boolean[] reverseTargets;
+    private boolean[] branchSkip;
+    private boolean[] loop;
+    private int[] resolved;
+    ControlFlowHandler.Branch[] branches;
+    ControlFlowHandler.Branch[] setbranches;
+    ControlFlowHandler.Branch[] finalsetbranches;
+    private int branchesUsed;
+
+    private byte[] variableStates;
+    private boolean[] variableSkip;
+
+    boolean[] extraByte(int length) {
+      return extraByte = booleans(extraByte, length);
+    }
+
+    boolean[] upvalue(int length) {
+      return upvalue = booleans(upvalue, length);
+    }
+
+    boolean[] reverseTargets(int length) {
+      return reverseTargets = booleans(reverseTargets, length);
+    }
+
+    boolean[] branchSkip(int length) {
+      return branchSkip = booleans(branchSkip, length);
+    }
+
+    boolean[] loop(int length) {
+      return loop = booleans(loop, length);
+    }
+
+    int[] resolved(int length) {
+      if(resolved == null || resolved.length < length) {
+        resolved = new int[length];
+      }
+      return resolved;
+    }
+
+    /**
+     * Clears the three branch arrays of the control flow analysis for the
+     * given length.
+     */
+    void clearBranches(int length) {
+      if(branches == null || branches.length < length) {
+        branches = new ControlFlowHandler.Branch[length];
+        setbranches = new ControlFlowHandler.Branch[length];
+        finalsetbranches = new ControlFlowHandler.Branch[length];
+      } else {
+        int used = Math.max(branchesUsed, length);
+        Arrays.fill(branches, 0, used, null);
+        Arrays.fill(setbranches, 0, used, null);
+        Arrays.fill(finalsetbranches, 0, used, null);
+      }
+      branchesUsed = length;
+    }
+
+    byte[] variableStates(int length) {
+      if(variableStates == null || variableStates.length < length) {
+        variableStates = new byte[length];
+      } else {
+        Arrays.fill(variableStates, 0, length, (byte) 0);
+      }
+      return variableStates;
+    }
+
+    boolean[] variableSkip(int length) {
+      return variableSkip = booleans(variableSkip, length);
+    }
+
+    void trim() {
+      registers.trim();
+      probe.trim();
+      if(branches != null && branches.length > KEEP) {
+        branches = null;
+        setbranches = null;
+        finalsetbranches = null;
+        branchesUsed = 0;
+      }
+      if(resolved != null && resolved.length > KEEP) {
+        resolved = null;
+      }
+    }
+
+  }
+
+  /**
+   * The matrices of one Registers instance and the skip array of the
+   * sequence it is used for. The matrices are flat, indexed by
+   * register * length + line, so that they are sized for the function that
+   * acquires them.
+   */
+  static class Slot {
+
+    Declaration[] decls;
+    Expression[] values;
+    int[] updated;
+    boolean[] startedLines;
+    private boolean[] skip;
+    private int used;
+    private int usedLength;
+
+    void acquire(int registers, int length) {
+      int cells = registers * length;
+      if(decls == null || cells > decls.length) {
+        decls = new Declaration[cells];
+        values = new Expression[cells];
+        updated = new int[cells];
+      } else {
+        // Also clear what the previous user left beyond this one's size, so
+        // no stale expressions are kept alive.
+        int clear = Math.max(used, cells);
+        Arrays.fill(decls, 0, clear, null);
+        Arrays.fill(values, 0, clear, null);
+        Arrays.fill(updated, 0, clear, 0);
+      }
+      if(startedLines == null || length > startedLines.length) {
+        startedLines = new boolean[length];
+      } else {
+        Arrays.fill(startedLines, 0, Math.max(usedLength, length), false);
+      }
+      used = cells;
+      usedLength = length;
+    }
+
+    boolean[] skip(int length) {
+      return skip = booleans(skip, length);
+    }
+
+    void trim() {
+      if(decls != null && decls.length > KEEP) {
+        decls = null;
+        values = null;
+        updated = null;
+        used = 0;
+      }
+      if(startedLines != null && startedLines.length > KEEP) {
+        startedLines = null;
+        usedLength = 0;
+      }
+      if(skip != null && skip.length > KEEP) {
+        skip = null;
+      }
+    }
+
+  }
+
+  private static boolean[] booleans(boolean[] array, int length) {
+    if(array == null || array.length < length) {
+      return new boolean[length];
+    }
+    Arrays.fill(array, 0, length, false);
+    return array;
+  }
+
+}
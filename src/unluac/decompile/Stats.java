@@ -0,0 +1,411 @@
+package unluac.decompile;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import jdk.jfr.EventType;
+
+/**
+ * Timings and counters of one decompilation, recorded per function when a
+ * Stats object is attached to the DecompileContext.
+ *
+ * Nested closures are decompiled while their parent is printed; the print
+ * time of a function excludes the time spent on its closures.
+ *
+ * Each phase also records the bytes allocated by the decompiling thread,
+ * if the JVM counts them, in the same way as its time.
+ *
+ * While a flight recording takes them, a FunctionEvent spans the rendering
+ * of each function (including its closures) and a ChunkEvent spans the
+ * whole decompilation, so that they line up with the recording's timeline.
+ */
+public class Stats {
+
+  public static enum Phase {
+    DECLARATIONS("declarations"),
+    REVERSE_TARGETS("reverse targets"),
+    BRANCHES("branches"),
+    COMBINE_BRANCHES("combine branches"),
+    RESOLVE_LINES("resolve lines"),
+    FIXED_BLOCKS("fixed blocks"),
+    WHILE_LOOPS("while loops"),
+    REPEAT_LOOPS("repeat loops"),
+    BREAKS("breaks"),
+    IF_BLOCKS("if blocks"),
+    SET_BLOCKS("set blocks"),
+    GOTOS("pseudo gotos"),
+    DO_BLOCKS("do blocks"),
+    SORT_BLOCKS("sort blocks"),
+    SEQUENCE("sequence"),
+    PRINT("print");
+
+    public final String label;
+
+    private Phase(String label) {
+      this.label = label;
+    }
+
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+
+  private static final EventType FUNCTION_EVENT = EventType.getEventType(FunctionEvent.class);
+  private static final EventType CHUNK_EVENT = EventType.getEventType(ChunkEvent.class);
+
+  private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+  public static class Function {
+
+    private final String path;
+    private final long[] nanos = new long[PHASES.length];
+    private final long[] bytes = new long[PHASES.length];
+    private long closureNanos;
+    private long closureBytes;
+    private long allocated;
+    private FunctionEvent event;
+    int instructions;
+    int branches;
+    int blocks;
+    int declarations;
+    int functions;
+    int probes;
+
+    Function(String path) {
+      this.path = path;
+    }
+
+    /**
+     * The path of the function in the closure tree, e.g. main/0/2.
+     */
+    public String getPath() {
+      return path;
+    }
+
+    public long getNanos(Phase phase) {
+      return nanos[phase.ordinal()];
+    }
+
+    /**
+     * The time spent on this function, excluding its closures.
+     */
+    public long getSelfNanos() {
+      long total = 0;
+      for(long n : nanos) {
+        total += n;
+      }
+      return total;
+    }
+
+    /**
+     * The time spent on this function, including its closures.
+     */
+    public long getTotalNanos() {
+      return getSelfNanos() + closureNanos;
+    }
+
+    public long getBytes(Phase phase) {
+      return bytes[phase.ordinal()];
+    }
+
+    /**
+     * The bytes allocated for this function, excluding its closures.
+     */
+    public long getSelfBytes() {
+      long total = 0;
+      for(long n : bytes) {
+        total += n;
+      }
+      return total;
+    }
+
+    /**
+     * The bytes allocated for this function, including its closures.
+     */
+    public long getTotalBytes() {
+      return getSelfBytes() + closureBytes;
+    }
+
+    public int getInstructions() {
+      return instructions;
+    }
+
+    public int getBranches() {
+      return branches;
+    }
+
+    public int getBlocks() {
+      return blocks;
+    }
+
+    public int getDeclarations() {
+      return declarations;
+    }
+
+    public int getFunctions() {
+      return functions;
+    }
+
+    /**
+     * The number of statement probes (trial sequence processing) made by the
+     * control flow analysis.
+     */
+    public int getProbes() {
+      return probes;
+    }
+
+  }
+
+  private final List<Function> functions = new ArrayList<Function>();
+  private long parseNanos;
+  private long parseBytes;
+  private final ChunkEvent event;
+
+  /**
+   * Creates the stats of a decompilation that starts now.
+   */
+  public Stats() {
+    if(CHUNK_EVENT.isEnabled()) {
+      event = new ChunkEvent();
+      event.begin();
+    } else {
+      event = null;
+    }
+  }
+
+  Function function(String path) {
+    Function function = new Function(path);
+    functions.add(function);
+    return function;
+  }
+
+  public void setParseNanos(long parseNanos) {
+    this.parseNanos = parseNanos;
+  }
+
+  public long getParseNanos() {
+    return parseNanos;
+  }
+
+  public void setParseBytes(long parseBytes) {
+    this.parseBytes = parseBytes;
+  }
+
+  public long getParseBytes() {
+    return parseBytes;
+  }
+
+  /**
+   * The functions in the order their decompilation began.
+   */
+  public List<Function> getFunctions() {
+    return Collections.unmodifiableList(functions);
+  }
+
+  public long getNanos(Phase phase) {
+    long total = 0;
+    for(Function function : functions) {
+      total += function.getNanos(phase);
+    }
+    return total;
+  }
+
+  public long getTotalNanos() {
+    long total = parseNanos;
+    for(Function function : functions) {
+      total += function.getSelfNanos();
+    }
+    return total;
+  }
+
+  public long getBytes(Phase phase) {
+    long total = 0;
+    for(Function function : functions) {
+      total += function.getBytes(phase);
+    }
+    return total;
+  }
+
+  public long getTotalBytes() {
+    long total = parseBytes;
+    for(Function function : functions) {
+      total += function.getSelfBytes();
+    }
+    return total;
+  }
+
+  /**
+   * Returns up to limit functions, ordered by the time spent on them
+   * (excluding closures).
+   */
+  public List<Function> getSlowest(int limit) {
+    List<Function> sorted = new ArrayList<Function>(functions);
+    Collections.sort(sorted, new Comparator<Function>() {
+
+      @Override
+      public int compare(Function f1, Function f2) {
+        return Long.compare(f2.getSelfNanos(), f1.getSelfNanos());
+      }
+
+    });
+    return sorted.subList(0, Math.min(limit, sorted.size()));
+  }
+
+  public void print(PrintStream out, int limit) {
+    out.println("phase                    ms         kb");
+    out.printf("%-20s %10.3f %10d%n", "parse", millis(parseNanos), parseBytes / 1024);
+    for(Phase phase : PHASES) {
+      out.printf("%-20s %10.3f %10d%n", phase.label, millis(getNanos(phase)), getBytes(phase) / 1024);
+    }
+    out.printf("%-20s %10.3f %10d%n", "total", millis(getTotalNanos()), getTotalBytes() / 1024);
+    out.println();
+    out.println("        ms   instrs branches   blocks    decls   probes  function");
+    for(Function function : getSlowest(limit)) {
+      out.printf("%10.3f %8d %8d %8d %8d %8d  %s%n",
+        millis(function.getSelfNanos()), function.instructions, function.branches,
+        function.blocks, function.declarations, function.probes, function.path);
+    }
+  }
+
+  /**
+   * Whether a flight recording is taking the decompilation events, in which
+   * case stats should be collected even if not otherwise needed.
+   */
+  public static boolean isRecording() {
+    return FUNCTION_EVENT.isEnabled() || CHUNK_EVENT.isEnabled();
+  }
+
+  /**
+   * Ends the flight recorder event of the chunk, which began when the stats
+   * were created.
+   */
+  public void commit() {
+    if(event != null && event.shouldCommit()) {
+      event.functions = functions.size();
+      event.parseTime = parseNanos;
+      event.totalTime = getTotalNanos();
+      event.commit();
+    }
+  }
+
+  /**
+   * Begins the flight recorder event of a function, when it starts to be
+   * rendered.
+   */
+  static void begin(Function stats) {
+    if(stats != null && FUNCTION_EVENT.isEnabled()) {
+      stats.event = new FunctionEvent();
+      stats.event.begin();
+    }
+  }
+
+  /**
+   * Ends the flight recorder event of a function, when it has been rendered.
+   */
+  static void end(Function stats) {
+    if(stats == null || stats.event == null) {
+      return;
+    }
+    FunctionEvent event = stats.event;
+    stats.event = null;
+    if(!event.shouldCommit()) {
+      return;
+    }
+    event.path = stats.path;
+    event.instructions = stats.instructions;
+    event.branches = stats.branches;
+    event.blocks = stats.blocks;
+    event.declarations = stats.declarations;
+    event.functions = stats.functions;
+    event.probes = stats.probes;
+    event.declarationsTime = stats.getNanos(Phase.DECLARATIONS);
+    event.reverseTargetsTime = stats.getNanos(Phase.REVERSE_TARGETS);
+    event.branchesTime = stats.getNanos(Phase.BRANCHES);
+    event.combineBranchesTime = stats.getNanos(Phase.COMBINE_BRANCHES);
+    event.resolveLinesTime = stats.getNanos(Phase.RESOLVE_LINES);
+    event.fixedBlocksTime = stats.getNanos(Phase.FIXED_BLOCKS);
+    event.whileLoopsTime = stats.getNanos(Phase.WHILE_LOOPS);
+    event.repeatLoopsTime = stats.getNanos(Phase.REPEAT_LOOPS);
+    event.breaksTime = stats.getNanos(Phase.BREAKS);
+    event.ifBlocksTime = stats.getNanos(Phase.IF_BLOCKS);
+    event.setBlocksTime = stats.getNanos(Phase.SET_BLOCKS);
+    event.gotosTime = stats.getNanos(Phase.GOTOS);
+    event.doBlocksTime = stats.getNanos(Phase.DO_BLOCKS);
+    event.sortBlocksTime = stats.getNanos(Phase.SORT_BLOCKS);
+    event.sequenceTime = stats.getNanos(Phase.SEQUENCE);
+    event.printTime = stats.getNanos(Phase.PRINT);
+    event.selfTime = stats.getSelfNanos();
+    event.controlFlowTime = event.selfTime - event.declarationsTime - event.sequenceTime - event.printTime;
+    event.commit();
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static com.sun.management.ThreadMXBean threads() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+      if(counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+        return counting;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The bytes allocated so far by the current thread, or 0 if the JVM does
+   * not count them.
+   */
+  public static long allocatedBytes() {
+    return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+  }
+
+  /**
+   * Returns the start time for a phase, or 0 if no stats are recorded.
+   */
+  static long start(Function stats) {
+    if(stats != null) {
+      stats.allocated = allocatedBytes();
+      return System.nanoTime();
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * Adds the time (and allocation) since start to the phase and returns the
+   * start time for the next phase.
+   */
+  static long lap(Function stats, Phase phase, long start) {
+    if(stats != null) {
+      long now = System.nanoTime();
+      long allocated = allocatedBytes();
+      stats.nanos[phase.ordinal()] += now - start;
+      stats.bytes[phase.ordinal()] += allocated - stats.allocated;
+      stats.allocated = allocated;
+      return now;
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * Adds a closure's total time and allocation to the function that printed
+   * it. They were part of the parent's print phase, so they are taken out of
+   * it.
+   */
+  static void closure(Function parent, Function closure) {
+    long total = closure.getTotalNanos();
+    parent.closureNanos += total;
+    parent.nanos[Phase.PRINT.ordinal()] -= total;
+    long bytes = closure.getTotalBytes();
+    parent.closureBytes += bytes;
+    parent.bytes[Phase.PRINT.ordinal()] -= bytes;
+  }
+
+}
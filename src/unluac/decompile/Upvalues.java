@@ -7,9 +7,11 @@ import unluac.parse.LUpvalue;
 public class Upvalues {
 
   private final LUpvalue[] upvalues;
+  private final UpvalueExpression[] expressions;
   
   public Upvalues(LFunction func, Declaration[] parentDecls, int line) {
     this.upvalues = func.upvalues;
+    this.expressions = new UpvalueExpression[upvalues.length];
     for(LUpvalue upvalue : upvalues) {
       if(upvalue.name == null || upvalue.name.isEmpty()) {
         if(upvalue.instack) {
@@ -21,7 +23,7 @@ public class Upvalues {
               }
             }
           }
-        } else {
+        } else if(func.parent != null) {
           LUpvalue[] parentvals = func.parent.upvalues;
           if(upvalue.idx >= 0 && upvalue.idx < parentvals.length) {
             upvalue.name = parentvals[upvalue.idx].name;
@@ -41,6 +43,12 @@ public class Upvalues {
   }
   
   public UpvalueExpression getExpression(int index) {
+    if(index < expressions.length) {
+      if(expressions[index] == null) {
+        expressions[index] = new UpvalueExpression(getName(index));
+      }
+      return expressions[index];
+    }
     return new UpvalueExpression(getName(index));
   }
   
@@ -8,51 +8,55 @@ import unluac.parse.LUpvalue;
 
 public class VariableFinder {
 
-  static class RegisterState {
+  /**
+   * The register states of all lines, as flags in one array that is indexed
+   * by line, then register.
+   */
+  static class RegisterStates {
+    
+    static final byte TEMPORARY = 1;
+    static final byte LOCAL = 2;
+    static final byte READ = 4;
+    static final byte WRITTEN = 8;
     
-    public RegisterState() {
-      temporary = false;
-      local = false;
-      read = false;
-      written = false;
+    RegisterStates(int registers, byte[] states) {
+      this.registers = registers;
+      this.states = states;
     }
     
-    boolean temporary;
-    boolean local;
-    boolean read;
-    boolean written;
-  }
-  
-  static class RegisterStates {
+    public int get(int register, int line) {
+      return states[index(register, line)];
+    }
     
-    RegisterStates(int registers, int lines) {
-      this.registers = registers;
-      states = new RegisterState[lines][registers];
-      for(int line = 0; line < lines; line++) {
-        for(int register = 0; register < registers; register++) {
-          states[line][register] = new RegisterState();
-        }
-      }
+    public void setRead(int register, int line) {
+      states[index(register, line)] |= READ;
     }
     
-    public RegisterState get(int register, int line) {
-      return states[line - 1][register];
+    public void setWritten(int register, int line) {
+      states[index(register, line)] |= WRITTEN;
     }
     
     public void setLocal(int register, int line) {
       for(int r = 0; r <= register; r++) {
-        get(r, line).local = true;
+        states[index(r, line)] |= LOCAL;
       }
     }
     
     public void setTemporary(int register, int line) {
       for(int r = register; r < registers; r++) {
-        get(r, line).temporary = true;
+        states[index(r, line)] |= TEMPORARY;
       }
     }
     
+    private int index(int register, int line) {
+      if(register < 0 || register >= registers) {
+        throw new ArrayIndexOutOfBoundsException(register);
+      }
+      return (line - 1) * registers + register;
+    }
+    
     private int registers;
-    private RegisterState[][] states;
+    private byte[] states;
     
   }
   
@@ -62,14 +66,14 @@ public class VariableFinder {
   
   public static Declaration[] process(Decompiler d, int args, int registers) {
     Code code = d.code;
-    RegisterStates states = new RegisterStates(registers, code.length());
-    boolean[] skip = new boolean[code.length()];
+    RegisterStates states = new RegisterStates(registers, d.frame.variableStates(registers * code.length()));
+    boolean[] skip = d.frame.variableSkip(code.length());
     for(int line = 1; line <= code.length(); line++) {
       if(skip[line - 1]) continue;
       switch(code.op(line)) {
         case MOVE:
-          states.get(code.A(line), line).written = true;
-          states.get(code.B(line), line).read = true;
+          states.setWritten(code.A(line), line);
+          states.setRead(code.B(line), line);
           states.setLocal(Math.min(code.A(line), code.B(line)), line);
           break;
         case LOADK:
@@ -78,21 +82,21 @@ public class VariableFinder {
         case GETGLOBAL:
         case NEWTABLE:
         case NEWTABLE50:
-          states.get(code.A(line), line).written = true;
+          states.setWritten(code.A(line), line);
           break;
         case LOADNIL:
           for(int register = code.A(line); register <= code.B(line); register++) {
-            states.get(register, line).written = true;
+            states.setWritten(register, line);
           }
           break;
         case GETTABLE:
-          states.get(code.A(line), line).written = true;
-          if(!isConstantReference(code.B(line))) states.get(code.B(line), line).read = true;
-          if(!isConstantReference(code.C(line))) states.get(code.C(line), line).read = true;
+          states.setWritten(code.A(line), line);
+          if(!isConstantReference(code.B(line))) states.setRead(code.B(line), line);
+          if(!isConstantReference(code.C(line))) states.setRead(code.C(line), line);
           break;
         case SETGLOBAL:
         case SETUPVAL:
-          states.get(code.A(line), line).read = true;
+          states.setRead(code.A(line), line);
           break;
         case SETTABLE:
         case ADD:
@@ -101,26 +105,26 @@ public class VariableFinder {
         case DIV:
         case MOD:
         case POW:
-          states.get(code.A(line), line).read = true;
-          if(!isConstantReference(code.B(line))) states.get(code.B(line), line).read = true;
-          if(!isConstantReference(code.C(line))) states.get(code.C(line), line).read = true;
+          states.setRead(code.A(line), line);
+          if(!isConstantReference(code.B(line))) states.setRead(code.B(line), line);
+          if(!isConstantReference(code.C(line))) states.setRead(code.C(line), line);
           break;
         case SELF:
-          states.get(code.A(line), line).written = true;
-          states.get(code.A(line) + 1, line).written = true;
-          states.get(code.B(line), line).read = true;
-          if(!isConstantReference(code.C(line))) states.get(code.C(line), line).read = true;
+          states.setWritten(code.A(line), line);
+          states.setWritten(code.A(line) + 1, line);
+          states.setRead(code.B(line), line);
+          if(!isConstantReference(code.C(line))) states.setRead(code.C(line), line);
           break;
         case UNM:
         case NOT:
         case LEN:
-          states.get(code.A(line), line).written = true;
-          states.get(code.B(line), line).read = true;
+          states.setWritten(code.A(line), line);
+          states.setRead(code.B(line), line);
           break;
         case CONCAT:
-          states.get(code.A(line), line).written = true;
+          states.setWritten(code.A(line), line);
           for(int register = code.B(line); register <= code.C(line); register++) {
-            states.get(register, line).read = true;
+            states.setRead(register, line);
             states.setTemporary(register, line);
           }
           break;
@@ -133,15 +137,15 @@ public class VariableFinder {
         case EQ:
         case LT:
         case LE:
-          if(!isConstantReference(code.B(line))) states.get(code.B(line), line).read = true;
-          if(!isConstantReference(code.C(line))) states.get(code.C(line), line).read = true;
+          if(!isConstantReference(code.B(line))) states.setRead(code.B(line), line);
+          if(!isConstantReference(code.C(line))) states.setRead(code.C(line), line);
           break;
         case TEST:
-          states.get(code.A(line), line).read = true;
+          states.setRead(code.A(line), line);
           break;
         case TESTSET:
-          states.get(code.A(line), line).written = true;
-          states.get(code.B(line), line).read = true;
+          states.setWritten(code.A(line), line);
+          states.setRead(code.B(line), line);
           break;
         case CLOSURE: {
           LFunction f = d.function.functions[code.Bx(line)];
@@ -159,12 +163,12 @@ public class VariableFinder {
           if(code.op(line) != Op.TAILCALL) {
             if(C >= 2) {
               for(int register = code.A(line); register <= code.A(line) + C - 2; register++) {
-                states.get(register, line).written = true;
+                states.setWritten(register, line);
               }
             }
           }
           for(int register = code.A(line); register <= code.A(line) + B - 1; register++) {
-            states.get(code.A(line), line).read = true;
+            states.setRead(code.A(line), line);
             states.setTemporary(code.A(line), line);
           }
           if(C >= 2) {
@@ -172,8 +176,8 @@ public class VariableFinder {
             int register = code.A(line) + C - 2;
             while(register >= code.A(line) && nline <= code.length()) {
               if(code.op(nline) == Op.MOVE && code.B(nline) == register) {
-                states.get(code.A(nline), nline).written = true;
-                states.get(code.B(nline), nline).read = true;
+                states.setWritten(code.A(nline), nline);
+                states.setRead(code.B(nline), nline);
                 states.setLocal(code.A(nline), nline);
                 skip[nline - 1] = true;
               }
@@ -200,11 +204,11 @@ public class VariableFinder {
       }
       if(!local && !temporary) {
         for(int line = 1; line <= code.length(); line++) {
-          RegisterState state = states.get(register, line);
-          if(state.local) local = true;
-          if(state.temporary) temporary = true;
-          if(state.read) read++;
-          //if(state.written) written++;
+          int state = states.get(register, line);
+          if((state & RegisterStates.LOCAL) != 0) local = true;
+          if((state & RegisterStates.TEMPORARY) != 0) temporary = true;
+          if((state & RegisterStates.READ) != 0) read++;
+          //if((state & RegisterStates.WRITTEN) != 0) written++;
         }
       }
       if(!local && !temporary) {
@@ -213,9 +217,8 @@ public class VariableFinder {
         }
       }
       if(local) {
-        Declaration decl = new Declaration(id + register + "_" + lc, 0, code.length() + d.getVersion().getOuterBlockScopeAdjustment());
+        Declaration decl = new Declaration(id + register + "_" + d.context.localCount++, 0, code.length() + d.getVersion().getOuterBlockScopeAdjustment());
         decl.register = register;
-        lc++;
         declList.add(decl);
       }
     }
@@ -227,8 +230,6 @@ public class VariableFinder {
     return declList.toArray(new Declaration[declList.size()]);
   }
   
-  static int lc = 0;
-  
   private VariableFinder() {}
   
 }
@@ -1,13 +1,12 @@
 package unluac.decompile.condition;
 
 import unluac.decompile.Registers;
-import unluac.decompile.expression.BinaryExpression;
 import unluac.decompile.expression.Expression;
 
 public class AndCondition implements Condition {
   
-  private Condition left;
-  private Condition right;
+  final Condition left;
+  final Condition right;
   
   public AndCondition(Condition left, Condition right) {
     this.left = left;
@@ -16,21 +15,17 @@ public class AndCondition implements Condition {
 
   @Override
   public Condition inverse() {
-    if(invertible()) {
-      return new OrCondition(left.inverse(), right.inverse());
-    } else {
-      return new NotCondition(this);
-    }
+    return ConditionTree.inverse(this);
   }
 
   @Override
   public boolean invertible() {
-    return right.invertible();
+    return ConditionTree.last(this).invertible();
   }
   
   @Override
   public int register() {
-    return right.register();
+    return ConditionTree.last(this).register();
   }
   
   @Override
@@ -40,7 +35,7 @@ public class AndCondition implements Condition {
   
   @Override
   public Expression asExpression(Registers r) {
-    return new BinaryExpression("and", left.asExpression(r), right.asExpression(r), Expression.PRECEDENCE_AND, Expression.ASSOCIATIVITY_NONE);
+    return ConditionTree.asExpression(this, r);
   }
   
   @Override
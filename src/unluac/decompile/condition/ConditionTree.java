@@ -0,0 +1,109 @@
+package unluac.decompile.condition;
+
+import unluac.decompile.Registers;
+import unluac.decompile.expression.BinaryExpression;
+import unluac.decompile.expression.Expression;
+import unluac.util.Stack;
+
+/**
+ * Inverts and converts nested and/or conditions with an explicit stack
+ * instead of recursion, as OperatorTree does for the expressions they become,
+ * so that long generated chains do not exhaust the Java stack. Conditions
+ * that are not and/or are handled by their own methods as usual.
+ */
+class ConditionTree {
+
+  /*
+   * An and/or condition whose operands have been converted and are on top
+   * of the value stack, right above left.
+   */
+  private static class Pending {
+
+    final Condition node;
+
+    Pending(Condition node) {
+      this.node = node;
+    }
+
+  }
+
+  static Condition inverse(Condition root) {
+    Stack<Object> work = new Stack<Object>();
+    Stack<Condition> values = new Stack<Condition>();
+    work.push(root);
+    while(!work.isEmpty()) {
+      Object item = work.pop();
+      if(item instanceof Pending) {
+        Condition node = ((Pending) item).node;
+        Condition right = values.pop();
+        Condition left = values.pop();
+        values.push(node instanceof AndCondition ? new OrCondition(left, right) : new AndCondition(left, right));
+      } else if(isAndOr(item)) {
+        Condition node = (Condition) item;
+        if(node.invertible()) {
+          work.push(new Pending(node));
+          work.push(right(node));
+          work.push(left(node));
+        } else {
+          values.push(new NotCondition(node));
+        }
+      } else {
+        values.push(((Condition) item).inverse());
+      }
+    }
+    return values.pop();
+  }
+
+  static Expression asExpression(Condition root, Registers r) {
+    Stack<Object> work = new Stack<Object>();
+    Stack<Expression> values = new Stack<Expression>();
+    work.push(root);
+    while(!work.isEmpty()) {
+      Object item = work.pop();
+      if(item instanceof Pending) {
+        Condition node = ((Pending) item).node;
+        Expression right = values.pop();
+        Expression left = values.pop();
+        if(node instanceof AndCondition) {
+          values.push(new BinaryExpression("and", left, right, Expression.PRECEDENCE_AND, Expression.ASSOCIATIVITY_NONE));
+        } else {
+          values.push(new BinaryExpression("or", left, right, Expression.PRECEDENCE_OR, Expression.ASSOCIATIVITY_NONE));
+        }
+      } else if(isAndOr(item)) {
+        Condition node = (Condition) item;
+        work.push(new Pending(node));
+        work.push(right(node));
+        work.push(left(node));
+      } else {
+        values.push(((Condition) item).asExpression(r));
+      }
+    }
+    return values.pop();
+  }
+
+  /**
+   * Returns the last operand of the condition that is not an and/or, which
+   * decides whether it is invertible and which register it tests.
+   */
+  static Condition last(Condition c) {
+    while(isAndOr(c)) {
+      c = right(c);
+    }
+    return c;
+  }
+
+  private static boolean isAndOr(Object item) {
+    return item instanceof AndCondition || item instanceof OrCondition;
+  }
+
+  private static Condition left(Condition c) {
+    return c instanceof AndCondition ? ((AndCondition) c).left : ((OrCondition) c).left;
+  }
+
+  private static Condition right(Condition c) {
+    return c instanceof AndCondition ? ((AndCondition) c).right : ((OrCondition) c).right;
+  }
+
+  private ConditionTree() {}
+
+}
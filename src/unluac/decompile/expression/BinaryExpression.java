@@ -6,14 +6,14 @@ import unluac.decompile.Walker;
 
 public class BinaryExpression extends Expression {
 
-  private final String op;
-  private final Expression left;
-  private final Expression right;
+  final String spacedOp;
+  final Expression left;
+  final Expression right;
   private final int associativity;
   
   public BinaryExpression(String op, Expression left, Expression right, int precedence, int associativity) {
     super(precedence);
-    this.op = op;
+    this.spacedOp = " " + op + " ";
     this.left = left;
     this.right = right;
     this.associativity = associativity;
@@ -21,9 +21,7 @@ public class BinaryExpression extends Expression {
 
   @Override
   public void walk(Walker w) {
-    w.visitExpression(this);
-    left.walk(w);
-    right.walk(w);
+    OperatorTree.walk(w, this);
   }
   
   @Override
@@ -33,34 +31,24 @@ public class BinaryExpression extends Expression {
   
   @Override
   public int getConstantIndex() {
-    return Math.max(left.getConstantIndex(), right.getConstantIndex());
+    return OperatorTree.getConstantIndex(this);
   }
   
   @Override
   public boolean beginsWithParen() {
-    return leftGroup() || left.beginsWithParen();
+    return OperatorTree.beginsWithParen(this);
   }
   
   @Override
   public void print(Decompiler d, Output out) {
-    final boolean leftGroup = leftGroup();
-    final boolean rightGroup = rightGroup();
-    if(leftGroup) out.print("(");
-    left.print(d, out);
-    if(leftGroup) out.print(")");
-    out.print(" ");
-    out.print(op);
-    out.print(" ");
-    if(rightGroup) out.print("(");
-    right.print(d, out);
-    if(rightGroup) out.print(")");
+    OperatorTree.print(d, out, this);
   }
   
-  private boolean leftGroup() {
+  boolean leftGroup() {
     return precedence > left.precedence || (precedence == left.precedence && associativity == ASSOCIATIVITY_RIGHT);
   }
   
-  private boolean rightGroup() {
+  boolean rightGroup() {
     return precedence > right.precedence || (precedence == right.precedence && associativity == ASSOCIATIVITY_LEFT);
   }
   
@@ -5,18 +5,19 @@ import unluac.decompile.Output;
 import unluac.decompile.Walker;
 import unluac.decompile.target.TableTarget;
 import unluac.decompile.target.Target;
-import unluac.decompile.target.VariableTarget;
 import unluac.parse.LFunction;
 import unluac.parse.LUpvalue;
 
 public class ClosureExpression extends Expression {
 
   private final LFunction function;
+  private final int index;
   private int upvalueLine;
   
-  public ClosureExpression(LFunction function, int upvalueLine) {
+  public ClosureExpression(LFunction function, int index, int upvalueLine) {
     super(PRECEDENCE_ATOMIC);
     this.function = function;
+    this.index = index;
     this.upvalueLine = upvalueLine;
   }
 
@@ -62,16 +63,16 @@ public class ClosureExpression extends Expression {
   
   @Override
   public void print(Decompiler outer, Output out) {
-    Decompiler d = new Decompiler(function, outer.declList, upvalueLine);
+    Decompiler d = new Decompiler(function, outer, index, upvalueLine);
     out.print("function");
     printMain(out, d, true);
   }
   
   @Override
   public void printClosure(Decompiler outer, Output out, Target name) {
-    Decompiler d = new Decompiler(function, outer.declList, upvalueLine);
+    Decompiler d = new Decompiler(function, outer, index, upvalueLine);
     out.print("function ");
-    if(function.numParams >= 1 && d.declList[0].name.equals("self") && name instanceof TableTarget) {
+    if(function.numParams >= 1 && d.getParameterName(0).equals("self") && name instanceof TableTarget) {
       name.printMethod(outer, out);
       printMain(out, d, false);
     } else {
@@ -84,10 +85,10 @@ public class ClosureExpression extends Expression {
     out.print("(");
     int start = includeFirst ? 0 : 1;
     if(function.numParams > start) {
-      new VariableTarget(d.declList[start]).print(d, out);
+      out.print(d.getParameterName(start));
       for(int i = start + 1; i < function.numParams; i++) {
         out.print(", ");
-        new VariableTarget(d.declList[i]).print(d, out);
+        out.print(d.getParameterName(i));
       }
     }
     if(function.vararg != 0) {
@@ -100,8 +101,7 @@ public class ClosureExpression extends Expression {
     out.print(")");
     out.println();
     out.indent();
-    Decompiler.State result = d.decompile();
-    d.print(result, out);
+    d.render(out);
     out.dedent();
     out.print("end");
     //out.println(); //This is an extra space for formatting
@@ -273,6 +273,14 @@ abstract public class Expression {
     return false;
   }
   
+  /**
+   * Whether this member access came from a SELF instruction (and so should
+   * be printed with : syntax when called with its table).
+   */
+  public boolean isSelfAccess() {
+    return false;
+  }
+  
   public Expression getTable() {
     throw new IllegalStateException();
   }
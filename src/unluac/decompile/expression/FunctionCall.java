@@ -54,7 +54,7 @@ public class FunctionCall extends Expression {
   }
   
   private boolean isMethodCall() {
-    return function.isMemberAccess() && arguments.length > 0 && function.getTable() == arguments[0];
+    return function.isMemberAccess() && function.isSelfAccess() && arguments.length > 0 && function.getTable() == arguments[0];
   }
   
   @Override
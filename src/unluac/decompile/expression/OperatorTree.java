@@ -0,0 +1,104 @@
+package unluac.decompile.expression;
+
+import unluac.decompile.Decompiler;
+import unluac.decompile.Output;
+import unluac.decompile.Walker;
+import unluac.util.Stack;
+
+/**
+ * Traverses nested unary and binary operator expressions with an explicit
+ * stack instead of recursion, so that long generated chains (concatenations,
+ * and/or conditions, arithmetic) do not exhaust the Java stack. Operands that
+ * are not operators are handled by their own methods as usual.
+ */
+class OperatorTree {
+
+  static void print(Decompiler d, Output out, Expression root) {
+    Stack<Object> work = new Stack<Object>();
+    work.push(root);
+    while(!work.isEmpty()) {
+      Object item = work.pop();
+      if(item instanceof String) {
+        out.print((String) item);
+      } else if(item instanceof BinaryExpression) {
+        BinaryExpression e = (BinaryExpression) item;
+        boolean leftGroup = e.leftGroup();
+        boolean rightGroup = e.rightGroup();
+        if(rightGroup) work.push(")");
+        work.push(e.right);
+        if(rightGroup) work.push("(");
+        work.push(e.spacedOp);
+        if(leftGroup) work.push(")");
+        work.push(e.left);
+        if(leftGroup) work.push("(");
+      } else if(item instanceof UnaryExpression) {
+        UnaryExpression e = (UnaryExpression) item;
+        boolean group = e.precedence > e.expression.precedence;
+        if(group) work.push(")");
+        work.push(e.expression);
+        if(group) {
+          work.push("(");
+        } else if(e.expression instanceof UnaryExpression && e.op.equals("-") && ((UnaryExpression) e.expression).op.equals("-")) {
+          // "--" would start a comment
+          work.push(" ");
+        }
+        work.push(e.op);
+      } else {
+        ((Expression) item).print(d, out);
+      }
+    }
+  }
+
+  static void walk(Walker w, Expression root) {
+    Stack<Expression> work = new Stack<Expression>();
+    work.push(root);
+    while(!work.isEmpty()) {
+      Expression e = work.pop();
+      if(e instanceof BinaryExpression) {
+        BinaryExpression binary = (BinaryExpression) e;
+        w.visitExpression(binary);
+        work.push(binary.right);
+        work.push(binary.left);
+      } else if(e instanceof UnaryExpression) {
+        UnaryExpression unary = (UnaryExpression) e;
+        w.visitExpression(unary);
+        work.push(unary.expression);
+      } else {
+        e.walk(w);
+      }
+    }
+  }
+
+  static int getConstantIndex(Expression root) {
+    int index = -1;
+    Stack<Expression> work = new Stack<Expression>();
+    work.push(root);
+    while(!work.isEmpty()) {
+      Expression e = work.pop();
+      if(e instanceof BinaryExpression) {
+        work.push(((BinaryExpression) e).right);
+        work.push(((BinaryExpression) e).left);
+      } else if(e instanceof UnaryExpression) {
+        work.push(((UnaryExpression) e).expression);
+      } else {
+        index = Math.max(e.getConstantIndex(), index);
+      }
+    }
+    return index;
+  }
+
+  static boolean beginsWithParen(BinaryExpression root) {
+    Expression e = root;
+    while(e instanceof BinaryExpression) {
+      BinaryExpression binary = (BinaryExpression) e;
+      if(binary.leftGroup()) {
+        return true;
+      }
+      e = binary.left;
+    }
+    return e.beginsWithParen();
+  }
+
+  private OperatorTree() {}
+
+}
@@ -12,6 +12,7 @@ public class TableLiteral extends Expression {
   public static class Entry implements Comparable<Entry> {
     
     public final Expression key;
+    public final int index;
     public final Expression value;
     public final boolean isList;
     public final int timestamp;
@@ -19,11 +20,23 @@ public class TableLiteral extends Expression {
     
     public Entry(Expression key, Expression value, boolean isList, int timestamp) {
       this.key = key;
+      this.index = -1;
       this.value = value;
       this.isList = isList;
       this.timestamp = timestamp;
     }
     
+    /**
+     * A list entry at a known integer index; no key expression is needed.
+     */
+    public Entry(int index, Expression value, int timestamp) {
+      this.key = null;
+      this.index = index;
+      this.value = value;
+      this.isList = true;
+      this.timestamp = timestamp;
+    }
+    
     @Override
     public int compareTo(Entry e) {
       return ((Integer) timestamp).compareTo(e.timestamp);
@@ -34,6 +47,7 @@ public class TableLiteral extends Expression {
   
   private boolean isObject = true;
   private boolean isList = true;
+  private boolean sorted = true;
   private int listLength = 1;
   
   private final int hashSize;
@@ -50,7 +64,9 @@ public class TableLiteral extends Expression {
   public void walk(Walker w) {
     w.visitExpression(this);
     for(Entry entry : entries) {
-      entry.key.walk(w);
+      if(entry.key != null) {
+        entry.key.walk(w);
+      }
       entry.value.walk(w);
     }
   }
@@ -59,7 +75,9 @@ public class TableLiteral extends Expression {
   public int getConstantIndex() {
     int index = -1;
     for(Entry entry : entries) {
-      index = Math.max(entry.key.getConstantIndex(), index);
+      if(entry.key != null) {
+        index = Math.max(entry.key.getConstantIndex(), index);
+      }
       index = Math.max(entry.value.getConstantIndex(), index);
     }
     return index;
@@ -67,7 +85,10 @@ public class TableLiteral extends Expression {
   
   @Override
   public void print(Decompiler d, Output out) {
-    Collections.sort(entries);
+    if(!sorted) {
+      Collections.sort(entries);
+      sorted = true;
+    }
     listLength = 1;
     if(entries.isEmpty()) {
       out.print("{}");
@@ -119,7 +140,7 @@ public class TableLiteral extends Expression {
     Expression value = entry.value;
     boolean isList = entry.isList;
     boolean multiple = index + 1 >= entries.size() || value.isMultiple();
-    if(isList && key.isInteger() && listLength == key.asInteger()) {
+    if(key == null && listLength == entry.index || isList && key != null && key.isInteger() && listLength == key.asInteger()) {
       if(multiple) {
         value.printMultiple(d, out);
       } else {
@@ -130,6 +151,11 @@ public class TableLiteral extends Expression {
       out.print(key.asName());
       out.print(" = ");
       value.print(d, out);
+    } else if(key == null) {
+      out.print("[");
+      out.print(Integer.toString(entry.index));
+      out.print("] = ");
+      value.print(d, out);
     } else {
       out.print("[");
       key.printBraced(d, out);
@@ -155,10 +181,13 @@ public class TableLiteral extends Expression {
   
   @Override
   public void addEntry(Entry entry) {
-    if(hashCount < hashSize && entry.key.isIdentifier()) {
+    if(hashCount < hashSize && entry.key != null && entry.key.isIdentifier()) {
       entry.hash = true;
       hashCount++;
     }
+    if(sorted && !entries.isEmpty() && entries.get(entries.size() - 1).timestamp > entry.timestamp) {
+      sorted = false;
+    }
     entries.add(entry);
     isObject = isObject && (entry.isList || entry.key.isIdentifier());
     isList = isList && entry.isList;
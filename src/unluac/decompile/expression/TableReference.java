@@ -8,11 +8,20 @@ public class TableReference extends Expression {
 
   private final Expression table;
   private final Expression index;
+  private final boolean self;
   
   public TableReference(Expression table, Expression index) {
+    this(table, index, false);
+  }
+  
+  /**
+   * @param self whether this is the method lookup of a SELF instruction
+   */
+  public TableReference(Expression table, Expression index, boolean self) {
     super(PRECEDENCE_ATOMIC);
     this.table = table;
     this.index = index;
+    this.self = self;
   }
 
   @Override
@@ -68,6 +77,11 @@ public class TableReference extends Expression {
     return table.isUngrouped() || table.beginsWithParen();
   }
   
+  @Override
+  public boolean isSelfAccess() {
+    return self;
+  }
+  
   @Override
   public Expression getTable() {
     return table;
@@ -6,8 +6,8 @@ import unluac.decompile.Walker;
 
 public class UnaryExpression extends Expression {
 
-  private final String op;
-  private final Expression expression;
+  final String op;
+  final Expression expression;
   
   public UnaryExpression(String op, Expression expression, int precedence) {
     super(precedence);
@@ -17,8 +17,7 @@ public class UnaryExpression extends Expression {
 
   @Override
   public void walk(Walker w) {
-    w.visitExpression(this);
-    expression.walk(w);
+    OperatorTree.walk(w, this);
   }
   
   @Override
@@ -28,15 +27,12 @@ public class UnaryExpression extends Expression {
   
   @Override
   public int getConstantIndex() {
-    return expression.getConstantIndex();
+    return OperatorTree.getConstantIndex(this);
   }
   
   @Override
   public void print(Decompiler d, Output out) {
-    out.print(op);
-    if(precedence > expression.precedence) out.print("(");
-    expression.print(d, out);
-    if(precedence > expression.precedence) out.print(")");
+    OperatorTree.print(d, out, this);
   }
   
 }
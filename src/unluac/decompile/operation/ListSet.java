@@ -0,0 +1,37 @@
+package unluac.decompile.operation;
+
+import unluac.decompile.Registers;
+import unluac.decompile.block.Block;
+import unluac.decompile.expression.Expression;
+import unluac.decompile.expression.TableLiteral;
+import unluac.decompile.statement.Statement;
+
+/**
+ * All the list items stored by one SETLIST instruction into a table
+ * constructor. The items go straight into the literal with their integer
+ * index, without a key expression or an operation per item.
+ */
+public class ListSet extends Operation {
+
+  private final Expression table;
+  private final int first;
+  private final Expression[] values;
+  private final int[] timestamps;
+  
+  public ListSet(int line, Expression table, int first, Expression[] values, int[] timestamps) {
+    super(line);
+    this.table = table;
+    this.first = first;
+    this.values = values;
+    this.timestamps = timestamps;
+  }
+
+  @Override
+  public Statement process(Registers r, Block block) {
+    for(int i = 0; i < values.length; i++) {
+      table.addEntry(new TableLiteral.Entry(first + i, values[i], timestamps[i]));
+    }
+    return null;
+  }
+
+}
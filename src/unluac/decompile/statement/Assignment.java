@@ -1,6 +1,7 @@
 package unluac.decompile.statement;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -13,9 +14,9 @@ import unluac.decompile.target.Target;
 
 public class Assignment extends Statement {
 
-  private final ArrayList<Target> targets = new ArrayList<Target>(5);
-  private final ArrayList<Expression> values = new ArrayList<Expression>(5);
-  private final ArrayList<Integer> lines = new ArrayList<Integer>(5);
+  private final ArrayList<Target> targets = new ArrayList<Target>(1);
+  private final ArrayList<Expression> values = new ArrayList<Expression>(1);
+  private int[] lines = new int[1];
 
   private boolean allnil = true;
   private boolean declare = false;
@@ -58,7 +59,7 @@ public class Assignment extends Statement {
   }
   
   public int getFirstLine() {
-    return lines.get(0);
+    return lines[0];
   }
   
   public boolean assignsTarget(Declaration decl) {
@@ -77,14 +78,14 @@ public class Assignment extends Statement {
   public Assignment(Target target, Expression value, int line) {
     targets.add(target);
     values.add(value);
-    lines.add(line);
+    lines[0] = line;
     allnil = allnil && value.isNil();
   }
 
   public void addFirst(Target target, Expression value, int line) {
+    insertLine(line);
     targets.add(0, target);
     values.add(0, value);
-    lines.add(0, line);
     allnil = allnil && value.isNil();
   }
   
@@ -93,14 +94,27 @@ public class Assignment extends Statement {
       int index = targets.indexOf(target);
       targets.remove(index);
       value = values.remove(index);
-      lines.remove(index);
+      System.arraycopy(lines, index + 1, lines, index, targets.size() - index);
     }
+    insertLine(line);
     targets.add(target);
     values.add(value);
-    lines.add(0, line);
     allnil = allnil && value.isNil();
   }
   
+  /**
+   * Inserts a line at the front of the lines, which has one entry per target.
+   * Must be called before the target is added.
+   */
+  private void insertLine(int line) {
+    int size = targets.size();
+    if(size == lines.length) {
+      lines = Arrays.copyOf(lines, size * 2);
+    }
+    System.arraycopy(lines, 0, lines, 1, size);
+    lines[0] = line;
+  }
+  
   public void replaceValue(int target, Expression value) {
     int index = 0;
     for(Target t : targets) {
@@ -179,6 +193,9 @@ public class Assignment extends Statement {
         if(targets.get(0).isLocal() && closure.isUpvalueOf(targets.get(0).getIndex())) {
           functionSugar = true;
         }
+        if(targets.get(0).isLocalFunction()) {
+          functionSugar = true;
+        }
         //if(closure.isUpvalueOf(targets.get(0).))
       }
       if(!functionSugar) {
@@ -193,7 +210,7 @@ public class Assignment extends Statement {
           LinkedList<Expression> expressions = new LinkedList<Expression>();
           
           int size = values.size();
-          if(size >= 2 && values.get(size - 1).isNil() && (lines.get(size - 1) == values.get(size - 1).getConstantLine() || values.get(size - 1).getConstantLine() == -1)) {
+          if(size >= 2 && values.get(size - 1).isNil() && (lines[size - 1] == values.get(size - 1).getConstantLine() || values.get(size - 1).getConstantLine() == -1)) {
             
             expressions.addAll(values);
             
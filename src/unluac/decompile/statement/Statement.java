@@ -18,6 +18,7 @@ abstract public class Statement {
     for(int i = 0; i < n; i++) {
       boolean last = (i + 1 == n);
       Statement stmt = stmts.get(i);
+      d.checkpoint();
       if(stmt.beginsWithParen() && (i > 0 || d.getVersion().isAllowedPreceedingSemicolon())) {
         out.print(";");
       }
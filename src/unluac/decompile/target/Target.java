@@ -21,6 +21,10 @@ abstract public class Target {
     return false;
   }
   
+  public boolean isLocalFunction() {
+    return false;
+  }
+  
   public int getIndex() {
     throw new IllegalStateException();
   }
@@ -36,6 +36,11 @@ public class VariableTarget extends Target {
     return true;
   }
   
+  @Override
+  public boolean isLocalFunction() {
+    return decl.localFunction;
+  }
+  
   @Override
   public int getIndex() {
     return decl.register;
@@ -0,0 +1,325 @@
+package unluac.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * On-disk inverted index from terms to postings.
+ *
+ * The index is a small manifest listing segments, each a sorted file of the
+ * postings of some set of files (see Segment). An update writes the changed
+ * files to a new segment and marks their old postings deleted in the
+ * manifest, so its cost follows the change rather than the index. Once
+ * there are too many segments the smallest are merged.
+ */
+public class IndexFile implements Closeable {
+
+  private static final int MAGIC = 0x554C4958;
+  private static final int VERSION = 2;
+  private static final int MERGE_FACTOR = 10;
+  private static final int FLUSH_OCCURRENCES = 1 << 20;
+
+  /**
+   * The indexed state of one chunk file.
+   */
+  public static class Entry {
+
+    public final String file;
+    public final long length;
+    public final long modified;
+    public final List<Occurrence> occurrences = new ArrayList<Occurrence>();
+
+    public Entry(String file, long length, long modified) {
+      this.file = file;
+      this.length = length;
+      this.modified = modified;
+    }
+
+  }
+
+  public static class Occurrence {
+
+    public final Term term;
+    public final String function;
+    public final int line;
+
+    public Occurrence(Term term, String function, int line) {
+      this.term = term;
+      this.function = function;
+      this.line = line;
+    }
+
+  }
+
+  /*
+   * Where the postings of an indexed file are.
+   */
+  private static class Location {
+
+    final Segment segment;
+    final int id;
+    final Entry entry;
+
+    Location(Segment segment, int id, Entry entry) {
+      this.segment = segment;
+      this.id = id;
+      this.entry = entry;
+    }
+
+  }
+
+  /**
+   * Opens an index for updating, or starts a new one if it does not exist.
+   */
+  public static IndexFile open(Path index) throws IOException {
+    IndexFile file = new IndexFile(index, Files.exists(index));
+    try {
+      file.locate();
+    } catch(IOException e) {
+      file.close();
+      throw e;
+    }
+    return file;
+  }
+
+  /**
+   * Looks up a term in the index. A term without a kind matches all kinds.
+   */
+  public static List<Posting> query(Path index, Term query) throws IOException {
+    IndexFile file = new IndexFile(index, true);
+    try {
+      List<Posting> postings = new ArrayList<Posting>();
+      for(Term.Kind kind : Term.Kind.values()) {
+        if(query.kind == null || query.kind == kind) {
+          List<Posting> found = new ArrayList<Posting>();
+          for(Segment segment : file.segments) {
+            segment.lookup(new Term(kind, query.text), found);
+          }
+          // each segment is in file order; the sort is stable
+          Collections.sort(found, new Comparator<Posting>() {
+
+            @Override
+            public int compare(Posting a, Posting b) {
+              return a.file.compareTo(b.file);
+            }
+
+          });
+          postings.addAll(found);
+        }
+      }
+      return postings;
+    } finally {
+      file.close();
+    }
+  }
+
+  private final Path index;
+  private final List<Segment> segments = new ArrayList<Segment>();
+  private final List<Segment> obsolete = new ArrayList<Segment>();
+  private final Map<String, Location> locations = new HashMap<String, Location>();
+  private final Map<String, Entry> fresh = new TreeMap<String, Entry>();
+  private int occurrences;
+  private int next;
+
+  private IndexFile(Path index, boolean exists) throws IOException {
+    this.index = index;
+    if(exists) {
+      InputStream stream = new BufferedInputStream(Files.newInputStream(index));
+      try {
+        DataInputStream in = new DataInputStream(stream);
+        if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+          throw new IOException("Not an unluac index file: " + index);
+        }
+        next = in.readInt();
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+          Segment segment = new Segment(index, in.readInt());
+          segments.add(segment);
+          int words = in.readInt();
+          if(words != segment.deleted.length) {
+            throw new IOException("Index manifest does not match segment " + segment.number + ": " + index);
+          }
+          for(int j = 0; j < words; j++) {
+            segment.deleted[j] = in.readLong();
+          }
+        }
+      } catch(IOException e) {
+        close();
+        throw e;
+      } finally {
+        stream.close();
+      }
+    }
+  }
+
+  /**
+   * The names of all indexed files.
+   */
+  public List<String> files() {
+    List<String> files = new ArrayList<String>(locations.keySet());
+    files.addAll(fresh.keySet());
+    return files;
+  }
+
+  /**
+   * The indexed state of a file, without its occurrences, or null if the
+   * file is not in the index.
+   */
+  public Entry get(String file) {
+    Entry entry = fresh.get(file);
+    if(entry == null) {
+      Location location = locations.get(file);
+      if(location != null) {
+        entry = location.entry;
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Adds a file's entry, replacing any entry it had before.
+   */
+  public void put(Entry entry) throws IOException {
+    remove(entry.file);
+    fresh.put(entry.file, entry);
+    occurrences += entry.occurrences.size();
+    if(occurrences >= FLUSH_OCCURRENCES) {
+      flush();
+    }
+  }
+
+  public void remove(String file) {
+    Entry entry = fresh.remove(file);
+    if(entry != null) {
+      occurrences -= entry.occurrences.size();
+    }
+    Location location = locations.remove(file);
+    if(location != null) {
+      location.segment.delete(location.id);
+    }
+  }
+
+  /**
+   * Writes out the added entries, merges segments if there are too many and
+   * replaces the manifest atomically.
+   */
+  public void commit() throws IOException {
+    flush();
+    for(int i = segments.size() - 1; i >= 0; i--) {
+      if(segments.get(i).liveCount() == 0) {
+        obsolete.add(segments.remove(i));
+      }
+    }
+    while(segments.size() > MERGE_FACTOR) {
+      merge();
+    }
+    Path temp = index.resolveSibling(index.getFileName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(next);
+      out.writeInt(segments.size());
+      for(Segment segment : segments) {
+        out.writeInt(segment.number);
+        out.writeInt(segment.deleted.length);
+        for(long word : segment.deleted) {
+          out.writeLong(word);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    for(Segment segment : obsolete) {
+      segment.close();
+      Files.deleteIfExists(Segment.path(index, segment.number));
+    }
+    obsolete.clear();
+  }
+
+  /*
+   * Writes the added entries to a new segment.
+   */
+  private void flush() throws IOException {
+    if(fresh.isEmpty()) {
+      return;
+    }
+    int number = next++;
+    Segment.write(Segment.path(index, number), fresh);
+    Segment segment = new Segment(index, number);
+    segments.add(segment);
+    int id = 0;
+    for(Entry entry : fresh.values()) {
+      locations.put(entry.file, new Location(segment, id++, new Entry(entry.file, entry.length, entry.modified)));
+    }
+    fresh.clear();
+    occurrences = 0;
+  }
+
+  /*
+   * Merges the segments with the fewest live files into one.
+   */
+  private void merge() throws IOException {
+    List<Segment> smallest = new ArrayList<Segment>(segments);
+    Collections.sort(smallest, new Comparator<Segment>() {
+
+      @Override
+      public int compare(Segment a, Segment b) {
+        return Integer.compare(a.liveCount(), b.liveCount());
+      }
+
+    });
+    smallest = smallest.subList(0, MERGE_FACTOR);
+    int number = next++;
+    Segment.merge(Segment.path(index, number), smallest);
+    Segment merged = new Segment(index, number);
+    segments.removeAll(smallest);
+    obsolete.addAll(smallest);
+    segments.add(merged);
+    for(int id = 0; id < merged.fileCount; id++) {
+      Entry entry = merged.file(id);
+      locations.put(entry.file, new Location(merged, id, entry));
+    }
+  }
+
+  /*
+   * Finds where the live files of every segment are.
+   */
+  private void locate() throws IOException {
+    for(Segment segment : segments) {
+      for(int id = 0; id < segment.fileCount; id++) {
+        if(!segment.isDeleted(id)) {
+          Entry entry = segment.file(id);
+          locations.put(entry.file, new Location(segment, id, entry));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for(Segment segment : segments) {
+      segment.close();
+    }
+    for(Segment segment : obsolete) {
+      segment.close();
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+package unluac.index;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file through a mapped window that moves with the reads, so files
+ * of any size can be read at long offsets without mapping them whole.
+ */
+class IndexInput implements Closeable {
+
+  private static final int WINDOW = 1 << 26;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final FileChannel channel;
+  private final long size;
+  private MappedByteBuffer window;
+  private long start;
+  private long position;
+
+  IndexInput(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    size = channel.size();
+  }
+
+  long size() {
+    return size;
+  }
+
+  long position() {
+    return position;
+  }
+
+  void seek(long position) {
+    this.position = position;
+  }
+
+  byte readByte() throws IOException {
+    byte b = require(1).get((int) (position - start));
+    position += 1;
+    return b;
+  }
+
+  int readInt() throws IOException {
+    int i = require(4).getInt((int) (position - start));
+    position += 4;
+    return i;
+  }
+
+  long readLong() throws IOException {
+    long l = require(8).getLong((int) (position - start));
+    position += 8;
+    return l;
+  }
+
+  String readString() throws IOException {
+    int length = readInt();
+    if(length < 0) {
+      throw new IOException("Invalid string length in index: " + length);
+    }
+    ByteBuffer b = require(length).duplicate();
+    b.position((int) (position - start));
+    byte[] bytes = new byte[length];
+    b.get(bytes);
+    position += length;
+    return new String(bytes, UTF8);
+  }
+
+  /*
+   * Returns a window holding the n bytes at the position, mapping a new one
+   * starting there if the current window does not.
+   */
+  private MappedByteBuffer require(int n) throws IOException {
+    if(window != null && position >= start && position + n <= start + window.limit()) {
+      return window;
+    }
+    if(position < 0 || position + n > size) {
+      throw new EOFException("Unexpected end of index at " + position);
+    }
+    long length = Math.min(Math.max(WINDOW, n), size - position);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    window.order(ByteOrder.BIG_ENDIAN);
+    start = position;
+    return window;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+}
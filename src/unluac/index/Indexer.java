@@ -0,0 +1,107 @@
+package unluac.index;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import unluac.Configuration;
+import unluac.Main;
+import unluac.parse.LFunction;
+
+/**
+ * Builds and incrementally updates an index. Files whose size and
+ * modification time match the existing index keep their postings; only
+ * new or changed files are parsed again, and only their postings are
+ * written.
+ */
+public class Indexer {
+
+  public static void update(Path index, List<String> inputs, Configuration config, PrintStream log) throws IOException {
+    IndexFile file = IndexFile.open(index);
+    try {
+      int removed = 0;
+      for(String name : file.files()) {
+        if(!Files.exists(Paths.get(name))) {
+          file.remove(name);
+          removed++;
+        }
+      }
+      int indexed = 0;
+      int unchanged = 0;
+      int failed = 0;
+      for(Path input : collect(inputs)) {
+        String name = input.toAbsolutePath().normalize().toString();
+        BasicFileAttributes attributes = Files.readAttributes(input, BasicFileAttributes.class);
+        long length = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        IndexFile.Entry old = file.get(name);
+        if(old != null && old.length == length && old.modified == modified) {
+          unchanged++;
+          continue;
+        }
+        final IndexFile.Entry entry = new IndexFile.Entry(name, length, modified);
+        try {
+          LFunction main = Main.file_to_function(name, config);
+          TermExtractor.extract(main, new TermExtractor.Sink() {
+
+            @Override
+            public void term(Term.Kind kind, String text, String function, int line) {
+              entry.occurrences.add(new IndexFile.Occurrence(new Term(kind, text), function, line));
+            }
+
+          });
+          file.put(entry);
+          indexed++;
+        } catch(IOException e) {
+          throw e;
+        } catch(RuntimeException e) {
+          file.remove(name);
+          log.println("-- skipping " + name + ": " + e);
+          failed++;
+        }
+      }
+      file.commit();
+      log.println("-- indexed " + indexed + ", unchanged " + unchanged + ", removed " + removed + ", skipped " + failed);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Expands the given inputs into the list of regular files, descending into
+   * directories.
+   */
+  public static List<Path> collect(List<String> inputs) throws IOException {
+    List<Path> files = new ArrayList<Path>();
+    for(String input : inputs) {
+      Path path = Paths.get(input);
+      if(Files.isDirectory(path)) {
+        Stream<Path> walk = Files.walk(path);
+        try {
+          Iterator<Path> it = walk.sorted().iterator();
+          while(it.hasNext()) {
+            Path file = it.next();
+            if(Files.isRegularFile(file)) {
+              files.add(file);
+            }
+          }
+        } finally {
+          walk.close();
+        }
+      } else {
+        files.add(path);
+      }
+    }
+    return files;
+  }
+
+  private Indexer() {}
+
+}
@@ -0,0 +1,25 @@
+package unluac.index;
+
+/**
+ * A single occurrence of a term: the chunk file, the path of the function
+ * in the closure tree and the instruction (1-based, 0 if the constant is
+ * not referenced by any instruction).
+ */
+public class Posting {
+
+  public final String file;
+  public final String function;
+  public final int line;
+
+  public Posting(String file, String function, int line) {
+    this.file = file;
+    this.function = function;
+    this.line = line;
+  }
+
+  @Override
+  public String toString() {
+    return file + " " + function + " " + line;
+  }
+
+}
@@ -0,0 +1,452 @@
+package unluac.index;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable part of an index holding the postings of a set of files.
+ *
+ * A segment file starts with a header followed by the file, function path
+ * and term records, then the three offset tables and a footer giving where
+ * the tables start and their sizes. Files and terms are sorted, so a lookup
+ * binary searches the term table and reads only the matching record.
+ * Files deleted since the segment was written are kept in the manifest.
+ */
+class Segment implements Closeable {
+
+  private static final int MAGIC = 0x554C4953;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 8;
+  private static final int FOOTER_SIZE = 20;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Term.Kind[] KINDS = Term.Kind.values();
+
+  static Path path(Path index, int number) {
+    return index.resolveSibling(index.getFileName() + "." + number);
+  }
+
+  final int number;
+  final int fileCount;
+  final int pathCount;
+  final int termCount;
+
+  /* The files deleted since the segment was written, one bit each. */
+  long[] deleted;
+
+  private final IndexInput input;
+  private final long tables;
+
+  Segment(Path index, int number) throws IOException {
+    this.number = number;
+    Path path = path(index, number);
+    input = new IndexInput(path);
+    try {
+      if(input.size() < HEADER_SIZE + FOOTER_SIZE || input.readInt() != MAGIC || input.readInt() != VERSION) {
+        throw new IOException("Not an unluac index segment: " + path);
+      }
+      input.seek(input.size() - FOOTER_SIZE);
+      tables = input.readLong();
+      fileCount = input.readInt();
+      pathCount = input.readInt();
+      termCount = input.readInt();
+    } catch(IOException e) {
+      input.close();
+      throw e;
+    }
+    deleted = new long[(fileCount + 63) >>> 6];
+  }
+
+  boolean isDeleted(int file) {
+    return (deleted[file >>> 6] & (1L << file)) != 0;
+  }
+
+  void delete(int file) {
+    deleted[file >>> 6] |= 1L << file;
+  }
+
+  int liveCount() {
+    int count = fileCount;
+    for(long word : deleted) {
+      count -= Long.bitCount(word);
+    }
+    return count;
+  }
+
+  IndexFile.Entry file(int id) throws IOException {
+    input.seek(offset(id));
+    String name = input.readString();
+    return new IndexFile.Entry(name, input.readLong(), input.readLong());
+  }
+
+  String path(int id) throws IOException {
+    input.seek(offset(fileCount + id));
+    return input.readString();
+  }
+
+  /*
+   * Reads the term with the given id, leaving the input at its postings.
+   */
+  Term term(int id) throws IOException {
+    input.seek(offset(fileCount + pathCount + id));
+    int kind = input.readByte();
+    if(kind < 0 || kind >= KINDS.length) {
+      throw new IOException("Invalid term kind in index: " + kind);
+    }
+    return new Term(KINDS[kind], input.readString());
+  }
+
+  /*
+   * Reads the postings of the term with the given id, including those of
+   * deleted files.
+   */
+  Postings postings(int id) throws IOException {
+    term(id);
+    int count = input.readInt();
+    Postings postings = new Postings();
+    for(int i = 0; i < count; i++) {
+      postings.add(input.readInt(), input.readInt(), input.readInt());
+    }
+    return postings;
+  }
+
+  /**
+   * Adds the postings of the term in files that have not been deleted.
+   */
+  void lookup(Term term, List<Posting> out) throws IOException {
+    int low = 0;
+    int high = termCount - 1;
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+      int c = term(mid).compareTo(term);
+      if(c < 0) {
+        low = mid + 1;
+      } else if(c > 0) {
+        high = mid - 1;
+      } else {
+        Postings postings = postings(mid);
+        for(int i = 0; i < postings.size; i++) {
+          int f = postings.file(i);
+          if(!isDeleted(f)) {
+            out.add(new Posting(file(f).file, path(postings.path(i)), postings.line(i)));
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  private long offset(int table) throws IOException {
+    input.seek(tables + 8L * table);
+    return input.readLong();
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+
+  /**
+   * Writes the given entries, sorted by file, as a new segment.
+   */
+  static void write(Path path, Map<String, IndexFile.Entry> entries) throws IOException {
+    Writer writer = new Writer(path);
+    try {
+      TreeMap<Term, Postings> terms = new TreeMap<Term, Postings>();
+      for(IndexFile.Entry entry : entries.values()) {
+        int file = writer.file(entry.file, entry.length, entry.modified);
+        for(IndexFile.Occurrence occurrence : entry.occurrences) {
+          Postings postings = terms.get(occurrence.term);
+          if(postings == null) {
+            postings = new Postings();
+            terms.put(occurrence.term, postings);
+          }
+          postings.add(file, writer.path(occurrence.function), occurrence.line);
+        }
+      }
+      for(Map.Entry<Term, Postings> term : terms.entrySet()) {
+        writer.term(term.getKey(), term.getValue());
+      }
+      writer.finish();
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Merges the live files of the given segments into a new segment. Each
+   * segment's terms are read in order and only one term's postings are held
+   * in memory at a time.
+   */
+  static void merge(Path path, List<Segment> segments) throws IOException {
+    int k = segments.size();
+    Writer writer = new Writer(path);
+    try {
+      TreeMap<String, int[]> files = new TreeMap<String, int[]>();
+      int[][] fileIds = new int[k][];
+      int[][] pathIds = new int[k][];
+      for(int s = 0; s < k; s++) {
+        Segment segment = segments.get(s);
+        fileIds[s] = new int[segment.fileCount];
+        pathIds[s] = new int[segment.pathCount];
+        Arrays.fill(pathIds[s], -1);
+        for(int id = 0; id < segment.fileCount; id++) {
+          fileIds[s][id] = -1;
+          if(!segment.isDeleted(id)) {
+            files.put(segment.file(id).file, new int[] {s, id});
+          }
+        }
+      }
+      for(int[] file : files.values()) {
+        IndexFile.Entry entry = segments.get(file[0]).file(file[1]);
+        fileIds[file[0]][file[1]] = writer.file(entry.file, entry.length, entry.modified);
+      }
+      int[] next = new int[k];
+      Term[] heads = new Term[k];
+      for(int s = 0; s < k; s++) {
+        heads[s] = segments.get(s).termCount > 0 ? segments.get(s).term(0) : null;
+      }
+      Postings[] lists = new Postings[k];
+      while(true) {
+        Term term = null;
+        for(int s = 0; s < k; s++) {
+          if(heads[s] != null && (term == null || heads[s].compareTo(term) < 0)) {
+            term = heads[s];
+          }
+        }
+        if(term == null) {
+          break;
+        }
+        for(int s = 0; s < k; s++) {
+          lists[s] = null;
+          if(heads[s] != null && heads[s].equals(term)) {
+            Segment segment = segments.get(s);
+            lists[s] = segment.postings(next[s]);
+            for(int i = 0; i < lists[s].size; i++) {
+              int file = fileIds[s][lists[s].file(i)];
+              int p = lists[s].path(i);
+              if(file != -1 && pathIds[s][p] == -1) {
+                pathIds[s][p] = writer.path(segment.path(p));
+              }
+              lists[s].set(i, file, pathIds[s][p]);
+            }
+            next[s]++;
+            heads[s] = next[s] < segment.termCount ? segment.term(next[s]) : null;
+          }
+        }
+        Postings merged = mergePostings(lists);
+        if(merged.size > 0) {
+          writer.term(term, merged);
+        }
+      }
+      writer.finish();
+    } finally {
+      writer.close();
+    }
+  }
+
+  /*
+   * Merges remapped postings lists by file, dropping those of deleted files.
+   * Every list is in file order and no file is in two lists.
+   */
+  private static Postings mergePostings(Postings[] lists) {
+    Postings merged = new Postings();
+    int[] positions = new int[lists.length];
+    while(true) {
+      int best = -1;
+      for(int s = 0; s < lists.length; s++) {
+        Postings list = lists[s];
+        if(list != null) {
+          while(positions[s] < list.size && list.file(positions[s]) == -1) {
+            positions[s]++;
+          }
+          if(positions[s] < list.size && (best == -1 || list.file(positions[s]) < lists[best].file(positions[best]))) {
+            best = s;
+          }
+        }
+      }
+      if(best == -1) {
+        return merged;
+      }
+      Postings list = lists[best];
+      int file = list.file(positions[best]);
+      while(positions[best] < list.size && list.file(positions[best]) == file) {
+        int i = positions[best]++;
+        merged.add(file, list.path(i), list.line(i));
+      }
+    }
+  }
+
+  /**
+   * A growable list of postings as (file, path, line) triples of ids.
+   */
+  static class Postings {
+
+    private int[] values = new int[3 * 4];
+    int size;
+
+    void add(int file, int path, int line) {
+      if(3 * size == values.length) {
+        values = Arrays.copyOf(values, 2 * values.length);
+      }
+      values[3 * size] = file;
+      values[3 * size + 1] = path;
+      values[3 * size + 2] = line;
+      size++;
+    }
+
+    void set(int i, int file, int path) {
+      values[3 * i] = file;
+      values[3 * i + 1] = path;
+    }
+
+    int file(int i) {
+      return values[3 * i];
+    }
+
+    int path(int i) {
+      return values[3 * i + 1];
+    }
+
+    int line(int i) {
+      return values[3 * i + 2];
+    }
+
+  }
+
+  /*
+   * Writes a segment's records as they are given, then its tables. Files
+   * and terms must be given in sorted order.
+   */
+  private static class Writer {
+
+    private final FileChannel channel;
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+    private final Map<String, Integer> pathIds = new HashMap<String, Integer>();
+    private long[] files = new long[16];
+    private int fileCount;
+    private long[] paths = new long[16];
+    private int pathCount;
+    private long[] terms = new long[16];
+    private int termCount;
+
+    Writer(Path path) throws IOException {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+      out = new DataOutputStream(counter);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+    }
+
+    int file(String name, long length, long modified) throws IOException {
+      files = add(files, fileCount, counter.position);
+      writeString(name);
+      out.writeLong(length);
+      out.writeLong(modified);
+      return fileCount++;
+    }
+
+    int path(String function) throws IOException {
+      Integer id = pathIds.get(function);
+      if(id == null) {
+        id = pathCount;
+        pathIds.put(function, id);
+        paths = add(paths, pathCount++, counter.position);
+        writeString(function);
+      }
+      return id;
+    }
+
+    void term(Term term, Postings postings) throws IOException {
+      terms = add(terms, termCount++, counter.position);
+      out.writeByte(term.kind.ordinal());
+      writeString(term.text);
+      out.writeInt(postings.size);
+      for(int i = 0; i < postings.size; i++) {
+        out.writeInt(postings.file(i));
+        out.writeInt(postings.path(i));
+        out.writeInt(postings.line(i));
+      }
+    }
+
+    void finish() throws IOException {
+      long tables = counter.position;
+      for(int i = 0; i < fileCount; i++) {
+        out.writeLong(files[i]);
+      }
+      for(int i = 0; i < pathCount; i++) {
+        out.writeLong(paths[i]);
+      }
+      for(int i = 0; i < termCount; i++) {
+        out.writeLong(terms[i]);
+      }
+      out.writeLong(tables);
+      out.writeInt(fileCount);
+      out.writeInt(pathCount);
+      out.writeInt(termCount);
+      out.flush();
+      channel.force(false);
+    }
+
+    void close() throws IOException {
+      channel.close();
+    }
+
+    private void writeString(String s) throws IOException {
+      byte[] bytes = s.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    private static long[] add(long[] table, int count, long offset) {
+      if(count == table.length) {
+        table = Arrays.copyOf(table, 2 * table.length);
+      }
+      table[count] = offset;
+      return table;
+    }
+
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    long position;
+
+    CountingOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      position++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      position += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+  }
+
+}
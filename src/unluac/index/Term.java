@@ -0,0 +1,79 @@
+package unluac.index;
+
+public class Term implements Comparable<Term> {
+
+  public static enum Kind {
+    GLOBAL,
+    STRING,
+    NUMBER;
+
+    public String prefix() {
+      return name().toLowerCase();
+    }
+
+  }
+
+  /**
+   * Parses a query term of the form <kind>:<text>. If no kind is given,
+   * null is returned for the kind and the term matches every kind.
+   */
+  public static Term parse(String query) {
+    int colon = query.indexOf(':');
+    if(colon != -1) {
+      String prefix = query.substring(0, colon);
+      for(Kind kind : Kind.values()) {
+        if(kind.prefix().equals(prefix)) {
+          return new Term(kind, query.substring(colon + 1));
+        }
+      }
+    }
+    return new Term(null, query);
+  }
+
+  /* The kind of the term, or null for a query term of any kind. */
+  public final Kind kind;
+  public final String text;
+
+  public Term(Kind kind, String text) {
+    this.kind = kind;
+    this.text = text;
+  }
+
+  @Override
+  public int compareTo(Term other) {
+    int c;
+    if(kind == other.kind) {
+      c = 0;
+    } else if(kind == null) {
+      c = -1;
+    } else if(other.kind == null) {
+      c = 1;
+    } else {
+      c = kind.compareTo(other.kind);
+    }
+    if(c == 0) {
+      c = text.compareTo(other.text);
+    }
+    return c;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if(o instanceof Term) {
+      Term t = (Term) o;
+      return kind == t.kind && text.equals(t.text);
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return (kind == null ? 0 : kind.hashCode()) * 31 + text.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return kind == null ? text : kind.prefix() + ":" + text;
+  }
+
+}
@@ -0,0 +1,147 @@
+package unluac.index;
+
+import unluac.Version;
+import unluac.decompile.Code;
+import unluac.parse.LFunction;
+import unluac.parse.LNumber;
+import unluac.parse.LObject;
+import unluac.parse.LString;
+import unluac.parse.LUpvalue;
+
+/**
+ * Collects the searchable terms of a chunk in a single pass over each
+ * function's constants and instructions, without decompiling anything.
+ */
+public class TermExtractor {
+
+  public static interface Sink {
+
+    public void term(Term.Kind kind, String text, String function, int line);
+
+  }
+
+  public static void extract(LFunction main, Sink sink) {
+    extract(main, "main", sink);
+  }
+
+  private static void extract(LFunction function, String path, Sink sink) {
+    Code code = new Code(function);
+    int offset = function.header.version == Version.LUA50 ? 250 : 256;
+    boolean[] referenced = new boolean[function.constants.length];
+    for(int line = 1; line <= code.length; line++) {
+      switch(code.op(line)) {
+        case LOADK:
+          constant(function, referenced, code.Bx(line), path, line, sink);
+          break;
+        case LOADKX:
+          if(line + 1 <= code.length) {
+            constant(function, referenced, code.Ax(line + 1), path, line, sink);
+          }
+          break;
+        case GETGLOBAL:
+        case SETGLOBAL:
+          global(function, referenced, code.Bx(line), path, line, sink);
+          break;
+        case GETTABUP:
+          if(isEnvironment(function, code.B(line)) && code.C(line) >= offset) {
+            global(function, referenced, code.C(line) - offset, path, line, sink);
+          } else {
+            rk(function, referenced, offset, code.C(line), path, line, sink);
+          }
+          break;
+        case SETTABUP:
+          if(isEnvironment(function, code.A(line)) && code.B(line) >= offset) {
+            global(function, referenced, code.B(line) - offset, path, line, sink);
+          } else {
+            rk(function, referenced, offset, code.B(line), path, line, sink);
+          }
+          rk(function, referenced, offset, code.C(line), path, line, sink);
+          break;
+        case GETTABLE:
+        case SELF:
+          rk(function, referenced, offset, code.C(line), path, line, sink);
+          break;
+        case SETTABLE:
+        case ADD:
+        case SUB:
+        case MUL:
+        case DIV:
+        case MOD:
+        case POW:
+        case IDIV:
+        case BAND:
+        case BOR:
+        case BXOR:
+        case SHL:
+        case SHR:
+        case EQ:
+        case LT:
+        case LE:
+          rk(function, referenced, offset, code.B(line), path, line, sink);
+          rk(function, referenced, offset, code.C(line), path, line, sink);
+          break;
+        default:
+          break;
+      }
+    }
+    for(int i = 0; i < referenced.length; i++) {
+      if(!referenced[i]) {
+        constant(function, referenced, i, path, 0, sink);
+      }
+    }
+    for(int i = 0; i < function.functions.length; i++) {
+      extract(function.functions[i], path + "/" + i, sink);
+    }
+  }
+
+  private static boolean isEnvironment(LFunction function, int index) {
+    String name = upvalueName(function, index);
+    return name != null && function.header.version.isEnvironmentTable(name);
+  }
+
+  private static String upvalueName(LFunction function, int index) {
+    while(function != null && index >= 0 && index < function.upvalues.length) {
+      LUpvalue upvalue = function.upvalues[index];
+      if(upvalue.name != null && !upvalue.name.isEmpty()) {
+        return upvalue.name;
+      }
+      if(upvalue.instack) {
+        return null;
+      }
+      index = upvalue.idx;
+      function = function.parent;
+    }
+    return null;
+  }
+
+  private static void rk(LFunction function, boolean[] referenced, int offset, int register, String path, int line, Sink sink) {
+    if(register >= offset) {
+      constant(function, referenced, register - offset, path, line, sink);
+    }
+  }
+
+  private static void global(LFunction function, boolean[] referenced, int index, String path, int line, Sink sink) {
+    if(index >= 0 && index < function.constants.length) {
+      LObject constant = function.constants[index];
+      if(constant instanceof LString) {
+        referenced[index] = true;
+        sink.term(Term.Kind.GLOBAL, constant.deref(), path, line);
+      }
+    }
+  }
+
+  private static void constant(LFunction function, boolean[] referenced, int index, String path, int line, Sink sink) {
+    if(index >= 0 && index < function.constants.length) {
+      LObject constant = function.constants[index];
+      referenced[index] = true;
+      if(constant instanceof LString) {
+        sink.term(Term.Kind.STRING, constant.deref(), path, line);
+      } else if(constant instanceof LNumber) {
+        sink.term(Term.Kind.NUMBER, constant.toString(), path, line);
+      }
+    }
+  }
+
+  private TermExtractor() {}
+
+}
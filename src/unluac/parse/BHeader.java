@@ -1,6 +1,7 @@
 package unluac.parse;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import unluac.Configuration;
 import unluac.Version;
@@ -18,6 +19,7 @@ public class BHeader {
   public final Configuration config;
   public final Version version;
   public final LHeader lheader;
+  public final ByteOrder order;
   public final BIntegerType integer;
   public final BSizeTType sizeT;
   public final LBooleanType bool;
@@ -34,6 +36,14 @@ public class BHeader {
   public final LFunction main;
   
   public BHeader(ByteBuffer buffer, Configuration config) {
+    this(buffer, config, true);
+  }
+  
+  /**
+   * Reads the header and, if parseMain is set, the main function. Otherwise
+   * main is null and the buffer is left at the start of the main function.
+   */
+  public BHeader(ByteBuffer buffer, Configuration config, boolean parseMain) {
     this.config = config;
     // 4 byte Lua signature
     for(int i = 0; i < signature.length; i++) {
@@ -64,6 +74,7 @@ public class BHeader {
       }
     }
     lheader = version.getLHeaderType().parse(buffer, this);
+    order = buffer.order();
     integer = lheader.integer;
     sizeT = lheader.sizeT;
     bool = lheader.bool;
@@ -85,6 +96,10 @@ public class BHeader {
       }
       // TODO: check this value
     }
+    if(!parseMain) {
+      main = null;
+      return;
+    }
     main = function.parse(buffer, this);
     if(upvalues >= 0) {
       if(main.numUpvalues != upvalues) {
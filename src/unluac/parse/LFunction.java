@@ -4,6 +4,10 @@ public class LFunction extends BObject {
   
   public BHeader header;
   public LFunction parent;
+  public LString name;
+  public int linedefined;
+  public int lastlinedefined;
+  public int[] lines;
   public int[] code;
   public LLocal[] locals;
   public LObject[] constants;
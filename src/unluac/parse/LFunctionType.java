@@ -39,6 +39,13 @@ public class LFunctionType extends BObjectType<LFunction> {
     LFunctionParseState s = new LFunctionParseState();
     parse_main(buffer, header, s);
     LFunction lfunc = new LFunction(header, s.code, s.locals.asArray(new LLocal[s.locals.length.asInt()]), s.constants.asArray(new LObject[s.constants.length.asInt()]), s.upvalues, s.functions.asArray(new LFunction[s.functions.length.asInt()]), s.maximumStackSize, s.lenUpvalues, s.lenParameter, s.vararg);
+    lfunc.name = s.name;
+    lfunc.linedefined = s.lineBegin;
+    lfunc.lastlinedefined = s.lineEnd;
+    lfunc.lines = new int[s.lines.length.asInt()];
+    for(int i = 0; i < lfunc.lines.length; i++) {
+      lfunc.lines[i] = s.lines.get(i).asInt();
+    }
     for(LFunction child : lfunc.functions) {
       child.parent = lfunc;
     }
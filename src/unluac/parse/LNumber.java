@@ -1,16 +1,47 @@
 package unluac.parse;
 
+import unluac.util.NumberFormatter;
+
 public abstract class LNumber extends LObject {
 
   public static LNumber makeInteger(int number) {
     return new LIntNumber(number);
   }
   
+  public static LNumber makeLong(long number) {
+    return new LLongNumber(number);
+  }
+  
+  public static LNumber makeDouble(double number, LNumberType.NumberMode mode) {
+    return new LDoubleNumber(number, mode);
+  }
+  
+  /**
+   * Writes the Lua source form of this number to the buffer at the given
+   * offset and returns the offset after it. The buffer must have room for
+   * NumberFormatter.MAX_LENGTH characters.
+   */
+  public abstract int format(char[] buffer, int offset);
+  
   @Override
-  public abstract String toString();
+  public String toString() {
+    char[] buffer = new char[NumberFormatter.MAX_LENGTH];
+    return new String(buffer, 0, format(buffer, 0));
+  }
     
   //TODO: problem solution for this issue
   public abstract double value();
+  
+  /**
+   * Whether this number was stored as an integer (a Lua 5.3 integer, or a
+   * number in a chunk built with integral numbers).
+   */
+  public abstract boolean integral();
+  
+  /**
+   * The exact value of an integral number.
+   */
+  public abstract long longValue();
 }
 
 class LFloatNumber extends LNumber {
@@ -24,16 +55,8 @@ class LFloatNumber extends LNumber {
   }
   
   @Override
-  public String toString() {
-    if(mode == LNumberType.NumberMode.MODE_NUMBER && number == (float) Math.round(number)) {
-      if(Float.floatToRawIntBits(number) == Float.floatToRawIntBits(-0.0f)) {
-        return "-0";
-      } else {
-        return Integer.toString((int) number);
-      }
-    } else {
-      return Float.toString(number);
-    }
+  public int format(char[] buffer, int offset) {
+    return NumberFormatter.formatFloat(number, mode == LNumberType.NumberMode.MODE_NUMBER, buffer, offset);
   }
   
   @Override
@@ -51,6 +74,16 @@ class LFloatNumber extends LNumber {
     return number;
   }
   
+  @Override
+  public boolean integral() {
+    return false;
+  }
+  
+  @Override
+  public long longValue() {
+    return (long) number;
+  }
+  
 }
 
 class LDoubleNumber extends LNumber {
@@ -64,16 +97,8 @@ class LDoubleNumber extends LNumber {
   }
   
   @Override
-  public String toString() {
-    if(mode == LNumberType.NumberMode.MODE_NUMBER && number == (double) Math.round(number)) {
-      if(Double.doubleToRawLongBits(number) == Double.doubleToRawLongBits(-0.0)) {
-        return "-0";
-      } else {
-        return Long.toString((long) number);
-      }
-    } else {
-      return Double.toString(number);
-    }
+  public int format(char[] buffer, int offset) {
+    return NumberFormatter.formatDouble(number, mode == LNumberType.NumberMode.MODE_NUMBER, buffer, offset);
   }
   
   @Override
@@ -91,6 +116,16 @@ class LDoubleNumber extends LNumber {
     return number;
   }
   
+  @Override
+  public boolean integral() {
+    return false;
+  }
+  
+  @Override
+  public long longValue() {
+    return (long) number;
+  }
+  
 }
 
 class LIntNumber extends LNumber {
@@ -102,8 +137,8 @@ class LIntNumber extends LNumber {
   }
   
   @Override
-  public String toString() {    
-    return Integer.toString(number);
+  public int format(char[] buffer, int offset) {
+    return NumberFormatter.formatLong(number, buffer, offset);
   }
   
   @Override
@@ -121,6 +156,16 @@ class LIntNumber extends LNumber {
     return number;
   }
   
+  @Override
+  public boolean integral() {
+    return true;
+  }
+  
+  @Override
+  public long longValue() {
+    return (long) number;
+  }
+  
 }
 
 class LLongNumber extends LNumber {
@@ -132,8 +177,8 @@ class LLongNumber extends LNumber {
   }
   
   @Override
-  public String toString() {    
-    return Long.toString(number);
+  public int format(char[] buffer, int offset) {
+    return NumberFormatter.formatLong(number, buffer, offset);
   }
   
   @Override
@@ -151,4 +196,14 @@ class LLongNumber extends LNumber {
     return number;
   }
   
+  @Override
+  public boolean integral() {
+    return true;
+  }
+  
+  @Override
+  public long longValue() {
+    return number;
+  }
+  
 }
\ No newline at end of file
@@ -5,8 +5,10 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
 
 import unluac.Configuration;
+import unluac.chunk.ChunkComparator;
 import unluac.parse.BHeader;
 import unluac.parse.LFunction;
 import unluac.parse.LLocal;
@@ -19,9 +21,20 @@ public class Compare {
    * (except possibly for line numbers).
    */
   public static boolean bytecode_equal(String file1, String file2) {
-    LFunction main1 = file_to_function(file1);
-    LFunction main2 = file_to_function(file2);
-    return function_equal(main1, main2);
+    return bytecode_difference(file1, file2) == null;
+  }
+  
+  /**
+   * Describes the first difference between two files of lua bytecode
+   * (other than line numbers), or returns null if there is none.
+   */
+  public static String bytecode_difference(String file1, String file2) {
+    try {
+      ChunkComparator.Divergence divergence = new ChunkComparator().compare(Paths.get(file1), Paths.get(file2));
+      return divergence == null ? null : divergence.toString();
+    } catch(IOException e) {
+      return e.toString();
+    }
   }
 
   public static boolean function_equal(LFunction f1, LFunction f2) {
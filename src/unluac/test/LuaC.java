@@ -3,10 +3,58 @@ package unluac.test;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import unluac.compiler.CompileException;
+import unluac.compiler.LuaCompiler;
 
 public class LuaC {
 
   public static void compile(LuaSpec spec, String in, String out) throws IOException {
+    run(spec, in, out, null);
+  }
+
+  /**
+   * Compiles source that is in memory, passing it to luac on its standard
+   * input.
+   */
+  public static void compile(LuaSpec spec, byte[] source, String out) throws IOException {
+    run(spec, "-", out, source);
+  }
+
+  /**
+   * Whether the spec is compiled in-process. This is the case for default
+   * numbers when the spec's luac property (luac51 for Lua 5.1) is set to
+   * "internal".
+   */
+  public static boolean isInternal(LuaSpec spec) {
+    return spec.isDefaultNumberFormat()
+      && "internal".equals(System.getProperty(spec.getLuaCName()));
+  }
+
+  private static void internal(LuaSpec spec, String in, String out, byte[] source) throws IOException {
+    LuaCompiler compiler = new LuaCompiler(spec.getVersion(), spec.isStrip());
+    try {
+      byte[] chunk;
+      if(source != null) {
+        chunk = compiler.compile(source, "=stdin");
+      } else {
+        chunk = compiler.compile(Paths.get(in));
+      }
+      Files.write(Paths.get(out), chunk);
+    } catch(CompileException e) {
+      System.err.println(e.getMessage());
+      throw new IOException("luac failed on file: " + (source != null ? "(stdin)" : in));
+    }
+  }
+
+  private static void run(LuaSpec spec, String in, String out, byte[] source) throws IOException {
+    if(isInternal(spec)) {
+      internal(spec, in, out, source);
+      return;
+    }
     String luac = spec.getLuaCName();
     luac = System.getProperty(luac, luac);
     if(System.getProperty("os.name").contains("Windows")) {
@@ -25,6 +73,14 @@ public class LuaC {
     ProcessBuilder pb = new ProcessBuilder(full);
     pb.directory(null);
     Process p = pb.start();
+    OutputStream stdin = p.getOutputStream();
+    try {
+      if(source != null) {
+        stdin.write(source);
+      }
+    } finally {
+      stdin.close();
+    }
     while(true) {
       try {
         if(p.waitFor() == 0) {
@@ -39,7 +95,7 @@ public class LuaC {
             }
           } while(line != null);
 
-          throw new IOException("luac failed on file: " + in);
+          throw new IOException("luac failed on file: " + (source != null ? "(stdin)" : in));
         }
       } catch(InterruptedException e ) {
 
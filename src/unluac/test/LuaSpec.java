@@ -37,6 +37,18 @@ public class LuaSpec {
     this.strip = strip;
   }
   
+  public int getVersion() {
+    return version;
+  }
+  
+  public boolean isStrip() {
+    return strip;
+  }
+  
+  public boolean isDefaultNumberFormat() {
+    return numberFormat == NumberFormat.DEFAULT;
+  }
+  
   public String getLuaCName() {
     return "luac" + getVersionString() + getNumberFormatString();
   }
@@ -0,0 +1,29 @@
+package unluac.test;
+
+/**
+ * Discards what is appended, for the harnesses that measure decompilation
+ * without its output.
+ */
+class NullAppendable implements Appendable {
+
+  static final Appendable INSTANCE = new NullAppendable();
+
+  private NullAppendable() {
+  }
+
+  @Override
+  public Appendable append(CharSequence csq) {
+    return this;
+  }
+
+  @Override
+  public Appendable append(CharSequence csq, int start, int end) {
+    return this;
+  }
+
+  @Override
+  public Appendable append(char c) {
+    return this;
+  }
+
+}
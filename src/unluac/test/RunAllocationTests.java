@@ -0,0 +1,168 @@
+package unluac.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import unluac.Configuration;
+import unluac.Engine;
+import unluac.Version;
+import unluac.chunk.ChunkGenerator;
+import unluac.compiler.CompileException;
+import unluac.compiler.LuaCompiler;
+import unluac.decompile.Stats;
+
+/**
+ * Checks the bytes allocated by each phase of decompilation against a
+ * budget per instruction.
+ * <p>
+ * The corpus is the compiled test sources (with the in-process Lua 5.1
+ * compiler) and a few generated chunks. It is decompiled with stats, which
+ * count the bytes allocated by the decompiling thread in each phase; the
+ * smallest count of several runs is kept, as the compiler's optimizations
+ * can remove some allocations once it has warmed up. A phase fails when its
+ * bytes divided by the instructions of the corpus are above its budget in
+ * test/allocation.properties (or the file given as the first argument).
+ */
+public class RunAllocationTests {
+
+  private static final String DEFAULT_PROPERTIES = "./test/allocation.properties";
+
+  /* The budgeted phases: parsing, then the phases of Stats in groups. */
+  private static final String[] BUDGETS = {"parse", "declarations", "control_flow", "sequence", "print"};
+
+  private static int budget(Stats.Phase phase) {
+    switch(phase) {
+      case DECLARATIONS:
+        return 1;
+      case SEQUENCE:
+        return 3;
+      case PRINT:
+        return 4;
+      default:
+        return 2;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(args.length >= 1 ? args[0] : DEFAULT_PROPERTIES);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    if(Stats.allocatedBytes() == 0) {
+      System.out.println("This JVM does not count allocated bytes per thread.");
+      System.exit(1);
+    }
+    int warmup = Integer.parseInt(properties.getProperty("warmup", "3"));
+    int runs = Integer.parseInt(properties.getProperty("runs", "3"));
+    List<byte[]> corpus = corpus(properties);
+    Engine engine = new Engine(new Configuration(), true);
+    for(int i = 0; i < warmup; i++) {
+      for(byte[] chunk : corpus) {
+        decompile(engine, chunk);
+      }
+    }
+    Stats.Phase[] phases = Stats.Phase.values();
+    long[] best = new long[phases.length + 1];
+    Arrays.fill(best, Long.MAX_VALUE);
+    long instructions = 0;
+    for(int i = 0; i < runs; i++) {
+      long[] bytes = new long[phases.length + 1];
+      instructions = 0;
+      for(byte[] chunk : corpus) {
+        Stats stats = decompile(engine, chunk);
+        bytes[phases.length] += stats.getParseBytes();
+        for(Stats.Phase phase : phases) {
+          bytes[phase.ordinal()] += stats.getBytes(phase);
+        }
+        for(Stats.Function function : stats.getFunctions()) {
+          instructions += function.getInstructions();
+        }
+      }
+      for(int j = 0; j < best.length; j++) {
+        best[j] = Math.min(best[j], bytes[j]);
+      }
+    }
+    double[] perInstruction = new double[BUDGETS.length];
+    perInstruction[0] = (double) best[phases.length] / instructions;
+    for(Stats.Phase phase : phases) {
+      perInstruction[budget(phase)] += (double) best[phase.ordinal()] / instructions;
+    }
+    System.out.println(corpus.size() + " chunks, " + instructions + " instructions");
+    System.out.println("phase                 bytes/instr     budget");
+    int failed = 0;
+    for(int i = 0; i < BUDGETS.length; i++) {
+      double budget = Double.parseDouble(property(properties, BUDGETS[i]));
+      boolean ok = perInstruction[i] <= budget;
+      if(!ok) {
+        failed++;
+      }
+      System.out.printf("%-20s %12.1f %10.1f  %s%n", BUDGETS[i], perInstruction[i], budget, ok ? "ok" : "FAILED");
+      if(i == 2) {
+        for(Stats.Phase phase : phases) {
+          if(budget(phase) == 2) {
+            System.out.printf("  %-18s %12.1f%n", phase.label, (double) best[phase.ordinal()] / instructions);
+          }
+        }
+      }
+    }
+    if(failed == 0) {
+      System.out.println("All phases are within their allocation budgets.");
+      System.exit(0);
+    } else {
+      System.out.println(failed + " of " + BUDGETS.length + " phases allocate more than their budgets.");
+      System.exit(1);
+    }
+  }
+
+  private static List<byte[]> corpus(Properties properties) throws IOException {
+    List<byte[]> corpus = new ArrayList<byte[]>();
+    File[] sources = new File(properties.getProperty("sources", "./test/src/").trim()).listFiles();
+    if(sources != null) {
+      Arrays.sort(sources);
+      LuaCompiler compiler = new LuaCompiler();
+      for(File source : sources) {
+        if(source.getName().endsWith(".lua")) {
+          try {
+            corpus.add(compiler.compile(source.toPath()));
+          } catch(CompileException e) {
+            // a test that is not valid Lua 5.1
+          }
+        }
+      }
+    }
+    Version version = ChunkGenerator.parseVersion(properties.getProperty("version", "5.1").trim());
+    ChunkGenerator generator = new ChunkGenerator(version);
+    for(ChunkGenerator.Construct construct : ChunkGenerator.Construct.values()) {
+      int size = Integer.parseInt(property(properties, construct.name().toLowerCase() + ".size"));
+      corpus.add(generator.generate(construct, size));
+    }
+    return corpus;
+  }
+
+  private static Stats decompile(Engine engine, byte[] chunk) {
+    Engine.Result result = engine.decompile(ByteBuffer.wrap(chunk), NullAppendable.INSTANCE);
+    if(!result.isOk()) {
+      throw new IllegalStateException("A chunk of the corpus did not decompile: " + result);
+    }
+    return result.stats;
+  }
+
+  private static String property(Properties properties, String key) {
+    String value = properties.getProperty(key);
+    if(value == null) {
+      throw new IllegalStateException("Missing allocation property: " + key);
+    }
+    return value.trim();
+  }
+
+}
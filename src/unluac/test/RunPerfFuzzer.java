@@ -0,0 +1,473 @@
+package unluac.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import unluac.Configuration;
+import unluac.Engine;
+import unluac.Version;
+import unluac.chunk.ChunkFormat;
+import unluac.chunk.ChunkGenerator;
+import unluac.chunk.ChunkMutator;
+import unluac.chunk.ChunkWriter;
+import unluac.compiler.CompileException;
+import unluac.compiler.LuaCompiler;
+import unluac.decompile.Code;
+import unluac.decompile.Op;
+import unluac.decompile.Stats;
+import unluac.parse.LFunction;
+
+/**
+ * Searches for chunks that are slow or allocate heavily to decompile.
+ * <p>
+ * Starting from generated chunks (and, for Lua 5.1, the compiled test
+ * sources, plus any chunk files given), it mutates chunks with
+ * ChunkMutator and decompiles each mutant once. A mutant is kept for
+ * further mutation when it shows a new feature (an instruction pair, or
+ * a new range of the control flow counters of a function) or when it costs
+ * more per instruction than the inputs so far. The cost of a chunk is its
+ * decompile time and its allocated bytes per instruction, relative to the
+ * median of the seeds. At the end the most expensive chunks are shrunk by
+ * deleting instruction ranges while they keep most of their cost, and
+ * saved with their measurements to the corpus directory.
+ * <p>
+ * Everything runs in-process: the parser, the decompiler and (for seeds)
+ * the Lua 5.1 compiler of this tree.
+ */
+public class RunPerfFuzzer {
+
+  private static final String DEFAULT_CORPUS = "./test/perf/";
+
+  private static final String SOURCES = "./test/src/";
+
+  /* Small chunks are charged for at least this many instructions, so their fixed costs do not look expensive. */
+  private static final int MIN_INSTRUCTIONS = 64;
+
+  private static final int MAX_CORPUS = 256;
+
+  private static final int WARMUP = 5;
+
+  private static class Entry {
+    byte[] chunk;
+    int instructions;
+    long nanos;
+    long bytes;
+    boolean overBudget;
+    double score;
+    Set<String> features;
+  }
+
+  private final Engine engine;
+  private final Version version;
+  private final Random random;
+  private final ChunkMutator mutator;
+  private final com.sun.management.ThreadMXBean threads;
+  private final PrintStream log;
+
+  private final List<Entry> corpus = new ArrayList<Entry>();
+  private final Set<String> features = new HashSet<String>();
+  private double baseNanos = 1;
+  private double baseBytes = 1;
+
+  public RunPerfFuzzer(Configuration config, Version version, long seed, PrintStream log) {
+    this.engine = new Engine(config, true);
+    this.version = version;
+    this.random = new Random(seed);
+    this.mutator = new ChunkMutator(random);
+    this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    this.log = log;
+    threads.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  /**
+   * Measures the seed chunks and sets the baseline cost from them. Seeds
+   * that do not decompile are left out.
+   */
+  public void seed(List<byte[]> seeds) {
+    // warm up on all of the seeds first, so the first ones are not
+    // measured while the decompiler is still being compiled
+    for(int i = 0; i < WARMUP; i++) {
+      for(byte[] chunk : seeds) {
+        measure(chunk, 1);
+      }
+    }
+    List<Entry> measured = new ArrayList<Entry>();
+    for(byte[] chunk : seeds) {
+      Entry e = measure(chunk, 3);
+      if(e != null) {
+        measured.add(e);
+      }
+    }
+    if(measured.isEmpty()) {
+      throw new IllegalStateException("None of the seed chunks decompiled");
+    }
+    double[] nanos = new double[measured.size()];
+    double[] bytes = new double[measured.size()];
+    for(int i = 0; i < measured.size(); i++) {
+      nanos[i] = (double) measured.get(i).nanos / measured.get(i).instructions;
+      bytes[i] = (double) measured.get(i).bytes / measured.get(i).instructions;
+    }
+    baseNanos = median(nanos);
+    baseBytes = median(bytes);
+    for(Entry e : measured) {
+      score(e);
+      features.addAll(e.features);
+      corpus.add(e);
+    }
+    log.printf("seeds: %d, baseline %.1f ns and %.0f bytes per instruction%n", measured.size(), baseNanos, baseBytes);
+  }
+
+  /**
+   * Runs the given number of mutations.
+   */
+  public void run(int iterations) {
+    int invalid = 0;
+    for(int i = 1; i <= iterations; i++) {
+      Entry parent = select();
+      byte[] chunk = mutate(parent.chunk, 1 + random.nextInt(4));
+      Entry e = chunk != null ? measure(chunk, 1) : null;
+      if(e == null) {
+        invalid++;
+      } else {
+        score(e);
+        boolean novel = !features.containsAll(e.features);
+        boolean costly = e.score > worst().score || e.overBudget;
+        if(costly && !e.overBudget) {
+          // confirm a new worst with more runs before keeping it
+          Entry again = measure(chunk, 3);
+          if(again != null) {
+            score(again);
+            e = again;
+            costly = e.score > worst().score;
+          }
+        }
+        if(novel || costly) {
+          features.addAll(e.features);
+          add(e);
+        }
+        if(costly) {
+          log.printf("  %6d: %s score %.2f (%d instructions, %.3f ms, %d bytes)%n", i, e.overBudget ? "over budget," : "new worst,", e.score, e.instructions, e.nanos / 1e6, e.bytes);
+        }
+      }
+      if(i % 250 == 0) {
+        log.printf("%6d iterations: corpus %d, features %d, invalid %d, worst score %.2f%n", i, corpus.size(), features.size(), invalid, worst().score);
+      }
+    }
+  }
+
+  /**
+   * Shrinks the most expensive chunks and saves them to the directory,
+   * adding a line for each to its index.txt. Returns the number saved.
+   */
+  public int save(Path directory, int keep, int attempts) throws IOException {
+    List<Entry> sorted = new ArrayList<Entry>(corpus);
+    Collections.sort(sorted, new Comparator<Entry>() {
+
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return Double.compare(e2.score, e1.score);
+      }
+
+    });
+    Files.createDirectories(directory);
+    Path index = directory.resolve("index.txt");
+    int saved = 0;
+    for(Entry e : sorted.subList(0, Math.min(keep, sorted.size()))) {
+      Entry small = minimize(e, attempts);
+      String name = "perf-" + digest(small.chunk) + ".luac";
+      Path file = directory.resolve(name);
+      if(Files.exists(file)) {
+        continue;
+      }
+      Files.write(file, small.chunk);
+      String line = String.format("%s %s instructions=%d ms=%.3f bytes=%d score=%.2f%s%n", name, versionName(), small.instructions, small.nanos / 1e6, small.bytes, small.score, small.overBudget ? " over-budget" : "");
+      Files.write(index, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      log.print("saved " + line);
+      saved++;
+    }
+    return saved;
+  }
+
+  private Entry minimize(Entry e, int attempts) {
+    Entry best = measure(e.chunk, 3);
+    if(best == null) {
+      return e;
+    }
+    score(best);
+    double target = best.score * 0.8;
+    for(int i = 0; i < attempts; i++) {
+      byte[] chunk = shrink(best.chunk);
+      if(chunk == null) {
+        continue;
+      }
+      Entry smaller = measure(chunk, 3);
+      if(smaller == null) {
+        continue;
+      }
+      score(smaller);
+      if(smaller.instructions < best.instructions && (smaller.score >= target || smaller.overBudget && best.overBudget)) {
+        best = smaller;
+      }
+    }
+    return best;
+  }
+
+  private Entry select() {
+    // the more expensive of two random entries
+    Entry e1 = corpus.get(random.nextInt(corpus.size()));
+    Entry e2 = corpus.get(random.nextInt(corpus.size()));
+    return e1.score >= e2.score ? e1 : e2;
+  }
+
+  private Entry worst() {
+    Entry worst = corpus.get(0);
+    for(Entry e : corpus) {
+      if(e.score > worst.score) {
+        worst = e;
+      }
+    }
+    return worst;
+  }
+
+  private void add(Entry e) {
+    corpus.add(e);
+    if(corpus.size() > MAX_CORPUS) {
+      // drop the cheapest entry
+      int cheapest = 0;
+      for(int i = 1; i < corpus.size(); i++) {
+        if(corpus.get(i).score < corpus.get(cheapest).score) {
+          cheapest = i;
+        }
+      }
+      corpus.remove(cheapest);
+    }
+  }
+
+  private byte[] mutate(byte[] chunk, int count) {
+    LFunction main = parse(chunk);
+    if(main == null) {
+      return null;
+    }
+    for(int i = 0; i < count; i++) {
+      if(mutator.mutate(main) == null) {
+        return null;
+      }
+    }
+    return write(main);
+  }
+
+  private byte[] shrink(byte[] chunk) {
+    LFunction main = parse(chunk);
+    if(main == null || !mutator.mutate(main, ChunkMutator.Mutation.DELETE_RANGE)) {
+      return null;
+    }
+    return write(main);
+  }
+
+  private byte[] write(LFunction main) {
+    if(ChunkMutator.verify(main) != null) {
+      return null;
+    }
+    return ChunkWriter.write(main, ChunkFormat.of(main.header));
+  }
+
+  private LFunction parse(byte[] chunk) {
+    try {
+      return engine.parse(ByteBuffer.wrap(chunk));
+    } catch(Engine.InvalidChunkException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Decompiles the chunk runs times, keeping the cheapest run. Returns null
+   * if it does not decompile cleanly (a function over budget is kept).
+   */
+  private Entry measure(byte[] chunk, int runs) {
+    LFunction main = parse(chunk);
+    if(main == null) {
+      return null;
+    }
+    Entry e = new Entry();
+    e.chunk = chunk;
+    e.features = new HashSet<String>();
+    e.instructions = countInstructions(main, e.features);
+    e.nanos = Long.MAX_VALUE;
+    e.bytes = Long.MAX_VALUE;
+    for(int i = 0; i < runs; i++) {
+      long bytes = threads.getCurrentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      Engine.Result result = engine.decompile(ByteBuffer.wrap(chunk), NullAppendable.INSTANCE);
+      long nanos = System.nanoTime() - start;
+      bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+      if(!result.isOk()) {
+        return null;
+      }
+      if(result.budgetFailures < result.failures.size()) {
+        return null;
+      } else if(result.budgetFailures > 0) {
+        e.overBudget = true;
+      }
+      e.nanos = Math.min(e.nanos, nanos);
+      e.bytes = Math.min(e.bytes, bytes);
+      if(i == 0) {
+        for(Stats.Function f : result.stats.getFunctions()) {
+          e.features.add("branches:" + bucket(f.getBranches()));
+          e.features.add("blocks:" + bucket(f.getBlocks()));
+          e.features.add("probes/instruction:" + bucket(f.getProbes() / Math.max(1, f.getInstructions())));
+          e.features.add("declarations:" + bucket(f.getDeclarations()));
+        }
+      }
+      if(e.overBudget) {
+        break;
+      }
+    }
+    return e;
+  }
+
+  private void score(Entry e) {
+    double instructions = Math.max(e.instructions, MIN_INSTRUCTIONS);
+    double time = e.nanos / instructions / baseNanos;
+    double alloc = e.bytes / instructions / baseBytes;
+    e.score = e.overBudget ? Double.POSITIVE_INFINITY : Math.max(time, alloc);
+  }
+
+  private static int countInstructions(LFunction f, Set<String> features) {
+    Code code = new Code(f);
+    Op previous = null;
+    for(int line = 1; line <= code.length; line++) {
+      Op op = code.op(line);
+      features.add(previous + "," + op);
+      previous = op;
+    }
+    int count = code.length;
+    for(LFunction child : f.functions) {
+      count += countInstructions(child, features);
+    }
+    return count;
+  }
+
+  /* The power of two at or below n, as a coarse range. */
+  private static int bucket(int n) {
+    return n <= 0 ? 0 : Integer.highestOneBit(n);
+  }
+
+  private static double median(double[] values) {
+    double[] sorted = values.clone();
+    java.util.Arrays.sort(sorted);
+    return Math.max(sorted[sorted.length / 2], 1e-9);
+  }
+
+  private static String digest(byte[] bytes) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-1").digest(bytes);
+      StringBuilder b = new StringBuilder();
+      for(int i = 0; i < 6; i++) {
+        b.append(String.format("%02x", hash[i] & 0xFF));
+      }
+      return b.toString();
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private String versionName() {
+    if(version == Version.LUA50) {
+      return "5.0";
+    } else if(version == Version.LUA51) {
+      return "5.1";
+    } else if(version == Version.LUA52) {
+      return "5.2";
+    } else {
+      return "5.3";
+    }
+  }
+
+  private static List<byte[]> seeds(Version version, List<String> files) throws IOException {
+    List<byte[]> seeds = new ArrayList<byte[]>();
+    for(ChunkGenerator.Construct construct : ChunkGenerator.Construct.values()) {
+      for(boolean strip : new boolean[] {false, true}) {
+        ChunkGenerator generator = new ChunkGenerator(version);
+        generator.setStrip(strip);
+        seeds.add(generator.generate(construct, 8));
+      }
+    }
+    if(version == Version.LUA51) {
+      File[] sources = new File(SOURCES).listFiles();
+      if(sources != null) {
+        LuaCompiler compiler = new LuaCompiler();
+        for(File source : sources) {
+          if(source.getName().endsWith(".lua")) {
+            try {
+              seeds.add(compiler.compile(source.toPath()));
+            } catch(CompileException e) {
+              // a test that is not valid Lua 5.1
+            }
+          }
+        }
+      }
+    }
+    for(String file : files) {
+      seeds.add(Files.readAllBytes(Paths.get(file)));
+    }
+    return seeds;
+  }
+
+  /**
+   * RunPerfFuzzer [--version 5.1] [--iterations n] [--seed n] [--keep n]
+   * [--function-timeout ms] [--corpus directory] [chunk ...]
+   */
+  public static void main(String[] args) throws IOException {
+    Version version = Version.LUA51;
+    int iterations = 2000;
+    long seed = 1;
+    int keep = 8;
+    String directory = DEFAULT_CORPUS;
+    Configuration config = new Configuration();
+    config.functionTimeLimit = 5000;
+    List<String> files = new ArrayList<String>();
+    for(int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if(arg.equals("--version") && i + 1 < args.length) {
+        version = ChunkGenerator.parseVersion(args[++i]);
+      } else if(arg.equals("--iterations") && i + 1 < args.length) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if(arg.equals("--seed") && i + 1 < args.length) {
+        seed = Long.parseLong(args[++i]);
+      } else if(arg.equals("--keep") && i + 1 < args.length) {
+        keep = Integer.parseInt(args[++i]);
+      } else if(arg.equals("--function-timeout") && i + 1 < args.length) {
+        config.functionTimeLimit = Long.parseLong(args[++i]);
+      } else if(arg.equals("--corpus") && i + 1 < args.length) {
+        directory = args[++i];
+      } else if(arg.startsWith("-")) {
+        System.err.println("unrecognized option: " + arg);
+        System.exit(1);
+      } else {
+        files.add(arg);
+      }
+    }
+    RunPerfFuzzer fuzzer = new RunPerfFuzzer(config, version, seed, System.out);
+    fuzzer.seed(seeds(version, files));
+    fuzzer.run(iterations);
+    fuzzer.save(Paths.get(directory), keep, 200);
+  }
+
+}
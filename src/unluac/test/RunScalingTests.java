@@ -0,0 +1,149 @@
+package unluac.test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import unluac.Configuration;
+import unluac.Engine;
+import unluac.Version;
+import unluac.chunk.ChunkGenerator;
+import unluac.chunk.ChunkGenerator.Construct;
+
+/**
+ * Checks that decompilation time and allocation grow close to linearly
+ * with the size of the input.
+ * <p>
+ * Each construct of ChunkGenerator is decompiled at sizes N, 2N, 4N and
+ * 8N. The growth exponent is the slope of the least-squares line through
+ * log(size) and log(cost), so 1 is linear and 2 is quadratic. A construct
+ * fails when the exponent of its time or of its allocated bytes is above
+ * the bound set for it in test/scaling.properties (or the file given as
+ * the first argument).
+ */
+public class RunScalingTests {
+
+  private static final String DEFAULT_PROPERTIES = "./test/scaling.properties";
+
+  private static final int STEPS = 4;
+
+  private static class Cost {
+    long nanos = Long.MAX_VALUE;
+    long bytes = Long.MAX_VALUE;
+  }
+
+  public static void main(String[] args) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(args.length >= 1 ? args[0] : DEFAULT_PROPERTIES);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if(!threads.isThreadAllocatedMemorySupported()) {
+      System.out.println("This JVM does not count allocated bytes per thread.");
+      System.exit(1);
+    }
+    threads.setThreadAllocatedMemoryEnabled(true);
+    Version version = ChunkGenerator.parseVersion(properties.getProperty("version", "5.1").trim());
+    int warmup = Integer.parseInt(properties.getProperty("warmup", "3"));
+    int runs = Integer.parseInt(properties.getProperty("runs", "5"));
+    Engine engine = new Engine(new Configuration());
+    ChunkGenerator generator = new ChunkGenerator(version);
+    int failed = 0;
+    for(Construct construct : Construct.values()) {
+      String key = construct.name().toLowerCase();
+      int base = Integer.parseInt(property(properties, key + ".size"));
+      double timeBound = Double.parseDouble(property(properties, key + ".time"));
+      double allocBound = Double.parseDouble(property(properties, key + ".alloc"));
+      int[] sizes = new int[STEPS];
+      byte[][] chunks = new byte[STEPS][];
+      for(int step = 0; step < STEPS; step++) {
+        sizes[step] = base << step;
+        chunks[step] = generator.generate(construct, sizes[step]);
+      }
+      // warm up on every size first, so the small sizes are not measured
+      // while the code they run is still being compiled
+      for(int i = 0; i < warmup; i++) {
+        for(int step = 0; step < STEPS; step++) {
+          decompile(engine, chunks[step]);
+        }
+      }
+      Cost[] costs = new Cost[STEPS];
+      for(int step = 0; step < STEPS; step++) {
+        costs[step] = new Cost();
+        for(int i = 0; i < runs; i++) {
+          // keep a collection of the garbage of earlier runs out of this one
+          System.gc();
+          long bytes = threads.getCurrentThreadAllocatedBytes();
+          long start = System.nanoTime();
+          decompile(engine, chunks[step]);
+          long nanos = System.nanoTime() - start;
+          bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+          costs[step].nanos = Math.min(costs[step].nanos, nanos);
+          costs[step].bytes = Math.min(costs[step].bytes, bytes);
+        }
+      }
+      double[] nanos = new double[STEPS];
+      double[] bytes = new double[STEPS];
+      for(int step = 0; step < STEPS; step++) {
+        nanos[step] = costs[step].nanos;
+        bytes[step] = costs[step].bytes;
+      }
+      double timeExponent = exponent(sizes, nanos);
+      double allocExponent = exponent(sizes, bytes);
+      boolean ok = timeExponent <= timeBound && allocExponent <= allocBound;
+      if(!ok) {
+        failed++;
+      }
+      System.out.printf("%-10s %s  time n^%.2f (max %.2f)  alloc n^%.2f (max %.2f)%n", key, ok ? "ok    " : "FAILED", timeExponent, timeBound, allocExponent, allocBound);
+      for(int step = 0; step < STEPS; step++) {
+        System.out.printf("    %8d  %10.3f ms  %12d bytes%n", sizes[step], costs[step].nanos / 1e6, costs[step].bytes);
+      }
+    }
+    if(failed == 0) {
+      System.out.println("All constructs scale within their bounds.");
+      System.exit(0);
+    } else {
+      System.out.println(failed + " of " + Construct.values().length + " constructs grow faster than their bounds.");
+      System.exit(1);
+    }
+  }
+
+  private static void decompile(Engine engine, byte[] chunk) {
+    Engine.Result result = engine.decompile(ByteBuffer.wrap(chunk), NullAppendable.INSTANCE);
+    if(!result.isOk() || !result.failures.isEmpty()) {
+      throw new IllegalStateException("The generated chunk did not decompile: " + result + " " + result.failures);
+    }
+  }
+
+  /**
+   * The slope of the least-squares line through (log size, log cost).
+   */
+  static double exponent(int[] sizes, double[] costs) {
+    int n = sizes.length;
+    double sx = 0, sy = 0, sxx = 0, sxy = 0;
+    for(int i = 0; i < n; i++) {
+      double x = Math.log(sizes[i]);
+      double y = Math.log(Math.max(costs[i], 1));
+      sx += x;
+      sy += y;
+      sxx += x * x;
+      sxy += x * y;
+    }
+    return (n * sxy - sx * sy) / (n * sxx - sx * sx);
+  }
+
+  private static String property(Properties properties, String key) {
+    String value = properties.getProperty(key);
+    if(value == null) {
+      throw new IllegalStateException("Missing scaling property: " + key);
+    }
+    return value.trim();
+  }
+
+}
@@ -1,24 +1,54 @@
 package unluac.test;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Runs the round-trip tests: RunTests [--no-cache] [threads]. Unless
+ * --no-cache is given, compiled chunks and passed tests are kept in
+ * test/cache, so that only the tests affected by a change run again.
+ */
 public class RunTests {
 
+  private static final String CACHE = "./test/cache/";
+
   public static void main(String[] args) throws IOException {
-    boolean result = true;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean cached = true;
+    for(String arg : args) {
+      if(arg.equals("--no-cache")) {
+        cached = false;
+      } else {
+        threads = Integer.parseInt(arg);
+      }
+    }
+    TestCache cache = cached ? new TestCache(Paths.get(CACHE)) : null;
+    TestFiles.suite.setCache(cache);
     TestReport report = new TestReport();
+    List<LuaSpec> specs = new ArrayList<LuaSpec>();
     for(int version = 0x50; version <= 0x53; version++) {
-      LuaSpec spec = new LuaSpec(version);
-      System.out.print("lua" + Integer.toHexString(version));
-      result = result & TestFiles.suite.run(spec, report);
-      System.out.println();
+      specs.add(new LuaSpec(version));
+    }
+    boolean result;
+    try {
+      result = TestFiles.suite.run(specs, report, threads);
+    } finally {
+      if(cache != null) {
+        cache.close();
+      }
     }
     report.report(System.out);
+    if(cache != null) {
+      System.out.println("Reused " + cache.getHits() + " passed tests from " + CACHE);
+    }
+    report.reportTimings(System.out, 10);
     if(result) {
       System.exit(0);
     } else {
       System.exit(1);
     }
   }
-  
+
 }
@@ -0,0 +1,264 @@
+package unluac.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import unluac.Engine;
+
+/**
+ * Remembers the work of earlier test runs, so that only the tests affected
+ * by a change run again:
+ * <ul>
+ * <li>compiled chunks, keyed by the hash of the source, the spec and the
+ * luac binary (or the class files, for the in-process compiler), in the
+ * luac directory;</li>
+ * <li>passed tests, keyed by the hash of the compiled chunk, the class
+ * files of unluac and the luac binary (which compiles the decompiled
+ * source), with the decompile time, in the verdicts file.</li>
+ * </ul>
+ * Failed and skipped tests are not remembered. A luac binary that cannot
+ * be found is not cached at all.
+ */
+public class TestCache {
+
+  private static final String VERDICTS = "verdicts.txt";
+
+  private final Path chunks;
+  private final String classes;
+  private final Map<String, Long> verdicts = new ConcurrentHashMap<String, Long>();
+  private final Map<String, String> binaries = new ConcurrentHashMap<String, String>();
+  private final Writer out;
+  private int hits = 0;
+
+  public TestCache(Path directory) throws IOException {
+    this.chunks = directory.resolve("luac");
+    Files.createDirectories(chunks);
+    classes = hashClasses();
+    Path file = directory.resolve(VERDICTS);
+    if(Files.exists(file)) {
+      BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+      try {
+        String line;
+        while((line = in.readLine()) != null) {
+          String[] fields = line.split(" ");
+          if(fields.length == 2) {
+            try {
+              verdicts.put(fields[0], Long.parseLong(fields[1]));
+            } catch(NumberFormatException e) {
+              // a partial line
+            }
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+    out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  /**
+   * The key of the compiled chunk of a source file, or null if its luac
+   * binary cannot be identified.
+   */
+  String chunkKey(LuaSpec spec, byte[] source) {
+    String luac = luac(spec);
+    if(luac == null) {
+      return null;
+    }
+    return hash(hash(source), spec.getLuaCName(), String.valueOf(spec.isStrip()), luac);
+  }
+
+  /**
+   * The compiled chunk for the key, or null.
+   */
+  byte[] chunk(String key) throws IOException {
+    Path file = chunks.resolve(key);
+    return Files.exists(file) ? Files.readAllBytes(file) : null;
+  }
+
+  void putChunk(String key, byte[] chunk) throws IOException {
+    Path temp = Files.createTempFile(chunks, key, ".tmp");
+    try {
+      Files.write(temp, chunk);
+      Files.move(temp, chunks.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * The key of the verdict for a compiled chunk, or null if the spec's luac
+   * binary cannot be identified.
+   */
+  String verdictKey(LuaSpec spec, byte[] chunk) {
+    String luac = luac(spec);
+    if(luac == null) {
+      return null;
+    }
+    return hash(hash(chunk), classes, luac);
+  }
+
+  /**
+   * The decompile time of the test if it passed before, or -1.
+   */
+  long passed(String key) {
+    Long nanos = verdicts.get(key);
+    if(nanos == null) {
+      return -1;
+    }
+    synchronized(this) {
+      hits++;
+    }
+    return nanos;
+  }
+
+  synchronized void putPassed(String key, long nanos) throws IOException {
+    if(verdicts.put(key, nanos) == null) {
+      out.write(key + " " + nanos + "\n");
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  /*
+   * The hash of the spec's luac binary, or the classes hash for the
+   * in-process compiler, so that its chunks are compiled again when it
+   * changes.
+   */
+  private String luac(LuaSpec spec) {
+    if(LuaC.isInternal(spec)) {
+      return classes;
+    }
+    String name = spec.getLuaCName();
+    String cached = binaries.get(name);
+    if(cached != null) {
+      return cached.isEmpty() ? null : cached;
+    }
+    String hash = "";
+    Path binary = find(System.getProperty(name, name));
+    if(binary != null) {
+      try {
+        hash = hash(Files.readAllBytes(binary));
+      } catch(IOException e) {
+        hash = "";
+      }
+    }
+    binaries.put(name, hash);
+    return hash.isEmpty() ? null : hash;
+  }
+
+  private static Path find(String luac) {
+    if(System.getProperty("os.name").contains("Windows")) {
+      luac = luac + ".exe";
+    }
+    if(luac.indexOf('/') >= 0 || luac.indexOf(File.separatorChar) >= 0) {
+      Path path = Paths.get(luac);
+      return Files.isRegularFile(path) ? path : null;
+    }
+    String search = System.getenv("PATH");
+    if(search == null) {
+      return null;
+    }
+    for(String entry : search.split(File.pathSeparator)) {
+      Path path = Paths.get(entry.isEmpty() ? "." : entry, luac);
+      if(Files.isRegularFile(path)) {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * The hash of the class files (or the jar) that unluac was loaded from.
+   */
+  private static String hashClasses() throws IOException {
+    Path location;
+    try {
+      location = Paths.get(Engine.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    } catch(URISyntaxException e) {
+      throw new IOException(e);
+    } catch(RuntimeException e) {
+      throw new IOException("cannot locate the unluac classes", e);
+    }
+    MessageDigest digest = sha256();
+    if(Files.isDirectory(location)) {
+      List<Path> files = new ArrayList<Path>();
+      Stream<Path> walk = Files.walk(location);
+      try {
+        Iterator<Path> it = walk.iterator();
+        while(it.hasNext()) {
+          Path file = it.next();
+          if(file.toString().endsWith(".class")) {
+            files.add(file);
+          }
+        }
+      } finally {
+        walk.close();
+      }
+      Collections.sort(files);
+      for(Path file : files) {
+        digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(Files.readAllBytes(file));
+      }
+    } else {
+      digest.update(Files.readAllBytes(location));
+    }
+    return hex(digest.digest());
+  }
+
+  private static String hash(byte[] bytes) {
+    return hex(sha256().digest(bytes));
+  }
+
+  private static String hash(String... parts) {
+    MessageDigest digest = sha256();
+    for(String part : parts) {
+      digest.update(part.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    return hex(digest.digest());
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] hash) {
+    char[] hex = new char[hash.length * 2];
+    for(int i = 0; i < hash.length; i++) {
+      hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+      hex[2 * i + 1] = Character.forDigit(hash[i] & 0xF, 16);
+    }
+    return new String(hex);
+  }
+
+}
@@ -2,6 +2,8 @@ package unluac.test;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 public class TestReport {
@@ -13,6 +15,18 @@ public class TestReport {
   private List<String> failedTests = new ArrayList<String>();
   private List<String> skippedTests = new ArrayList<String>();
   
+  private static class Timing {
+    final String test;
+    final long nanos;
+    
+    Timing(String test, long nanos) {
+      this.test = test;
+      this.nanos = nanos;
+    }
+  }
+  
+  private List<Timing> timings = new ArrayList<Timing>();
+  
   public void report(PrintStream out) {
     if(failed == 0 && skipped == 0) {
       out.println("All tests passed!");
@@ -26,6 +40,35 @@ public class TestReport {
       out.println("Failed " + failed + " of " + (failed + passed) + " tests, skipped " + skipped + " tests.");
     }
   }
+  
+  /**
+   * Prints the tests that took longest to decompile.
+   */
+  public void reportTimings(PrintStream out, int limit) {
+    List<Timing> sorted = new ArrayList<Timing>(timings);
+    Collections.sort(sorted, new Comparator<Timing>() {
+      
+      @Override
+      public int compare(Timing t1, Timing t2) {
+        return Long.compare(t2.nanos, t1.nanos);
+      }
+      
+    });
+    out.println("Slowest decompiles:");
+    for(Timing timing : sorted.subList(0, Math.min(limit, sorted.size()))) {
+      out.printf("%10.3f ms  %s%n", timing.nanos / 1e6, timing.test);
+    }
+  }
+  
+  /**
+   * Records a result with the time its decompilation took.
+   */
+  public void result(String test, TestResult result, long nanos) {
+    result(test, result);
+    if(result != TestResult.SKIPPED) {
+      timings.add(new Timing(test, nanos));
+    }
+  }
 
   public void result(String test, TestResult result) {
     switch(result) {
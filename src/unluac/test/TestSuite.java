@@ -1,21 +1,66 @@
 package unluac.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
-import unluac.Main;
+import unluac.Configuration;
+import unluac.Engine;
 
 public class TestSuite {
   
   private static String working_dir = "./test/working/";
   private static String compiled = "luac.out";
-  private static String decompiled = "unluac.out";
   private static String recompiled = "test.out";
   
+  private static final Engine engine = new Engine(new Configuration());
+  
   private String name;
   private String path;
   private String[] files;
   private String ext = ".lua";
+  private TestCache cache;
+  
+  private static class Outcome {
+    
+    final TestResult result;
+    final long nanos;
+    
+    Outcome(TestResult result, long nanos) {
+      this.result = result;
+      this.nanos = nanos;
+    }
+  
+  }
+  
+  private static class Case {
+    
+    final LuaSpec spec;
+    final String name;
+    final Future<Outcome> outcome;
+    
+    Case(LuaSpec spec, String name, Future<Outcome> outcome) {
+      this.spec = spec;
+      this.name = name;
+      this.outcome = outcome;
+    }
+  
+  }
   
   public TestSuite(String name, String path, String[] files) {
     this.name = name;
@@ -23,6 +68,13 @@ public class TestSuite {
     this.files = files;
   }
   
+  /**
+   * Reuses the compiled chunks and the passes of earlier runs.
+   */
+  public void setCache(TestCache cache) {
+    this.cache = cache;
+  }
+  
   public String testName(LuaSpec spec, String file) {
     if(name == null) {
       return spec.id() + ":" + file;
@@ -31,21 +83,79 @@ public class TestSuite {
     }
   }
   
-  private TestResult test(LuaSpec spec, String file) throws IOException {
+  /*
+   * Compiles the file, decompiles it in memory and compiles the result
+   * again, using the given directory for the compiled files. The time is
+   * that of the decompilation alone.
+   */
+  private Outcome test(LuaSpec spec, String file, String workspace) {
+    String verdict;
     try {
-      LuaC.compile(spec, file, working_dir + compiled);
+      verdict = compile(spec, file, workspace + compiled);
     } catch (IOException e) {
-      return TestResult.SKIPPED;
+      return new Outcome(TestResult.SKIPPED, 0);
     }
+    if(verdict != null) {
+      long passed = cache.passed(verdict);
+      if(passed >= 0) {
+        return new Outcome(TestResult.OK, passed);
+      }
+    }
+    long nanos = 0;
     try {
-      Main.decompile(working_dir + compiled, working_dir + decompiled);
-      LuaC.compile(spec, working_dir + decompiled, working_dir + recompiled);
-      return Compare.bytecode_equal(working_dir + compiled, working_dir + recompiled) ? TestResult.OK : TestResult.FAILED;
+      ByteArrayOutputStream decompiled = new ByteArrayOutputStream();
+      long start = System.nanoTime();
+      Engine.Result result = engine.decompile(Paths.get(workspace + compiled), Channels.newChannel(decompiled));
+      nanos = System.nanoTime() - start;
+      if(!result.isOk()) {
+        System.err.println(file + ": " + result.message);
+        return new Outcome(TestResult.FAILED, nanos);
+      }
+      LuaC.compile(spec, decompiled.toByteArray(), workspace + recompiled);
+      String difference = Compare.bytecode_difference(workspace + compiled, workspace + recompiled);
+      if(difference != null) {
+        System.err.println(file + ": " + difference);
+      } else if(verdict != null) {
+        cache.putPassed(verdict, nanos);
+      }
+      return new Outcome(difference == null ? TestResult.OK : TestResult.FAILED, nanos);
     } catch (IOException e) {
-      return TestResult.FAILED;
+      return new Outcome(TestResult.FAILED, nanos);
     } catch (RuntimeException e) {
       e.printStackTrace();
-      return TestResult.FAILED;
+      return new Outcome(TestResult.FAILED, nanos);
+    }
+  }
+  
+  /*
+   * Compiles the file, through the cache if there is one, and returns the
+   * key of the test's verdict in the cache (or null).
+   */
+  private String compile(LuaSpec spec, String file, String out) throws IOException {
+    String key = cache != null ? cache.chunkKey(spec, Files.readAllBytes(Paths.get(file))) : null;
+    if(key == null) {
+      LuaC.compile(spec, file, out);
+      return null;
+    }
+    byte[] chunk = cache.chunk(key);
+    if(chunk == null) {
+      LuaC.compile(spec, file, out);
+      chunk = Files.readAllBytes(Paths.get(out));
+      cache.putChunk(key, chunk);
+    } else {
+      Files.write(Paths.get(out), chunk);
+    }
+    return cache.verdictKey(spec, chunk);
+  }
+  
+  private static char progress(TestResult result) {
+    switch(result) {
+      case OK:
+        return '.';
+      case SKIPPED:
+        return ',';
+      default:
+        return '!';
     }
   }
   
@@ -57,24 +167,110 @@ public class TestSuite {
     }
     for(String name : files) {
       if(spec.compatible(name)) {
-        TestResult result = test(spec, path + name + ext);
-        report.result(testName(spec, name), result);
-        switch(result) {
-          case OK:
-            System.out.print(".");
-            break;
-          case SKIPPED:
-            System.out.print(",");
-            break;
-          default:
-            System.out.print("!");
-            failed++;
+        Outcome outcome = test(spec, path + name + ext, working_dir);
+        report.result(testName(spec, name), outcome.result, outcome.nanos);
+        System.out.print(progress(outcome.result));
+        if(outcome.result == TestResult.FAILED) {
+          failed++;
         }
       }
     }
     return failed == 0;
   }
   
+  /**
+   * Runs the tests for all of the specs on a pool of threads. Each thread
+   * compiles into its own directory under the working directory. Progress
+   * and results are reported in the order of the specs and files, whatever
+   * order the tests finish in.
+   */
+  public boolean run(List<LuaSpec> specs, TestReport report, int threads) throws IOException {
+    final Path working = Paths.get(working_dir);
+    Files.createDirectories(working);
+    final List<Path> workspaces = Collections.synchronizedList(new ArrayList<Path>());
+    final ThreadLocal<String> workspace = new ThreadLocal<String>() {
+      
+      @Override
+      protected String initialValue() {
+        try {
+          Path directory = Files.createTempDirectory(working, "worker");
+          workspaces.add(directory);
+          return directory.toString() + File.separator;
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    
+    };
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Case> cases = new ArrayList<Case>();
+      for(final LuaSpec spec : specs) {
+        for(String name : files) {
+          if(spec.compatible(name)) {
+            final String file = path + name + ext;
+            cases.add(new Case(spec, name, pool.submit(new Callable<Outcome>() {
+              
+              @Override
+              public Outcome call() {
+                return test(spec, file, workspace.get());
+              }
+            
+            })));
+          }
+        }
+      }
+      int failed = 0;
+      LuaSpec current = null;
+      for(Case c : cases) {
+        if(c.spec != current) {
+          if(current != null) {
+            System.out.println();
+          }
+          System.out.print(c.spec.id());
+          current = c.spec;
+        }
+        Outcome outcome = c.outcome.get();
+        report.result(testName(c.spec, c.name), outcome.result, outcome.nanos);
+        System.out.print(progress(outcome.result));
+        if(outcome.result == TestResult.FAILED) {
+          failed++;
+        }
+      }
+      if(current != null) {
+        System.out.println();
+      }
+      return failed == 0;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted");
+    } catch(ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+      for(Path directory : workspaces) {
+        delete(directory);
+      }
+    }
+  }
+  
+  private static void delete(Path directory) throws IOException {
+    Stream<Path> walk = Files.walk(directory);
+    try {
+      List<Path> paths = new ArrayList<Path>();
+      Iterator<Path> it = walk.iterator();
+      while(it.hasNext()) {
+        paths.add(it.next());
+      }
+      Collections.reverse(paths);
+      for(Path path : paths) {
+        Files.deleteIfExists(path);
+      }
+    } finally {
+      walk.close();
+    }
+  }
+  
   public boolean run(LuaSpec spec, String file) throws IOException {
     int passed = 0;
     int skipped = 0;
@@ -85,9 +281,10 @@ public class TestSuite {
     }
     {
       String name = file;
-      switch (test(spec, path + name + ext)) {
+      Outcome outcome = test(spec, path + name + ext, working_dir);
+      switch (outcome.result) {
         case OK:
-          System.out.println("Passed: " + name);
+          System.out.println("Passed: " + name + String.format(" (%.3f ms)", outcome.nanos / 1e6));
           passed++;
           break;
         case SKIPPED:
@@ -0,0 +1,471 @@
+package unluac.util;
+
+import java.math.BigInteger;
+
+/**
+ * Formats numbers into a character buffer without intermediate strings.
+ *
+ * Floating point values are printed with the shortest digit sequence that
+ * reads back to the same bits (the Ryu algorithm by Ulf Adams), closest to
+ * the exact value when several are equally short. The layout follows
+ * Double.toString: plain decimal notation for magnitudes in [1e-3, 1e7) and
+ * scientific notation otherwise, always with at least one fractional digit.
+ *
+ * Infinities print as 1e999 and -1e999 and NaN as (0/0), which all Lua
+ * versions read back as the same value.
+ */
+public class NumberFormatter {
+
+  /**
+   * An upper bound on the number of characters written by any method.
+   */
+  public static final int MAX_LENGTH = 32;
+
+  private static final int DOUBLE_MANTISSA_BITS = 52;
+  private static final long DOUBLE_MANTISSA_MASK = (1L << DOUBLE_MANTISSA_BITS) - 1;
+  private static final int DOUBLE_EXPONENT_MASK = (1 << 11) - 1;
+  private static final int DOUBLE_EXPONENT_BIAS = 1023;
+
+  private static final int FLOAT_MANTISSA_BITS = 23;
+  private static final int FLOAT_MANTISSA_MASK = (1 << FLOAT_MANTISSA_BITS) - 1;
+  private static final int FLOAT_EXPONENT_MASK = (1 << 8) - 1;
+  private static final int FLOAT_EXPONENT_BIAS = 127;
+
+  private static final int POW5_BITCOUNT = 121;
+  private static final int POW5_INV_BITCOUNT = 122;
+  private static final int[][] POW5_SPLIT = new int[326][4];
+  private static final int[][] POW5_INV_SPLIT = new int[291][4];
+
+  private static final int FLOAT_POW5_BITCOUNT = 61;
+  private static final int FLOAT_POW5_INV_BITCOUNT = 59;
+  private static final long[] FLOAT_POW5_SPLIT = new long[47];
+  private static final long[] FLOAT_POW5_INV_SPLIT = new long[31];
+
+  private static final long[] POW10 = new long[19];
+
+  static {
+    POW10[0] = 1;
+    for(int i = 1; i < POW10.length; i++) {
+      POW10[i] = POW10[i - 1] * 10;
+    }
+    BigInteger mask = BigInteger.ONE.shiftLeft(31).subtract(BigInteger.ONE);
+    for(int i = 0; i < POW5_SPLIT.length; i++) {
+      BigInteger pow = BigInteger.valueOf(5).pow(i);
+      int bits = pow.bitLength();
+      for(int j = 0; j < 4; j++) {
+        POW5_SPLIT[i][j] = pow.shiftRight(bits - POW5_BITCOUNT + (3 - j) * 31).and(mask).intValue();
+      }
+      if(i < POW5_INV_SPLIT.length) {
+        BigInteger inv = BigInteger.ONE.shiftLeft(bits - 1 + POW5_INV_BITCOUNT).divide(pow).add(BigInteger.ONE);
+        for(int j = 0; j < 4; j++) {
+          BigInteger part = inv.shiftRight((3 - j) * 31);
+          POW5_INV_SPLIT[i][j] = (j == 0 ? part : part.and(mask)).intValue();
+        }
+      }
+      if(i < FLOAT_POW5_SPLIT.length) {
+        FLOAT_POW5_SPLIT[i] = pow.shiftRight(bits - FLOAT_POW5_BITCOUNT).longValue();
+      }
+      if(i < FLOAT_POW5_INV_SPLIT.length) {
+        FLOAT_POW5_INV_SPLIT[i] = BigInteger.ONE.shiftLeft(bits - 1 + FLOAT_POW5_INV_BITCOUNT).divide(pow).add(BigInteger.ONE).longValue();
+      }
+    }
+  }
+
+  /**
+   * Writes a double at the given offset and returns the offset after it. If
+   * integral is set, values without a fractional part are printed as
+   * integers (Lua 5.0 - 5.2 numbers), otherwise they keep a ".0" so that
+   * they stay floats (Lua 5.3).
+   */
+  public static int formatDouble(double value, boolean integral, char[] buffer, int offset) {
+    long bits = Double.doubleToRawLongBits(value);
+    int ieeeExponent = (int) ((bits >>> DOUBLE_MANTISSA_BITS) & DOUBLE_EXPONENT_MASK);
+    long ieeeMantissa = bits & DOUBLE_MANTISSA_MASK;
+    if(ieeeExponent == DOUBLE_EXPONENT_MASK) {
+      return special(ieeeMantissa != 0, bits < 0, buffer, offset);
+    }
+    if(integral && value == Math.rint(value) && Math.abs(value) < 0x1p63) {
+      if(bits < 0 && value == 0.0) {
+        buffer[offset++] = '-';
+        buffer[offset++] = '0';
+        return offset;
+      }
+      return formatLong((long) value, buffer, offset);
+    }
+    if(bits < 0) {
+      buffer[offset++] = '-';
+    }
+    if(ieeeExponent == 0 && ieeeMantissa == 0) {
+      return layout(0, 1, 0, buffer, offset);
+    }
+
+    int e2;
+    long m2;
+    if(ieeeExponent == 0) {
+      e2 = 1 - DOUBLE_EXPONENT_BIAS - DOUBLE_MANTISSA_BITS - 2;
+      m2 = ieeeMantissa;
+    } else {
+      e2 = ieeeExponent - DOUBLE_EXPONENT_BIAS - DOUBLE_MANTISSA_BITS - 2;
+      m2 = ieeeMantissa | (1L << DOUBLE_MANTISSA_BITS);
+    }
+    boolean even = (m2 & 1) == 0;
+    long mv = 4 * m2;
+    long mp = 4 * m2 + 2;
+    int mmShift = (ieeeMantissa != 0 || ieeeExponent <= 1) ? 1 : 0;
+    long mm = 4 * m2 - 1 - mmShift;
+
+    // Convert the interval [mm, mp] * 2^e2 to a decimal power base.
+    long dv, dp, dm;
+    int e10;
+    boolean dmIsTrailingZeros = false;
+    boolean dvIsTrailingZeros = false;
+    if(e2 >= 0) {
+      int q = Math.max(0, ((e2 * 78913) >>> 18) - 1);
+      int k = POW5_INV_BITCOUNT + pow5bits(q) - 1;
+      int i = -e2 + q + k;
+      dv = mulPow5InvDivPow2(mv, q, i);
+      dp = mulPow5InvDivPow2(mp, q, i);
+      dm = mulPow5InvDivPow2(mm, q, i);
+      e10 = q;
+      if(q <= 21) {
+        if(mv % 5 == 0) {
+          dvIsTrailingZeros = multipleOfPowerOf5(mv, q);
+        } else if(even) {
+          dmIsTrailingZeros = multipleOfPowerOf5(mm, q);
+        } else if(multipleOfPowerOf5(mp, q)) {
+          dp--;
+        }
+      }
+    } else {
+      int q = Math.max(0, ((-e2 * 732923) >>> 20) - 1);
+      int i = -e2 - q;
+      int k = pow5bits(i) - POW5_BITCOUNT;
+      int j = q - k;
+      dv = mulPow5DivPow2(mv, i, j);
+      dp = mulPow5DivPow2(mp, i, j);
+      dm = mulPow5DivPow2(mm, i, j);
+      e10 = q + e2;
+      if(q <= 1) {
+        dvIsTrailingZeros = true;
+        if(even) {
+          dmIsTrailingZeros = mmShift == 1;
+        } else {
+          dp--;
+        }
+      } else if(q < 63) {
+        dvIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+      }
+    }
+
+    // Remove digits while the interval still contains a shorter number.
+    int removed = 0;
+    int lastRemovedDigit = 0;
+    long output;
+    if(dmIsTrailingZeros || dvIsTrailingZeros) {
+      while(dp / 10 > dm / 10) {
+        dmIsTrailingZeros &= dm % 10 == 0;
+        dvIsTrailingZeros &= lastRemovedDigit == 0;
+        lastRemovedDigit = (int) (dv % 10);
+        dp /= 10;
+        dv /= 10;
+        dm /= 10;
+        removed++;
+      }
+      if(dmIsTrailingZeros && even) {
+        while(dm % 10 == 0) {
+          dvIsTrailingZeros &= lastRemovedDigit == 0;
+          lastRemovedDigit = (int) (dv % 10);
+          dp /= 10;
+          dv /= 10;
+          dm /= 10;
+          removed++;
+        }
+      }
+      if(dvIsTrailingZeros && lastRemovedDigit == 5 && dv % 2 == 0) {
+        lastRemovedDigit = 4;
+      }
+      output = dv + ((dv == dm && !(dmIsTrailingZeros && even)) || lastRemovedDigit >= 5 ? 1 : 0);
+    } else {
+      while(dp / 10 > dm / 10) {
+        lastRemovedDigit = (int) (dv % 10);
+        dp /= 10;
+        dv /= 10;
+        dm /= 10;
+        removed++;
+      }
+      output = dv + (dv == dm || lastRemovedDigit >= 5 ? 1 : 0);
+    }
+    return layout(output, decimalLength(output), e10 + removed, buffer, offset);
+  }
+
+  /**
+   * Writes a float at the given offset and returns the offset after it (see
+   * formatDouble).
+   */
+  public static int formatFloat(float value, boolean integral, char[] buffer, int offset) {
+    int bits = Float.floatToRawIntBits(value);
+    int ieeeExponent = (bits >>> FLOAT_MANTISSA_BITS) & FLOAT_EXPONENT_MASK;
+    int ieeeMantissa = bits & FLOAT_MANTISSA_MASK;
+    if(ieeeExponent == FLOAT_EXPONENT_MASK) {
+      return special(ieeeMantissa != 0, bits < 0, buffer, offset);
+    }
+    if(integral && value == Math.rint(value) && Math.abs(value) < 0x1p63f) {
+      if(bits < 0 && value == 0.0f) {
+        buffer[offset++] = '-';
+        buffer[offset++] = '0';
+        return offset;
+      }
+      return formatLong((long) value, buffer, offset);
+    }
+    if(bits < 0) {
+      buffer[offset++] = '-';
+    }
+    if(ieeeExponent == 0 && ieeeMantissa == 0) {
+      return layout(0, 1, 0, buffer, offset);
+    }
+
+    int e2;
+    long m2;
+    if(ieeeExponent == 0) {
+      e2 = 1 - FLOAT_EXPONENT_BIAS - FLOAT_MANTISSA_BITS - 2;
+      m2 = ieeeMantissa;
+    } else {
+      e2 = ieeeExponent - FLOAT_EXPONENT_BIAS - FLOAT_MANTISSA_BITS - 2;
+      m2 = ieeeMantissa | (1 << FLOAT_MANTISSA_BITS);
+    }
+    boolean even = (m2 & 1) == 0;
+    long mv = 4 * m2;
+    long mp = 4 * m2 + 2;
+    int mmShift = (ieeeMantissa != 0 || ieeeExponent <= 1) ? 1 : 0;
+    long mm = 4 * m2 - 1 - mmShift;
+
+    long dv, dp, dm;
+    int e10;
+    boolean dmIsTrailingZeros = false;
+    boolean dvIsTrailingZeros = false;
+    int lastRemovedDigit = 0;
+    if(e2 >= 0) {
+      int q = (e2 * 78913) >>> 18;
+      int k = FLOAT_POW5_INV_BITCOUNT + pow5bits(q) - 1;
+      int i = -e2 + q + k;
+      dv = mulShift32(mv, FLOAT_POW5_INV_SPLIT[q], i);
+      dp = mulShift32(mp, FLOAT_POW5_INV_SPLIT[q], i);
+      dm = mulShift32(mm, FLOAT_POW5_INV_SPLIT[q], i);
+      e10 = q;
+      if(q != 0 && (dp - 1) / 10 <= dm / 10) {
+        // The loop below may not remove a digit, so compute the last one here.
+        int l = FLOAT_POW5_INV_BITCOUNT + pow5bits(q - 1) - 1;
+        lastRemovedDigit = (int) (mulShift32(mv, FLOAT_POW5_INV_SPLIT[q - 1], -e2 + q - 1 + l) % 10);
+      }
+      if(q <= 9) {
+        if(mv % 5 == 0) {
+          dvIsTrailingZeros = multipleOfPowerOf5(mv, q);
+        } else if(even) {
+          dmIsTrailingZeros = multipleOfPowerOf5(mm, q);
+        } else if(multipleOfPowerOf5(mp, q)) {
+          dp--;
+        }
+      }
+    } else {
+      int q = (-e2 * 732923) >>> 20;
+      int i = -e2 - q;
+      int k = pow5bits(i) - FLOAT_POW5_BITCOUNT;
+      int j = q - k;
+      dv = mulShift32(mv, FLOAT_POW5_SPLIT[i], j);
+      dp = mulShift32(mp, FLOAT_POW5_SPLIT[i], j);
+      dm = mulShift32(mm, FLOAT_POW5_SPLIT[i], j);
+      e10 = q + e2;
+      if(q != 0 && (dp - 1) / 10 <= dm / 10) {
+        j = q - 1 - (pow5bits(i + 1) - FLOAT_POW5_BITCOUNT);
+        lastRemovedDigit = (int) (mulShift32(mv, FLOAT_POW5_SPLIT[i + 1], j) % 10);
+      }
+      if(q <= 1) {
+        dvIsTrailingZeros = true;
+        if(even) {
+          dmIsTrailingZeros = mmShift == 1;
+        } else {
+          dp--;
+        }
+      } else if(q < 31) {
+        dvIsTrailingZeros = (mv & ((1L << (q - 1)) - 1)) == 0;
+      }
+    }
+
+    int removed = 0;
+    long output;
+    if(dmIsTrailingZeros || dvIsTrailingZeros) {
+      while(dp / 10 > dm / 10) {
+        dmIsTrailingZeros &= dm % 10 == 0;
+        dvIsTrailingZeros &= lastRemovedDigit == 0;
+        lastRemovedDigit = (int) (dv % 10);
+        dp /= 10;
+        dv /= 10;
+        dm /= 10;
+        removed++;
+      }
+      if(dmIsTrailingZeros && even) {
+        while(dm % 10 == 0) {
+          dvIsTrailingZeros &= lastRemovedDigit == 0;
+          lastRemovedDigit = (int) (dv % 10);
+          dp /= 10;
+          dv /= 10;
+          dm /= 10;
+          removed++;
+        }
+      }
+      if(dvIsTrailingZeros && lastRemovedDigit == 5 && dv % 2 == 0) {
+        lastRemovedDigit = 4;
+      }
+      output = dv + ((dv == dm && !(dmIsTrailingZeros && even)) || lastRemovedDigit >= 5 ? 1 : 0);
+    } else {
+      while(dp / 10 > dm / 10) {
+        lastRemovedDigit = (int) (dv % 10);
+        dp /= 10;
+        dv /= 10;
+        dm /= 10;
+        removed++;
+      }
+      output = dv + (dv == dm || lastRemovedDigit >= 5 ? 1 : 0);
+    }
+    return layout(output, decimalLength(output), e10 + removed, buffer, offset);
+  }
+
+  /**
+   * Writes a long at the given offset and returns the offset after it.
+   */
+  public static int formatLong(long value, char[] buffer, int offset) {
+    if(value == Long.MIN_VALUE) {
+      String s = "-9223372036854775808";
+      s.getChars(0, s.length(), buffer, offset);
+      return offset + s.length();
+    }
+    if(value < 0) {
+      buffer[offset++] = '-';
+      value = -value;
+    }
+    int end = offset + decimalLength(value);
+    int position = end;
+    do {
+      buffer[--position] = (char) ('0' + (int) (value % 10));
+      value /= 10;
+    } while(value != 0);
+    return end;
+  }
+
+  /**
+   * Lays out the decimal digits of output * 10^exponent.
+   */
+  private static int layout(long output, int length, int exponent, char[] buffer, int offset) {
+    int scientific = exponent + length - 1;
+    if(scientific >= -3 && scientific < 7) {
+      if(scientific >= 0) {
+        // digits, possibly padded with zeros, then the fraction
+        int point = scientific + 1;
+        for(int i = 0; i < point; i++) {
+          buffer[offset + i] = i < length ? digit(output, length, i) : '0';
+        }
+        offset += point;
+        buffer[offset++] = '.';
+        if(length > point) {
+          for(int i = point; i < length; i++) {
+            buffer[offset++] = digit(output, length, i);
+          }
+        } else {
+          buffer[offset++] = '0';
+        }
+      } else {
+        buffer[offset++] = '0';
+        buffer[offset++] = '.';
+        for(int i = -1; i > scientific; i--) {
+          buffer[offset++] = '0';
+        }
+        for(int i = 0; i < length; i++) {
+          buffer[offset++] = digit(output, length, i);
+        }
+      }
+    } else {
+      buffer[offset++] = digit(output, length, 0);
+      buffer[offset++] = '.';
+      if(length > 1) {
+        for(int i = 1; i < length; i++) {
+          buffer[offset++] = digit(output, length, i);
+        }
+      } else {
+        buffer[offset++] = '0';
+      }
+      buffer[offset++] = 'E';
+      offset = formatLong(scientific, buffer, offset);
+    }
+    return offset;
+  }
+
+  private static char digit(long output, int length, int index) {
+    return (char) ('0' + (int) (output / POW10[length - 1 - index] % 10));
+  }
+
+  private static int special(boolean nan, boolean negative, char[] buffer, int offset) {
+    String s = nan ? "(0/0)" : (negative ? "-1e999" : "1e999");
+    s.getChars(0, s.length(), buffer, offset);
+    return offset + s.length();
+  }
+
+  private static int pow5bits(int e) {
+    return e == 0 ? 1 : (int) ((e * 1217359L) >>> 19) + 1;
+  }
+
+  private static int decimalLength(long v) {
+    int length = 1;
+    while(v >= 10) {
+      v /= 10;
+      length++;
+    }
+    return length;
+  }
+
+  private static boolean multipleOfPowerOf5(long value, int q) {
+    int count = 0;
+    while(value > 0 && value % 5 == 0) {
+      value /= 5;
+      count++;
+    }
+    return count >= q;
+  }
+
+  private static long mulShift32(long m, long factor, int shift) {
+    long low = m * (factor & 0xffffffffL);
+    long high = m * (factor >>> 32);
+    return ((low >>> 32) + high) >>> (shift - 32);
+  }
+
+  private static long mulPow5DivPow2(long m, int i, int j) {
+    return mulSplit(m, POW5_SPLIT[i], j);
+  }
+
+  private static long mulPow5InvDivPow2(long m, int i, int j) {
+    return mulSplit(m, POW5_INV_SPLIT[i], j);
+  }
+
+  /**
+   * Computes floor(m * split / 2^shift) with split in four 31-bit limbs.
+   */
+  private static long mulSplit(long m, int[] split, int shift) {
+    long mHigh = m >>> 31;
+    long mLow = m & 0x7fffffff;
+    long bits13 = mHigh * split[0];
+    long bits03 = mLow * split[0];
+    long bits12 = mHigh * split[1];
+    long bits02 = mLow * split[1];
+    long bits11 = mHigh * split[2];
+    long bits01 = mLow * split[2];
+    long bits10 = mHigh * split[3];
+    long bits00 = mLow * split[3];
+    int actualShift = shift - 3 * 31 - 21;
+    if(actualShift < 0) {
+      throw new IllegalStateException();
+    }
+    return ((((((((bits00 >>> 31) + bits01 + bits10) >>> 31) + bits02 + bits11) >>> 31) + bits03 + bits12) >>> 21) + (bits13 << 10)) >>> actualShift;
+  }
+
+  private NumberFormatter() {}
+
+}